@@ -30,32 +30,56 @@
  */
 package com.notnoop.apns;
 
+import com.notnoop.apns.internal.AbstractApnsService;
 import com.notnoop.apns.internal.ApnsConnection;
 import com.notnoop.apns.internal.ApnsConnectionImpl;
+import com.notnoop.apns.internal.ApnsElasticPooledConnection;
 import com.notnoop.apns.internal.ApnsFeedbackConnection;
 import com.notnoop.apns.internal.ApnsPooledConnection;
 import com.notnoop.apns.internal.ApnsServiceImpl;
+import com.notnoop.apns.internal.AsyncApnsDelegate;
+import com.notnoop.apns.internal.ApnsSingleWriterConnection;
 import com.notnoop.apns.internal.BatchApnsService;
+import com.notnoop.apns.internal.CircuitBreakerApnsService;
+import com.notnoop.apns.internal.ErrorResponseReader;
+import com.notnoop.apns.internal.ExpiryFilter;
+import com.notnoop.apns.internal.InvalidTokenFilter;
+import com.notnoop.apns.internal.NotificationJournal;
+import com.notnoop.apns.internal.PriorityLaneQueue;
+import com.notnoop.apns.internal.PriorityLanesApnsService;
+import com.notnoop.apns.internal.RetryScheduler;
+import com.notnoop.apns.internal.TokenBucket;
+import com.notnoop.apns.internal.NotificationTracer;
 import com.notnoop.apns.internal.QueuedApnsService;
 import com.notnoop.apns.internal.SSLContextBuilder;
 import com.notnoop.apns.internal.Utilities;
+import com.notnoop.apns.internal.http2.Http2ApnsConnection;
+import com.notnoop.apns.internal.http2.ProviderTokenSigner;
+import com.notnoop.apns.metrics.ApnsMetrics;
 import com.notnoop.exceptions.InvalidSSLConfig;
 import com.notnoop.exceptions.RuntimeIOException;
 
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocketFactory;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.InputStream;
 import java.net.InetSocketAddress;
 import java.net.Proxy;
 import java.net.Socket;
 import java.security.KeyStore;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import static com.notnoop.apns.internal.Utilities.PRODUCTION_FEEDBACK_HOST;
 import static com.notnoop.apns.internal.Utilities.PRODUCTION_FEEDBACK_PORT;
@@ -102,10 +126,19 @@ public class ApnsServiceBuilder {
     private int cacheLength = ApnsConnection.DEFAULT_CACHE_LENGTH;
     private boolean autoAdjustCacheLength = true;
     private ExecutorService executor;
+    private long poolStallThreshold;
+    private int elasticMin;
+    private int elasticMax;
+    private long elasticLatencyThreshold;
+    private long elasticIdleTimeout;
 
     private ReconnectPolicy reconnectPolicy = ReconnectPolicy.Provided.EVERY_HALF_HOUR.newObject();
     private boolean isQueued;
     private ThreadFactory queueThreadFactory;
+    private File queueJournalDirectory;
+    private int[] laneWeights;
+    private boolean strictLanes;
+    private final Set<Integer> dedicatedLanes = new TreeSet<Integer>();
     
     private boolean isBatched;
     private int batchWaitTimeInSec;
@@ -118,6 +151,34 @@ public class ApnsServiceBuilder {
     private String proxyPassword;
     private boolean errorDetection = true;
     private ThreadFactory errorDetectionThreadFactory;
+    private ApnsMetrics metrics = ApnsMetrics.DISABLED;
+    private boolean sendPhaseTiming;
+    private NotificationTracer tracer = NotificationTracer.DISABLED;
+    private boolean standbyConnection;
+    private long warmUpTimeout;
+    private boolean warmUpFeedback;
+    private int errorReaderThreads;
+    private int asyncRetries;
+    private long retryInitialDelay, retryMaxDelay;
+    private int connectionRate, connectionBurst, serviceRate, serviceBurst;
+    private boolean adaptiveRateLimits;
+    private boolean dropExpired;
+    private boolean earliestDeadlineFirst;
+    private InvalidTokenFilter invalidTokenFilter;
+    private boolean validation;
+    private int framePriority;
+    private boolean http2;
+    private String http2Topic;
+    private ProviderTokenSigner tokenSigner;
+    private WaitStrategy writerWaitStrategy;
+    private int writerRingCapacity;
+    private int delegateRingCapacity;
+    private DelegateOverflow delegateOverflow;
+    private int breakerThreshold;
+    private long breakerOpenMillis;
+    private int breakerBufferSize;
+    private int sessionCacheSize = -1;
+    private int sessionTimeout = -1;
 
     /**
      * Constructs a new instance of {@code ApnsServiceBuilder}
@@ -567,6 +628,79 @@ public class ApnsServiceBuilder {
         return this;
     }
 
+    /**
+     * Lets any idle connection of the pool send a notification, instead
+     * of binding a connection to each pool thread.
+     *
+     * A connection whose current send has been in flight for the stall
+     * threshold, typically because it's reconnecting or resending after an
+     * error-response, is considered stalled.  Notifications to a device that
+     * is still being sent to wait for that send, to keep them in order,
+     * unless the connection stalled: then another connection takes them, so
+     * one stalled connection doesn't hold up the rest of the pool.
+     *
+     * Requires {@link #asPool(int)}.
+     *
+     * @param stallThreshold    the in-flight age after which a connection is stalled
+     * @param unit              the unit of the threshold
+     * @return  this
+     */
+    public ApnsServiceBuilder withWorkStealing(long stallThreshold, TimeUnit unit) {
+        if (stallThreshold <= 0) {
+            throw new IllegalArgumentException("Stall threshold must be positive: " + stallThreshold);
+        }
+        this.poolStallThreshold = Math.max(1, unit.toMillis(stallThreshold));
+        return this;
+    }
+
+    /**
+     * Constructs a pool of connections that grows and shrinks with the
+     * load, adding connections when notifications wait for one or sending
+     * takes longer than 50 milliseconds, and retiring connections idle for
+     * a minute.
+     *
+     * @param minConnections    the connections kept open when idle, at least 1
+     * @param maxConnections    the most connections opened under load
+     * @return  this
+     * @see #asElasticPool(int, int, long, long, TimeUnit)
+     */
+    public ApnsServiceBuilder asElasticPool(int minConnections, int maxConnections) {
+        return asElasticPool(minConnections, maxConnections, 50, 60000, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Constructs a pool of connections that grows and shrinks with the
+     * load.  Notifications are sent by the pushing threads, each on the
+     * least loaded connection.
+     *
+     * Once a second, a connection is added if notifications are waiting
+     * for a connection (at least one per connection) or if the average send
+     * time exceeds the latency threshold.  Otherwise a connection idle for
+     * the idle timeout is retired; it's closed a few seconds later, once
+     * the gateway can't reject its last notifications anymore.  The
+     * decisions are counted in the {@code pool.scale.up} and
+     * {@code pool.scale.down} metrics.
+     *
+     * @param minConnections    the connections kept open when idle, at least 1
+     * @param maxConnections    the most connections opened under load
+     * @param latencyThreshold  the average send time above which connections are added
+     * @param idleTimeout       how long a connection must be unused to be retired
+     * @param unit              the unit of the durations
+     * @return  this
+     */
+    public ApnsServiceBuilder asElasticPool(int minConnections, int maxConnections,
+            long latencyThreshold, long idleTimeout, TimeUnit unit) {
+        if (minConnections < 1 || maxConnections < minConnections) {
+            throw new IllegalArgumentException("Invalid pool size: min " + minConnections
+                    + ", max " + maxConnections);
+        }
+        this.elasticMin = minConnections;
+        this.elasticMax = maxConnections;
+        this.elasticLatencyThreshold = unit.toMillis(latencyThreshold);
+        this.elasticIdleTimeout = unit.toMillis(idleTimeout);
+        return this;
+    }
+
     /**
      * Constructs a new thread with a processing queue to process
      * notification requests.
@@ -681,6 +815,31 @@ public class ApnsServiceBuilder {
         return this;
     }
 
+    /**
+     * Calls the {@link #withDelegate(ApnsDelegate) delegate} from a
+     * dedicated dispatcher thread, so that a slow delegate doesn't hold up
+     * sending.  Events are buffered in a lock-free ring and delivered in
+     * order, except for the events run on the sending thread by
+     * {@link DelegateOverflow#CALLER_RUNS}; a {@link BatchApnsDelegate}
+     * gets consecutive sent notifications as one list.
+     *
+     * {@code startSending} is still called on the sending thread.  Events
+     * pending when the service stops are delivered before
+     * {@link ApnsService#stop()} returns.
+     *
+     * @param ringCapacity  the number of events buffered, rounded up to a power of two
+     * @param overflow      what to do with an event when the buffer is full
+     * @return  this
+     */
+    public ApnsServiceBuilder withAsyncDelegate(int ringCapacity, DelegateOverflow overflow) {
+        if (ringCapacity < 1) {
+            throw new IllegalArgumentException("Ring capacity must be positive: " + ringCapacity);
+        }
+        this.delegateRingCapacity = ringCapacity;
+        this.delegateOverflow = overflow == null ? DelegateOverflow.BLOCK : overflow;
+        return this;
+    }
+
     /**
      * Disables the enhanced error detection, enabled by the
      * enhanced push notification interface.  Error detection is
@@ -710,6 +869,598 @@ public class ApnsServiceBuilder {
         return this;
     }
 
+    /**
+     * Specify the registry the service should record its metrics into:
+     * notifications and bytes sent, write latency, reconnects, TLS
+     * handshake time, error-responses, resends and cache and queue depths.
+     *
+     * No metrics are recorded by default.
+     *
+     * @param metrics   the registry to record into
+     * @return  this
+     */
+    public ApnsServiceBuilder withMetrics(ApnsMetrics metrics) {
+        this.metrics = metrics == null ? ApnsMetrics.DISABLED : metrics;
+        return this;
+    }
+
+    /**
+     * Enables timing the phases of every send (lock wait, socket creation,
+     * write and delegate callbacks) into per-connection histograms of the
+     * registry given to {@link #withMetrics(ApnsMetrics)}.  See
+     * {@link ApnsMetrics#sendPhaseSnapshots()}.
+     *
+     * This has no effect if no metrics registry is specified.
+     *
+     * @return  this
+     */
+    public ApnsServiceBuilder withSendPhaseTiming() {
+        this.sendPhaseTiming = true;
+        return this;
+    }
+
+    /**
+     * Retries notifications that failed to be written asynchronously, with
+     * an exponentially growing, randomly shortened delay, instead of
+     * sleeping between attempts while blocking every sender of the
+     * connection.
+     *
+     * A notification is still tried a second time right away; after that
+     * it is parked for up to {@value RetryScheduler#DEFAULT_RETRIES}
+     * delayed attempts.  If it is parked, {@code push} returns normally,
+     * and the outcome is reported to the
+     * {@link #withDelegate(ApnsDelegate) delegate}.
+     *
+     * @param initialDelay  the delay before the first delayed attempt
+     * @param maxDelay      the maximum delay between attempts
+     * @param unit          the unit of the delays
+     * @return  this
+     */
+    public ApnsServiceBuilder withAsyncRetries(long initialDelay, long maxDelay, TimeUnit unit) {
+        return withAsyncRetries(RetryScheduler.DEFAULT_RETRIES, initialDelay, maxDelay, unit);
+    }
+
+    /**
+     * Retries notifications that failed to be written asynchronously, like
+     * {@link #withAsyncRetries(long, long, TimeUnit)}, making up to the
+     * given number of delayed attempts before reporting a notification as
+     * failed.  Delayed attempts still pending when the service stops are
+     * reported as failed.
+     *
+     * @param retries       the delayed attempts of a notification
+     * @param initialDelay  the delay before the first delayed attempt
+     * @param maxDelay      the maximum delay between attempts
+     * @param unit          the unit of the delays
+     * @return  this
+     */
+    public ApnsServiceBuilder withAsyncRetries(int retries, long initialDelay, long maxDelay, TimeUnit unit) {
+        if (retries <= 0 || initialDelay <= 0 || maxDelay < initialDelay) {
+            throw new IllegalArgumentException("Expected retries > 0 and 0 < initialDelay <= maxDelay");
+        }
+        this.asyncRetries = retries;
+        this.retryInitialDelay = unit.toMillis(initialDelay);
+        this.retryMaxDelay = unit.toMillis(maxDelay);
+        return this;
+    }
+
+    /**
+     * Limits the rate at which each gateway connection writes notifications,
+     * so that a connection isn't dropped by the gateway for flooding it.
+     * Notifications over the limit wait until they can be sent.
+     *
+     * @param permitsPerSecond  the sustained rate of each connection
+     * @param burst             the notifications a connection can write at
+     *                          once after an idle period
+     * @return  this
+     */
+    public ApnsServiceBuilder withConnectionRateLimit(int permitsPerSecond, int burst) {
+        checkRateLimit(permitsPerSecond, burst);
+        this.connectionRate = permitsPerSecond;
+        this.connectionBurst = burst;
+        return this;
+    }
+
+    /**
+     * Limits the rate at which all the gateway connections of the service
+     * together write notifications.  Notifications over the limit wait
+     * until they can be sent.
+     *
+     * @param permitsPerSecond  the sustained rate of the service
+     * @param burst             the notifications the service can write at
+     *                          once after an idle period
+     * @return  this
+     */
+    public ApnsServiceBuilder withServiceRateLimit(int permitsPerSecond, int burst) {
+        checkRateLimit(permitsPerSecond, burst);
+        this.serviceRate = permitsPerSecond;
+        this.serviceBurst = burst;
+        return this;
+    }
+
+    private static void checkRateLimit(int permitsPerSecond, int burst) {
+        if (permitsPerSecond <= 0 || burst <= 0) {
+            throw new IllegalArgumentException("Rate and burst must be positive");
+        }
+    }
+
+    /**
+     * Makes the {@link #withConnectionRateLimit connection} and
+     * {@link #withServiceRateLimit service} rate limits adaptive: each time
+     * the gateway drops a connection other than for a malformed
+     * notification, the rates are halved, down to a tenth of the configured
+     * limits, and every second without disconnects they grow back by a
+     * twentieth of the limits.
+     *
+     * @return  this
+     */
+    public ApnsServiceBuilder withAdaptiveRateLimits() {
+        this.adaptiveRateLimits = true;
+        return this;
+    }
+
+    private TokenBucket newRateLimiter(int permitsPerSecond, int burst) {
+        if (permitsPerSecond == 0) {
+            return null;
+        }
+        long minRate = adaptiveRateLimits ? Math.max(1, permitsPerSecond / 10) : permitsPerSecond;
+        return new TokenBucket(permitsPerSecond, minRate, burst);
+    }
+
+    /**
+     * Drops the notifications whose expiry date has passed, instead of
+     * sending them from the queue of a {@link #asQueued() queued} service
+     * or the batch of a {@link #asBatched() batched} one, or resending them
+     * after an error-response.  The gateway would discard them anyway.
+     *
+     * Dropped notifications are counted in the metrics, and reported to
+     * the {@link #withDelegate(ApnsDelegate) delegate} if it implements
+     * {@link ExpiryAwareApnsDelegate}.
+     *
+     * @return  this
+     */
+    public ApnsServiceBuilder withExpiredNotificationsDropped() {
+        this.dropExpired = true;
+        return this;
+    }
+
+    /**
+     * Builds the notifications of the {@code push} methods taking a token
+     * and a payload in the item-based (command 2) frame format, with the
+     * given priority, instead of the enhanced (command 1) format.
+     *
+     * Use {@link FramedApnsNotification#PRIORITY_CONSERVE_POWER} for bulk
+     * notifications; to mix priorities, push {@link FramedApnsNotification}
+     * instances directly.
+     *
+     * @param priority  {@link FramedApnsNotification#PRIORITY_IMMEDIATE} or
+     *                  {@link FramedApnsNotification#PRIORITY_CONSERVE_POWER}
+     * @return  this
+     */
+    public ApnsServiceBuilder withFrameProtocol(int priority) {
+        if (priority != FramedApnsNotification.PRIORITY_IMMEDIATE
+                && priority != FramedApnsNotification.PRIORITY_CONSERVE_POWER) {
+            throw new IllegalArgumentException("Priority must be 10 or 5: " + priority);
+        }
+        this.framePriority = priority;
+        return this;
+    }
+
+    /**
+     * Sends the notifications through the HTTP/2 provider API instead of
+     * the binary gateway protocol.
+     *
+     * Every notification gets its own response, reported to the
+     * {@link #withDelegate(ApnsDelegate) delegate} when it arrives, and
+     * many notifications are in flight at once on a single connection.
+     * The sandbox and production destinations are mapped to the
+     * corresponding provider API hosts; a custom gateway destination is
+     * used as is.  Proxies aren't supported by this protocol.
+     *
+     * @param topic the topic of the notifications, usually the bundle id
+     *              of the app; may be null if the certificate has a single one
+     * @return  this
+     */
+    public ApnsServiceBuilder withHttp2Protocol(String topic) {
+        this.http2 = true;
+        this.http2Topic = topic;
+        return this;
+    }
+
+    /**
+     * Gives each gateway connection a dedicated writer thread, fed through
+     * a lock-free ring of 8192 notifications.
+     *
+     * @param waitStrategy  how the writer waits for notifications
+     * @return  this
+     * @see #withSingleWriter(WaitStrategy, int)
+     */
+    public ApnsServiceBuilder withSingleWriter(WaitStrategy waitStrategy) {
+        return withSingleWriter(waitStrategy, 8192);
+    }
+
+    /**
+     * Gives each gateway connection a dedicated writer thread.  Threads
+     * pushing notifications only publish them into a lock-free ring; the
+     * writer drains it and sends everything it found in packed writes, so
+     * producers never contend on the connection.
+     *
+     * Pushing becomes asynchronous: network failures are reported to the
+     * {@link #withDelegate(ApnsDelegate) delegate} rather than thrown.
+     * When the ring is full, pushing threads wait for room.
+     *
+     * @param waitStrategy  how the writer waits for notifications, and
+     *                      producers for room in a full ring
+     * @param ringCapacity  the number of notifications each ring holds,
+     *                      rounded up to a power of two
+     * @return  this
+     */
+    public ApnsServiceBuilder withSingleWriter(WaitStrategy waitStrategy, int ringCapacity) {
+        if (ringCapacity < 1) {
+            throw new IllegalArgumentException("Ring capacity must be positive: " + ringCapacity);
+        }
+        this.writerWaitStrategy = waitStrategy;
+        this.writerRingCapacity = ringCapacity;
+        return this;
+    }
+
+    /**
+     * Authenticates to the HTTP/2 provider API with signed provider tokens
+     * (JSON Web Tokens) instead of, or in addition to, a client certificate.
+     * Requires {@link #withHttp2Protocol(String)}.
+     *
+     * The token is signed once and shared by all the connections of the
+     * service, and refreshed in the background before it expires.  Without
+     * a certificate the feedback service isn't available.
+     *
+     * @param fileName  the path to the .p8 key file issued by Apple
+     * @param keyId     the identifier of the key
+     * @param teamId    the identifier of the developer team
+     * @return  this
+     * @throws RuntimeIOException if {@code fileName} cannot be found or read
+     * @throws IllegalArgumentException if the file doesn't hold an EC private key
+     */
+    public ApnsServiceBuilder withProviderToken(String fileName, String keyId, String teamId)
+    throws RuntimeIOException {
+        FileInputStream stream = null;
+        try {
+            stream = new FileInputStream(fileName);
+            return withProviderToken(stream, keyId, teamId);
+        } catch (FileNotFoundException e) {
+            throw new RuntimeIOException(e);
+        } finally {
+            Utilities.close(stream);
+        }
+    }
+
+    /**
+     * Authenticates to the HTTP/2 provider API with signed provider tokens;
+     * see {@link #withProviderToken(String, String, String)}.
+     *
+     * @param stream    the content of the .p8 key file issued by Apple
+     * @param keyId     the identifier of the key
+     * @param teamId    the identifier of the developer team
+     * @return  this
+     * @throws RuntimeIOException if {@code stream} cannot be read
+     * @throws IllegalArgumentException if the stream doesn't hold an EC private key
+     */
+    public ApnsServiceBuilder withProviderToken(InputStream stream, String keyId, String teamId)
+    throws RuntimeIOException {
+        try {
+            this.tokenSigner = new ProviderTokenSigner(ProviderTokenSigner.loadKey(stream), keyId, teamId);
+        } catch (IOException e) {
+            throw new RuntimeIOException(e);
+        }
+        return this;
+    }
+
+    /**
+     * Checks each notification before writing it to the gateway.  Those
+     * with a device token that isn't 32 bytes long, or an empty or
+     * oversized payload, are reported to the
+     * {@link #withDelegate(ApnsDelegate) delegate} through
+     * {@link ApnsDelegate#messageSendFailed} with the delivery error the
+     * gateway would have answered, instead of being sent and making the
+     * gateway drop the connection.
+     *
+     * @return  this
+     */
+    public ApnsServiceBuilder withValidation() {
+        this.validation = true;
+        return this;
+    }
+
+    /**
+     * Remembers the device tokens rejected by the gateway as invalid, or
+     * reported as inactive by {@link ApnsService#getInactiveDevices()}, and
+     * stops sending notifications to them: each send to an invalid token
+     * otherwise costs a disconnect, a new handshake and the resend of the
+     * notifications sent after it.
+     *
+     * Notifications to remembered tokens are reported to the
+     * {@link #withDelegate(ApnsDelegate) delegate} through
+     * {@link ApnsDelegate#messageSendFailed} with an
+     * {@code INVALID_TOKEN} delivery error.
+     *
+     * @param expectedTokens    the number of invalid tokens to size the
+     *                          filter for
+     * @param ttl               how long a token is remembered, in case the
+     *                          device registers it again
+     * @param unit              the unit of the time to live
+     * @return  this
+     */
+    public ApnsServiceBuilder withInvalidTokenFilter(int expectedTokens, long ttl, TimeUnit unit) {
+        return withInvalidTokenFilter(new InvalidTokenFilter(expectedTokens, unit.toMillis(ttl)));
+    }
+
+    /**
+     * Remembers the device tokens known to be invalid in the given filter,
+     * and stops sending notifications to them.
+     *
+     * Keep a reference to the filter to {@link InvalidTokenFilter#remove
+     * forget} a token as soon as its device registers it again, rather
+     * than waiting for the time to live.  The filter may be shared by
+     * several services.
+     *
+     * @param filter    the filter of invalid tokens
+     * @return  this
+     * @see #withInvalidTokenFilter(int, long, TimeUnit)
+     */
+    public ApnsServiceBuilder withInvalidTokenFilter(InvalidTokenFilter filter) {
+        this.invalidTokenFilter = filter;
+        return this;
+    }
+
+    /**
+     * Sends the queued notifications of a {@link #asQueued() queued}
+     * service in the order of their expiry dates, earliest first, rather
+     * than in the order they were pushed.  Notifications without an expiry
+     * are sent last.
+     *
+     * @return  this
+     */
+    public ApnsServiceBuilder withEarliestDeadlineFirst() {
+        this.earliestDeadlineFirst = true;
+        return this;
+    }
+
+    /**
+     * Splits the queue of a {@link #asQueued() queued} service into priority
+     * lanes served in proportion to their weights, so that bulk sends don't
+     * delay time-critical notifications by more than a few notifications.
+     *
+     * The built service implements {@link PrioritizedApnsService}: cast it
+     * to choose the lane of each notification.  Lane 0 comes first, and is
+     * used by the {@code push} methods without a lane.
+     *
+     * @param weights   the positive weight of each lane
+     * @return  this
+     */
+    public ApnsServiceBuilder withPriorityLanes(int... weights) {
+        PriorityLaneQueue.weighted(weights);
+        this.laneWeights = weights.clone();
+        this.strictLanes = false;
+        return this;
+    }
+
+    /**
+     * Splits the queue of a {@link #asQueued() queued} service into priority
+     * lanes served in strict order: a notification is only sent when the
+     * lanes before its own are empty.
+     *
+     * The built service implements {@link PrioritizedApnsService}.
+     *
+     * @param lanes the number of lanes
+     * @return  this
+     */
+    public ApnsServiceBuilder withStrictPriorityLanes(int lanes) {
+        PriorityLaneQueue.strict(lanes);
+        this.laneWeights = new int[lanes];
+        Arrays.fill(this.laneWeights, 1);
+        this.strictLanes = true;
+        return this;
+    }
+
+    /**
+     * Sends the notifications of the given priority lane through a
+     * connection and queue thread of their own, in addition to the other
+     * connections, so that they are never stuck behind other lanes.
+     *
+     * @param lane  the lane, as configured with {@link #withPriorityLanes}
+     *              or {@link #withStrictPriorityLanes}
+     * @return  this
+     */
+    public ApnsServiceBuilder withDedicatedLaneConnection(int lane) {
+        this.dedicatedLanes.add(lane);
+        return this;
+    }
+
+    /**
+     * Records the notifications of a {@link #asQueued() queued} service in a
+     * memory-mapped journal in the given directory until they are sent, so
+     * that they survive a restart or a crash of the process.  The
+     * notifications the journal holds when the service is built are sent
+     * first.
+     *
+     * A sent notification is only dropped from the journal after ten
+     * seconds, as Apple may still reject it or have it resent meanwhile;
+     * so a restart may send a few notifications twice.
+     *
+     * @param directory the directory of the journal, used by one service only
+     * @return  this
+     */
+    public ApnsServiceBuilder withQueueJournal(File directory) {
+        this.queueJournalDirectory = directory;
+        return this;
+    }
+
+    /**
+     * Stops pushing to the gateway after {@code failureThreshold}
+     * consecutive network failures, instead of trying to connect for every
+     * notification while it is unreachable.
+     *
+     * While the breaker is open, notifications are kept in a buffer of
+     * {@code bufferSize} notifications, or rejected with a
+     * {@link com.notnoop.exceptions.CircuitOpenException} once it is full.
+     * After {@code openTime} the gateway is probed with
+     * {@link ApnsService#testConnection()}, even if nothing is pushed, and
+     * the buffered notifications are sent if it succeeds.
+     *
+     * Rejected notifications, buffered ones that fail to be sent and those
+     * still buffered when the service stops are reported to the
+     * {@link #withDelegate(ApnsDelegate) delegate}.  With
+     * {@link #asQueued()} the breaker sits behind the queue, where it sees
+     * the failures, so the delegate is the only place rejections show up.
+     *
+     * The breaker only sees failures reported by {@code push}, so it has
+     * no effect on batched services or with connection pooling, which
+     * don't report them.
+     *
+     * @param failureThreshold  the consecutive failures opening the breaker
+     * @param openTime          the time to wait before probing the gateway
+     * @param unit              the unit of {@code openTime}
+     * @param bufferSize        the notifications to keep while open, 0 to reject them
+     * @return  this
+     */
+    public ApnsServiceBuilder withCircuitBreaker(int failureThreshold, long openTime, TimeUnit unit, int bufferSize) {
+        if (failureThreshold < 1 || openTime < 0 || bufferSize < 0) {
+            throw new IllegalArgumentException("Expected failureThreshold > 0, openTime >= 0 and bufferSize >= 0");
+        }
+        this.breakerThreshold = failureThreshold;
+        this.breakerOpenMillis = unit.toMillis(openTime);
+        this.breakerBufferSize = bufferSize;
+        return this;
+    }
+
+    /**
+     * Watches all gateway sockets for error-responses with a fixed number
+     * of shared reader threads, instead of starting a monitoring thread for
+     * every new socket.  This keeps the thread count constant regardless of
+     * the pool size and reconnect rate.
+     *
+     * The same number of threads handles the resending after an error.  The
+     * threads are created by the {@link #withErrorDetectionThreadFactory}
+     * factory, if given.  Connections through an HTTP proxy still use a
+     * thread per socket.
+     *
+     * @param threads   the number of reader threads
+     * @return  this
+     */
+    public ApnsServiceBuilder withSharedErrorReader(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be positive: " + threads);
+        }
+        this.errorReaderThreads = threads;
+        return this;
+    }
+
+    /**
+     * Configures the cache of TLS sessions of the SSL context, which lets
+     * reconnects, batch flushes and feedback polls resume a session with
+     * an abbreviated handshake instead of repeating the full handshake and
+     * client-certificate exchange.
+     *
+     * The settings apply to the client sessions of the context given to
+     * {@link #withSSLContext(SSLContext)} as well.  Handshakes are timed
+     * as full or resumed into the {@link #withMetrics(ApnsMetrics)}
+     * registry.
+     *
+     * @param cacheSize         the maximum number of cached sessions, 0 for no limit
+     * @param timeoutSeconds    the time a session may be resumed for, 0 for no limit
+     * @return  this
+     */
+    public ApnsServiceBuilder withSessionCache(int cacheSize, int timeoutSeconds) {
+        if (cacheSize < 0 || timeoutSeconds < 0) {
+            throw new IllegalArgumentException("cacheSize and timeoutSeconds must not be negative");
+        }
+        this.sessionCacheSize = cacheSize;
+        this.sessionTimeout = timeoutSeconds;
+        return this;
+    }
+
+    /**
+     * Opens all the gateway connections in parallel while the service
+     * starts, instead of on the first notification of each connection.
+     *
+     * @param timeout   the longest {@link ApnsService#start()} waits for them
+     * @param unit      the unit of the timeout
+     * @return  this
+     * @see #withWarmUp(long, TimeUnit, boolean)
+     */
+    public ApnsServiceBuilder withWarmUp(long timeout, TimeUnit unit) {
+        return withWarmUp(timeout, unit, false);
+    }
+
+    /**
+     * Opens all the gateway connections in parallel while the service
+     * starts, so that the first notifications don't wait for TLS
+     * handshakes.  With a pool, all of its connections are opened.
+     *
+     * Connections that fail or don't open before the timeout are opened on
+     * first use, as without a warm-up; the outcome is logged and counted in
+     * the {@code warmup.opened} and {@code warmup.failed} metrics.
+     *
+     * When the feedback service is included, the inactive devices are read
+     * during the warm-up too, and returned by the first call to
+     * {@link ApnsService#getInactiveDevices()}.
+     *
+     * @param timeout           the longest {@link ApnsService#start()} waits for them
+     * @param unit              the unit of the timeout
+     * @param includeFeedback   whether to read the feedback service as well
+     * @return  this
+     */
+    public ApnsServiceBuilder withWarmUp(long timeout, TimeUnit unit, boolean includeFeedback) {
+        if (timeout <= 0) {
+            throw new IllegalArgumentException("Warm-up timeout must be positive: " + timeout);
+        }
+        this.warmUpTimeout = Math.max(1, unit.toMillis(timeout));
+        this.warmUpFeedback = includeFeedback;
+        return this;
+    }
+
+    /**
+     * Keeps a pre-handshaked standby connection open for every gateway
+     * connection, so that an error or a reconnect swaps it in instead of
+     * stalling the senders during a new TLS handshake.
+     *
+     * This doubles the number of connections opened to Apple.
+     *
+     * @return  this
+     */
+    public ApnsServiceBuilder withStandbyConnection() {
+        this.standbyConnection = true;
+        return this;
+    }
+
+    /**
+     * Enables tracing one in every {@code sampleRate} notifications from
+     * the queue to the socket, logging the {@link TraceEvent}s to the
+     * {@code com.notnoop.apns.trace} logger at debug level.
+     *
+     * @param sampleRate    trace one in every {@code sampleRate} notifications
+     * @return  this
+     */
+    public ApnsServiceBuilder withTracing(int sampleRate) {
+        return withTracing(sampleRate, null);
+    }
+
+    /**
+     * Enables tracing one in every {@code sampleRate} notifications from
+     * the queue to the socket, reporting the {@link TraceEvent}s to the
+     * given listener.
+     *
+     * The notifications are sampled by identifier, so a traced notification
+     * is reported at every step, including resends.  Tracing is disabled by
+     * default and costs nothing then.
+     *
+     * @param sampleRate    trace one in every {@code sampleRate} notifications
+     * @param listener      the listener receiving the events
+     * @return  this
+     */
+    public ApnsServiceBuilder withTracing(int sampleRate, NotificationTraceListener listener) {
+        this.tracer = new NotificationTracer(sampleRate, listener);
+        return this;
+    }
+
     /**
      * Returns a fully initialized instance of {@link ApnsService},
      * according to the requested settings.
@@ -720,25 +1471,105 @@ public class ApnsServiceBuilder {
         checkInitialization();
         ApnsService service;
 
-        SSLSocketFactory sslFactory = sslContext.getSocketFactory();
+        SSLContext context = sslContext;
+        if (context == null) {
+            // provider tokens authenticate the requests; no client certificate is needed
+            try {
+                context = SSLContext.getDefault();
+            } catch (NoSuchAlgorithmException e) {
+                throw new InvalidSSLConfig(e);
+            }
+        } else {
+            SSLContextBuilder.configureSessionCache(context, sessionCacheSize, sessionTimeout);
+        }
+        SSLSocketFactory sslFactory = context.getSocketFactory();
         ApnsFeedbackConnection feedback = new ApnsFeedbackConnection(sslFactory, feedbackHost, feedbackPort, proxy, readTimeout, connectTimeout, proxyUsername, proxyPassword);
 
-        ApnsConnection conn = new ApnsConnectionImpl(sslFactory, gatewayHost,
-            gatewayPort, proxy, proxyUsername, proxyPassword, reconnectPolicy,
-                delegate, errorDetection, errorDetectionThreadFactory, cacheLength,
-                autoAdjustCacheLength, readTimeout, connectTimeout);
-        if (pooledMax != 1) {
-            conn = new ApnsPooledConnection(conn, pooledMax, executor);
+        feedback.setInvalidTokenFilter(invalidTokenFilter);
+        ApnsDelegate delegate = this.delegate;
+        AsyncApnsDelegate asyncDelegate = null;
+        if (delegateRingCapacity > 0) {
+            asyncDelegate = new AsyncApnsDelegate(delegate, delegateRingCapacity, delegateOverflow, null);
+            asyncDelegate.setMetrics(metrics);
+            delegate = asyncDelegate;
+        }
+        RetryScheduler retryScheduler = null;
+        if (asyncRetries > 0) {
+            retryScheduler = new RetryScheduler(asyncRetries, retryInitialDelay, retryMaxDelay);
+        }
+        ExpiryFilter expiryFilter = null;
+        if (dropExpired) {
+            expiryFilter = new ExpiryFilter(delegate);
+            expiryFilter.setMetrics(metrics);
+            expiryFilter.setTracer(tracer);
+        }
+
+        ApnsConnection prototype;
+        if (http2) {
+            Http2ApnsConnection http2Conn = new Http2ApnsConnection(sslFactory, http2Host(),
+                    http2Port(), http2Topic, delegate, connectTimeout, errorDetectionThreadFactory);
+            http2Conn.setMetrics(metrics);
+            http2Conn.setInvalidTokenFilter(invalidTokenFilter);
+            http2Conn.setProviderTokenSigner(tokenSigner);
+            prototype = http2Conn;
+        } else if (writerWaitStrategy != null) {
+            ApnsSingleWriterConnection writerConn = new ApnsSingleWriterConnection(
+                    newConnection(sslFactory, expiryFilter, retryScheduler, ApnsSingleWriterConnection.tracking(delegate)),
+                    delegate, writerWaitStrategy, writerRingCapacity, null);
+            writerConn.setMetrics(metrics);
+            prototype = writerConn;
+        } else {
+            prototype = newConnection(sslFactory, expiryFilter, retryScheduler, delegate);
         }
 
-        service = new ApnsServiceImpl(conn, feedback);
+        ApnsConnection conn = pooled(prototype);
+        service = newSendingService(conn, feedback, delegate, retryScheduler, asyncDelegate);
 
         if (isQueued) {
-            service = new QueuedApnsService(service, queueThreadFactory);
+            QueuedApnsService queuedService = new QueuedApnsService(service, queueThreadFactory, metrics);
+            queuedService.setTracer(tracer);
+            queuedService.setExpiryFilter(expiryFilter);
+            if (earliestDeadlineFirst) {
+                queuedService.setEarliestDeadlineFirst();
+            }
+            if (queueJournalDirectory != null) {
+                queuedService.setJournal(new NotificationJournal(queueJournalDirectory));
+            }
+            service = queuedService;
+
+            if (laneWeights != null) {
+                queuedService.setPriorityLanes(strictLanes
+                        ? PriorityLaneQueue.strict(laneWeights.length) : PriorityLaneQueue.weighted(laneWeights));
+                if (!dedicatedLanes.isEmpty()) {
+                    QueuedApnsService[] dedicated = new QueuedApnsService[laneWeights.length];
+                    for (int lane : dedicatedLanes) {
+                        // the shared service, stopped last, owns the retry scheduler and delegate dispatcher
+                        ApnsService laneService = newSendingService(pooled(prototype.copy()), feedback, delegate,
+                                null, null);
+                        dedicated[lane] = new QueuedApnsService(laneService, queueThreadFactory);
+                        dedicated[lane].setTracer(tracer);
+                        dedicated[lane].setExpiryFilter(expiryFilter);
+                    }
+                    service = new PriorityLanesApnsService(queuedService, dedicated);
+                }
+            }
         }
         
         if (isBatched) {
-            service = new BatchApnsService(conn, feedback, batchWaitTimeInSec, batchMaxWaitTimeInSec, batchThreadPoolExecutor);
+            BatchApnsService batchService = new BatchApnsService(conn, feedback, batchWaitTimeInSec, batchMaxWaitTimeInSec, batchThreadPoolExecutor);
+            batchService.setMetrics(metrics);
+            batchService.setRetryScheduler(retryScheduler);
+            batchService.setDelegateDispatcher(asyncDelegate);
+            if (warmUpTimeout > 0) {
+                batchService.setWarmUp(warmUpTimeout, TimeUnit.MILLISECONDS, warmUpFeedback);
+            }
+            batchService.setTracer(tracer);
+            batchService.setExpiryFilter(expiryFilter);
+            service = batchService;
+        }
+
+        if (framePriority != 0 && service instanceof AbstractApnsService) {
+            ((AbstractApnsService) service).setFramePriority(framePriority);
         }
 
         service.start();
@@ -746,11 +1577,130 @@ public class ApnsServiceBuilder {
         return service;
     }
 
+    /**
+     * Wraps the connection in the configured pool, if any.
+     */
+    private ApnsConnection pooled(ApnsConnection conn) {
+        if (elasticMax > 0) {
+            ApnsElasticPooledConnection pool = new ApnsElasticPooledConnection(conn, elasticMin, elasticMax,
+                    elasticLatencyThreshold, elasticIdleTimeout,
+                    ApnsElasticPooledConnection.DEFAULT_ERROR_WINDOW_MILLIS, TimeUnit.MILLISECONDS);
+            pool.setMetrics(metrics);
+            return pool;
+        } else if (pooledMax != 1) {
+            ApnsPooledConnection pool = new ApnsPooledConnection(conn, pooledMax, executor);
+            pool.setMetrics(metrics);
+            if (poolStallThreshold > 0) {
+                pool.setWorkStealing(poolStallThreshold, TimeUnit.MILLISECONDS);
+            }
+            return pool;
+        }
+        return conn;
+    }
+
+    /**
+     * Builds the service pushing on the connection, with the configured
+     * warm-up and circuit breaker.
+     *
+     * @param retryScheduler    shut down when the service stops, or null
+     * @param asyncDelegate     closed when the service stops, or null
+     */
+    private ApnsService newSendingService(ApnsConnection conn, ApnsFeedbackConnection feedback,
+            ApnsDelegate delegate, RetryScheduler retryScheduler, AsyncApnsDelegate asyncDelegate) {
+        ApnsServiceImpl serviceImpl = new ApnsServiceImpl(conn, feedback);
+        if (warmUpTimeout > 0) {
+            serviceImpl.setMetrics(metrics);
+            serviceImpl.setWarmUp(warmUpTimeout, TimeUnit.MILLISECONDS, warmUpFeedback);
+        }
+        serviceImpl.setRetryScheduler(retryScheduler);
+        serviceImpl.setDelegateDispatcher(asyncDelegate);
+        if (breakerThreshold <= 0) {
+            return serviceImpl;
+        }
+        CircuitBreakerApnsService breaker = new CircuitBreakerApnsService(serviceImpl, breakerThreshold,
+                breakerOpenMillis, TimeUnit.MILLISECONDS, breakerBufferSize);
+        breaker.setDelegate(delegate);
+        return breaker;
+    }
+
+    private ApnsConnectionImpl newConnection(SSLSocketFactory sslFactory, ExpiryFilter expiryFilter,
+            RetryScheduler retryScheduler, ApnsDelegate connectionDelegate) {
+        ApnsConnectionImpl connImpl = new ApnsConnectionImpl(sslFactory, gatewayHost,
+            gatewayPort, proxy, proxyUsername, proxyPassword, reconnectPolicy,
+                connectionDelegate, errorDetection, errorDetectionThreadFactory, cacheLength,
+                autoAdjustCacheLength, readTimeout, connectTimeout);
+        connImpl.setMetrics(metrics);
+        connImpl.setSendPhaseTiming(sendPhaseTiming);
+        connImpl.setTracer(tracer);
+        connImpl.setStandbyConnection(standbyConnection);
+        connImpl.setRetryScheduler(retryScheduler);
+        connImpl.setRateLimiter(newRateLimiter(connectionRate, connectionBurst));
+        connImpl.setSharedRateLimiter(newRateLimiter(serviceRate, serviceBurst));
+        connImpl.setInvalidTokenFilter(invalidTokenFilter);
+        connImpl.setValidation(validation);
+        connImpl.setExpiryFilter(expiryFilter);
+        if (errorDetection && errorReaderThreads > 0) {
+            connImpl.setErrorResponseReader(new ErrorResponseReader(errorReaderThreads, errorDetectionThreadFactory));
+        }
+        return connImpl;
+    }
+
+    private String http2Host() {
+        if (Utilities.SANDBOX_GATEWAY_HOST.equals(gatewayHost)) {
+            return Utilities.SANDBOX_HTTP2_HOST;
+        } else if (Utilities.PRODUCTION_GATEWAY_HOST.equals(gatewayHost)) {
+            return Utilities.PRODUCTION_HTTP2_HOST;
+        }
+        return gatewayHost;
+    }
+
+    private int http2Port() {
+        if (Utilities.SANDBOX_GATEWAY_HOST.equals(gatewayHost)
+                || Utilities.PRODUCTION_GATEWAY_HOST.equals(gatewayHost)) {
+            return Utilities.HTTP2_PORT;
+        }
+        return gatewayPort;
+    }
+
     private void checkInitialization() {
-        if (sslContext == null)
+        if (http2 && proxy != null)
+            throw new IllegalStateException("The HTTP/2 protocol doesn't support proxies");
+        if (elasticMax > 0 && pooledMax != 1)
+            throw new IllegalStateException(
+                    "A pool can't be both fixed and elastic\n"
+                    + "Use either .asPool() or .asElasticPool().");
+        if (poolStallThreshold > 0 && pooledMax == 1)
+            throw new IllegalStateException(
+                    "Work stealing requires a fixed pool of connections\n"
+                    + "Use .asPool().");
+        if (http2 && writerWaitStrategy != null)
+            throw new IllegalStateException(
+                    "HTTP/2 connections are already shared by concurrent senders\n"
+                    + "Use either .withHttp2Protocol() or .withSingleWriter().");
+        if (tokenSigner != null && !http2)
+            throw new IllegalStateException(
+                    "Provider tokens require the HTTP/2 protocol\n"
+                    + "Use .withHttp2Protocol().");
+        if (earliestDeadlineFirst && (!isQueued || isBatched || laneWeights != null || queueJournalDirectory != null))
+            throw new IllegalStateException(
+                    "Earliest deadline first requires a queued service without lanes or a journal\n"
+                    + "Use .asQueued() and not .asBatched(), priority lanes or .withQueueJournal().");
+        if (laneWeights != null && (!isQueued || isBatched || queueJournalDirectory != null))
+            throw new IllegalStateException(
+                    "Priority lanes require a queued service without a journal\n"
+                    + "Use .asQueued() and not .asBatched() or .withQueueJournal().");
+        for (int lane : dedicatedLanes) {
+            if (laneWeights == null || lane < 0 || lane >= laneWeights.length)
+                throw new IllegalStateException("No priority lane " + lane + " to dedicate a connection to");
+        }
+        if (queueJournalDirectory != null && (!isQueued || isBatched))
+            throw new IllegalStateException(
+                    "The queue journal requires a queued service\n"
+                    + "Use .asQueued() and not .asBatched().");
+        if (sslContext == null && tokenSigner == null)
             throw new IllegalStateException(
                     "SSL Certificates and attribute are not initialized\n"
-                    + "Use .withCert() methods.");
+                    + "Use .withCert() or .withProviderToken() methods.");
         if (gatewayHost == null || gatewayPort == -1)
             throw new IllegalStateException(
                     "The Destination APNS server is not stated\n"
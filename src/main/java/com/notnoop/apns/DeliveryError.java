@@ -49,6 +49,12 @@ public enum DeliveryError {
     INVALID_TOPIC_SIZE(6),
     INVALID_PAYLOAD_SIZE(7),
     INVALID_TOKEN(8),
+    /**
+     * The gateway is closing the connection for maintenance.  The
+     * identifier is the one of the last notification successfully sent;
+     * the ones sent after it must be resent.
+     */
+    SHUTDOWN(10),
 
     NONE(255),
     UNKNOWN(254);
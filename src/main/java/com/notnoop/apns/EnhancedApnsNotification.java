@@ -108,6 +108,20 @@ public class EnhancedApnsNotification implements ApnsNotification {
         return Utilities.copyOf(payload);
     }
 
+    /**
+     * Returns the length of the device token, without copying it.
+     */
+    public int getDeviceTokenLength() {
+        return deviceToken.length;
+    }
+
+    /**
+     * Returns the length of the payload, without copying it.
+     */
+    public int getPayloadLength() {
+        return payload.length;
+    }
+
     public int getIdentifier() {
         return identifier;
     }
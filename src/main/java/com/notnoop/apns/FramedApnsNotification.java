@@ -0,0 +1,131 @@
+/*
+ *  Copyright 2009, Mahmood Ali.
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are
+ *  met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ *      copyright notice, this list of conditions and the following disclaimer
+ *      in the documentation and/or other materials provided with the
+ *      distribution.
+ *    * Neither the name of Mahmood Ali. nor the names of its
+ *      contributors may be used to endorse or promote products derived from
+ *      this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.apns;
+
+import com.notnoop.apns.internal.Utilities;
+
+/**
+ * A notification sent in the item-based (command 2) frame format, which
+ * adds a delivery priority to the enhanced format.
+ *
+ * Bulk notifications that don't need to wake the device should use
+ * {@link #PRIORITY_CONSERVE_POWER}; the gateway then delivers them at a
+ * time that conserves the device's power.
+ */
+public class FramedApnsNotification extends EnhancedApnsNotification {
+    /** Deliver the notification immediately */
+    public static final int PRIORITY_IMMEDIATE = 10;
+    /** Deliver the notification at a time that conserves power */
+    public static final int PRIORITY_CONSERVE_POWER = 5;
+
+    private final byte priority;
+
+    /**
+     * Constructs an instance of {@code FramedApnsNotification}.
+     *
+     * The message encodes the payload with a {@code UTF-8} encoding.
+     *
+     * @param dtoken    The Hex of the device token of the destination phone
+     * @param payload   The payload message to be sent
+     * @param priority  {@link #PRIORITY_IMMEDIATE} or {@link #PRIORITY_CONSERVE_POWER}
+     */
+    public FramedApnsNotification(int identifier, int expiryTime,
+            String dtoken, String payload, int priority) {
+        super(identifier, expiryTime, dtoken, payload);
+        this.priority = checkPriority(priority);
+    }
+
+    /**
+     * Constructs an instance of {@code FramedApnsNotification}.
+     *
+     * @param dtoken    The binary representation of the destination device token
+     * @param payload   The binary representation of the payload to be sent
+     * @param priority  {@link #PRIORITY_IMMEDIATE} or {@link #PRIORITY_CONSERVE_POWER}
+     */
+    public FramedApnsNotification(int identifier, int expiryTime,
+            byte[] dtoken, byte[] payload, int priority) {
+        super(identifier, expiryTime, dtoken, payload);
+        this.priority = checkPriority(priority);
+    }
+
+    private static byte checkPriority(int priority) {
+        if (priority != PRIORITY_IMMEDIATE && priority != PRIORITY_CONSERVE_POWER) {
+            throw new IllegalArgumentException("Priority must be 10 or 5: " + priority);
+        }
+        return (byte) priority;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    private byte[] marshall;
+    /**
+     * Returns the binary representation of the message as expected by the
+     * APNS server, in the item-based frame format.
+     */
+    @Override
+    public byte[] marshall() {
+        if (marshall == null) {
+            marshall = Utilities.marshallFrame(getIdentifier(), getExpiry(),
+                    getDeviceToken(), getPayload(), priority);
+        }
+        return marshall.clone();
+    }
+
+    /**
+     * Returns the length of the message in bytes as it is encoded on the wire.
+     *
+     * @return length of encoded message in bytes
+     */
+    @Override
+    public int length() {
+        return Utilities.frameLength(getDeviceTokenLength(), getPayloadLength());
+    }
+
+    @Override
+    public int hashCode() {
+        return super.hashCode() + 31 * priority;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof FramedApnsNotification
+                && priority == ((FramedApnsNotification) obj).priority
+                && super.equals(obj);
+    }
+
+    @Override
+    public String toString() {
+        String message = super.toString();
+        return message.substring(0, message.length() - 1) + "; Priority=" + priority + ")";
+    }
+}
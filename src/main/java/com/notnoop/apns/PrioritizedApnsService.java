@@ -0,0 +1,56 @@
+/*
+ *  Copyright 2009, Mahmood Ali.
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are
+ *  met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ *      copyright notice, this list of conditions and the following disclaimer
+ *      in the documentation and/or other materials provided with the
+ *      distribution.
+ *    * Neither the name of Mahmood Ali. nor the names of its
+ *      contributors may be used to endorse or promote products derived from
+ *      this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.apns;
+
+import com.notnoop.exceptions.NetworkIOException;
+
+/**
+ * An {@link ApnsService} sending notifications through priority lanes,
+ * so that time-critical notifications aren't stuck behind bulk ones.
+ *
+ * Services built with {@link ApnsServiceBuilder#withPriorityLanes} or
+ * {@link ApnsServiceBuilder#withStrictPriorityLanes} implement this
+ * interface.  Lane 0 has the highest priority; notifications pushed
+ * without a lane go through lane 0.
+ */
+public interface PrioritizedApnsService extends ApnsService {
+
+    /**
+     * Sends the notification through the given lane.
+     *
+     * @param message   the notification to send
+     * @param lane      the lane, from 0 (highest priority) to the number of lanes - 1
+     * @throws NetworkIOException if a network error occurred while
+     *      attempting to send the message
+     * @throws IllegalArgumentException if there is no such lane
+     */
+    void push(ApnsNotification message, int lane) throws NetworkIOException;
+}
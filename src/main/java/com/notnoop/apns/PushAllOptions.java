@@ -0,0 +1,106 @@
+/*
+ *  Copyright 2009, Mahmood Ali.
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are
+ *  met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ *      copyright notice, this list of conditions and the following disclaimer
+ *      in the documentation and/or other materials provided with the
+ *      distribution.
+ *    * Neither the name of Mahmood Ali. nor the names of its
+ *      contributors may be used to endorse or promote products derived from
+ *      this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.apns;
+
+import java.util.Date;
+
+/**
+ * Options of {@link StreamingApnsService#pushAll}.
+ *
+ * By default, notifications don't expire, are pushed from the calling
+ * thread, and no progress is reported.
+ */
+public class PushAllOptions {
+    private Date expiry;
+    private int parallelism = 1;
+    private PushAllListener listener;
+    private long progressInterval;
+
+    /**
+     * Sets the expiry date of the notifications.
+     *
+     * @param expiry    the date after which Apple may drop the notifications
+     * @return  this
+     */
+    public PushAllOptions withExpiry(Date expiry) {
+        this.expiry = expiry;
+        return this;
+    }
+
+    /**
+     * Pushes the notifications from the given number of threads, so that
+     * a pool of connections sends them in parallel.  Use the size of the
+     * pool.
+     *
+     * @param threads   the number of pushing threads
+     * @return  this
+     */
+    public PushAllOptions withParallelism(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Parallelism must be positive: " + threads);
+        }
+        this.parallelism = threads;
+        return this;
+    }
+
+    /**
+     * Reports the progress to the listener each time the given number of
+     * tokens were handled.
+     *
+     * @param listener  the listener, called from the pushing threads
+     * @param interval  the number of tokens between two reports
+     * @return  this
+     */
+    public PushAllOptions withProgressListener(PushAllListener listener, long interval) {
+        if (interval < 1) {
+            throw new IllegalArgumentException("Progress interval must be positive: " + interval);
+        }
+        this.listener = listener;
+        this.progressInterval = interval;
+        return this;
+    }
+
+    public Date getExpiry() {
+        return expiry;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    public PushAllListener getProgressListener() {
+        return listener;
+    }
+
+    public long getProgressInterval() {
+        return progressInterval;
+    }
+}
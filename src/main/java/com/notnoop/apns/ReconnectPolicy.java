@@ -111,6 +111,23 @@ public interface ReconnectPolicy {
             public ReconnectPolicy newObject() {
                 return new ReconnectPolicies.Always();
             }
+        },
+
+        /**
+         * Makes a new connection once the current one is about half an hour
+         * old, has been idle for ten minutes, or sooner while many recent
+         * notifications failed.
+         * <p>
+         * The age of each connection is randomly shortened by up to 20%, so
+         * that the connections of a pool don't all reconnect at the same time.
+         *
+         * @see ReconnectPolicies.Adaptive
+         */
+        ADAPTIVE {
+            @Override
+            public ReconnectPolicy newObject() {
+                return new ReconnectPolicies.Adaptive();
+            }
         };
 
         abstract ReconnectPolicy newObject();
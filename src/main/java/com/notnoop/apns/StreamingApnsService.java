@@ -0,0 +1,75 @@
+/*
+ *  Copyright 2009, Mahmood Ali.
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are
+ *  met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ *      copyright notice, this list of conditions and the following disclaimer
+ *      in the documentation and/or other materials provided with the
+ *      distribution.
+ *    * Neither the name of Mahmood Ali. nor the names of its
+ *      contributors may be used to endorse or promote products derived from
+ *      this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.apns;
+
+import java.util.Iterator;
+
+/**
+ * A service that can send one payload to a stream of device tokens without
+ * holding them, or the notifications, in memory.
+ *
+ * All the services built by {@link ApnsServiceBuilder} implement this
+ * interface.
+ */
+public interface StreamingApnsService extends ApnsService {
+
+    /**
+     * Sends the payload to every device token of the iterator, building the
+     * notifications as the tokens are read.  Only the tokens being sent are
+     * held in memory, and the notifications aren't returned; the outcome is
+     * reported as counts.
+     *
+     * The tokens are read on the calling thread, which returns once all of
+     * them were pushed.  Failures to push a notification are counted and
+     * logged rather than thrown.
+     *
+     * @param deviceTokens  the device tokens, in hex
+     * @param payload       the payload sent to every device
+     * @param options       the expiry, parallelism and progress reporting,
+     *                      or null for the defaults
+     * @return  the number of notifications pushed and failed
+     */
+    PushAllSummary pushAll(Iterator<String> deviceTokens, String payload, PushAllOptions options);
+
+    /**
+     * Sends the payload to every device token of a token file.  The tokens
+     * are read straight from the mapped file, without decoding them, and
+     * with parallelism each pushing thread sends a contiguous range of the
+     * file.  Failures are counted rather than thrown.
+     *
+     * @param deviceTokens  the device tokens
+     * @param payload       the payload sent to every device
+     * @param options       the expiry, parallelism and progress reporting,
+     *                      or null for the defaults
+     * @return  the number of notifications pushed and failed
+     */
+    PushAllSummary pushAll(TokenFile deviceTokens, byte[] payload, PushAllOptions options);
+}
@@ -0,0 +1,232 @@
+/*
+ *  Copyright 2009, Mahmood Ali.
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are
+ *  met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ *      copyright notice, this list of conditions and the following disclaimer
+ *      in the documentation and/or other materials provided with the
+ *      distribution.
+ *    * Neither the name of Mahmood Ali. nor the names of its
+ *      contributors may be used to endorse or promote products derived from
+ *      this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.apns;
+
+import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import com.notnoop.apns.internal.Utilities;
+
+/**
+ * A memory-mapped list of binary device tokens, for campaigns sent to
+ * millions of devices through {@link StreamingApnsService#pushAll(TokenFile, byte[], PushAllOptions)}.
+ *
+ * The file holds one 32-byte record per token, optionally preceded by a
+ * 16-byte header: the magic {@code APTK}, a 2-byte version (1), the 2-byte
+ * record size (32) and the 8-byte number of records, all big-endian.
+ * Files without the header are plain concatenations of tokens.
+ * {@link #convert(BufferedReader, File)} writes the format from a list of
+ * hex tokens.
+ *
+ * Reading a token copies it into a buffer of the caller, so going through
+ * the file allocates nothing per token.  Instances are safe for use by
+ * multiple threads.
+ */
+public final class TokenFile implements Closeable {
+    /** Size of a device token, and of a record */
+    public static final int RECORD_SIZE = 32;
+    static final int HEADER_SIZE = 16;
+    static final int VERSION = 1;
+    private static final byte[] MAGIC = { 'A', 'P', 'T', 'K' };
+    /** Records per mapped segment, keeping each segment under 1GB */
+    private static final long SEGMENT_RECORDS = (1 << 30) / RECORD_SIZE;
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer[] segments;
+    private final long size;
+
+    private TokenFile(RandomAccessFile file, MappedByteBuffer[] segments, long size) {
+        this.file = file;
+        this.segments = segments;
+        this.size = size;
+    }
+
+    /**
+     * Maps the given token file.
+     *
+     * @param tokens    a token file, with or without header
+     * @return  the mapped file
+     * @throws IOException if the file can't be read or isn't a token file
+     */
+    public static TokenFile open(File tokens) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(tokens, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            long length = channel.size();
+            long offset = 0;
+            long size = length / RECORD_SIZE;
+            if (length >= HEADER_SIZE && hasMagic(file)) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                channel.read(header, 0);
+                int version = header.getShort(4);
+                int recordSize = header.getShort(6);
+                if (version != VERSION || recordSize != RECORD_SIZE) {
+                    throw new IOException("Unsupported token file version " + version
+                            + " with records of " + recordSize + " bytes: " + tokens);
+                }
+                offset = HEADER_SIZE;
+                size = header.getLong(8);
+                if (size < 0 || offset + size * RECORD_SIZE > length) {
+                    throw new IOException("Token file truncated, expected " + size + " tokens: " + tokens);
+                }
+            } else if (length % RECORD_SIZE != 0) {
+                throw new IOException("Not a token file, " + length + " bytes isn't a multiple of "
+                        + RECORD_SIZE + ": " + tokens);
+            }
+
+            int count = (int) ((size + SEGMENT_RECORDS - 1) / SEGMENT_RECORDS);
+            MappedByteBuffer[] segments = new MappedByteBuffer[count];
+            for (int i = 0; i < count; i++) {
+                long records = Math.min(SEGMENT_RECORDS, size - i * SEGMENT_RECORDS);
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY,
+                        offset + i * SEGMENT_RECORDS * RECORD_SIZE, records * RECORD_SIZE);
+            }
+            return new TokenFile(file, segments, size);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    private static boolean hasMagic(RandomAccessFile file) throws IOException {
+        byte[] magic = new byte[MAGIC.length];
+        file.seek(0);
+        file.readFully(magic);
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (magic[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of tokens in the file.
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Copies a token into the given buffer.
+     *
+     * @param index     the index of the token, from 0 to {@link #size()} - 1
+     * @param token     a buffer of at least {@link #RECORD_SIZE} bytes
+     * @throws IndexOutOfBoundsException if there is no such token
+     */
+    public void read(long index, byte[] token) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("No token " + index + " in a file of " + size);
+        }
+        MappedByteBuffer segment = segments[(int) (index / SEGMENT_RECORDS)];
+        int position = (int) (index % SEGMENT_RECORDS) * RECORD_SIZE;
+        // absolute reads leave the shared buffer untouched
+        for (int i = 0; i < RECORD_SIZE; i++) {
+            token[i] = segment.get(position + i);
+        }
+    }
+
+    /**
+     * Closes the file.  The mapping itself is released once the instance
+     * is garbage collected.
+     */
+    public void close() throws IOException {
+        file.close();
+    }
+
+    /**
+     * Converts a list of hex device tokens, one per line, into a token file
+     * with a header.  Blank lines are skipped; spaces and other non-hex
+     * separators within a token are ignored.
+     *
+     * @param hexTokens the list to convert
+     * @param out       the token file to write
+     * @return  the number of tokens written
+     * @throws IOException if reading or writing fails
+     * @throws IllegalArgumentException if a line isn't a 32-byte hex token
+     */
+    public static long convert(BufferedReader hexTokens, File out) throws IOException {
+        OutputStream stream = new BufferedOutputStream(new FileOutputStream(out), 64 * 1024);
+        long count = 0;
+        try {
+            stream.write(header(0));
+            String line;
+            long lineNumber = 0;
+            while ((line = hexTokens.readLine()) != null) {
+                lineNumber++;
+                if (line.trim().length() == 0) {
+                    continue;
+                }
+                byte[] token;
+                try {
+                    token = Utilities.decodeHex(line);
+                } catch (RuntimeException e) {
+                    throw new IllegalArgumentException("Invalid token on line " + lineNumber + ": " + line, e);
+                }
+                if (token.length != RECORD_SIZE) {
+                    throw new IllegalArgumentException("Token on line " + lineNumber
+                            + " isn't " + RECORD_SIZE + " bytes: " + line);
+                }
+                stream.write(token);
+                count++;
+            }
+        } finally {
+            stream.close();
+        }
+
+        // the count is only known at the end
+        RandomAccessFile file = new RandomAccessFile(out, "rw");
+        try {
+            file.write(header(count));
+        } finally {
+            file.close();
+        }
+        return count;
+    }
+
+    private static byte[] header(long count) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.put(MAGIC);
+        header.putShort((short) VERSION);
+        header.putShort((short) RECORD_SIZE);
+        header.putLong(count);
+        return header.array();
+    }
+}
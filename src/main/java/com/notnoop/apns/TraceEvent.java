@@ -0,0 +1,60 @@
+/*
+ *  Copyright 2009, Mahmood Ali.
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are
+ *  met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ *      copyright notice, this list of conditions and the following disclaimer
+ *      in the documentation and/or other materials provided with the
+ *      distribution.
+ *    * Neither the name of Mahmood Ali. nor the names of its
+ *      contributors may be used to endorse or promote products derived from
+ *      this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.apns;
+
+/**
+ * The steps in the life of a notification that are reported to a
+ * {@link NotificationTraceListener} when the notification is traced.
+ */
+public enum TraceEvent {
+    /** Accepted by a queued or batched service, waiting to be sent */
+    QUEUED,
+    /** Written to the gateway socket */
+    SENT,
+    /** Written to the gateway socket again, after an error-response */
+    RESENT,
+    /** Writing to the gateway socket failed; the write is retried */
+    WRITE_FAILED,
+    /** Pushed out of the connection cache by newer notifications */
+    EVICTED,
+    /** Rejected by the gateway with an error-response */
+    REJECTED,
+    /** Sent after a rejected notification, and queued for resending */
+    QUEUED_FOR_RESEND,
+    /** Given up on, after all the attempts to send it failed */
+    FAILED,
+    /** Dropped instead of being sent, because it expired */
+    EXPIRED,
+    /** Dropped instead of being sent, because its device token is known to be invalid */
+    INVALID_TOKEN,
+    /** Rejected before being sent, because it is malformed */
+    MALFORMED
+}
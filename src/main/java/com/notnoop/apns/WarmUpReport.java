@@ -0,0 +1,90 @@
+/*
+ *  Copyright 2009, Mahmood Ali.
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are
+ *  met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ *      copyright notice, this list of conditions and the following disclaimer
+ *      in the documentation and/or other materials provided with the
+ *      distribution.
+ *    * Neither the name of Mahmood Ali. nor the names of its
+ *      contributors may be used to endorse or promote products derived from
+ *      this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.apns;
+
+/**
+ * The outcome of opening the connections of a service while it starts.
+ *
+ * @see ApnsServiceBuilder#withWarmUp(long, java.util.concurrent.TimeUnit, boolean)
+ */
+public final class WarmUpReport {
+    private final int attempted;
+    private final int succeeded;
+    private final long elapsedMillis;
+
+    public WarmUpReport(int attempted, int succeeded, long elapsedMillis) {
+        this.attempted = attempted;
+        this.succeeded = succeeded;
+        this.elapsedMillis = elapsedMillis;
+    }
+
+    /**
+     * Returns the number of connections the warm-up tried to open,
+     * including the feedback connection if it was warmed up.
+     */
+    public int getAttempted() {
+        return attempted;
+    }
+
+    /**
+     * Returns the number of connections opened before the timeout.
+     */
+    public int getSucceeded() {
+        return succeeded;
+    }
+
+    /**
+     * Returns the number of connections that failed or didn't open in time;
+     * they are opened on first use, as without a warm-up.
+     */
+    public int getFailed() {
+        return attempted - succeeded;
+    }
+
+    /**
+     * Returns how long the warm-up took, in milliseconds.
+     */
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    /**
+     * Returns whether all connections were opened.
+     */
+    public boolean isComplete() {
+        return succeeded == attempted;
+    }
+
+    @Override
+    public String toString() {
+        return "WarmUp(" + succeeded + "/" + attempted + " connections in " + elapsedMillis + "ms)";
+    }
+}
@@ -30,50 +30,235 @@
  */
 package com.notnoop.apns.internal;
 
+import java.io.Closeable;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.notnoop.apns.ApnsNotification;
-import com.notnoop.apns.ApnsService;
 import com.notnoop.apns.EnhancedApnsNotification;
+import com.notnoop.apns.FramedApnsNotification;
+import com.notnoop.apns.PushAllListener;
+import com.notnoop.apns.PushAllOptions;
+import com.notnoop.apns.PushAllSummary;
+import com.notnoop.apns.StreamingApnsService;
+import com.notnoop.apns.TokenFile;
+import com.notnoop.apns.WarmUpReport;
+import com.notnoop.apns.metrics.ApnsMetrics;
+import com.notnoop.apns.metrics.Counter;
 import com.notnoop.exceptions.NetworkIOException;
 
-abstract class AbstractApnsService implements ApnsService {
+public abstract class AbstractApnsService implements StreamingApnsService {
+    private static final Logger logger = LoggerFactory.getLogger(AbstractApnsService.class);
+
+    /** Number of tokens handed to a pushing thread at once by pushAll */
+    private static final int PUSH_ALL_CHUNK = 256;
+
     private ApnsFeedbackConnection feedback;
     private AtomicInteger c = new AtomicInteger();
+    private int framePriority;
+
+    private long warmUpTimeoutMillis;
+    private boolean warmUpFeedback;
+    private volatile WarmUpReport warmUpReport;
+    private Closeable delegateDispatcher;
+    private RetryScheduler retryScheduler;
+    private Counter warmUpOpened = ApnsMetrics.DISABLED.counter(ApnsMetrics.WARMUP_OPENED);
+    private Counter warmUpFailed = ApnsMetrics.DISABLED.counter(ApnsMetrics.WARMUP_FAILED);
 
     public AbstractApnsService(ApnsFeedbackConnection feedback) {
         this.feedback = feedback;
     }
 
+    /**
+     * Makes the notifications built by the {@code push} methods use the
+     * item-based frame format with the given priority, instead of the
+     * enhanced format.
+     *
+     * @param priority  the priority of the notifications, or 0 for the
+     *                  enhanced format
+     */
+    public void setFramePriority(int priority) {
+        this.framePriority = priority;
+    }
+
+    /**
+     * Sets the registry this service records its metrics into.
+     */
+    public void setMetrics(ApnsMetrics metrics) {
+        if (metrics == null) {
+            metrics = ApnsMetrics.DISABLED;
+        }
+        warmUpOpened = metrics.counter(ApnsMetrics.WARMUP_OPENED);
+        warmUpFailed = metrics.counter(ApnsMetrics.WARMUP_FAILED);
+    }
+
+    /**
+     * Sets the asynchronous dispatcher of the delegate events, flushed
+     * when the service stops.
+     */
+    public void setDelegateDispatcher(Closeable delegateDispatcher) {
+        this.delegateDispatcher = delegateDispatcher;
+    }
+
+    /**
+     * Sets the scheduler of the asynchronous retries of the connections,
+     * shut down when the service stops.
+     */
+    public void setRetryScheduler(RetryScheduler retryScheduler) {
+        this.retryScheduler = retryScheduler;
+    }
+
+    /**
+     * Fails the pending asynchronous retries; called when the service
+     * stops, after its connections are closed.
+     */
+    protected void shutdownRetryScheduler() {
+        if (retryScheduler != null) {
+            retryScheduler.shutdown();
+        }
+    }
+
+    /**
+     * Delivers the pending delegate events; called when the service stops,
+     * after its connections are closed.
+     */
+    protected void closeDelegateDispatcher() {
+        Utilities.close(delegateDispatcher);
+    }
+
+    /**
+     * Makes {@link #start()} open all the gateway connections in parallel,
+     * waiting for them at most the given timeout.
+     *
+     * @param timeout           the longest the start waits for the connections
+     * @param unit              the unit of the timeout
+     * @param includeFeedback   whether to read the feedback service too
+     */
+    public void setWarmUp(long timeout, TimeUnit unit, boolean includeFeedback) {
+        this.warmUpTimeoutMillis = unit.toMillis(timeout);
+        this.warmUpFeedback = includeFeedback;
+    }
+
+    /**
+     * Returns whether {@link #start()} warms up the connections.
+     */
+    protected boolean isWarmUpEnabled() {
+        return warmUpTimeoutMillis > 0;
+    }
+
+    /**
+     * Returns the outcome of the warm-up, or null if there was none.
+     */
+    public WarmUpReport getWarmUpReport() {
+        return warmUpReport;
+    }
+
+    /**
+     * Opens the connections underlying the given one and, if requested,
+     * reads the feedback service, all in parallel.  Connections that fail
+     * or don't open before the timeout are left to open on first use.
+     */
+    protected void warmUp(ApnsConnection connection) {
+        if (warmUpTimeoutMillis <= 0) {
+            return;
+        }
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(Utilities.warmUpTasks(connection));
+        if (warmUpFeedback && feedback != null) {
+            tasks.add(new Callable<Void>() {
+                public Void call() throws Exception {
+                    feedback.prefetch();
+                    return null;
+                }
+            });
+        }
+
+        long start = System.nanoTime();
+        int succeeded = 0;
+        if (!tasks.isEmpty()) {
+            ExecutorService executor = Executors.newFixedThreadPool(tasks.size(), new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "apns-warm-up");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            try {
+                for (Future<Void> future : executor.invokeAll(tasks, warmUpTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                    try {
+                        future.get();
+                        succeeded++;
+                    } catch (ExecutionException e) {
+                        logger.warn("Couldn't open a connection while warming up", e.getCause());
+                    } catch (CancellationException e) {
+                        logger.warn("A connection didn't open within the warm-up timeout");
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+
+        warmUpOpened.add(succeeded);
+        warmUpFailed.add(tasks.size() - succeeded);
+        warmUpReport = new WarmUpReport(tasks.size(), succeeded,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        logger.info("Warmed up: {}", warmUpReport);
+    }
+
+    private EnhancedApnsNotification newNotification(int expiry, byte[] deviceToken, byte[] payload) {
+        if (framePriority != 0) {
+            return new FramedApnsNotification(c.incrementAndGet(), expiry, deviceToken, payload, framePriority);
+        }
+        return new EnhancedApnsNotification(c.incrementAndGet(), expiry, deviceToken, payload);
+    }
+
     public EnhancedApnsNotification push(String deviceToken, String payload) throws NetworkIOException {
         EnhancedApnsNotification notification =
-            new EnhancedApnsNotification(c.incrementAndGet(), EnhancedApnsNotification.MAXIMUM_EXPIRY, deviceToken, payload);
+            newNotification(EnhancedApnsNotification.MAXIMUM_EXPIRY,
+                    Utilities.decodeHex(deviceToken), Utilities.toUTF8Bytes(payload));
         push(notification);
         return notification;
     }
 
     public EnhancedApnsNotification push(String deviceToken, String payload, Date expiry) throws NetworkIOException {
         EnhancedApnsNotification notification =
-            new EnhancedApnsNotification(c.incrementAndGet(), (int)(expiry.getTime() / 1000), deviceToken, payload);
+            newNotification((int)(expiry.getTime() / 1000),
+                    Utilities.decodeHex(deviceToken), Utilities.toUTF8Bytes(payload));
         push(notification);
         return notification;
     }
 
     public EnhancedApnsNotification push(byte[] deviceToken, byte[] payload) throws NetworkIOException {
         EnhancedApnsNotification notification =
-            new EnhancedApnsNotification(c.incrementAndGet(), EnhancedApnsNotification.MAXIMUM_EXPIRY, deviceToken, payload);
+            newNotification(EnhancedApnsNotification.MAXIMUM_EXPIRY, deviceToken, payload);
         push(notification);
         return notification;
     }
 
     public EnhancedApnsNotification push(byte[] deviceToken, byte[] payload, int expiry) throws NetworkIOException {
         EnhancedApnsNotification notification =
-            new EnhancedApnsNotification(c.incrementAndGet(), expiry, deviceToken, payload);
+            newNotification(expiry, deviceToken, payload);
         push(notification);
         return notification;
     }
@@ -84,7 +269,7 @@ abstract class AbstractApnsService implements ApnsService {
         for (String deviceToken : deviceTokens) {
             byte[] dtBytes = Utilities.decodeHex(deviceToken);
             EnhancedApnsNotification notification =
-                new EnhancedApnsNotification(c.incrementAndGet(), EnhancedApnsNotification.MAXIMUM_EXPIRY, dtBytes, messageBytes);
+                newNotification(EnhancedApnsNotification.MAXIMUM_EXPIRY, dtBytes, messageBytes);
             notifications.add(notification);
             push(notification);
         }
@@ -97,7 +282,7 @@ abstract class AbstractApnsService implements ApnsService {
         for (String deviceToken : deviceTokens) {
             byte[] dtBytes = Utilities.decodeHex(deviceToken);
             EnhancedApnsNotification notification =
-                new EnhancedApnsNotification(c.incrementAndGet(), (int)(expiry.getTime() / 1000), dtBytes, messageBytes);
+                newNotification((int)(expiry.getTime() / 1000), dtBytes, messageBytes);
             notifications.add(notification);
             push(notification);
         }
@@ -108,7 +293,7 @@ abstract class AbstractApnsService implements ApnsService {
         List<EnhancedApnsNotification> notifications = new ArrayList<EnhancedApnsNotification>(deviceTokens.size());
         for (byte[] deviceToken : deviceTokens) {
             EnhancedApnsNotification notification =
-                new EnhancedApnsNotification(c.incrementAndGet(), EnhancedApnsNotification.MAXIMUM_EXPIRY, deviceToken, payload);
+                newNotification(EnhancedApnsNotification.MAXIMUM_EXPIRY, deviceToken, payload);
             notifications.add(notification);
             push(notification);
         }
@@ -119,13 +304,197 @@ abstract class AbstractApnsService implements ApnsService {
         List<EnhancedApnsNotification> notifications = new ArrayList<EnhancedApnsNotification>(deviceTokens.size());
         for (byte[] deviceToken : deviceTokens) {
             EnhancedApnsNotification notification =
-                new EnhancedApnsNotification(c.incrementAndGet(), expiry, deviceToken, payload);
+                newNotification(expiry, deviceToken, payload);
             notifications.add(notification);
             push(notification);
         }
         return notifications;
     }
 
+    public PushAllSummary pushAll(Iterator<String> deviceTokens, String payload, PushAllOptions options) {
+        if (options == null) {
+            options = new PushAllOptions();
+        }
+        final PushAllProgress progress = new PushAllProgress(options.getProgressListener(), options.getProgressInterval());
+        final byte[] messageBytes = Utilities.toUTF8Bytes(payload);
+        final int expiry = options.getExpiry() == null
+                ? EnhancedApnsNotification.MAXIMUM_EXPIRY : (int) (options.getExpiry().getTime() / 1000);
+
+        if (options.getParallelism() == 1) {
+            while (deviceTokens.hasNext()) {
+                pushOne(deviceTokens.next(), expiry, messageBytes, progress);
+            }
+            return progress.summary();
+        }
+
+        // the chunks in the queue bound the tokens held in memory
+        final int threads = options.getParallelism();
+        final BlockingQueue<List<String>> chunks = new ArrayBlockingQueue<List<String>>(threads * 2);
+        final List<String> end = new ArrayList<String>(0);
+        ExecutorService executor = newPushAllExecutor(threads);
+        for (int i = 0; i < threads; i++) {
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        List<String> chunk;
+                        while ((chunk = chunks.take()) != end) {
+                            for (String deviceToken : chunk) {
+                                pushOne(deviceToken, expiry, messageBytes, progress);
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+        }
+        // stops the pushing threads if the iterator throws, or on interruption
+        boolean finished = false;
+        try {
+            List<String> chunk = new ArrayList<String>(PUSH_ALL_CHUNK);
+            while (deviceTokens.hasNext()) {
+                chunk.add(deviceTokens.next());
+                if (chunk.size() == PUSH_ALL_CHUNK) {
+                    chunks.put(chunk);
+                    chunk = new ArrayList<String>(PUSH_ALL_CHUNK);
+                }
+            }
+            if (!chunk.isEmpty()) {
+                chunks.put(chunk);
+            }
+            for (int i = 0; i < threads; i++) {
+                chunks.put(end);
+            }
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            finished = true;
+        } catch (InterruptedException e) {
+            logger.warn("Interrupted pushing to all devices, {}", progress.summary());
+            Thread.currentThread().interrupt();
+        } finally {
+            if (!finished) {
+                executor.shutdownNow();
+            }
+        }
+        return progress.summary();
+    }
+
+    public PushAllSummary pushAll(final TokenFile deviceTokens, final byte[] payload, PushAllOptions options) {
+        if (options == null) {
+            options = new PushAllOptions();
+        }
+        final PushAllProgress progress = new PushAllProgress(options.getProgressListener(), options.getProgressInterval());
+        final int expiry = options.getExpiry() == null
+                ? EnhancedApnsNotification.MAXIMUM_EXPIRY : (int) (options.getExpiry().getTime() / 1000);
+
+        long size = deviceTokens.size();
+        int threads = (int) Math.max(1, Math.min(options.getParallelism(), size));
+        if (threads == 1) {
+            pushRange(deviceTokens, 0, size, expiry, payload, progress);
+            return progress.summary();
+        }
+
+        ExecutorService executor = newPushAllExecutor(threads);
+        for (int i = 0; i < threads; i++) {
+            final long from = size * i / threads;
+            final long to = size * (i + 1) / threads;
+            executor.execute(new Runnable() {
+                public void run() {
+                    pushRange(deviceTokens, from, to, expiry, payload, progress);
+                }
+            });
+        }
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            logger.warn("Interrupted pushing to all devices, {}", progress.summary());
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        return progress.summary();
+    }
+
+    private void pushRange(TokenFile deviceTokens, long from, long to, int expiry, byte[] payload,
+            PushAllProgress progress) {
+        byte[] token = new byte[TokenFile.RECORD_SIZE];
+        for (long i = from; i < to && !Thread.currentThread().isInterrupted(); i++) {
+            deviceTokens.read(i, token);
+            pushOne(token, expiry, payload, progress);
+        }
+    }
+
+    private static ExecutorService newPushAllExecutor(int threads) {
+        return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger ids = new AtomicInteger();
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "apns-push-all-" + ids.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    private void pushOne(String deviceToken, int expiry, byte[] payload, PushAllProgress progress) {
+        try {
+            push(newNotification(expiry, Utilities.decodeHex(deviceToken), payload));
+            progress.pushed();
+        } catch (RuntimeException e) {
+            logger.debug("Failed to push to {}", deviceToken, e);
+            progress.failed();
+        }
+    }
+
+    private void pushOne(byte[] deviceToken, int expiry, byte[] payload, PushAllProgress progress) {
+        try {
+            push(newNotification(expiry, deviceToken, payload));
+            progress.pushed();
+        } catch (RuntimeException e) {
+            logger.debug("Failed to push to {}", Utilities.encodeHex(deviceToken), e);
+            progress.failed();
+        }
+    }
+
+    /** The counts of a pushAll, shared by its pushing threads */
+    private static final class PushAllProgress {
+        private final PushAllListener listener;
+        private final long interval;
+        private final long start = System.nanoTime();
+        private final AtomicLong pushed = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private final AtomicLong total = new AtomicLong();
+
+        PushAllProgress(PushAllListener listener, long interval) {
+            this.listener = listener;
+            this.interval = interval;
+        }
+
+        void pushed() {
+            pushed.incrementAndGet();
+            handled();
+        }
+
+        void failed() {
+            failed.incrementAndGet();
+            handled();
+        }
+
+        private void handled() {
+            if (listener != null && total.incrementAndGet() % interval == 0) {
+                try {
+                    listener.progress(summary());
+                } catch (RuntimeException e) {
+                    logger.warn("Progress listener failed", e);
+                }
+            }
+        }
+
+        PushAllSummary summary() {
+            return new PushAllSummary(pushed.get(), failed.get(),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+    }
+
     public abstract void push(ApnsNotification message) throws NetworkIOException;
 
     public Map<String, Date> getInactiveDevices() throws NetworkIOException {
@@ -30,21 +30,31 @@
  */
 package com.notnoop.apns.internal;
 
+import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.InetSocketAddress;
 import java.net.Proxy;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.net.SocketFactory;
 import javax.net.ssl.SSLHandshakeException;
+import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
 import com.notnoop.apns.ApnsDelegate;
 import com.notnoop.apns.StartSendingApnsDelegate;
@@ -52,12 +62,20 @@ import com.notnoop.apns.ApnsNotification;
 import com.notnoop.apns.DeliveryError;
 import com.notnoop.apns.EnhancedApnsNotification;
 import com.notnoop.apns.ReconnectPolicy;
+import com.notnoop.apns.TraceEvent;
+import com.notnoop.apns.TrafficAwareReconnectPolicy;
+import com.notnoop.apns.metrics.ApnsMetrics;
+import com.notnoop.apns.metrics.Counter;
+import com.notnoop.apns.metrics.Gauge;
+import com.notnoop.apns.metrics.Histogram;
+import com.notnoop.apns.metrics.SendPhase;
+import com.notnoop.apns.metrics.SendPhaseTimings;
 import com.notnoop.exceptions.ApnsDeliveryErrorException;
 import com.notnoop.exceptions.NetworkIOException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class ApnsConnectionImpl implements ApnsConnection {
+public class ApnsConnectionImpl implements WarmableConnection {
 
     private static final Logger logger = LoggerFactory.getLogger(ApnsConnectionImpl.class);
 
@@ -70,6 +88,7 @@ public class ApnsConnectionImpl implements ApnsConnection {
     private final String proxyUsername;
     private final String proxyPassword;
     private final ReconnectPolicy reconnectPolicy;
+    private final TrafficAwareReconnectPolicy trafficAwarePolicy;
     private final ApnsDelegate delegate;
     private int cacheLength;
     private final boolean errorDetection;
@@ -79,6 +98,48 @@ public class ApnsConnectionImpl implements ApnsConnection {
     private Socket socket;
     private final AtomicInteger threadId = new AtomicInteger(0);
 
+    private ApnsMetrics metrics = ApnsMetrics.DISABLED;
+    private int connectionId;
+    private Counter sentCounter, connectionSentCounter, bytesWrittenCounter, reconnectCounter, resentCounter,
+            standbySwapCounter;
+    private Histogram writeLatency, handshakeTime, fullHandshakeTime, resumedHandshakeTime, pacingWait;
+    private boolean sendPhaseTiming;
+    private SendPhaseTimings phaseTimings;
+    private NotificationTracer tracer = NotificationTracer.DISABLED;
+
+    /**
+     * Standby sockets older than this may have been dropped by the gateway;
+     * the standby is re-opened in the background once it is half as old.
+     */
+    long standbyMaxAge = 10 * 60 * 1000;
+    private boolean standbyConnection;
+    private final AtomicReference<Socket> standbySocket = new AtomicReference<Socket>();
+    private final AtomicBoolean standbyKeeperRunning = new AtomicBoolean(false);
+    private volatile long standbyCreatedAt;
+    private volatile boolean closed;
+
+    private ErrorResponseReader errorResponseReader;
+    private RetryScheduler retryScheduler;
+    private volatile Runnable resendHandoff;
+    // threads reconnecting or resending on behalf of this connection, other than senders
+    private final AtomicInteger recovering = new AtomicInteger();
+    // notifications parked by the retry scheduler, and whether to close once there are none
+    private final AtomicInteger pendingRetries = new AtomicInteger();
+    private boolean closeAfterRetries;
+    private TokenBucket rateLimiter, sharedRateLimiter;
+    private ExpiryFilter expiryFilter;
+    private InvalidTokenFilter invalidTokenFilter;
+    private boolean validation;
+    private Counter malformedCounter = ApnsMetrics.DISABLED.counter(ApnsMetrics.MALFORMED_REJECTED);
+    private Counter invalidTokenCounter = ApnsMetrics.DISABLED.counter(ApnsMetrics.INVALID_TOKENS_DROPPED);
+    /** The plain sockets below the TLS sockets not yet handed to the error-response reader */
+    private final Map<Socket, Socket> rawSockets = new ConcurrentHashMap<Socket, Socket>();
+    private final ErrorResponseReader.Listener readerListener = new ErrorResponseReader.Listener() {
+        public void stopped(Socket socket, byte[] packet, IOException failure) {
+            monitoringStopped(socket, packet, failure);
+        }
+    };
+
     public ApnsConnectionImpl(SocketFactory factory, String host, int port) {
         this(factory, host, port, new ReconnectPolicies.Never(), ApnsDelegate.EMPTY);
     }
@@ -100,6 +161,8 @@ public class ApnsConnectionImpl implements ApnsConnection {
         this.host = host;
         this.port = port;
         this.reconnectPolicy = reconnectPolicy;
+        this.trafficAwarePolicy = reconnectPolicy instanceof TrafficAwareReconnectPolicy
+                ? (TrafficAwareReconnectPolicy) reconnectPolicy : null;
         this.delegate = delegate == null ? ApnsDelegate.EMPTY : delegate;
         this.proxy = proxy;
         this.errorDetection = errorDetection;
@@ -112,6 +175,183 @@ public class ApnsConnectionImpl implements ApnsConnection {
         this.proxyPassword = proxyPassword;
         cachedNotifications = new ConcurrentLinkedQueue<ApnsNotification>();
         notificationsBuffer = new ConcurrentLinkedQueue<ApnsNotification>();
+        setMetrics(ApnsMetrics.DISABLED);
+    }
+
+    /**
+     * Sets the registry this connection records its metrics into.  Copies
+     * of this connection record into the same registry.
+     */
+    public void setMetrics(ApnsMetrics metrics) {
+        this.metrics = metrics == null ? ApnsMetrics.DISABLED : metrics;
+        this.connectionId = this.metrics.nextConnectionId();
+        this.sentCounter = this.metrics.counter(ApnsMetrics.SENT);
+        this.connectionSentCounter = this.metrics.counter(ApnsMetrics.connectionMetric(connectionId, "sent"));
+        this.bytesWrittenCounter = this.metrics.counter(ApnsMetrics.BYTES_WRITTEN);
+        this.reconnectCounter = this.metrics.counter(ApnsMetrics.RECONNECTS);
+        this.resentCounter = this.metrics.counter(ApnsMetrics.RESENT);
+        this.standbySwapCounter = this.metrics.counter(ApnsMetrics.STANDBY_SWAPS);
+        this.writeLatency = this.metrics.histogram(ApnsMetrics.WRITE_LATENCY);
+        this.handshakeTime = this.metrics.histogram(ApnsMetrics.HANDSHAKE_TIME);
+        this.fullHandshakeTime = this.metrics.histogram(ApnsMetrics.HANDSHAKE_FULL);
+        this.resumedHandshakeTime = this.metrics.histogram(ApnsMetrics.HANDSHAKE_RESUMED);
+        this.pacingWait = this.metrics.histogram(ApnsMetrics.PACING_WAIT);
+        this.invalidTokenCounter = this.metrics.counter(ApnsMetrics.INVALID_TOKENS_DROPPED);
+        this.malformedCounter = this.metrics.counter(ApnsMetrics.MALFORMED_REJECTED);
+        setSendPhaseTiming(sendPhaseTiming);
+    }
+
+    /**
+     * Enables timing each phase of sending a notification (lock wait,
+     * socket creation, write and delegate callbacks) into per-connection
+     * histograms of the metrics registry.  Disabled by default.
+     */
+    public void setSendPhaseTiming(boolean sendPhaseTiming) {
+        this.sendPhaseTiming = sendPhaseTiming;
+        this.phaseTimings = sendPhaseTiming && metrics.isEnabled() ? metrics.sendPhaseTimings(connectionId) : null;
+    }
+
+    /**
+     * Sets the tracer reporting the life of the sampled notifications sent
+     * through this connection.
+     */
+    public void setTracer(NotificationTracer tracer) {
+        this.tracer = tracer == null ? NotificationTracer.DISABLED : tracer;
+    }
+
+    /**
+     * Keeps a second, fully handshaked socket open in the background, so
+     * that replacing the socket after an error or a policy reconnect
+     * doesn't cost a handshake on the send path.  Disabled by default.
+     *
+     * The standby socket is opened after the first connection by a thread
+     * of the thread factory, which re-opens it each time it is used and
+     * before it gets old enough to have been dropped by the gateway.
+     */
+    public void setStandbyConnection(boolean standbyConnection) {
+        this.standbyConnection = standbyConnection;
+    }
+
+    /**
+     * Sets the shared reader watching this connection's sockets for
+     * error-responses, instead of a monitoring thread per socket.  Copies
+     * of this connection share the same reader.
+     *
+     * Only sockets connected directly or through a SOCKS proxy can be
+     * watched by the reader; sockets tunneled through an HTTP proxy still
+     * get their own monitoring thread.
+     */
+    public void setErrorResponseReader(ErrorResponseReader errorResponseReader) {
+        this.errorResponseReader = errorResponseReader;
+    }
+
+    /**
+     * Hands the resending of the notifications queued after an error to
+     * another thread: instead of resending them on the thread that noticed
+     * the error, while holding this connection, {@code handoff} is run and
+     * must arrange for {@link #resendBuffered()} to be called.  Copies of
+     * this connection don't share the handoff.
+     */
+    public void setResendHandoff(Runnable handoff) {
+        this.resendHandoff = handoff;
+    }
+
+    /**
+     * Resends the notifications queued for resending after an error, on
+     * the calling thread.
+     */
+    public void resendBuffered() {
+        recovering.incrementAndGet();
+        try {
+            drainBuffer();
+        } finally {
+            recovering.decrementAndGet();
+        }
+    }
+
+    /**
+     * Returns whether this connection is resending after an error or
+     * retrying a parked notification, which may reconnect while holding
+     * the connection, so that a pool can send on another one meanwhile.
+     */
+    public boolean isRecovering() {
+        return recovering.get() > 0;
+    }
+
+    /**
+     * Sets the scheduler running the delayed retries of notifications that
+     * failed to be written, instead of sleeping between attempts while
+     * holding this connection.  Copies of this connection share the same
+     * scheduler.
+     *
+     * The first retry still happens immediately.  Later ones are made
+     * asynchronously, and a notification failing every attempt is reported
+     * through {@link ApnsDelegate#messageSendFailed} only.
+     */
+    public void setRetryScheduler(RetryScheduler retryScheduler) {
+        this.retryScheduler = retryScheduler;
+    }
+
+    /**
+     * Sets the bucket pacing the notifications written by this connection.
+     * Each copy of this connection gets a new bucket with the same
+     * configuration.
+     */
+    public void setRateLimiter(TokenBucket rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    /**
+     * Sets the bucket pacing the notifications written by this connection
+     * and all its copies together.
+     */
+    public void setSharedRateLimiter(TokenBucket sharedRateLimiter) {
+        this.sharedRateLimiter = sharedRateLimiter;
+    }
+
+    /**
+     * Sets the filter dropping the expired notifications instead of
+     * resending them after an error-response.  Copies of this connection
+     * share the same filter.
+     */
+    public void setExpiryFilter(ExpiryFilter expiryFilter) {
+        this.expiryFilter = expiryFilter;
+    }
+
+    /**
+     * Sets the filter of the device tokens known to be invalid.  The
+     * tokens rejected with {@code INVALID_TOKEN} are added to it, and
+     * notifications to the tokens in it are reported as failed through
+     * {@link ApnsDelegate#messageSendFailed} instead of being sent.
+     * Copies of this connection share the same filter.
+     */
+    public void setInvalidTokenFilter(InvalidTokenFilter invalidTokenFilter) {
+        this.invalidTokenFilter = invalidTokenFilter;
+    }
+
+    /**
+     * Enables checking notifications before writing them: malformed ones,
+     * which the gateway would answer by dropping the connection, are
+     * reported as failed through {@link ApnsDelegate#messageSendFailed}
+     * with the matching delivery error instead.  Disabled by default.
+     *
+     * @see NotificationValidator
+     */
+    public void setValidation(boolean validation) {
+        this.validation = validation;
+    }
+
+    private void registerGauges() {
+        metrics.registerGauge(ApnsMetrics.connectionMetric(connectionId, ApnsMetrics.CACHE_DEPTH), new Gauge() {
+            public long value() {
+                return cachedNotifications.size();
+            }
+        });
+        metrics.registerGauge(ApnsMetrics.connectionMetric(connectionId, ApnsMetrics.RESEND_DEPTH), new Gauge() {
+            public long value() {
+                return notificationsBuffer.size();
+            }
+        });
     }
 
     private ThreadFactory defaultThreadFactory() {
@@ -128,20 +368,49 @@ public class ApnsConnectionImpl implements ApnsConnection {
         };
     }
 
+    /**
+     * Closes this connection once the notifications parked by the retry
+     * scheduler have been retried, or right away if there are none, so
+     * that a connection used for a single batch doesn't fail its retries.
+     */
+    public synchronized void closeAfterRetries() {
+        if (pendingRetries.get() == 0) {
+            close();
+        } else {
+            closeAfterRetries = true;
+        }
+    }
+
     public synchronized void close() {
+        closed = true;
         Utilities.close(socket);
+        discard(standbySocket.getAndSet(null));
+        wakeStandbyKeeper();
+        metrics.removeConnection(connectionId);
     }
 
     private void monitorSocket(final Socket socketToMonitor) {
+        Socket raw = rawSockets.remove(socketToMonitor);
+        if (errorResponseReader != null && raw != null) {
+            try {
+                errorResponseReader.watch(raw, socketToMonitor, readerListener);
+                logger.debug("Watching socket {} with the shared error-response reader", socketToMonitor);
+                return;
+            } catch (IOException e) {
+                logger.debug("Couldn't watch socket with the shared error-response reader", e);
+            }
+        }
         logger.debug("Launching Monitoring Thread for socket {}", socketToMonitor);
 
         Thread t = threadFactory.newThread(new Runnable() {
             final static int EXPECTED_SIZE = 6;
 
-            @SuppressWarnings("InfiniteLoopStatement")
             @Override
             public void run() {
                 logger.debug("Started monitoring thread");
+                byte[] bytes = new byte[EXPECTED_SIZE];
+                boolean read = false;
+                IOException failure = null;
                 try {
                     InputStream in;
                     try {
@@ -150,81 +419,11 @@ public class ApnsConnectionImpl implements ApnsConnection {
                         logger.warn("The value of socket is null", ioe);
                         in = null;
                     }
-
-                    byte[] bytes = new byte[EXPECTED_SIZE];
-                    while (in != null && readPacket(in, bytes)) {
-                        logger.debug("Error-response packet {}", Utilities.encodeHex(bytes));
-                        // Quickly close socket, so we won't ever try to send push notifications
-                        // using the defective socket.
-                        Utilities.close(socketToMonitor);
-
-                        int command = bytes[0] & 0xFF;
-                        if (command != 8) {
-                            throw new IOException("Unexpected command byte " + command);
-                        }
-                        int statusCode = bytes[1] & 0xFF;
-                        DeliveryError e = DeliveryError.ofCode(statusCode);
-
-                        int id = Utilities.parseBytes(bytes[2], bytes[3], bytes[4], bytes[5]);
-
-                        logger.debug("Closed connection cause={}; id={}", e, id);
-                        delegate.connectionClosed(e, id);
-
-                        Queue<ApnsNotification> tempCache = new LinkedList<ApnsNotification>();
-                        ApnsNotification notification = null;
-                        boolean foundNotification = false;
-
-                        while (!cachedNotifications.isEmpty()) {
-                            notification = cachedNotifications.poll();
-                            logger.debug("Candidate for removal, message id {}", notification.getIdentifier());
-
-                            if (notification.getIdentifier() == id) {
-                                logger.debug("Bad message found {}", notification.getIdentifier());
-                                foundNotification = true;
-                                break;
-                            }
-                            tempCache.add(notification);
-                        }
-
-                        if (foundNotification) {
-                            logger.debug("delegate.messageSendFailed, message id {}", notification.getIdentifier());
-                            delegate.messageSendFailed(notification, new ApnsDeliveryErrorException(e));
-                        } else {
-                            cachedNotifications.addAll(tempCache);
-                            int resendSize = tempCache.size();
-                            logger.warn("Received error for message that wasn't in the cache...");
-                            if (autoAdjustCacheLength) {
-                                cacheLength = cacheLength + (resendSize / 2);
-                                delegate.cacheLengthExceeded(cacheLength);
-                            }
-                            logger.debug("delegate.messageSendFailed, unknown id");
-                            delegate.messageSendFailed(null, new ApnsDeliveryErrorException(e));
-                        }
-
-                        int resendSize = 0;
-
-                        while (!cachedNotifications.isEmpty()) {
-
-                            resendSize++;
-                            final ApnsNotification resendNotification = cachedNotifications.poll();
-                            logger.debug("Queuing for resend {}", resendNotification.getIdentifier());
-                            notificationsBuffer.add(resendNotification);
-                        }
-                        logger.debug("resending {} notifications", resendSize);
-                        delegate.notificationsResent(resendSize);
-                    }
-                    logger.debug("Monitoring input stream closed by EOF");
-
+                    read = in != null && readPacket(in, bytes);
                 } catch (IOException e) {
-                    // An exception when reading the error code is non-critical, it will cause another retry
-                    // sending the message. Other than providing a more stable network connection to the APNS
-                    // server we can't do much about it - so let's not spam the application's error log.
-                    logger.info("Exception while waiting for error code", e);
-                    delegate.connectionClosed(DeliveryError.UNKNOWN, -1);
-                } finally {
-                    Utilities.close(socketToMonitor);
-                    drainBuffer();
+                    failure = e;
                 }
+                monitoringStopped(socketToMonitor, read ? bytes : null, failure);
             }
 
             /**
@@ -257,6 +456,129 @@ public class ApnsConnectionImpl implements ApnsConnection {
         t.start();
     }
 
+    /**
+     * Handles the end of monitoring a socket: processes the error-response
+     * if one was read, then resends the notifications queued for resending.
+     *
+     * @param socketToMonitor   the socket that was monitored
+     * @param bytes             the error-response packet, or null
+     * @param failure           the failure reading the socket, or null
+     */
+    private void monitoringStopped(Socket socketToMonitor, byte[] bytes, IOException failure) {
+        recovering.incrementAndGet();
+        try {
+            if (failure != null) {
+                throw failure;
+            }
+            if (bytes != null) {
+                errorResponseReceived(socketToMonitor, bytes);
+            }
+            logger.debug("Monitoring input stream closed by EOF");
+        } catch (IOException e) {
+            // An exception when reading the error code is non-critical, it will cause another retry
+            // sending the message. Other than providing a more stable network connection to the APNS
+            // server we can't do much about it - so let's not spam the application's error log.
+            logger.info("Exception while waiting for error code", e);
+            slowDown();
+            delegate.connectionClosed(DeliveryError.UNKNOWN, -1);
+        } finally {
+            Utilities.close(socketToMonitor);
+            Runnable handoff = resendHandoff;
+            try {
+                if (handoff != null) {
+                    handoff.run();
+                } else {
+                    drainBuffer();
+                }
+            } finally {
+                recovering.decrementAndGet();
+            }
+        }
+    }
+
+    private void errorResponseReceived(Socket socketToMonitor, byte[] bytes) throws IOException {
+        logger.debug("Error-response packet {}", Utilities.encodeHex(bytes));
+        // Quickly close socket, so we won't ever try to send push notifications
+        // using the defective socket.
+        Utilities.close(socketToMonitor);
+
+        int command = bytes[0] & 0xFF;
+        if (command != 8) {
+            throw new IOException("Unexpected command byte " + command);
+        }
+        int statusCode = bytes[1] & 0xFF;
+        DeliveryError e = DeliveryError.ofCode(statusCode);
+
+        int id = Utilities.parseBytes(bytes[2], bytes[3], bytes[4], bytes[5]);
+
+        logger.debug("Closed connection cause={}; id={}", e, id);
+        metrics.counter(ApnsMetrics.ERRORS_PREFIX + e.name()).increment();
+        if (trafficAwarePolicy != null) {
+            trafficAwarePolicy.failed();
+        }
+        if (e == DeliveryError.PROCESSING_ERROR || e == DeliveryError.UNKNOWN || e == DeliveryError.NONE) {
+            slowDown();
+        }
+        delegate.connectionClosed(e, id);
+        // on shutdown, the identifier is the one of the last notification sent successfully
+        boolean shutdown = e == DeliveryError.SHUTDOWN;
+
+        Queue<ApnsNotification> tempCache = new LinkedList<ApnsNotification>();
+        ApnsNotification notification = null;
+        boolean foundNotification = false;
+
+        while (!cachedNotifications.isEmpty()) {
+            notification = cachedNotifications.poll();
+
+            if (notification.getIdentifier() == id && shutdown) {
+                logger.debug("Last message sent before shutdown {}", id);
+                foundNotification = true;
+                break;
+            }
+            if (notification.getIdentifier() == id) {
+                logger.debug("Bad message found {}", id);
+                tracer.trace(TraceEvent.REJECTED, notification, connectionId);
+                if (e == DeliveryError.INVALID_TOKEN && invalidTokenFilter != null) {
+                    invalidTokenFilter.add(notification.getDeviceToken());
+                }
+                foundNotification = true;
+                break;
+            }
+            tempCache.add(notification);
+        }
+
+        if (foundNotification) {
+            if (!shutdown) {
+                delegate.messageSendFailed(notification, new ApnsDeliveryErrorException(e));
+            }
+        } else {
+            cachedNotifications.addAll(tempCache);
+            int resendSize = tempCache.size();
+            logger.warn("Received error for message that wasn't in the cache...");
+            if (autoAdjustCacheLength) {
+                cacheLength = cacheLength + (resendSize / 2);
+                delegate.cacheLengthExceeded(cacheLength);
+            }
+            if (!shutdown) {
+                logger.debug("delegate.messageSendFailed, unknown id");
+                delegate.messageSendFailed(null, new ApnsDeliveryErrorException(e));
+            }
+        }
+
+        int resendSize = 0;
+
+        while (!cachedNotifications.isEmpty()) {
+
+            resendSize++;
+            final ApnsNotification resendNotification = cachedNotifications.poll();
+            tracer.trace(TraceEvent.QUEUED_FOR_RESEND, resendNotification, connectionId);
+            notificationsBuffer.add(resendNotification);
+        }
+        logger.debug("resending {} notifications", resendSize);
+        resentCounter.add(resendSize);
+        delegate.notificationsResent(resendSize);
+    }
+
     private synchronized Socket getOrCreateSocket(boolean resend) throws NetworkIOException {
         if (reconnectPolicy.shouldReconnect()) {
             logger.debug("Reconnecting due to reconnectPolicy dictating it");
@@ -265,86 +587,378 @@ public class ApnsConnectionImpl implements ApnsConnection {
         }
 
         if (socket == null || socket.isClosed()) {
+            long creationStart = phaseTimings != null ? System.nanoTime() : 0;
             try {
-                if (proxy == null) {
-                    socket = factory.createSocket(host, port);
-                    logger.debug("Connected new socket {}", socket);
-                } else if (proxy.type() == Proxy.Type.HTTP) {
-                    TlsTunnelBuilder tunnelBuilder = new TlsTunnelBuilder();
-                    socket = tunnelBuilder.build((SSLSocketFactory) factory, proxy, proxyUsername, proxyPassword, host, port);
-                    logger.debug("Connected new socket through http tunnel {}", socket);
+                socket = takeStandbySocket();
+                if (socket != null) {
+                    standbySwapCounter.increment();
+                    logger.debug("Swapped in standby socket {}", socket);
                 } else {
-                    boolean success = false;
-                    Socket proxySocket = null;
-                    try {
-                        proxySocket = new Socket(proxy);
-                        proxySocket.connect(new InetSocketAddress(host, port), connectTimeout);
-                        socket = ((SSLSocketFactory) factory).createSocket(proxySocket, host, port, false);
-                        success = true;
-                    } finally {
-                        if (!success) {
-                            Utilities.close(proxySocket);
-                        }
-                    }
-                    logger.debug("Connected new socket through socks tunnel {}", socket);
+                    socket = createSocket();
                 }
-
-                socket.setSoTimeout(readTimeout);
-                socket.setKeepAlive(true);
+                reconnectCounter.increment();
+                registerGauges();
 
                 if (errorDetection) {
                     monitorSocket(socket);
                 }
 
                 reconnectPolicy.reconnected();
+                if (phaseTimings != null) {
+                    phaseTimings.recordSince(SendPhase.SOCKET_CREATION, creationStart);
+                }
                 logger.debug("Made a new connection to APNS");
             } catch (IOException e) {
                 logger.error("Couldn't connect to APNS server", e);
                 // indicate to clients whether this is a resend or initial send
                 throw new NetworkIOException(e, resend);
             }
+            // only once the gateway is reachable, so that failing connects don't spawn standby attempts
+            replenishStandbySocket();
         }
         return socket;
     }
 
+    /**
+     * Opens a new socket to the gateway, completing the TLS handshake.
+     */
+    private Socket createSocket() throws IOException {
+        Socket newSocket;
+        Socket raw = null;
+        if (proxy == null && errorDetection && errorResponseReader != null && factory instanceof SSLSocketFactory) {
+            // keep hold of the plain socket, for the error-response reader to poll
+            raw = new Socket();
+            try {
+                raw.connect(new InetSocketAddress(host, port), connectTimeout);
+                newSocket = ((SSLSocketFactory) factory).createSocket(raw, host, port, true);
+            } catch (IOException e) {
+                Utilities.close(raw);
+                throw e;
+            }
+            logger.debug("Connected new socket {}", newSocket);
+        } else if (proxy == null) {
+            newSocket = factory.createSocket(host, port);
+            logger.debug("Connected new socket {}", newSocket);
+        } else if (proxy.type() == Proxy.Type.HTTP) {
+            TlsTunnelBuilder tunnelBuilder = new TlsTunnelBuilder();
+            newSocket = tunnelBuilder.build((SSLSocketFactory) factory, proxy, proxyUsername, proxyPassword, host, port);
+            logger.debug("Connected new socket through http tunnel {}", newSocket);
+        } else {
+            boolean success = false;
+            Socket proxySocket = null;
+            try {
+                proxySocket = new Socket(proxy);
+                proxySocket.connect(new InetSocketAddress(host, port), connectTimeout);
+                newSocket = ((SSLSocketFactory) factory).createSocket(proxySocket, host, port, false);
+                raw = proxySocket;
+                success = true;
+            } finally {
+                if (!success) {
+                    Utilities.close(proxySocket);
+                }
+            }
+            logger.debug("Connected new socket through socks tunnel {}", newSocket);
+        }
+
+        try {
+            newSocket.setSoTimeout(readTimeout);
+            newSocket.setKeepAlive(true);
+
+            if (newSocket instanceof SSLSocket) {
+                long handshakeStartMillis = System.currentTimeMillis();
+                long handshakeStart = System.nanoTime();
+                ((SSLSocket) newSocket).startHandshake();
+                long elapsed = System.nanoTime() - handshakeStart;
+                handshakeTime.record(elapsed);
+                // a resumed session was created by an earlier handshake
+                if (((SSLSocket) newSocket).getSession().getCreationTime() < handshakeStartMillis) {
+                    resumedHandshakeTime.record(elapsed);
+                } else {
+                    fullHandshakeTime.record(elapsed);
+                }
+            }
+        } catch (IOException e) {
+            Utilities.close(newSocket);
+            Utilities.close(raw);
+            throw e;
+        }
+        if (raw != null && errorDetection && errorResponseReader != null) {
+            rawSockets.put(newSocket, raw);
+        }
+        return newSocket;
+    }
+
+    /**
+     * Returns the standby socket, if there is a usable one, leaving the
+     * standby slot empty.
+     */
+    private Socket takeStandbySocket() {
+        if (!standbyConnection) {
+            return null;
+        }
+        Socket candidate = standbySocket.getAndSet(null);
+        if (candidate == null) {
+            return null;
+        }
+        if (candidate.isClosed() || CoarseClock.currentTimeMillis() - standbyCreatedAt > standbyMaxAge) {
+            discard(candidate);
+            return null;
+        }
+        return candidate;
+    }
+
+    private void discard(Socket unused) {
+        if (unused != null) {
+            rawSockets.remove(unused);
+            Utilities.close(unused);
+        }
+    }
+
+    /**
+     * Makes sure the standby keeper is running, waking it up if it is, so
+     * that it re-opens the standby socket if it was just used.
+     */
+    private void replenishStandbySocket() {
+        if (!standbyConnection || closed) {
+            return;
+        }
+        if (!standbyKeeperRunning.compareAndSet(false, true)) {
+            wakeStandbyKeeper();
+            return;
+        }
+        Thread t = threadFactory.newThread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    keepStandbySocket();
+                } finally {
+                    standbyKeeperRunning.set(false);
+                }
+            }
+        });
+        t.start();
+    }
+
+    private void wakeStandbyKeeper() {
+        synchronized (standbySocket) {
+            standbySocket.notifyAll();
+        }
+    }
+
+    /**
+     * Keeps a fresh standby socket in the slot until the connection is
+     * closed: opens one when the slot is empty, and replaces it once it is
+     * half of {@link #standbyMaxAge} old, so that a policy reconnect or an
+     * error never finds it expired.  Gives up when the gateway can't be
+     * reached; the next successful connect starts it again.
+     */
+    private void keepStandbySocket() {
+        long refreshAge = standbyMaxAge / 2;
+        while (!closed) {
+            Socket current = standbySocket.get();
+            long age = CoarseClock.currentTimeMillis() - standbyCreatedAt;
+            if (current == null || current.isClosed() || age >= refreshAge) {
+                Socket fresh;
+                try {
+                    fresh = createSocket();
+                } catch (IOException e) {
+                    logger.warn("Couldn't open standby connection to APNS server", e);
+                    return;
+                }
+                standbyCreatedAt = CoarseClock.currentTimeMillis();
+                discard(standbySocket.getAndSet(fresh));
+                if (closed) {
+                    discard(standbySocket.getAndSet(null));
+                }
+                logger.debug("Opened standby socket {}", fresh);
+                continue;
+            }
+            synchronized (standbySocket) {
+                if (!closed && standbySocket.get() == current) {
+                    try {
+                        standbySocket.wait(Math.max(1, refreshAge - age));
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
     int DELAY_IN_MS = 1000;
     private static final int RETRIES = 3;
 
-    public synchronized void sendMessage(ApnsNotification m) throws NetworkIOException {
-        sendMessage(m, false);
-        drainBuffer();
+    public void sendMessage(ApnsNotification m) throws NetworkIOException {
+        SendPhaseTimings timings = phaseTimings;
+        long lockStart = timings != null ? System.nanoTime() : 0;
+        synchronized (this) {
+            if (timings != null) {
+                timings.recordSince(SendPhase.LOCK_WAIT, lockStart);
+            }
+            sendMessage(m, false);
+            drainBuffer();
+        }
+    }
+
+    /**
+     * Sends the notifications, packing as many of them as the cache
+     * allows into each socket write, instead of writing and flushing
+     * them one by one.
+     *
+     * If a packed write fails, the notifications it held are sent again
+     * one by one, with the usual retries. Notifications that can't be
+     * sent are reported to the delegate and the rest of the batch is
+     * still sent.
+     */
+    public void sendMessages(Collection<? extends ApnsNotification> messages) {
+        synchronized (this) {
+            int maxPacked = Math.max(1, cacheLength / 2);
+            List<ApnsNotification> packed = new ArrayList<ApnsNotification>(Math.min(maxPacked, messages.size()));
+            int[] lengths = new int[maxPacked];
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream(MAX_PACKED_WRITE);
+            for (ApnsNotification m : messages) {
+                if (rejectedBeforeSending(m)) {
+                    continue;
+                }
+                byte[] bytes = m.marshall();
+                if (!packed.isEmpty()
+                        && (packed.size() >= maxPacked || buffer.size() + bytes.length > MAX_PACKED_WRITE)) {
+                    writePacked(packed, lengths, buffer);
+                }
+                startSending(m, false);
+                lengths[packed.size()] = bytes.length;
+                packed.add(m);
+                buffer.write(bytes, 0, bytes.length);
+            }
+            if (!packed.isEmpty()) {
+                writePacked(packed, lengths, buffer);
+            }
+            drainBuffer();
+        }
+    }
+
+    /** The most bytes packed into a single socket write */
+    private static final int MAX_PACKED_WRITE = 64 * 1024;
+
+    private void writePacked(List<ApnsNotification> packed, int[] lengths, ByteArrayOutputStream buffer) {
+        try {
+            for (int i = 0; i < packed.size(); i++) {
+                pace();
+            }
+            Socket socket = getOrCreateSocket(false);
+            long writeStart = System.nanoTime();
+            buffer.writeTo(socket.getOutputStream());
+            socket.getOutputStream().flush();
+            writeLatency.recordSince(writeStart);
+            for (int i = 0; i < packed.size(); i++) {
+                messageWritten(packed.get(i), lengths[i], false);
+            }
+        } catch (IOException e) {
+            logger.info("Failed to write {} packed messages, sending them one by one", packed.size(), e);
+            Utilities.close(socket);
+            for (ApnsNotification m : packed) {
+                Exception failure;
+                try {
+                    failure = writeWithRetries(m, false, true);
+                } catch (NetworkIOException ex) {
+                    failure = ex;
+                }
+                if (failure != null) {
+                    logger.error("Couldn't send message {}.", m, failure);
+                    sendFailed(m, failure);
+                }
+            }
+        } catch (NetworkIOException e) {
+            logger.warn("Couldn't connect to write {} packed messages", packed.size(), e);
+            for (ApnsNotification m : packed) {
+                sendFailed(m, e);
+            }
+        } finally {
+            packed.clear();
+            buffer.reset();
+        }
     }
 
     private synchronized void sendMessage(ApnsNotification m, boolean fromBuffer) throws NetworkIOException {
-        logger.debug("sendMessage {} fromBuffer: {}", m, fromBuffer);
+        if (rejectedBeforeSending(m)) {
+            return;
+        }
+        startSending(m, fromBuffer);
+        sendWithRetries(m, fromBuffer);
+    }
+
+    /**
+     * Reports the notification as failed if it is malformed or sent to a
+     * known invalid token.
+     *
+     * @return whether the notification must not be sent
+     */
+    private boolean rejectedBeforeSending(ApnsNotification m) {
+        if (validation) {
+            DeliveryError error = NotificationValidator.validate(m);
+            if (error != null) {
+                logger.debug("Rejecting malformed message {}: {}", m.getIdentifier(), error);
+                malformedCounter.increment();
+                tracer.trace(TraceEvent.MALFORMED, m, connectionId);
+                delegate.messageSendFailed(m, new ApnsDeliveryErrorException(error));
+                return true;
+            }
+        }
+        if (invalidTokenFilter != null && invalidTokenFilter.contains(m.getDeviceToken())) {
+            logger.debug("Dropping message {} to a known invalid token", m.getIdentifier());
+            invalidTokenCounter.increment();
+            tracer.trace(TraceEvent.INVALID_TOKEN, m, connectionId);
+            delegate.messageSendFailed(m, new ApnsDeliveryErrorException(DeliveryError.INVALID_TOKEN));
+            return true;
+        }
+        return false;
+    }
 
+    private void startSending(ApnsNotification m, boolean fromBuffer) {
         if (delegate instanceof StartSendingApnsDelegate) {
+            long delegateStart = phaseTimings != null ? System.nanoTime() : 0;
             ((StartSendingApnsDelegate) delegate).startSending(m, fromBuffer);
+            if (phaseTimings != null) {
+                phaseTimings.recordSince(SendPhase.DELEGATE, delegateStart);
+            }
+        }
+    }
+
+    private void sendWithRetries(ApnsNotification m, boolean fromBuffer) throws NetworkIOException {
+        IOException failure = writeWithRetries(m, fromBuffer, false);
+        if (failure != null) {
+            logger.error("Couldn't send message {} after {} retries.", new Object[] { m, RETRIES, failure });
+            sendFailed(m, failure);
+            Utilities.wrapAndThrowAsRuntimeException(failure);
         }
+    }
 
+    /**
+     * Writes the notification, retrying on write failures.
+     *
+     * @param paced whether the first attempt was already paced, as part
+     *        of a packed write
+     * @return the last failure once the retries are used up, or null if
+     *         the notification was written or parked for an async retry
+     * @throws NetworkIOException if the connection couldn't be opened
+     */
+    private IOException writeWithRetries(ApnsNotification m, boolean fromBuffer, boolean paced) throws NetworkIOException {
         int attempts = 0;
         while (true) {
             try {
                 attempts++;
-                Socket socket = getOrCreateSocket(fromBuffer);
-                socket.getOutputStream().write(m.marshall());
-                socket.getOutputStream().flush();
-                cacheNotification(m);
-
-                delegate.messageSent(m, fromBuffer);
-
-                //logger.debug("Message \"{}\" sent", m);
-                attempts = 0;
-                break;
+                if (attempts > 1 || !paced) {
+                    pace();
+                }
+                writeMessage(m, fromBuffer);
+                return null;
             } catch (SSLHandshakeException e) {
                 // No use retrying this, it's dead Jim
                 throw new NetworkIOException(e);
             } catch (IOException e) {
-                Utilities.close(socket);
+                writeFailed(m);
                 if (attempts >= RETRIES) {
-                    logger.error("Couldn't send message after " + RETRIES + " retries." + m, e);
-                    delegate.messageSendFailed(m, e);
-                    Utilities.wrapAndThrowAsRuntimeException(e);
+                    return e;
                 }
                 // The first failure might be due to closed connection (which in turn might be caused by
                 // a message containing a bad token), so don't delay for the first retry.
@@ -353,23 +967,165 @@ public class ApnsConnectionImpl implements ApnsConnection {
                 // which uses the delay.
 
                 if (attempts != 1) {
-                    logger.info("Failed to send message " + m + "... trying again after delay", e);
+                    if (retryScheduler != null) {
+                        logger.info("Failed to send message {}... retrying asynchronously", m, e);
+                        scheduleRetry(m, fromBuffer, 1);
+                        return null;
+                    }
+                    logger.info("Failed to send message {}... trying again after delay", m, e);
                     Utilities.sleep(DELAY_IN_MS);
                 }
             }
         }
     }
 
+    private void sendFailed(ApnsNotification m, Exception e) {
+        tracer.trace(TraceEvent.FAILED, m, connectionId);
+        delegate.messageSendFailed(m, e);
+    }
+
+    private void pace() {
+        if (rateLimiter != null) {
+            pacingWait.record(rateLimiter.acquire());
+        }
+        if (sharedRateLimiter != null) {
+            pacingWait.record(sharedRateLimiter.acquire());
+        }
+    }
+
+    private void writeMessage(ApnsNotification m, boolean fromBuffer) throws IOException {
+        Socket socket = getOrCreateSocket(fromBuffer);
+        byte[] bytes = m.marshall();
+        long writeStart = System.nanoTime();
+        socket.getOutputStream().write(bytes);
+        socket.getOutputStream().flush();
+        long writeEnd = System.nanoTime();
+        writeLatency.record(writeEnd - writeStart);
+        if (phaseTimings != null) {
+            phaseTimings.record(SendPhase.WRITE, writeEnd - writeStart);
+        }
+        messageWritten(m, bytes.length, fromBuffer);
+    }
+
+    private void messageWritten(ApnsNotification m, int length, boolean fromBuffer) {
+        sentCounter.increment();
+        connectionSentCounter.increment();
+        bytesWrittenCounter.add(length);
+        if (trafficAwarePolicy != null) {
+            trafficAwarePolicy.sent(length);
+        }
+        cacheNotification(m);
+
+        if (phaseTimings != null) {
+            long delegateStart = System.nanoTime();
+            delegate.messageSent(m, fromBuffer);
+            phaseTimings.recordSince(SendPhase.DELEGATE, delegateStart);
+        } else {
+            delegate.messageSent(m, fromBuffer);
+        }
+        tracer.trace(fromBuffer ? TraceEvent.RESENT : TraceEvent.SENT, m, connectionId);
+    }
+
+    private void writeFailed(ApnsNotification m) {
+        Utilities.close(socket);
+        tracer.trace(TraceEvent.WRITE_FAILED, m, connectionId);
+        if (trafficAwarePolicy != null) {
+            trafficAwarePolicy.failed();
+        }
+        slowDown();
+    }
+
+    /**
+     * Lowers the rate of adaptive rate limiters after the gateway dropped
+     * a connection for reasons other than a malformed notification.
+     */
+    private void slowDown() {
+        if (rateLimiter != null) {
+            rateLimiter.backOff();
+        }
+        if (sharedRateLimiter != null) {
+            sharedRateLimiter.backOff();
+        }
+    }
+
+    private void scheduleRetry(final ApnsNotification m, final boolean fromBuffer, final int retry) {
+        pendingRetries.incrementAndGet();
+        retryScheduler.schedule(retry, new Runnable() {
+            public void run() {
+                retryMessage(m, fromBuffer, retry);
+            }
+        });
+    }
+
+    private void retryMessage(ApnsNotification m, boolean fromBuffer, int retry) {
+        recovering.incrementAndGet();
+        try {
+            retryHolding(m, fromBuffer, retry);
+        } finally {
+            recovering.decrementAndGet();
+        }
+    }
+
+    private synchronized void retryHolding(ApnsNotification m, boolean fromBuffer, int retry) {
+        try {
+            attemptRetry(m, fromBuffer, retry);
+        } finally {
+            if (pendingRetries.decrementAndGet() == 0 && closeAfterRetries) {
+                close();
+            }
+        }
+    }
+
+    /**
+     * Makes one more attempt at sending a notification parked by the
+     * retry scheduler, parking it again or reporting it as failed to the
+     * delegate if it fails.
+     *
+     * @param retry the number of the scheduled retry, starting at 1
+     */
+    private void attemptRetry(ApnsNotification m, boolean fromBuffer, int retry) {
+        Exception failure;
+        try {
+            if (!closed) {
+                pace();
+                writeMessage(m, fromBuffer);
+                return;
+            }
+            failure = new NetworkIOException("Connection closed before retrying");
+        } catch (SSLHandshakeException e) {
+            failure = e;
+        } catch (IOException e) {
+            writeFailed(m);
+            if (retry < retryScheduler.getRetries()) {
+                scheduleRetry(m, fromBuffer, retry + 1);
+                return;
+            }
+            failure = e;
+        } catch (NetworkIOException e) {
+            failure = e;
+        }
+        // the two attempts before the notification was parked count too
+        logger.error("Couldn't send message {} after {} attempts.", new Object[] { m, retry + 2, failure });
+        tracer.trace(TraceEvent.FAILED, m, connectionId);
+        delegate.messageSendFailed(m, failure);
+    }
+
     private synchronized void drainBuffer() {
-        logger.debug("draining buffer");
+        if (!notificationsBuffer.isEmpty()) {
+            logger.debug("draining buffer");
+        }
         while (!notificationsBuffer.isEmpty()) {
             final ApnsNotification notification = notificationsBuffer.poll();
+            if (expiryFilter != null && expiryFilter.dropIfExpired(notification, connectionId)) {
+                continue;
+            }
             try {
                 sendMessage(notification, true);
             }
             catch (NetworkIOException ex) {
                 // at this point we are retrying the submission of messages but failing to connect to APNS, therefore
                 // notify the client of this
+                tracer.trace(TraceEvent.FAILED, notification, connectionId);
                 delegate.messageSendFailed(notification, ex);
             }
         }
@@ -378,14 +1134,47 @@ public class ApnsConnectionImpl implements ApnsConnection {
     private void cacheNotification(ApnsNotification notification) {
         cachedNotifications.add(notification);
         while (cachedNotifications.size() > cacheLength) {
-            cachedNotifications.poll();
-            logger.debug("Removing notification from cache " + notification);
+            ApnsNotification evicted = cachedNotifications.poll();
+            if (evicted != null) {
+                tracer.trace(TraceEvent.EVICTED, evicted, connectionId);
+            }
         }
     }
 
     public ApnsConnectionImpl copy() {
-        return new ApnsConnectionImpl(factory, host, port, proxy, proxyUsername, proxyPassword, reconnectPolicy.copy(), delegate,
+        ApnsConnectionImpl copy = new ApnsConnectionImpl(factory, host, port, proxy, proxyUsername, proxyPassword, reconnectPolicy.copy(), delegate,
                 errorDetection, threadFactory, cacheLength, autoAdjustCacheLength, readTimeout, connectTimeout);
+        copy.setMetrics(metrics);
+        copy.setSendPhaseTiming(sendPhaseTiming);
+        copy.setTracer(tracer);
+        copy.setStandbyConnection(standbyConnection);
+        copy.setErrorResponseReader(errorResponseReader);
+        copy.setRetryScheduler(retryScheduler);
+        copy.setRateLimiter(rateLimiter == null ? null : rateLimiter.copy());
+        copy.setSharedRateLimiter(sharedRateLimiter);
+        copy.setExpiryFilter(expiryFilter);
+        copy.setInvalidTokenFilter(invalidTokenFilter);
+        copy.setValidation(validation);
+        return copy;
+    }
+
+    /**
+     * Opens the gateway socket now, if it isn't open yet, instead of on
+     * the first notification.
+     */
+    public void connect() throws NetworkIOException {
+        getOrCreateSocket(false);
+    }
+
+    public List<Callable<Void>> warmUpTasks() {
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(1);
+        tasks.add(new Callable<Void>() {
+            public Void call() {
+                connect();
+                return null;
+            }
+        });
+        return tasks;
     }
 
     public void testConnection() throws NetworkIOException {
@@ -0,0 +1,322 @@
+/*
+ *  Copyright 2009, Mahmood Ali.
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are
+ *  met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ *      copyright notice, this list of conditions and the following disclaimer
+ *      in the documentation and/or other materials provided with the
+ *      distribution.
+ *    * Neither the name of Mahmood Ali. nor the names of its
+ *      contributors may be used to endorse or promote products derived from
+ *      this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.apns.internal;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.metrics.ApnsMetrics;
+import com.notnoop.apns.metrics.Counter;
+import com.notnoop.apns.metrics.Gauge;
+import com.notnoop.apns.metrics.Histogram;
+import com.notnoop.exceptions.NetworkIOException;
+
+/**
+ * A pool of gateway connections that grows and shrinks with the load.
+ *
+ * Each notification is sent by the calling thread on the least loaded
+ * connection.  Once a second the pool checks its load: if notifications
+ * wait for a connection (threads blocked on a busy one, or notifications
+ * queued in single-writer connections) at least once per connection, or
+ * if sending got slower than the latency threshold, a connection is
+ * added, up to the maximum.  Otherwise a connection that has been idle
+ * for the idle timeout is retired, down to the minimum.
+ *
+ * A retired connection gets no new notifications, but is only closed once
+ * its error window has passed: the gateway may still reject one of the
+ * last notifications it sent, and closing earlier would lose the error
+ * and the resending of the notifications after it.
+ */
+public class ApnsElasticPooledConnection implements WarmableConnection {
+    private static final Logger logger = LoggerFactory.getLogger(ApnsElasticPooledConnection.class);
+
+    /** How long a retired connection stays open after its retirement or last write */
+    public static final long DEFAULT_ERROR_WINDOW_MILLIS = 5000;
+    static final long CHECK_INTERVAL_MILLIS = 1000;
+
+    private static final class Member {
+        final ApnsConnection connection;
+        final AtomicInteger inFlight = new AtomicInteger();
+        volatile long lastUsed;
+        long retiredAt;
+
+        Member(ApnsConnection connection, long now) {
+            this.connection = connection;
+            this.lastUsed = now;
+        }
+
+        int load() {
+            int load = inFlight.get();
+            if (connection instanceof ApnsSingleWriterConnection) {
+                load += ((ApnsSingleWriterConnection) connection).getBacklog();
+            }
+            return load;
+        }
+    }
+
+    private final ApnsConnection prototype;
+    private final int min;
+    private final int max;
+    private final long latencyThresholdNanos;
+    private final long idleMillis;
+    private final long errorWindowMillis;
+
+    private final CopyOnWriteArrayList<Member> active = new CopyOnWriteArrayList<Member>();
+    // guarded by this
+    private final List<Member> retiring = new ArrayList<Member>();
+    private final AtomicLong averageLatency = new AtomicLong();
+    private final AtomicLong sendsSinceCheck = new AtomicLong();
+    private final ScheduledExecutorService scaler;
+
+    private ApnsMetrics metrics = ApnsMetrics.DISABLED;
+    private Histogram sendLatency = metrics.histogram(ApnsMetrics.POOL_SEND_LATENCY);
+    private Counter scaleUps = metrics.counter(ApnsMetrics.POOL_SCALE_UPS);
+    private Counter scaleDowns = metrics.counter(ApnsMetrics.POOL_SCALE_DOWNS);
+
+    /**
+     * @param prototype         copied for every connection of the pool
+     * @param min               the number of connections kept when idle, at least 1
+     * @param max               the most connections opened under load
+     * @param latencyThreshold  the average send time above which connections are added
+     * @param idleTimeout       how long a connection must be unused to be retired
+     * @param errorWindow       how long a retired connection stays open after its retirement
+     *                          or last write, whichever comes later
+     * @param unit              the unit of the durations
+     */
+    public ApnsElasticPooledConnection(ApnsConnection prototype, int min, int max,
+            long latencyThreshold, long idleTimeout, long errorWindow, TimeUnit unit) {
+        if (min < 1 || max < min) {
+            throw new IllegalArgumentException("Invalid pool size: min " + min + ", max " + max);
+        }
+        this.prototype = prototype;
+        this.min = min;
+        this.max = max;
+        this.latencyThresholdNanos = unit.toNanos(latencyThreshold);
+        this.idleMillis = unit.toMillis(idleTimeout);
+        this.errorWindowMillis = unit.toMillis(errorWindow);
+
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < min; i++) {
+            active.add(new Member(prototype.copy(), now));
+        }
+        this.scaler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "apns-pool-scaler");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scaler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    rebalance(System.currentTimeMillis());
+                } catch (RuntimeException e) {
+                    logger.warn("Failed resizing the connection pool", e);
+                }
+            }
+        }, CHECK_INTERVAL_MILLIS, CHECK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sets the registry the pool records its size, backlog, send latency
+     * and scaling decisions into.
+     */
+    public void setMetrics(ApnsMetrics metrics) {
+        this.metrics = metrics == null ? ApnsMetrics.DISABLED : metrics;
+        this.sendLatency = this.metrics.histogram(ApnsMetrics.POOL_SEND_LATENCY);
+        this.scaleUps = this.metrics.counter(ApnsMetrics.POOL_SCALE_UPS);
+        this.scaleDowns = this.metrics.counter(ApnsMetrics.POOL_SCALE_DOWNS);
+        this.metrics.registerGauge(ApnsMetrics.POOL_CONNECTIONS, new Gauge() {
+            public long value() {
+                return active.size();
+            }
+        });
+        this.metrics.registerGauge(ApnsMetrics.POOL_BACKLOG, new Gauge() {
+            public long value() {
+                return backlog();
+            }
+        });
+    }
+
+    public void sendMessage(ApnsNotification m) throws NetworkIOException {
+        Member member = leastLoaded();
+        if (member == null) {
+            throw new NetworkIOException("Connection pool closed");
+        }
+        member.inFlight.incrementAndGet();
+        long start = System.nanoTime();
+        try {
+            member.connection.sendMessage(m);
+        } finally {
+            member.inFlight.decrementAndGet();
+            member.lastUsed = System.currentTimeMillis();
+            long took = System.nanoTime() - start;
+            sendLatency.record(took);
+            recordLatency(took);
+        }
+    }
+
+    private Member leastLoaded() {
+        Member best = null;
+        int bestLoad = Integer.MAX_VALUE;
+        for (Member member : active) {
+            int load = member.load();
+            if (load < bestLoad) {
+                best = member;
+                bestLoad = load;
+                if (load == 0) {
+                    break;
+                }
+            }
+        }
+        return best;
+    }
+
+    /** Keeps an exponentially weighted average of the send times, weighing the last one 1/8. */
+    private void recordLatency(long nanos) {
+        sendsSinceCheck.incrementAndGet();
+        long average;
+        do {
+            average = averageLatency.get();
+        } while (!averageLatency.compareAndSet(average, average + (nanos - average) / 8));
+    }
+
+    private long backlog() {
+        long waiting = 0;
+        for (Member member : active) {
+            // the first notification of a connection is being sent, not waiting
+            waiting += Math.max(0, member.load() - 1);
+        }
+        return waiting;
+    }
+
+    /**
+     * Adds or retires at most one connection, and closes the retired
+     * connections whose error window passed.
+     */
+    synchronized void rebalance(long now) {
+        int size = active.size();
+        boolean slow = sendsSinceCheck.getAndSet(0) > 0 && averageLatency.get() >= latencyThresholdNanos;
+        long backlog = backlog();
+        if ((backlog >= size || slow) && size < max) {
+            active.add(new Member(prototype.copy(), now));
+            scaleUps.increment();
+            logger.info("Added a connection to the pool ({} waiting, average send {}us): {} connections",
+                    new Object[] { backlog, averageLatency.get() / 1000, size + 1 });
+        } else if (size > min) {
+            for (Member member : active) {
+                if (member.load() == 0 && now - member.lastUsed >= idleMillis) {
+                    active.remove(member);
+                    member.retiredAt = now;
+                    retiring.add(member);
+                    scaleDowns.increment();
+                    logger.info("Retiring an idle connection: {} connections", size - 1);
+                    break;
+                }
+            }
+        }
+
+        for (Iterator<Member> it = retiring.iterator(); it.hasNext();) {
+            Member member = it.next();
+            long quiet = Math.min(now - member.retiredAt, now - member.lastUsed);
+            if (member.inFlight.get() == 0 && quiet >= errorWindowMillis) {
+                it.remove();
+                Utilities.close(member.connection);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of connections receiving notifications.
+     */
+    public int size() {
+        return active.size();
+    }
+
+    /**
+     * Opens the minimum number of connections the pool keeps.
+     */
+    public List<Callable<Void>> warmUpTasks() {
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (Member member : active) {
+            tasks.addAll(Utilities.warmUpTasks(member.connection));
+        }
+        return tasks;
+    }
+
+    public ApnsConnection copy() {
+        ApnsElasticPooledConnection copy = new ApnsElasticPooledConnection(prototype, min, max,
+                latencyThresholdNanos, TimeUnit.MILLISECONDS.toNanos(idleMillis),
+                TimeUnit.MILLISECONDS.toNanos(errorWindowMillis), TimeUnit.NANOSECONDS);
+        copy.setMetrics(metrics);
+        return copy;
+    }
+
+    public synchronized void close() {
+        scaler.shutdownNow();
+        for (Member member : active) {
+            Utilities.close(member.connection);
+        }
+        for (Member member : retiring) {
+            Utilities.close(member.connection);
+        }
+        active.clear();
+        retiring.clear();
+        Utilities.close(prototype);
+    }
+
+    public void testConnection() throws NetworkIOException {
+        prototype.testConnection();
+    }
+
+    public synchronized void setCacheLength(int cacheLength) {
+        for (Member member : active) {
+            member.connection.setCacheLength(cacheLength);
+        }
+    }
+
+    public int getCacheLength() {
+        return prototype.getCacheLength();
+    }
+}
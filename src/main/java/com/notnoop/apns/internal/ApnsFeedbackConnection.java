@@ -54,6 +54,9 @@ public class ApnsFeedbackConnection {
     private final int connectTimeout;
     private final String proxyUsername;
     private final String proxyPassword;
+    private InvalidTokenFilter invalidTokenFilter;
+    // guarded by this
+    private Map<String, Date> prefetched;
 
     public ApnsFeedbackConnection(final SocketFactory factory, final String host, final int port) {
         this(factory, host, port, null, 0, 0, null, null);
@@ -71,15 +74,56 @@ public class ApnsFeedbackConnection {
         this.proxyPassword = proxyPassword;
     }
 
+    /**
+     * Sets the filter the inactive devices reported by the feedback
+     * service are added to.
+     */
+    public void setInvalidTokenFilter(InvalidTokenFilter invalidTokenFilter) {
+        this.invalidTokenFilter = invalidTokenFilter;
+    }
+
     int DELAY_IN_MS = 1000;
     private static final int RETRIES = 3;
 
+    /**
+     * Reads the inactive devices now, while the service starts; they are
+     * returned by the next call to {@link #getInactiveDevices()}.  The
+     * feedback service reports each device only once, so they are kept
+     * rather than discarded.
+     */
+    public void prefetch() throws IOException {
+        final Map<String, Date> result = getInactiveDevicesImpl();
+        if (invalidTokenFilter != null) {
+            invalidTokenFilter.addAll(result.keySet());
+        }
+        synchronized (this) {
+            if (prefetched == null) {
+                prefetched = result;
+            } else {
+                prefetched.putAll(result);
+            }
+        }
+    }
+
+    private synchronized Map<String, Date> takePrefetched() {
+        Map<String, Date> result = prefetched;
+        prefetched = null;
+        return result;
+    }
+
     public Map<String, Date> getInactiveDevices() throws NetworkIOException {
+        Map<String, Date> prefetchedDevices = takePrefetched();
+        if (prefetchedDevices != null) {
+            return prefetchedDevices;
+        }
         int attempts = 0;
         while (true) {
             try {
                 attempts++;
                 final Map<String, Date> result = getInactiveDevicesImpl();
+                if (invalidTokenFilter != null) {
+                    invalidTokenFilter.addAll(result.keySet());
+                }
 
                 attempts = 0;
                 return result;
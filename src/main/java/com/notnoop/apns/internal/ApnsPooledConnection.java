@@ -30,14 +30,23 @@
  */
 package com.notnoop.apns.internal;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.*;
 import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.metrics.ApnsMetrics;
+import com.notnoop.apns.metrics.Counter;
+import com.notnoop.apns.metrics.Gauge;
+import com.notnoop.apns.metrics.Histogram;
 import com.notnoop.exceptions.NetworkIOException;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class ApnsPooledConnection implements ApnsConnection {
+public class ApnsPooledConnection implements WarmableConnection {
     private static final Logger logger = LoggerFactory.getLogger(ApnsPooledConnection.class);
 
     private final ApnsConnection prototype;
@@ -45,6 +54,38 @@ public class ApnsPooledConnection implements ApnsConnection {
 
     private final ExecutorService executors;
     private final ConcurrentLinkedQueue<ApnsConnection> prototypes;
+    /** Connections opened by the warm-up, not yet bound to a thread */
+    private final ConcurrentLinkedQueue<ApnsConnection> warmedUp = new ConcurrentLinkedQueue<ApnsConnection>();
+
+    private ApnsMetrics metrics = ApnsMetrics.DISABLED;
+    private Histogram sendLatency = metrics.histogram(ApnsMetrics.POOL_SEND_LATENCY);
+    private Counter steals = metrics.counter(ApnsMetrics.POOL_STEALS);
+
+    /** A connection shared by all the threads in work-stealing mode */
+    private static final class Slot {
+        final ApnsConnection connection;
+        /** When the current send started, or 0 if the connection is idle */
+        long sendStarted;
+
+        Slot(ApnsConnection connection) {
+            this.connection = connection;
+        }
+
+        boolean isStalled(long now, long thresholdNanos) {
+            return sendStarted != 0 && now - sendStarted >= thresholdNanos;
+        }
+
+        /** Whether a send would wait for the connection to recover from an error */
+        boolean isRecovering() {
+            return connection instanceof ApnsConnectionImpl && ((ApnsConnectionImpl) connection).isRecovering();
+        }
+    }
+
+    private volatile long stallThresholdNanos;
+    private Slot[] slots;
+    private int nextSlot;
+    /** The connections currently sending to a device token, guarded by this */
+    private final Map<ByteBuffer, Slot> sending = new HashMap<ByteBuffer, Slot>();
 
     public ApnsPooledConnection(ApnsConnection prototype, int max) {
         this(prototype, max, Executors.newFixedThreadPool(max));
@@ -58,24 +99,173 @@ public class ApnsPooledConnection implements ApnsConnection {
         this.prototypes = new ConcurrentLinkedQueue<ApnsConnection>();
     }
 
+    /**
+     * Sets the registry this pool records its metrics into.  The pooled
+     * connections record into the registry of the prototype.
+     */
+    public void setMetrics(ApnsMetrics metrics) {
+        this.metrics = metrics == null ? ApnsMetrics.DISABLED : metrics;
+        this.sendLatency = this.metrics.histogram(ApnsMetrics.POOL_SEND_LATENCY);
+        this.steals = this.metrics.counter(ApnsMetrics.POOL_STEALS);
+        this.metrics.registerGauge(ApnsMetrics.POOL_CONNECTIONS, new Gauge() {
+            public long value() {
+                return prototypes.size();
+            }
+        });
+    }
+
+    /**
+     * Dispatches notifications to any idle connection instead of binding a
+     * connection to each thread of the executor.  Must be called before
+     * the first notification is sent.
+     *
+     * A connection whose current send has been in flight for the stall
+     * threshold, e.g. because it's reconnecting or resending after an
+     * error-response, is considered stalled.  A notification to a device
+     * token that is still being sent waits for that send, to keep the
+     * notifications of a device in order, unless the connection sending it
+     * stalled: then it's taken by another connection, and counted in the
+     * {@code pool.steals} metric.
+     *
+     * @param stallThreshold    the in-flight age after which a connection is stalled
+     * @param unit              the unit of the threshold
+     */
+    public synchronized void setWorkStealing(long stallThreshold, TimeUnit unit) {
+        if (stallThreshold <= 0) {
+            throw new IllegalArgumentException("Stall threshold must be positive: " + stallThreshold);
+        }
+        this.stallThresholdNanos = unit.toNanos(stallThreshold);
+    }
+
+    private synchronized Slot[] slots() {
+        if (slots == null) {
+            slots = new Slot[max];
+            for (int i = 0; i < max; i++) {
+                ApnsConnection newCopy = prototype.copy();
+                prototypes.add(newCopy);
+                slots[i] = new Slot(newCopy);
+            }
+        }
+        return slots;
+    }
+
+    /**
+     * Takes an idle connection for the notification, waiting while all
+     * connections are busy or while another connection is sending to the
+     * same device without having stalled.  Connections recovering from an
+     * error are only taken when all the idle ones are.
+     */
+    private synchronized Slot acquire(ApnsNotification m) throws InterruptedException {
+        Slot[] all = slots();
+        ByteBuffer token = m.getDeviceToken() == null ? null : ByteBuffer.wrap(m.getDeviceToken());
+        while (true) {
+            long now = System.nanoTime();
+            long waitNanos = stallThresholdNanos;
+            Slot owner = token == null ? null : sending.get(token);
+            if (owner != null && !owner.isStalled(now, stallThresholdNanos)) {
+                waitNanos = owner.sendStarted + stallThresholdNanos - now;
+            } else {
+                int found = -1;
+                for (int i = 0; i < all.length; i++) {
+                    Slot slot = all[(nextSlot + i) % all.length];
+                    if (slot.sendStarted == 0) {
+                        if (!slot.isRecovering()) {
+                            found = i;
+                            break;
+                        }
+                        if (found < 0) {
+                            found = i;
+                        }
+                    }
+                }
+                if (found >= 0) {
+                    Slot slot = all[(nextSlot + found) % all.length];
+                    nextSlot = (nextSlot + found + 1) % all.length;
+                    slot.sendStarted = now;
+                    if (owner != null) {
+                        steals.increment();
+                        logger.debug("Connection stalled, sending on another one");
+                    }
+                    if (token != null) {
+                        sending.put(token, slot);
+                    }
+                    return slot;
+                }
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, Math.max(waitNanos, 1000000));
+        }
+    }
+
+    private synchronized void release(Slot slot, ApnsNotification m) {
+        slot.sendStarted = 0;
+        if (m.getDeviceToken() != null) {
+            ByteBuffer token = ByteBuffer.wrap(m.getDeviceToken());
+            if (sending.get(token) == slot) {
+                sending.remove(token);
+            }
+        }
+        notifyAll();
+    }
+
+    private void stealingSend(ApnsNotification m) throws InterruptedException {
+        Slot slot = acquire(m);
+        try {
+            slot.connection.sendMessage(m);
+        } finally {
+            release(slot, m);
+        }
+    }
+
     private final ThreadLocal<ApnsConnection> uniquePrototype =
         new ThreadLocal<ApnsConnection>() {
         protected ApnsConnection initialValue() {
+            ApnsConnection warm = warmedUp.poll();
+            if (warm != null) {
+                return warm;
+            }
             ApnsConnection newCopy = prototype.copy();
             prototypes.add(newCopy);
             return newCopy;
         }
     };
 
+    /**
+     * Creates all the connections of the pool, and returns the tasks opening
+     * them.  Each executor thread then takes one of these connections on
+     * its first notification instead of creating its own.
+     */
+    public synchronized List<Callable<Void>> warmUpTasks() {
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        if (stallThresholdNanos > 0) {
+            for (Slot slot : slots()) {
+                tasks.addAll(Utilities.warmUpTasks(slot.connection));
+            }
+        } else if (prototypes.isEmpty()) {
+            for (int i = 0; i < max; i++) {
+                ApnsConnection newCopy = prototype.copy();
+                prototypes.add(newCopy);
+                warmedUp.add(newCopy);
+                tasks.addAll(Utilities.warmUpTasks(newCopy));
+            }
+        }
+        return tasks;
+    }
+
     public void sendMessage(final ApnsNotification m) throws NetworkIOException {
+        long start = System.nanoTime();
         Future<Void> future = executors.submit(new Callable<Void>() {
             public Void call() throws Exception {
-                uniquePrototype.get().sendMessage(m);
+                if (stallThresholdNanos > 0) {
+                    stealingSend(m);
+                } else {
+                    uniquePrototype.get().sendMessage(m);
+                }
                 return null;
             }
         });
         try {
             future.get();
+            sendLatency.recordSince(start);
         } catch (InterruptedException ie) {
             Thread.currentThread().interrupt();
         } catch (ExecutionException ee) {
@@ -88,7 +278,12 @@ public class ApnsPooledConnection implements ApnsConnection {
     public ApnsConnection copy() {
         // TODO: Should copy executor properly.... What should copy do
         // really?!
-        return new ApnsPooledConnection(prototype, max);
+        ApnsPooledConnection copy = new ApnsPooledConnection(prototype, max);
+        copy.setMetrics(metrics);
+        if (stallThresholdNanos > 0) {
+            copy.setWorkStealing(stallThresholdNanos, TimeUnit.NANOSECONDS);
+        }
+        return copy;
     }
 
     public void close() {
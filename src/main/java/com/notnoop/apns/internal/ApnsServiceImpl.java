@@ -47,10 +47,13 @@ public class ApnsServiceImpl extends AbstractApnsService {
     }
 
     public void start() {
+        warmUp(connection);
     }
 
     public void stop() {
         Utilities.close(connection);
+        shutdownRetryScheduler();
+        closeDelegateDispatcher();
     }
 
     public void testConnection() {
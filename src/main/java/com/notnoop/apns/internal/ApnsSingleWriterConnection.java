@@ -0,0 +1,378 @@
+/*
+ *  Copyright 2009, Mahmood Ali.
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are
+ *  met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ *      copyright notice, this list of conditions and the following disclaimer
+ *      in the documentation and/or other materials provided with the
+ *      distribution.
+ *    * Neither the name of Mahmood Ali. nor the names of its
+ *      contributors may be used to endorse or promote products derived from
+ *      this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.apns.internal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.notnoop.apns.ApnsDelegate;
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.DeliveryError;
+import com.notnoop.apns.StartSendingApnsDelegate;
+import com.notnoop.apns.WaitStrategy;
+import com.notnoop.apns.metrics.ApnsMetrics;
+import com.notnoop.apns.metrics.Histogram;
+import com.notnoop.exceptions.NetworkIOException;
+
+/**
+ * A gateway connection owned by a single writer thread.
+ *
+ * {@code sendMessage} only publishes the notification into a lock-free
+ * {@link MpscRing}; the writer thread drains it and sends what it found
+ * as one packed write through the wrapped {@link ApnsConnectionImpl}.  The
+ * writer is then the only sending thread of that connection, so it owns the
+ * socket, the cache of sent notifications and the reconnects without
+ * contention, and concurrent producers make writes bigger instead of
+ * queueing up on its monitor.  After an error, the notifications to resend
+ * are handed back to the writer too, which resends them before draining
+ * the ring, rather than being resent by the thread reading the error.
+ *
+ * Sending is asynchronous: failures are reported to the delegate rather
+ * than thrown.  The wrapped connection must be created with the delegate
+ * returned by {@link #tracking(ApnsDelegate)}, which lets the writer find
+ * the notifications a failing send didn't report.  When the ring is full,
+ * producers wait for room with the same strategy as the idle writer.
+ */
+public class ApnsSingleWriterConnection implements WarmableConnection {
+    private static final Logger logger = LoggerFactory.getLogger(ApnsSingleWriterConnection.class);
+
+    /** Longest a parked writer sleeps before checking for shutdown */
+    private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    /** How long a producer parks between checks of a full ring */
+    private static final long FULL_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+    private static final AtomicInteger writerIds = new AtomicInteger();
+
+    private final ApnsConnectionImpl connection;
+    private final ApnsDelegate delegate;
+    private final WaitStrategy waitStrategy;
+    private final MpscRing<ApnsNotification> ring;
+    private final ThreadFactory threadFactory;
+    private final AtomicBoolean writerParked = new AtomicBoolean();
+    // set when the connection has notifications to resend after an error
+    private final AtomicBoolean resendPending = new AtomicBoolean();
+    private volatile boolean writerDone;
+    private final Object startLock = new Object();
+    private volatile Thread writer;
+    private volatile boolean closed;
+
+    private ApnsMetrics metrics = ApnsMetrics.DISABLED;
+    private Histogram batchSizes = metrics.histogram(ApnsMetrics.WRITER_BATCH);
+
+    /**
+     * @param connection    the connection to send with, created with
+     *                      {@link #tracking(ApnsDelegate) tracking(delegate)}
+     * @param delegate      the delegate of the service
+     * @param waitStrategy  how the writer waits for notifications
+     * @param capacity      the number of notifications the ring holds
+     * @param threadFactory creates the writer thread, or null for a default daemon thread
+     */
+    public ApnsSingleWriterConnection(ApnsConnectionImpl connection, ApnsDelegate delegate,
+            WaitStrategy waitStrategy, int capacity, ThreadFactory threadFactory) {
+        this.connection = connection;
+        this.delegate = delegate == null ? ApnsDelegate.EMPTY : delegate;
+        this.waitStrategy = waitStrategy;
+        this.ring = new MpscRing<ApnsNotification>(capacity);
+        this.threadFactory = threadFactory;
+        connection.setResendHandoff(new Runnable() {
+            public void run() {
+                resendPending.set(true);
+                if (writerDone) {
+                    // the writer is gone, so resend on this thread
+                    resendIfPending();
+                } else {
+                    wakeWriter();
+                }
+            }
+        });
+    }
+
+    /**
+     * Sets the registry the writer records its batch sizes into.
+     */
+    public void setMetrics(ApnsMetrics metrics) {
+        this.metrics = metrics == null ? ApnsMetrics.DISABLED : metrics;
+        this.batchSizes = this.metrics.histogram(ApnsMetrics.WRITER_BATCH);
+    }
+
+    public void sendMessage(ApnsNotification m) throws NetworkIOException {
+        if (closed) {
+            throw new NetworkIOException("Connection closed");
+        }
+        ensureWriter();
+        int attempts = 0;
+        while (!ring.offer(m)) {
+            if (closed) {
+                throw new NetworkIOException("Connection closed");
+            }
+            wakeWriter();
+            idle(++attempts, FULL_PARK_NANOS);
+        }
+        wakeWriter();
+    }
+
+    private void ensureWriter() {
+        if (writer != null) {
+            return;
+        }
+        synchronized (startLock) {
+            if (writer == null) {
+                Runnable loop = new Runnable() {
+                    public void run() {
+                        writeLoop();
+                    }
+                };
+                Thread thread;
+                if (threadFactory == null) {
+                    thread = new Thread(loop, "apns-writer-" + writerIds.incrementAndGet());
+                    thread.setDaemon(true);
+                } else {
+                    thread = threadFactory.newThread(loop);
+                }
+                thread.start();
+                writer = thread;
+            }
+        }
+    }
+
+    private void wakeWriter() {
+        if (writerParked.get() && writerParked.compareAndSet(true, false)) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    private void idle(int attempts, long parkNanos) {
+        switch (waitStrategy) {
+        case SPIN:
+            break;
+        case YIELD:
+            Thread.yield();
+            break;
+        default:
+            // spin briefly before giving up the processor
+            if (attempts > 100) {
+                LockSupport.parkNanos(this, parkNanos);
+            }
+            break;
+        }
+    }
+
+    private void writeLoop() {
+        Set<ApnsNotification> settled = TrackingDelegate.startTracking();
+        List<ApnsNotification> batch = new ArrayList<ApnsNotification>();
+        int idle = 0;
+        while (true) {
+            resendIfPending();
+            int maxBatch = Math.max(1, connection.getCacheLength() / 2);
+            if (ring.drainTo(batch, maxBatch) == 0) {
+                if (closed) {
+                    break;
+                }
+                if (waitStrategy == WaitStrategy.PARK && ++idle > 100) {
+                    writerParked.set(true);
+                    // a producer may have published before seeing the flag
+                    if (ring.isEmpty() && !resendPending.get() && !closed) {
+                        LockSupport.parkNanos(this, PARK_NANOS);
+                    }
+                    writerParked.set(false);
+                } else {
+                    idle(++idle, PARK_NANOS);
+                }
+                continue;
+            }
+            idle = 0;
+            batchSizes.record(batch.size());
+            write(batch, settled);
+            batch.clear();
+            settled.clear();
+        }
+
+        // handed over by an error reported while the writer was stopping
+        writerDone = true;
+        resendIfPending();
+
+        // published by producers that raced with close()
+        NetworkIOException closedException = new NetworkIOException("Connection closed");
+        ApnsNotification stranded;
+        while ((stranded = ring.poll()) != null) {
+            delegate.messageSendFailed(stranded, closedException);
+        }
+    }
+
+    private void resendIfPending() {
+        if (resendPending.get() && resendPending.compareAndSet(true, false)) {
+            try {
+                connection.resendBuffered();
+            } catch (RuntimeException e) {
+                logger.warn("Failed resending notifications", e);
+            }
+        }
+    }
+
+    private void write(List<ApnsNotification> batch, Set<ApnsNotification> settled) {
+        try {
+            if (batch.size() == 1) {
+                connection.sendMessage(batch.get(0));
+            } else {
+                connection.sendMessages(batch);
+            }
+        } catch (RuntimeException e) {
+            logger.warn("Failed sending {} notifications", batch.size(), e);
+            for (ApnsNotification m : batch) {
+                if (!settled.contains(m)) {
+                    delegate.messageSendFailed(m, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops accepting notifications, waits for the writer to send those
+     * already published, and closes the wrapped connection.
+     */
+    public void close() {
+        closed = true;
+        Thread current = writer;
+        if (current != null) {
+            LockSupport.unpark(current);
+            try {
+                current.join(TimeUnit.SECONDS.toMillis(10));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        connection.close();
+    }
+
+    public List<Callable<Void>> warmUpTasks() {
+        return connection.warmUpTasks();
+    }
+
+    public ApnsConnection copy() {
+        ApnsSingleWriterConnection copy = new ApnsSingleWriterConnection(connection.copy(), delegate,
+                waitStrategy, ring.capacity(), threadFactory);
+        copy.setMetrics(metrics);
+        return copy;
+    }
+
+    /**
+     * Returns the number of notifications waiting for the writer.
+     */
+    public int getBacklog() {
+        return ring.size();
+    }
+
+    public void testConnection() throws NetworkIOException {
+        connection.testConnection();
+    }
+
+    public void setCacheLength(int cacheLength) {
+        connection.setCacheLength(cacheLength);
+    }
+
+    public int getCacheLength() {
+        return connection.getCacheLength();
+    }
+
+    /**
+     * Wraps the delegate of the service for the connection of a single
+     * writer.
+     */
+    public static ApnsDelegate tracking(ApnsDelegate delegate) {
+        return new TrackingDelegate(delegate == null ? ApnsDelegate.EMPTY : delegate);
+    }
+
+    /**
+     * Forwards every callback, and records on writer threads which
+     * notifications the connection already reported.
+     */
+    static final class TrackingDelegate implements StartSendingApnsDelegate {
+        private static final ThreadLocal<Set<ApnsNotification>> settled = new ThreadLocal<Set<ApnsNotification>>();
+
+        private final ApnsDelegate delegate;
+
+        TrackingDelegate(ApnsDelegate delegate) {
+            this.delegate = delegate;
+        }
+
+        static Set<ApnsNotification> startTracking() {
+            Set<ApnsNotification> set = Collections.newSetFromMap(new IdentityHashMap<ApnsNotification, Boolean>());
+            settled.set(set);
+            return set;
+        }
+
+        private static void settle(ApnsNotification message) {
+            Set<ApnsNotification> set = settled.get();
+            if (set != null) {
+                set.add(message);
+            }
+        }
+
+        public void messageSent(ApnsNotification message, boolean resent) {
+            settle(message);
+            delegate.messageSent(message, resent);
+        }
+
+        public void messageSendFailed(ApnsNotification message, Throwable e) {
+            settle(message);
+            delegate.messageSendFailed(message, e);
+        }
+
+        public void startSending(ApnsNotification message, boolean resent) {
+            if (delegate instanceof StartSendingApnsDelegate) {
+                ((StartSendingApnsDelegate) delegate).startSending(message, resent);
+            }
+        }
+
+        public void connectionClosed(DeliveryError e, int messageIdentifier) {
+            delegate.connectionClosed(e, messageIdentifier);
+        }
+
+        public void cacheLengthExceeded(int newCacheLength) {
+            delegate.cacheLengthExceeded(newCacheLength);
+        }
+
+        public void notificationsResent(int resendCount) {
+            delegate.notificationsResent(resendCount);
+        }
+    }
+}
@@ -0,0 +1,336 @@
+/*
+ *  Copyright 2009, Mahmood Ali.
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are
+ *  met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ *      copyright notice, this list of conditions and the following disclaimer
+ *      in the documentation and/or other materials provided with the
+ *      distribution.
+ *    * Neither the name of Mahmood Ali. nor the names of its
+ *      contributors may be used to endorse or promote products derived from
+ *      this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.apns.internal;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.notnoop.apns.ApnsDelegate;
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.BatchApnsDelegate;
+import com.notnoop.apns.DelegateOverflow;
+import com.notnoop.apns.DeliveryError;
+import com.notnoop.apns.ExpiryAwareApnsDelegate;
+import com.notnoop.apns.StartSendingApnsDelegate;
+import com.notnoop.apns.metrics.ApnsMetrics;
+import com.notnoop.apns.metrics.Counter;
+import com.notnoop.apns.metrics.Gauge;
+
+/**
+ * A delegate that hands the events to a dispatcher thread instead of
+ * calling the wrapped delegate on the sending or monitoring threads, so
+ * that a slow delegate doesn't hold the connection monitor.
+ *
+ * Events are published into a bounded {@link MpscRing} and delivered in
+ * order.  Consecutive sent notifications are delivered as one list if the
+ * wrapped delegate is a {@link BatchApnsDelegate}.  When the ring is full,
+ * the {@link DelegateOverflow} policy applies; with
+ * {@link DelegateOverflow#CALLER_RUNS} the overflowing events overtake
+ * those still in the ring.
+ *
+ * {@code startSending} is still called synchronously, since it must
+ * happen before the notification is written.
+ */
+public class AsyncApnsDelegate implements StartSendingApnsDelegate, ExpiryAwareApnsDelegate, Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(AsyncApnsDelegate.class);
+
+    /** Longest a parked dispatcher sleeps before checking for shutdown */
+    private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    /** How long a publisher parks between checks of a full ring */
+    private static final long FULL_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+    private static final int MAX_BATCH = 1024;
+    private static final AtomicInteger dispatcherIds = new AtomicInteger();
+
+    private static final int SENT = 0, RESENT = 1, FAILED = 2, CLOSED = 3,
+            CACHE_EXCEEDED = 4, RESENDING = 5, EXPIRED = 6;
+
+    private static final class Event {
+        final int kind;
+        final ApnsNotification message;
+        final Throwable cause;
+        final DeliveryError error;
+        final int value;
+
+        Event(int kind, ApnsNotification message, Throwable cause, DeliveryError error, int value) {
+            this.kind = kind;
+            this.message = message;
+            this.cause = cause;
+            this.error = error;
+            this.value = value;
+        }
+    }
+
+    private final ApnsDelegate delegate;
+    private final MpscRing<Event> ring;
+    private final DelegateOverflow overflow;
+    private final ThreadFactory threadFactory;
+    private final AtomicBoolean dispatcherParked = new AtomicBoolean();
+    private final Object startLock = new Object();
+    private volatile Thread dispatcher;
+    private volatile boolean closed;
+
+    private Counter dropped = ApnsMetrics.DISABLED.counter(ApnsMetrics.DELEGATE_DROPPED);
+
+    /**
+     * @param delegate      the delegate to call from the dispatcher thread
+     * @param capacity      the number of events the ring holds
+     * @param overflow      what to do with events when the ring is full
+     * @param threadFactory creates the dispatcher thread, or null for a default daemon thread
+     */
+    public AsyncApnsDelegate(ApnsDelegate delegate, int capacity, DelegateOverflow overflow,
+            ThreadFactory threadFactory) {
+        this.delegate = delegate == null ? ApnsDelegate.EMPTY : delegate;
+        this.ring = new MpscRing<Event>(capacity);
+        this.overflow = overflow;
+        this.threadFactory = threadFactory;
+    }
+
+    /**
+     * Sets the registry the dropped events and the backlog are recorded into.
+     */
+    public void setMetrics(ApnsMetrics metrics) {
+        if (metrics == null) {
+            metrics = ApnsMetrics.DISABLED;
+        }
+        dropped = metrics.counter(ApnsMetrics.DELEGATE_DROPPED);
+        metrics.registerGauge(ApnsMetrics.DELEGATE_BACKLOG, new Gauge() {
+            public long value() {
+                return ring.size();
+            }
+        });
+    }
+
+    public void startSending(ApnsNotification message, boolean resent) {
+        if (delegate instanceof StartSendingApnsDelegate) {
+            ((StartSendingApnsDelegate) delegate).startSending(message, resent);
+        }
+    }
+
+    public void messageSent(ApnsNotification message, boolean resent) {
+        publish(new Event(resent ? RESENT : SENT, message, null, null, 0));
+    }
+
+    public void messageSendFailed(ApnsNotification message, Throwable e) {
+        publish(new Event(FAILED, message, e, null, 0));
+    }
+
+    public void connectionClosed(DeliveryError e, int messageIdentifier) {
+        publish(new Event(CLOSED, null, null, e, messageIdentifier));
+    }
+
+    public void cacheLengthExceeded(int newCacheLength) {
+        publish(new Event(CACHE_EXCEEDED, null, null, null, newCacheLength));
+    }
+
+    public void notificationsResent(int resendCount) {
+        publish(new Event(RESENDING, null, null, null, resendCount));
+    }
+
+    public void messageExpired(ApnsNotification message) {
+        if (delegate instanceof ExpiryAwareApnsDelegate) {
+            publish(new Event(EXPIRED, message, null, null, 0));
+        }
+    }
+
+    private void publish(Event event) {
+        if (closed) {
+            deliver(event);
+            return;
+        }
+        ensureDispatcher();
+        if (!ring.offer(event)) {
+            switch (overflow) {
+            case DROP:
+                dropped.increment();
+                logger.debug("Delegate events buffer full, dropping an event");
+                return;
+            case CALLER_RUNS:
+                deliver(event);
+                return;
+            default:
+                while (!ring.offer(event)) {
+                    if (closed) {
+                        deliver(event);
+                        return;
+                    }
+                    wakeDispatcher();
+                    LockSupport.parkNanos(this, FULL_PARK_NANOS);
+                }
+                break;
+            }
+        }
+        wakeDispatcher();
+    }
+
+    private void ensureDispatcher() {
+        if (dispatcher != null) {
+            return;
+        }
+        synchronized (startLock) {
+            if (dispatcher == null) {
+                Runnable loop = new Runnable() {
+                    public void run() {
+                        dispatchLoop();
+                    }
+                };
+                Thread thread;
+                if (threadFactory == null) {
+                    thread = new Thread(loop, "apns-delegate-" + dispatcherIds.incrementAndGet());
+                    thread.setDaemon(true);
+                } else {
+                    thread = threadFactory.newThread(loop);
+                }
+                thread.start();
+                dispatcher = thread;
+            }
+        }
+    }
+
+    private void wakeDispatcher() {
+        if (dispatcherParked.get() && dispatcherParked.compareAndSet(true, false)) {
+            LockSupport.unpark(dispatcher);
+        }
+    }
+
+    private void dispatchLoop() {
+        List<Event> events = new ArrayList<Event>();
+        List<ApnsNotification> sent = new ArrayList<ApnsNotification>();
+        while (true) {
+            if (ring.drainTo(events, MAX_BATCH) == 0) {
+                if (closed) {
+                    break;
+                }
+                dispatcherParked.set(true);
+                // a publisher may have published before seeing the flag
+                if (ring.isEmpty() && !closed) {
+                    LockSupport.parkNanos(this, PARK_NANOS);
+                }
+                dispatcherParked.set(false);
+                continue;
+            }
+            for (Event event : events) {
+                if (event.kind == SENT) {
+                    sent.add(event.message);
+                } else {
+                    deliverSent(sent);
+                    deliver(event);
+                }
+            }
+            deliverSent(sent);
+            events.clear();
+        }
+
+        // published by threads that raced with close()
+        Event stranded;
+        while ((stranded = ring.poll()) != null) {
+            deliver(stranded);
+        }
+    }
+
+    private void deliverSent(List<ApnsNotification> sent) {
+        if (sent.isEmpty()) {
+            return;
+        }
+        try {
+            if (delegate instanceof BatchApnsDelegate) {
+                ((BatchApnsDelegate) delegate).messagesSent(new ArrayList<ApnsNotification>(sent));
+            } else {
+                for (ApnsNotification message : sent) {
+                    delegate.messageSent(message, false);
+                }
+            }
+        } catch (RuntimeException e) {
+            logger.warn("Delegate failed handling sent notifications", e);
+        }
+        sent.clear();
+    }
+
+    private void deliver(Event event) {
+        try {
+            switch (event.kind) {
+            case SENT:
+            case RESENT:
+                delegate.messageSent(event.message, event.kind == RESENT);
+                break;
+            case FAILED:
+                delegate.messageSendFailed(event.message, event.cause);
+                break;
+            case CLOSED:
+                delegate.connectionClosed(event.error, event.value);
+                break;
+            case CACHE_EXCEEDED:
+                delegate.cacheLengthExceeded(event.value);
+                break;
+            case RESENDING:
+                delegate.notificationsResent(event.value);
+                break;
+            default:
+                ((ExpiryAwareApnsDelegate) delegate).messageExpired(event.message);
+                break;
+            }
+        } catch (RuntimeException e) {
+            logger.warn("Delegate failed handling an event", e);
+        }
+    }
+
+    /**
+     * Returns the number of events waiting for the dispatcher.
+     */
+    public int getBacklog() {
+        return ring.size();
+    }
+
+    /**
+     * Delivers the events already published and stops the dispatcher;
+     * later events are delivered on the calling thread.
+     */
+    public void close() {
+        closed = true;
+        Thread current = dispatcher;
+        if (current != null) {
+            LockSupport.unpark(current);
+            try {
+                current.join(TimeUnit.SECONDS.toMillis(10));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
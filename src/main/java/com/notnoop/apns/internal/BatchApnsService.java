@@ -32,6 +32,8 @@ package com.notnoop.apns.internal;
 
 import static java.util.concurrent.Executors.defaultThreadFactory;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ScheduledExecutorService;
@@ -39,8 +41,13 @@ import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.TraceEvent;
+import com.notnoop.apns.metrics.ApnsMetrics;
+import com.notnoop.apns.metrics.Counter;
+import com.notnoop.apns.metrics.Gauge;
 import com.notnoop.exceptions.NetworkIOException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -66,6 +73,8 @@ public class BatchApnsService extends AbstractApnsService {
 	private long firstMessageArrivedTime; 
 	
 	private ApnsConnection prototype;
+	// the connection opened by the warm-up, taken by the first batch
+	private final AtomicReference<ApnsConnection> warmed = new AtomicReference<ApnsConnection>();
 
 	private Queue<ApnsNotification> batch = new ConcurrentLinkedQueue<ApnsNotification>();
 
@@ -74,6 +83,10 @@ public class BatchApnsService extends AbstractApnsService {
 
 	private Runnable batchRunner = new SendMessagesBatch();
 
+	private Counter flushCounter = ApnsMetrics.DISABLED.counter(ApnsMetrics.BATCH_FLUSHES);
+	private NotificationTracer tracer = NotificationTracer.DISABLED;
+	private ExpiryFilter expiryFilter;
+
     public BatchApnsService(ApnsConnection prototype, ApnsFeedbackConnection feedback, int batchWaitTimeInSec, int maxBachWaitTimeInSec, ThreadFactory tf) {
         this(prototype, feedback, batchWaitTimeInSec, maxBachWaitTimeInSec,
                 new ScheduledThreadPoolExecutor(1,
@@ -88,16 +101,57 @@ public class BatchApnsService extends AbstractApnsService {
 		this.scheduleService = executor != null ? executor : new ScheduledThreadPoolExecutor(1, defaultThreadFactory());
 	}
 
+	/**
+	 * Sets the registry this service records its metrics into.
+	 */
+	@Override
+	public void setMetrics(ApnsMetrics metrics) {
+		if (metrics == null) {
+			metrics = ApnsMetrics.DISABLED;
+		}
+		super.setMetrics(metrics);
+		flushCounter = metrics.counter(ApnsMetrics.BATCH_FLUSHES);
+		metrics.registerGauge(ApnsMetrics.BATCH_DEPTH, new Gauge() {
+			public long value() {
+				return batch.size();
+			}
+		});
+	}
+
+	/**
+	 * Sets the tracer reporting the sampled notifications entering the batch.
+	 */
+	public void setTracer(NotificationTracer tracer) {
+		this.tracer = tracer == null ? NotificationTracer.DISABLED : tracer;
+	}
+
+	/**
+	 * Sets the filter dropping the expired notifications instead of
+	 * sending them when the batch is flushed.
+	 */
+	public void setExpiryFilter(ExpiryFilter expiryFilter) {
+		this.expiryFilter = expiryFilter;
+	}
+
 	public void start() {
-		// no code
+		if (!isWarmUpEnabled()) {
+			return;
+		}
+		// batches send on copies of the prototype, so warm the copy the first one uses
+		ApnsConnection first = prototype.copy();
+		warmUp(first);
+		warmed.set(first);
 	}
 
 	public void stop() {
+		Utilities.close(warmed.getAndSet(null));
 		Utilities.close(prototype);
 		if (taskFuture != null) {
 			taskFuture.cancel(true);
 		}
 		scheduleService.shutdownNow();
+		shutdownRetryScheduler();
+		closeDelegateDispatcher();
 	}
 
 	public void testConnection() throws NetworkIOException {
@@ -117,6 +171,7 @@ public class BatchApnsService extends AbstractApnsService {
 		}
 		
 		batch.add(message);
+		tracer.trace(TraceEvent.QUEUED, message, -1);
 		
 		if (taskFuture == null || taskFuture.isDone()) {
 			taskFuture = scheduleService.schedule(batchRunner, batchWaitTimeInSec, TimeUnit.SECONDS);
@@ -125,19 +180,46 @@ public class BatchApnsService extends AbstractApnsService {
 
 	class SendMessagesBatch implements Runnable {
 		public void run() {
-			ApnsConnection newConnection = prototype.copy();
+			ApnsConnection newConnection = warmed.getAndSet(null);
+			if (newConnection == null) {
+				newConnection = prototype.copy();
+			}
+			flushCounter.increment();
 			try {
+				if (newConnection instanceof ApnsConnectionImpl) {
+					sendPacked((ApnsConnectionImpl) newConnection);
+					return;
+				}
 				ApnsNotification msg;
 				while ((msg = batch.poll()) != null) {
+					if (expiryFilter != null && expiryFilter.dropIfExpired(msg, -1)) {
+						continue;
+					}
 					try {
 						newConnection.sendMessage(msg);
 					} catch (NetworkIOException e) {
-                        logger.warn("Network exception sending message msg "+ msg.getIdentifier(), e);
+                        logger.warn("Network exception sending message msg {}", msg.getIdentifier(), e);
                     }
 				}
 			} finally {
-				Utilities.close(newConnection);
+				if (newConnection instanceof ApnsConnectionImpl) {
+					// the retry scheduler may still hold writes for this connection
+					((ApnsConnectionImpl) newConnection).closeAfterRetries();
+				} else {
+					Utilities.close(newConnection);
+				}
+			}
+		}
+
+		private void sendPacked(ApnsConnectionImpl connection) {
+			List<ApnsNotification> messages = new ArrayList<ApnsNotification>(batch.size());
+			ApnsNotification msg;
+			while ((msg = batch.poll()) != null) {
+				if (expiryFilter == null || !expiryFilter.dropIfExpired(msg, -1)) {
+					messages.add(msg);
+				}
 			}
+			connection.sendMessages(messages);
 		}
 	}
 }
@@ -0,0 +1,252 @@
+/*
+ *  Copyright 2009, Mahmood Ali.
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are
+ *  met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ *      copyright notice, this list of conditions and the following disclaimer
+ *      in the documentation and/or other materials provided with the
+ *      distribution.
+ *    * Neither the name of Mahmood Ali. nor the names of its
+ *      contributors may be used to endorse or promote products derived from
+ *      this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.apns.internal;
+
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.notnoop.apns.ApnsDelegate;
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.ApnsService;
+import com.notnoop.exceptions.CircuitOpenException;
+import com.notnoop.exceptions.NetworkIOException;
+
+/**
+ * Stops pushing to an unreachable gateway after consecutive network
+ * failures, instead of paying for doomed connect attempts and retries on
+ * every notification.
+ *
+ * The breaker is {@link State#CLOSED closed} while pushes succeed.  After
+ * {@code failureThreshold} consecutive {@link NetworkIOException}s it
+ * {@link State#OPEN opens}: notifications are buffered, up to
+ * {@code bufferSize}, or rejected with a {@link CircuitOpenException}.
+ * Once {@code openTime} has passed, the breaker moves to
+ * {@link State#HALF_OPEN half-open} and probes the gateway with
+ * {@link ApnsService#testConnection()}, on the next push or from a
+ * background thread once the service is started.  A successful probe
+ * closes the breaker and sends the buffered notifications; a failed one
+ * opens it again.
+ *
+ * Rejected notifications, buffered ones that fail to be sent, and those
+ * still buffered when the service stops are reported to the delegate, as
+ * the breaker usually runs on a queue thread that drops exceptions.
+ */
+public class CircuitBreakerApnsService extends AbstractApnsService {
+    private static final Logger logger = LoggerFactory.getLogger(CircuitBreakerApnsService.class);
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final ApnsService service;
+    private final int failureThreshold;
+    private final long openTime;
+    private final BlockingQueue<ApnsNotification> buffer;
+
+    private final AtomicReference<State> state = new AtomicReference<State>(State.CLOSED);
+    private final AtomicInteger failures = new AtomicInteger();
+    private volatile long openedAt;
+    private ApnsDelegate delegate = ApnsDelegate.EMPTY;
+    private ScheduledExecutorService prober;
+
+    /**
+     * @param service           the service to protect
+     * @param failureThreshold  the consecutive failures opening the breaker
+     * @param openTime          the time to stay open before probing
+     * @param unit              the unit of {@code openTime}
+     * @param bufferSize        the notifications to keep while open, 0 to reject them
+     */
+    public CircuitBreakerApnsService(ApnsService service, int failureThreshold, long openTime, TimeUnit unit,
+            int bufferSize) {
+        super(null);
+        if (failureThreshold < 1 || openTime < 0 || bufferSize < 0) {
+            throw new IllegalArgumentException("Expected failureThreshold > 0, openTime >= 0 and bufferSize >= 0");
+        }
+        this.service = service;
+        this.failureThreshold = failureThreshold;
+        this.openTime = unit.toMillis(openTime);
+        this.buffer = bufferSize > 0 ? new LinkedBlockingQueue<ApnsNotification>(bufferSize) : null;
+    }
+
+    /**
+     * Sets the delegate told about the notifications the breaker rejects
+     * or fails to send from its buffer.
+     */
+    public void setDelegate(ApnsDelegate delegate) {
+        this.delegate = delegate == null ? ApnsDelegate.EMPTY : delegate;
+    }
+
+    public State getState() {
+        return state.get();
+    }
+
+    @Override
+    public void push(ApnsNotification message) throws NetworkIOException {
+        if (state.get() != State.CLOSED && !probe(false)) {
+            if (buffer == null || !buffer.offer(message)) {
+                CircuitOpenException e = new CircuitOpenException("Circuit breaker is open, not sending " + message);
+                delegate.messageSendFailed(message, e);
+                throw e;
+            }
+            if (state.get() == State.CLOSED) {
+                // closed while buffering, after the flush
+                flush();
+            }
+            return;
+        }
+        send(message);
+    }
+
+    private void send(ApnsNotification message) throws NetworkIOException {
+        try {
+            service.push(message);
+        } catch (NetworkIOException e) {
+            failed();
+            throw e;
+        }
+        failures.set(0);
+    }
+
+    private void failed() {
+        if (failures.incrementAndGet() >= failureThreshold && state.compareAndSet(State.CLOSED, State.OPEN)) {
+            openedAt = CoarseClock.currentTimeMillis();
+            logger.warn("Circuit breaker opened after {} consecutive network failures", failureThreshold);
+            scheduleProbe();
+        }
+    }
+
+    private synchronized void scheduleProbe() {
+        if (prober == null) {
+            return;
+        }
+        prober.schedule(new Runnable() {
+            public void run() {
+                probe(true);
+            }
+        }, openTime, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Probes the gateway if the breaker has been open long enough and no
+     * other thread is probing.
+     *
+     * @param due   whether the open time is known to have passed, as for
+     *              the scheduled probes, which the coarse clock may lag
+     * @return true if the breaker is closed again
+     */
+    private boolean probe(boolean due) {
+        if (!due && CoarseClock.currentTimeMillis() - openedAt < openTime
+                || !state.compareAndSet(State.OPEN, State.HALF_OPEN)) {
+            return state.get() == State.CLOSED;
+        }
+        try {
+            service.testConnection();
+        } catch (NetworkIOException e) {
+            logger.debug("Circuit breaker probe failed", e);
+            openedAt = CoarseClock.currentTimeMillis();
+            state.set(State.OPEN);
+            scheduleProbe();
+            return false;
+        }
+        logger.info("Circuit breaker closed after a successful probe");
+        failures.set(0);
+        state.set(State.CLOSED);
+        flush();
+        return true;
+    }
+
+    private void flush() {
+        if (buffer == null) {
+            return;
+        }
+        ApnsNotification message;
+        while (state.get() == State.CLOSED && (message = buffer.poll()) != null) {
+            try {
+                send(message);
+            } catch (NetworkIOException e) {
+                logger.warn("Failed to send buffered notification {}", message, e);
+                delegate.messageSendFailed(message, e);
+            }
+        }
+    }
+
+    public void start() {
+        synchronized (this) {
+            prober = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "apns-circuit-breaker");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        service.start();
+        if (state.get() != State.CLOSED) {
+            scheduleProbe();
+        }
+    }
+
+    public void stop() {
+        synchronized (this) {
+            if (prober != null) {
+                prober.shutdownNow();
+                prober = null;
+            }
+        }
+        if (buffer != null) {
+            flush();
+            ApnsNotification message;
+            while ((message = buffer.poll()) != null) {
+                delegate.messageSendFailed(message,
+                        new CircuitOpenException("Circuit breaker was open when the service stopped"));
+            }
+        }
+        service.stop();
+    }
+
+    @Override
+    public Map<String, Date> getInactiveDevices() throws NetworkIOException {
+        return service.getInactiveDevices();
+    }
+
+    public void testConnection() throws NetworkIOException {
+        service.testConnection();
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ *  Copyright 2009, Mahmood Ali.
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are
+ *  met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ *      copyright notice, this list of conditions and the following disclaimer
+ *      in the documentation and/or other materials provided with the
+ *      distribution.
+ *    * Neither the name of Mahmood Ali. nor the names of its
+ *      contributors may be used to endorse or promote products derived from
+ *      this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.apns.internal;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A millisecond clock with a resolution of {@value #RESOLUTION_MS}ms that
+ * is cheap enough to read on every send.
+ *
+ * A single daemon thread, started by the first read and kept for the
+ * lifetime of the process, refreshes a volatile field; reading the clock
+ * is a plain volatile read.  After {@value #IDLE_MS}ms without reads the
+ * thread parks instead of ticking, so an idle process doesn't keep waking
+ * up for it; the next read refreshes the time itself and unparks it.
+ */
+public final class CoarseClock {
+    static final long RESOLUTION_MS = 10;
+    static final long IDLE_MS = 1000;
+
+    private static volatile long now = System.currentTimeMillis();
+    // written once, under CoarseClock.class
+    private static volatile Thread ticker;
+    // set by the ticker before it parks, cleared by whoever wakes it
+    private static volatile boolean parked;
+    // set by the readers once per tick, cleared by the ticker
+    private static volatile boolean read;
+
+    private CoarseClock() { }
+
+    /**
+     * Returns the current time in milliseconds, at most
+     * {@value #RESOLUTION_MS}ms behind {@link System#currentTimeMillis()}.
+     */
+    public static long currentTimeMillis() {
+        if (ticker == null) {
+            start();
+        }
+        if (!read) {
+            // the ticker sets parked before checking read, so either it
+            // sees this read or this read sees it parked
+            read = true;
+            if (parked) {
+                wake();
+            }
+        }
+        return now;
+    }
+
+    private static synchronized void start() {
+        if (ticker != null) {
+            return;
+        }
+        now = System.currentTimeMillis();
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                tick();
+            }
+        }, "apns-coarse-clock");
+        thread.setDaemon(true);
+        thread.start();
+        ticker = thread;
+    }
+
+    private static void wake() {
+        now = System.currentTimeMillis();
+        parked = false;
+        LockSupport.unpark(ticker);
+    }
+
+    /** Returns the ticker thread, or null if the clock was never read. */
+    static Thread ticker() {
+        return ticker;
+    }
+
+    private static void tick() {
+        long idle = 0;
+        while (true) {
+            try {
+                Thread.sleep(RESOLUTION_MS);
+            } catch (InterruptedException e) {
+                // keep ticking: the clock is shared by every connection
+            }
+            now = System.currentTimeMillis();
+            if (read) {
+                read = false;
+                idle = 0;
+            } else if ((idle += RESOLUTION_MS) >= IDLE_MS) {
+                parked = true;
+                if (read) {
+                    parked = false;
+                } else {
+                    while (parked) {
+                        LockSupport.park(CoarseClock.class);
+                        // an interrupt would make park return at once
+                        Thread.interrupted();
+                    }
+                }
+                idle = 0;
+            }
+        }
+    }
+}
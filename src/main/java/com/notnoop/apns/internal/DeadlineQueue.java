@@ -0,0 +1,151 @@
+/*
+ *  Copyright 2009, Mahmood Ali.
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are
+ *  met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ *      copyright notice, this list of conditions and the following disclaimer
+ *      in the documentation and/or other materials provided with the
+ *      distribution.
+ *    * Neither the name of Mahmood Ali. nor the names of its
+ *      contributors may be used to endorse or promote products derived from
+ *      this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.apns.internal;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.notnoop.apns.ApnsNotification;
+
+/**
+ * An unbounded blocking queue handing out the notifications that expire
+ * first (earliest deadline first), and notifications with the same expiry
+ * in the order they were added.
+ *
+ * Notifications with an expiry of 0, which the gateway only tries to
+ * deliver once, come first; notifications without an expiry come last.
+ */
+public class DeadlineQueue extends AbstractQueue<ApnsNotification> implements BlockingQueue<ApnsNotification> {
+    private final PriorityBlockingQueue<Entry> entries = new PriorityBlockingQueue<Entry>();
+    private final AtomicLong sequence = new AtomicLong();
+
+    private static final class Entry implements Comparable<Entry> {
+        final ApnsNotification notification;
+        final long deadline;
+        final long seq;
+
+        Entry(ApnsNotification notification, long seq) {
+            int expiry = notification.getExpiry();
+            this.notification = notification;
+            this.deadline = expiry < 0 ? Long.MAX_VALUE : expiry;
+            this.seq = seq;
+        }
+
+        public int compareTo(Entry other) {
+            if (deadline != other.deadline) {
+                return deadline < other.deadline ? -1 : 1;
+            }
+            return seq < other.seq ? -1 : (seq == other.seq ? 0 : 1);
+        }
+    }
+
+    private static ApnsNotification unwrap(Entry entry) {
+        return entry == null ? null : entry.notification;
+    }
+
+    public boolean offer(ApnsNotification notification) {
+        if (notification == null) {
+            throw new NullPointerException();
+        }
+        return entries.offer(new Entry(notification, sequence.getAndIncrement()));
+    }
+
+    public void put(ApnsNotification notification) {
+        offer(notification);
+    }
+
+    public boolean offer(ApnsNotification notification, long timeout, TimeUnit unit) {
+        return offer(notification);
+    }
+
+    public ApnsNotification poll() {
+        return unwrap(entries.poll());
+    }
+
+    public ApnsNotification take() throws InterruptedException {
+        return entries.take().notification;
+    }
+
+    public ApnsNotification poll(long timeout, TimeUnit unit) throws InterruptedException {
+        return unwrap(entries.poll(timeout, unit));
+    }
+
+    public ApnsNotification peek() {
+        return unwrap(entries.peek());
+    }
+
+    @Override
+    public int size() {
+        return entries.size();
+    }
+
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    public int drainTo(Collection<? super ApnsNotification> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    public int drainTo(Collection<? super ApnsNotification> c, int maxElements) {
+        if (c == this) {
+            throw new IllegalArgumentException();
+        }
+        int n = 0;
+        Entry entry;
+        while (n < maxElements && (entry = entries.poll()) != null) {
+            c.add(entry.notification);
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Returns an iterator over a snapshot of the queue, in no particular
+     * order.
+     */
+    @Override
+    public Iterator<ApnsNotification> iterator() {
+        List<ApnsNotification> snapshot = new ArrayList<ApnsNotification>(entries.size());
+        for (Entry entry : entries) {
+            snapshot.add(entry.notification);
+        }
+        return Collections.unmodifiableList(snapshot).iterator();
+    }
+}
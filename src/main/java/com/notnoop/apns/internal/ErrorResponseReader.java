@@ -0,0 +1,279 @@
+/*
+ *  Copyright 2009, Mahmood Ali.
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are
+ *  met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ *      copyright notice, this list of conditions and the following disclaimer
+ *      in the documentation and/or other materials provided with the
+ *      distribution.
+ *    * Neither the name of Mahmood Ali. nor the names of its
+ *      contributors may be used to endorse or promote products derived from
+ *      this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.apns.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Watches many gateway sockets for the 6-byte error-response packet with
+ * a fixed number of threads, instead of a monitoring thread per socket.
+ *
+ * TLS sockets can't be registered with a selector, so each reader thread
+ * polls the plain TCP socket below the TLS layer for readable bytes and
+ * only then reads from the TLS socket, with a short read timeout.  Every
+ * second a socket is also read without readable bytes, to notice when
+ * the gateway closed it.
+ *
+ * Once a socket delivered an error-response, failed or was closed, it is
+ * no longer watched, and its owning connection is notified on one of the
+ * recovery threads, so that resending doesn't hold up the readers.
+ *
+ * Threads are started on demand and exit after a minute without work.
+ */
+public class ErrorResponseReader {
+    private static final Logger logger = LoggerFactory.getLogger(ErrorResponseReader.class);
+
+    static final int PACKET_SIZE = 6;
+    static final long POLL_INTERVAL_MS = 10;
+    static final long PROBE_INTERVAL_MS = 1000;
+    static final int READ_TIMEOUT_MS = 1;
+    /** Idle threads exit after this time, and are restarted on demand */
+    static final long IDLE_SECONDS = 60;
+
+    /**
+     * Notified when a watched socket stops being watched.
+     */
+    interface Listener {
+        /**
+         * Called on a recovery thread once the socket is no longer watched.
+         *
+         * @param socket    the TLS socket that was watched
+         * @param packet    the error-response packet, or null if none was read
+         * @param failure   the read failure, or null if the socket was closed
+         *                  or delivered an error-response
+         */
+        void stopped(Socket socket, byte[] packet, IOException failure);
+    }
+
+    private final Worker[] workers;
+    private final ThreadFactory threadFactory;
+    private final ExecutorService recovery;
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * @param threads       the number of reader threads, and of recovery threads
+     * @param threadFactory the factory creating both, or null for daemon threads
+     */
+    public ErrorResponseReader(int threads, ThreadFactory threadFactory) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be positive: " + threads);
+        }
+        this.threadFactory = threadFactory == null ? defaultThreadFactory() : threadFactory;
+        ThreadPoolExecutor recoveryPool = new ThreadPoolExecutor(threads, threads, IDLE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), this.threadFactory);
+        recoveryPool.allowCoreThreadTimeOut(true);
+        this.recovery = recoveryPool;
+        this.workers = new Worker[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Worker();
+        }
+    }
+
+    private static ThreadFactory defaultThreadFactory() {
+        return new ThreadFactory() {
+            private final ThreadFactory wrapped = Executors.defaultThreadFactory();
+            private final AtomicInteger id = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread result = wrapped.newThread(r);
+                result.setName("ErrorResponseReader-" + id.incrementAndGet());
+                result.setDaemon(true);
+                return result;
+            }
+        };
+    }
+
+    /**
+     * Starts watching a TLS socket.
+     *
+     * @param raw       the plain TCP socket the TLS socket is layered over
+     * @param socket    the TLS socket to read the error-response from
+     * @param listener  notified when the socket is no longer watched
+     * @throws IOException if the read timeout can't be set
+     */
+    void watch(Socket raw, Socket socket, Listener listener) throws IOException {
+        socket.setSoTimeout(READ_TIMEOUT_MS);
+        Watched watched = new Watched(raw.getInputStream(), socket, socket.getInputStream(), listener);
+        workers[(next.getAndIncrement() & Integer.MAX_VALUE) % workers.length].add(watched);
+    }
+
+    /**
+     * Stops the reader and recovery threads.  Sockets still being watched
+     * are left open.
+     */
+    public void shutdown() {
+        for (Worker worker : workers) {
+            worker.stop();
+        }
+        recovery.shutdown();
+    }
+
+    private void stopped(final Watched watched, final byte[] packet, final IOException failure) {
+        recovery.execute(new Runnable() {
+            public void run() {
+                watched.listener.stopped(watched.socket, packet, failure);
+            }
+        });
+    }
+
+    private static final class Watched {
+        final InputStream rawIn;
+        final Socket socket;
+        final InputStream in;
+        final Listener listener;
+        final byte[] packet = new byte[PACKET_SIZE];
+        int length;
+        long nextProbe;
+
+        Watched(InputStream rawIn, Socket socket, InputStream in, Listener listener) {
+            this.rawIn = rawIn;
+            this.socket = socket;
+            this.in = in;
+            this.listener = listener;
+            this.nextProbe = CoarseClock.currentTimeMillis() + PROBE_INTERVAL_MS;
+        }
+    }
+
+    private final class Worker implements Runnable {
+        private final BlockingQueue<Watched> added = new LinkedBlockingQueue<Watched>();
+        private final List<Watched> watched = new ArrayList<Watched>();
+        private Thread thread;
+        private boolean stopped;
+
+        synchronized void add(Watched w) {
+            if (stopped) {
+                throw new IllegalStateException("ErrorResponseReader was shut down");
+            }
+            added.add(w);
+            if (thread == null) {
+                thread = threadFactory.newThread(this);
+                thread.start();
+            }
+        }
+
+        private synchronized boolean exitIfIdle() {
+            if (!added.isEmpty()) {
+                return false;
+            }
+            thread = null;
+            logger.debug("Stopped idle error-response reader");
+            return true;
+        }
+
+        synchronized void stop() {
+            stopped = true;
+            if (thread != null) {
+                thread.interrupt();
+            }
+        }
+
+        public void run() {
+            logger.debug("Started error-response reader");
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    if (watched.isEmpty()) {
+                        Watched w = added.poll(IDLE_SECONDS, TimeUnit.SECONDS);
+                        if (w == null && exitIfIdle()) {
+                            return;
+                        }
+                        if (w != null) {
+                            watched.add(w);
+                        }
+                    }
+                    added.drainTo(watched);
+                    for (Iterator<Watched> it = watched.iterator(); it.hasNext(); ) {
+                        if (!poll(it.next())) {
+                            it.remove();
+                        }
+                    }
+                    Thread.sleep(POLL_INTERVAL_MS);
+                }
+            } catch (InterruptedException e) {
+                // shutting down
+            }
+            logger.debug("Stopped error-response reader");
+        }
+
+        /**
+         * Reads what's available from the socket.
+         *
+         * @return false if the socket should no longer be watched
+         */
+        private boolean poll(Watched w) {
+            if (w.socket.isClosed()) {
+                stopped(w, null, null);
+                return false;
+            }
+            try {
+                long now = CoarseClock.currentTimeMillis();
+                if (w.rawIn.available() == 0 && now < w.nextProbe) {
+                    return true;
+                }
+                w.nextProbe = now + PROBE_INTERVAL_MS;
+                int count = w.in.read(w.packet, w.length, PACKET_SIZE - w.length);
+                if (count < 0) {
+                    stopped(w, null, w.length == 0 ? null
+                            : new IOException("EOF after reading " + w.length + " bytes of new packet."));
+                    return false;
+                }
+                w.length += count;
+                if (w.length == PACKET_SIZE) {
+                    stopped(w, w.packet, null);
+                    return false;
+                }
+                return true;
+            } catch (SocketTimeoutException e) {
+                return true;
+            } catch (IOException e) {
+                stopped(w, null, w.length == 0 ? null
+                        : new IOException("Error after reading " + w.length + " bytes of packet", e));
+                return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ *  Copyright 2009, Mahmood Ali.
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are
+ *  met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ *      copyright notice, this list of conditions and the following disclaimer
+ *      in the documentation and/or other materials provided with the
+ *      distribution.
+ *    * Neither the name of Mahmood Ali. nor the names of its
+ *      contributors may be used to endorse or promote products derived from
+ *      this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.apns.internal;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.notnoop.apns.ApnsDelegate;
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.ExpiryAwareApnsDelegate;
+import com.notnoop.apns.TraceEvent;
+import com.notnoop.apns.metrics.ApnsMetrics;
+import com.notnoop.apns.metrics.Counter;
+
+/**
+ * Drops the notifications whose expiry date has passed, which the gateway
+ * would discard anyway, before they are sent from a queue or a batch, or
+ * resent after an error-response.
+ *
+ * Notifications without an expiry, and those with an expiry of 0 (deliver
+ * once, right away), are never dropped.  The expiry is checked against
+ * {@link CoarseClock}, so that filtering doesn't cost a system call per
+ * notification.
+ */
+public class ExpiryFilter {
+    private static final Logger logger = LoggerFactory.getLogger(ExpiryFilter.class);
+
+    private final ApnsDelegate delegate;
+    private Counter expiredCounter = ApnsMetrics.DISABLED.counter(ApnsMetrics.EXPIRED);
+    private NotificationTracer tracer = NotificationTracer.DISABLED;
+
+    public ExpiryFilter(ApnsDelegate delegate) {
+        this.delegate = delegate == null ? ApnsDelegate.EMPTY : delegate;
+    }
+
+    /**
+     * Sets the registry the dropped notifications are counted in.
+     */
+    public void setMetrics(ApnsMetrics metrics) {
+        this.expiredCounter = (metrics == null ? ApnsMetrics.DISABLED : metrics).counter(ApnsMetrics.EXPIRED);
+    }
+
+    /**
+     * Sets the tracer reporting the sampled notifications dropped.
+     */
+    public void setTracer(NotificationTracer tracer) {
+        this.tracer = tracer == null ? NotificationTracer.DISABLED : tracer;
+    }
+
+    /**
+     * Returns whether the notification expired at the given time.
+     *
+     * @param notification  the notification
+     * @param nowMillis     the current time, in milliseconds since epoch
+     */
+    public static boolean isExpired(ApnsNotification notification, long nowMillis) {
+        int expiry = notification.getExpiry();
+        return expiry > 0 && expiry < nowMillis / 1000;
+    }
+
+    /**
+     * Reports the notification as dropped if it expired.
+     *
+     * @param notification  the notification about to be sent
+     * @param connectionId  the id of the connection about to send it, or -1
+     * @return whether the notification expired, and must not be sent
+     */
+    public boolean dropIfExpired(ApnsNotification notification, int connectionId) {
+        if (!isExpired(notification, CoarseClock.currentTimeMillis())) {
+            return false;
+        }
+        logger.debug("Dropping expired message {}", notification.getIdentifier());
+        expiredCounter.increment();
+        tracer.trace(TraceEvent.EXPIRED, notification, connectionId);
+        if (delegate instanceof ExpiryAwareApnsDelegate) {
+            ((ExpiryAwareApnsDelegate) delegate).messageExpired(notification);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ *  Copyright 2009, Mahmood Ali.
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are
+ *  met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ *      copyright notice, this list of conditions and the following disclaimer
+ *      in the documentation and/or other materials provided with the
+ *      distribution.
+ *    * Neither the name of Mahmood Ali. nor the names of its
+ *      contributors may be used to endorse or promote products derived from
+ *      this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.apns.internal;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Remembers the device tokens known to be invalid, from the gateway's
+ * {@code INVALID_TOKEN} error-responses and from the feedback service, so
+ * that notifications to them are dropped instead of costing a disconnect,
+ * a handshake and a resend of the notifications sent after them.
+ *
+ * Lookups first go through a Bloom filter, which rules out the vast
+ * majority of valid tokens with a few bit tests and no allocation; the
+ * tokens it can't rule out are confirmed against an exact set, so a valid
+ * token is never dropped.  Tokens are forgotten after a time to live, in
+ * case the device registered again, or when {@link #remove removed}.
+ *
+ * Adding a token sweeps the expired ones out of the exact set once per
+ * half time to live, and rebuilds the Bloom filter from the remaining
+ * tokens, so a filter fed by the feedback service doesn't fill up.
+ */
+public class InvalidTokenFilter {
+    private static final int HASHES = 7;
+    private static final int BITS_PER_TOKEN = 10;
+
+    private final int words;
+    private final long bitCount;
+    private final long ttl;
+    private volatile AtomicLongArray bits;
+    private final ConcurrentMap<Token, Long> tokens = new ConcurrentHashMap<Token, Long>();
+    private final AtomicLong lastSweep;
+
+    /**
+     * @param expectedTokens    the number of invalid tokens the Bloom filter
+     *                          is sized for; more are still remembered, but
+     *                          cost more exact lookups
+     * @param ttlMillis         how long a token is considered invalid
+     */
+    public InvalidTokenFilter(int expectedTokens, long ttlMillis) {
+        if (expectedTokens < 1 || ttlMillis <= 0) {
+            throw new IllegalArgumentException("Expected tokens and time to live must be positive");
+        }
+        this.words = (int) Math.min(Integer.MAX_VALUE, ((long) expectedTokens * BITS_PER_TOKEN + 63) / 64);
+        this.bits = new AtomicLongArray(words);
+        this.bitCount = (long) words * 64;
+        this.ttl = ttlMillis;
+        this.lastSweep = new AtomicLong(CoarseClock.currentTimeMillis());
+    }
+
+    private static final class Token {
+        final byte[] bytes;
+        final int hash;
+
+        Token(byte[] bytes) {
+            this.bytes = bytes;
+            this.hash = Arrays.hashCode(bytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Token && Arrays.equals(bytes, ((Token) o).bytes);
+        }
+    }
+
+    /** 64-bit FNV-1a, with a final avalanche so both halves are usable */
+    private static long hash(byte[] token) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : token) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private long bitOf(long hash, int i) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        long combined = (h1 + (long) i * h2) & Long.MAX_VALUE;
+        return combined % bitCount;
+    }
+
+    /**
+     * Remembers the token as invalid.
+     */
+    public void add(byte[] token) {
+        add(token, CoarseClock.currentTimeMillis());
+    }
+
+    void add(byte[] token, long now) {
+        // in the exact set first: a concurrent rebuild then sets its bits
+        tokens.put(new Token(token.clone()), now);
+        setBits(bits, token);
+
+        long last = lastSweep.get();
+        if (now - last >= ttl / 2 && lastSweep.compareAndSet(last, now)) {
+            sweep(now);
+        }
+    }
+
+    private void setBits(AtomicLongArray target, byte[] token) {
+        long hash = hash(token);
+        for (int i = 0; i < HASHES; i++) {
+            long bit = bitOf(hash, i);
+            int word = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            long current;
+            while (((current = target.get(word)) & mask) == 0
+                    && !target.compareAndSet(word, current, current | mask)) {
+                // retry
+            }
+        }
+    }
+
+    /**
+     * Forgets the tokens whose time to live passed, and rebuilds the Bloom
+     * filter without them.
+     */
+    void sweep(long now) {
+        boolean removed = false;
+        for (Iterator<Map.Entry<Token, Long>> it = tokens.entrySet().iterator(); it.hasNext();) {
+            if (now - it.next().getValue() > ttl) {
+                it.remove();
+                removed = true;
+            }
+        }
+        if (!removed) {
+            return;
+        }
+        AtomicLongArray rebuilt = new AtomicLongArray(words);
+        for (Token token : tokens.keySet()) {
+            setBits(rebuilt, token.bytes);
+        }
+        bits = rebuilt;
+        // tokens added while rebuilding may have set their bits in the old array
+        for (Token token : tokens.keySet()) {
+            setBits(rebuilt, token.bytes);
+        }
+    }
+
+    /**
+     * Remembers the hex-encoded tokens reported by the feedback service as
+     * invalid.
+     */
+    public void addAll(Iterable<String> hexTokens) {
+        for (String token : hexTokens) {
+            add(Utilities.decodeHex(token));
+        }
+    }
+
+    /**
+     * Forgets the token, e.g. when the device registered it again.
+     */
+    public void remove(byte[] token) {
+        tokens.remove(new Token(token));
+    }
+
+    /**
+     * Returns whether the token is known to be invalid.
+     */
+    public boolean contains(byte[] token) {
+        return contains(token, CoarseClock.currentTimeMillis());
+    }
+
+    boolean contains(byte[] token, long now) {
+        AtomicLongArray bits = this.bits;
+        long hash = hash(token);
+        for (int i = 0; i < HASHES; i++) {
+            long bit = bitOf(hash, i);
+            if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        Token key = new Token(token);
+        Long added = tokens.get(key);
+        if (added == null) {
+            return false;
+        }
+        if (now - added > ttl) {
+            tokens.remove(key, added);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of tokens remembered, including the expired ones
+     * not swept or looked up since.
+     */
+    public int size() {
+        return tokens.size();
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ *  Copyright 2009, Mahmood Ali.
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are
+ *  met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ *      copyright notice, this list of conditions and the following disclaimer
+ *      in the documentation and/or other materials provided with the
+ *      distribution.
+ *    * Neither the name of Mahmood Ali. nor the names of its
+ *      contributors may be used to endorse or promote products derived from
+ *      this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.apns.internal;
+
+import java.nio.charset.Charset;
+
+import com.notnoop.apns.ApnsNotification;
+
+/**
+ * A notification replayed from a {@link NotificationJournal}, sent as the
+ * frame that was originally marshalled.  The device token and payload are
+ * only extracted from the frame when asked for.
+ */
+final class JournaledNotification implements ApnsNotification {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final int identifier;
+    private final int expiry;
+    private final byte[] frame;
+
+    JournaledNotification(int identifier, int expiry, byte[] frame) {
+        this.identifier = identifier;
+        this.expiry = expiry;
+        this.frame = frame;
+    }
+
+    /** Offset of the device token length in the frame. */
+    private int tokenOffset() {
+        if (frame[0] == Utilities.FRAME_COMMAND) {
+            return itemOffset(Utilities.ITEM_DEVICE_TOKEN);
+        }
+        // the simple format (command 0) has no identifier and expiry
+        return frame[0] == 0 ? 1 : 9;
+    }
+
+    /** Offset of the payload length in the frame. */
+    private int payloadOffset() {
+        if (frame[0] == Utilities.FRAME_COMMAND) {
+            return itemOffset(Utilities.ITEM_PAYLOAD);
+        }
+        int offset = tokenOffset();
+        return offset + 2 + readShort(frame, offset);
+    }
+
+    /** Offset of the length of the given item of a command 2 frame. */
+    private int itemOffset(int item) {
+        int offset = 5;
+        while (frame[offset] != item) {
+            offset += 3 + readShort(frame, offset + 1);
+        }
+        return offset + 1;
+    }
+
+    private static int readShort(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xFF) << 8) | (bytes[offset + 1] & 0xFF);
+    }
+
+    private byte[] readItem(int offset) {
+        byte[] item = new byte[readShort(frame, offset)];
+        System.arraycopy(frame, offset + 2, item, 0, item.length);
+        return item;
+    }
+
+    public byte[] getDeviceToken() {
+        return readItem(tokenOffset());
+    }
+
+    int getDeviceTokenLength() {
+        return readShort(frame, tokenOffset());
+    }
+
+    int getPayloadLength() {
+        return readShort(frame, payloadOffset());
+    }
+
+    public byte[] getPayload() {
+        return readItem(payloadOffset());
+    }
+
+    public int getIdentifier() {
+        return identifier;
+    }
+
+    public int getExpiry() {
+        return expiry;
+    }
+
+    public byte[] marshall() {
+        return frame.clone();
+    }
+
+    @Override
+    public String toString() {
+        return "Message(Id=" + identifier + "; Token=" + Utilities.encodeHex(getDeviceToken())
+                + "; Payload=" + new String(getPayload(), UTF8) + ")";
+    }
+}
@@ -0,0 +1,381 @@
+/*
+ *  Copyright 2009, Mahmood Ali.
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are
+ *  met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ *      copyright notice, this list of conditions and the following disclaimer
+ *      in the documentation and/or other materials provided with the
+ *      distribution.
+ *    * Neither the name of Mahmood Ali. nor the names of its
+ *      contributors may be used to endorse or promote products derived from
+ *      this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.apns.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.exceptions.RuntimeIOException;
+
+/**
+ * An append-only journal of the notifications handed to a queued service,
+ * so that the ones not yet sent survive a restart or a crash.
+ *
+ * The journal is a directory of fixed-size, memory-mapped segment files.
+ * Each record holds the marshalled frame of a notification with its
+ * identifier and expiry; its length is written last, so a record torn by
+ * a crash is ignored.  A notification is consumed once written to the
+ * gateway, but the checkpoint file only moves past it after
+ * {@code checkpointDelay}, the window during which Apple may still reject
+ * it or one of its predecessors and have it resent.
+ *
+ * When the journal is opened, the records after the checkpoint are read
+ * back as notifications sending the journaled frame as is, skipping the
+ * expired ones.  Segments behind the checkpoint are recycled.
+ *
+ * Records are written to the page cache, so they survive the process but
+ * not necessarily the machine crashing before the OS flushes them.
+ */
+public class NotificationJournal {
+    private static final Logger logger = LoggerFactory.getLogger(NotificationJournal.class);
+
+    public static final int DEFAULT_SEGMENT_SIZE = 8 * 1024 * 1024;
+    public static final long DEFAULT_CHECKPOINT_DELAY = 10000;
+
+    /** Record header: frame length, identifier and expiry */
+    static final int HEADER_SIZE = 12;
+    static final int SPARE_SEGMENTS = 2;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SPARE_PREFIX = "spare-";
+    private static final String SUFFIX = ".journal";
+    private static final String CHECKPOINT_FILE = "checkpoint";
+
+    private final File directory;
+    private final int segmentSize;
+    private final long checkpointDelay;
+
+    private final MappedByteBuffer checkpoint;
+    private long checkpointPosition;
+    private long oldestSegment;
+
+    private long writeSegment;
+    private MappedByteBuffer writeBuffer;
+
+    /** Positions after the records appended but not consumed; negative for expired records */
+    private final ArrayDeque<Long> pending = new ArrayDeque<Long>();
+    /** Consumption times and positions after the records consumed but not checkpointed */
+    private final ArrayDeque<long[]> consumed = new ArrayDeque<long[]>();
+    private List<ApnsNotification> replayed;
+    private boolean closed;
+
+    /**
+     * Opens the journal in the given directory, creating it if needed, and
+     * reads back the notifications that weren't sent.
+     *
+     * @param directory         the directory of the journal files
+     * @param segmentSize       the size of a segment file in bytes
+     * @param checkpointDelay   the time in milliseconds a sent notification is kept
+     * @throws RuntimeIOException if the journal can't be read or created
+     */
+    public NotificationJournal(File directory, int segmentSize, long checkpointDelay) {
+        if (segmentSize < 1024 || checkpointDelay < 0) {
+            throw new IllegalArgumentException("Expected segmentSize >= 1024 and checkpointDelay >= 0");
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.checkpointDelay = checkpointDelay;
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Couldn't create journal directory " + directory);
+            }
+            checkpoint = map(new File(directory, CHECKPOINT_FILE), 8);
+            checkpointPosition = checkpoint.getLong(0);
+            replay();
+        } catch (IOException e) {
+            throw new RuntimeIOException("Couldn't open notification journal in " + directory, e);
+        }
+    }
+
+    public NotificationJournal(File directory) {
+        this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_CHECKPOINT_DELAY);
+    }
+
+    private static long position(long segment, int offset) {
+        return (segment << 32) | offset;
+    }
+
+    private static long segmentOf(long position) {
+        return position >>> 32;
+    }
+
+    private static int offsetOf(long position) {
+        return (int) position;
+    }
+
+    private File segmentFile(long segment) {
+        return new File(directory, SEGMENT_PREFIX + segment + SUFFIX);
+    }
+
+    private static MappedByteBuffer map(File file, int size) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (raf.length() < size) {
+                raf.setLength(size);
+            }
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private List<Long> existingSegments() {
+        List<Long> segments = new ArrayList<Long>();
+        String[] names = directory.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SUFFIX)) {
+                    try {
+                        segments.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                                name.length() - SUFFIX.length())));
+                    } catch (NumberFormatException e) {
+                        logger.warn("Ignoring unexpected file {} in the journal", name);
+                    }
+                }
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    private void replay() throws IOException {
+        List<ApnsNotification> notifications = new ArrayList<ApnsNotification>();
+        long startSegment = segmentOf(checkpointPosition);
+        List<Long> segments = existingSegments();
+        if (startSegment == 0) {
+            startSegment = segments.isEmpty() ? 1 : segments.get(0);
+            checkpointPosition = position(startSegment, 0);
+            checkpoint.putLong(0, checkpointPosition);
+        }
+        oldestSegment = segments.isEmpty() ? startSegment : Math.min(segments.get(0), startSegment);
+        recycleSegments();
+
+        long nowSeconds = System.currentTimeMillis() / 1000;
+        writeSegment = startSegment;
+        for (long segment : segments) {
+            if (segment < startSegment) {
+                continue;
+            }
+            writeSegment = segment;
+            writeBuffer = map(segmentFile(segment), segmentSize);
+            int offset = segment == startSegment ? offsetOf(checkpointPosition) : 0;
+            while (true) {
+                int length = offset + 4 <= segmentSize ? writeBuffer.getInt(offset) : 0;
+                if (length <= 0 || offset + HEADER_SIZE + length > segmentSize) {
+                    break;
+                }
+                int identifier = writeBuffer.getInt(offset + 4);
+                int expiry = writeBuffer.getInt(offset + 8);
+                byte[] frame = new byte[length];
+                writeBuffer.position(offset + HEADER_SIZE);
+                writeBuffer.get(frame);
+                offset += HEADER_SIZE + length;
+
+                if (expiry != 0 && expiry < nowSeconds) {
+                    pending.add(-position(segment, offset));
+                } else {
+                    pending.add(position(segment, offset));
+                    notifications.add(new JournaledNotification(identifier, expiry, frame));
+                }
+            }
+            writeBuffer.position(offset);
+        }
+        if (writeBuffer == null) {
+            writeBuffer = createSegment(writeSegment);
+            writeBuffer.position(offsetOf(checkpointPosition));
+        }
+        replayed = notifications;
+        logger.info("Replaying {} unsent notifications from the journal", notifications.size());
+    }
+
+    /**
+     * Returns the notifications read back when the journal was opened, in
+     * the order they were appended, and forgets them.
+     */
+    public synchronized List<ApnsNotification> takeReplayed() {
+        List<ApnsNotification> result = replayed;
+        replayed = Collections.emptyList();
+        return result;
+    }
+
+    /**
+     * Appends a notification to the journal.
+     *
+     * @throws IllegalArgumentException if the notification doesn't fit in a segment
+     * @throws RuntimeIOException if a new segment can't be created
+     */
+    public synchronized void append(ApnsNotification notification) {
+        if (closed) {
+            throw new IllegalStateException("The journal is closed");
+        }
+        byte[] frame = notification.marshall();
+        int size = HEADER_SIZE + frame.length;
+        if (size + 4 > segmentSize) {
+            throw new IllegalArgumentException("Notification doesn't fit in a journal segment: " + notification);
+        }
+        if (writeBuffer.remaining() < size) {
+            roll();
+        }
+        int start = writeBuffer.position();
+        writeBuffer.position(start + 4);
+        writeBuffer.putInt(notification.getIdentifier());
+        writeBuffer.putInt(notification.getExpiry());
+        writeBuffer.put(frame);
+        int end = writeBuffer.position();
+        if (writeBuffer.remaining() >= 4) {
+            // terminate the records, in case a torn record left bytes behind
+            writeBuffer.putInt(end, 0);
+        }
+        writeBuffer.putInt(start, frame.length);
+        pending.add(position(writeSegment, end));
+    }
+
+    private void roll() {
+        writeBuffer.force();
+        try {
+            writeBuffer = createSegment(writeSegment + 1);
+        } catch (IOException e) {
+            throw new RuntimeIOException("Couldn't create journal segment", e);
+        }
+        writeSegment++;
+    }
+
+    private MappedByteBuffer createSegment(long segment) throws IOException {
+        File file = segmentFile(segment);
+        for (int i = 0; i < SPARE_SEGMENTS; i++) {
+            File spare = new File(directory, SPARE_PREFIX + i + SUFFIX);
+            if (spare.exists() && spare.renameTo(file)) {
+                MappedByteBuffer buffer = map(file, segmentSize);
+                byte[] zeros = new byte[8192];
+                while (buffer.hasRemaining()) {
+                    buffer.put(zeros, 0, Math.min(zeros.length, buffer.remaining()));
+                }
+                buffer.clear();
+                return buffer;
+            }
+        }
+        return map(file, segmentSize);
+    }
+
+    /**
+     * Marks the oldest notification not yet consumed as written to the
+     * gateway, and moves the checkpoint if it is due.
+     */
+    public synchronized void consumed() {
+        if (closed) {
+            return;
+        }
+        long now = CoarseClock.currentTimeMillis();
+        skipExpired(now);
+        Long position = pending.poll();
+        if (position != null) {
+            consumed.add(new long[] { now, position });
+        }
+        checkpointIfDue(now);
+    }
+
+    /**
+     * Moves the checkpoint past the notifications consumed more than
+     * {@code checkpointDelay} ago.
+     */
+    public synchronized void checkpointIfDue() {
+        if (!closed) {
+            long now = CoarseClock.currentTimeMillis();
+            skipExpired(now);
+            checkpointIfDue(now);
+        }
+    }
+
+    private void skipExpired(long now) {
+        while (!pending.isEmpty() && pending.peek() < 0) {
+            consumed.add(new long[] { now - checkpointDelay, -pending.poll() });
+        }
+    }
+
+    private void checkpointIfDue(long now) {
+        long position = -1;
+        while (!consumed.isEmpty() && consumed.peek()[0] + checkpointDelay <= now) {
+            position = consumed.poll()[1];
+        }
+        if (position >= 0) {
+            checkpointPosition = position;
+            checkpoint.putLong(0, position);
+            recycleSegments();
+        }
+    }
+
+    private void recycleSegments() {
+        long current = segmentOf(checkpointPosition);
+        for (; oldestSegment < current; oldestSegment++) {
+            File file = segmentFile(oldestSegment);
+            if (!file.exists()) {
+                continue;
+            }
+            boolean recycled = false;
+            for (int i = 0; i < SPARE_SEGMENTS && !recycled; i++) {
+                File spare = new File(directory, SPARE_PREFIX + i + SUFFIX);
+                recycled = !spare.exists() && file.renameTo(spare);
+            }
+            if (!recycled && !file.delete()) {
+                logger.warn("Couldn't delete journal segment {}", file);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of notifications appended or replayed and not
+     * consumed yet.
+     */
+    public synchronized int size() {
+        return pending.size();
+    }
+
+    /**
+     * Flushes the journal to disk and stops recording.
+     */
+    public synchronized void close() {
+        if (!closed) {
+            closed = true;
+            writeBuffer.force();
+            checkpoint.force();
+        }
+    }
+}
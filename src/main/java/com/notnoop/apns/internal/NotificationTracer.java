@@ -0,0 +1,111 @@
+/*
+ *  Copyright 2009, Mahmood Ali.
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are
+ *  met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ *      copyright notice, this list of conditions and the following disclaimer
+ *      in the documentation and/or other materials provided with the
+ *      distribution.
+ *    * Neither the name of Mahmood Ali. nor the names of its
+ *      contributors may be used to endorse or promote products derived from
+ *      this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.apns.internal;
+
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.NotificationTraceListener;
+import com.notnoop.apns.TraceEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Samples the notifications to trace and hands their events to a
+ * {@link NotificationTraceListener}.
+ *
+ * Call sites check {@link #isTraced(ApnsNotification)} before building
+ * anything, so a disabled tracer costs a field read and a branch.
+ */
+public final class NotificationTracer {
+
+    /**
+     * A tracer that doesn't trace anything.
+     */
+    public static final NotificationTracer DISABLED = new NotificationTracer(0, null);
+
+    private final boolean enabled;
+    private final int sampleRate;
+    private final NotificationTraceListener listener;
+
+    /**
+     * @param sampleRate    trace one in every {@code sampleRate} notifications;
+     *                      0 disables tracing
+     * @param listener      the listener to report to, or null to log the
+     *                      events to the {@code com.notnoop.apns.trace} logger
+     */
+    public NotificationTracer(int sampleRate, NotificationTraceListener listener) {
+        if (sampleRate < 0) {
+            throw new IllegalArgumentException("sampleRate must not be negative: " + sampleRate);
+        }
+        this.enabled = sampleRate > 0;
+        this.sampleRate = sampleRate;
+        this.listener = listener == null ? new LoggingTraceListener() : listener;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Returns true if the notification is part of the sample.  The decision
+     * only depends on the notification identifier.
+     */
+    public boolean isTraced(ApnsNotification notification) {
+        return enabled && notification.getIdentifier() % sampleRate == 0;
+    }
+
+    /**
+     * Reports the event if the notification is part of the sample.
+     */
+    public void trace(TraceEvent event, ApnsNotification notification, int connectionId) {
+        if (isTraced(notification)) {
+            try {
+                listener.traced(event, notification, connectionId);
+            } catch (RuntimeException e) {
+                LoggingTraceListener.logger.warn("Trace listener failed", e);
+            }
+        }
+    }
+
+    /**
+     * Logs the trace events as {@code key=value} pairs, at debug level.
+     */
+    static final class LoggingTraceListener implements NotificationTraceListener {
+        static final Logger logger = LoggerFactory.getLogger("com.notnoop.apns.trace");
+
+        public void traced(TraceEvent event, ApnsNotification notification, int connectionId) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("event={} id={} connection={} expiry={} thread={} nanos={}", new Object[] {
+                        event, notification.getIdentifier(), connectionId, notification.getExpiry(),
+                        Thread.currentThread().getName(), System.nanoTime() });
+            }
+        }
+    }
+}
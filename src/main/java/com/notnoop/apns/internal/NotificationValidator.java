@@ -0,0 +1,90 @@
+/*
+ *  Copyright 2009, Mahmood Ali.
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are
+ *  met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ *      copyright notice, this list of conditions and the following disclaimer
+ *      in the documentation and/or other materials provided with the
+ *      distribution.
+ *    * Neither the name of Mahmood Ali. nor the names of its
+ *      contributors may be used to endorse or promote products derived from
+ *      this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.apns.internal;
+
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.DeliveryError;
+import com.notnoop.apns.EnhancedApnsNotification;
+
+/**
+ * Checks notifications for the errors the gateway answers by dropping the
+ * connection, so they can be rejected before being written.
+ *
+ * The notifications built by the library are checked without copying
+ * their token or payload; other implementations of
+ * {@link ApnsNotification} cost a copy of both.
+ */
+public final class NotificationValidator {
+    /** The length of a device token of the binary interface */
+    public static final int DEVICE_TOKEN_LENGTH = 32;
+
+    private NotificationValidator() { }
+
+    /**
+     * Returns the error the gateway would answer the notification with,
+     * or null if it is well-formed.
+     */
+    public static DeliveryError validate(ApnsNotification notification) {
+        int tokenLength;
+        int payloadLength;
+        if (notification instanceof EnhancedApnsNotification) {
+            EnhancedApnsNotification enhanced = (EnhancedApnsNotification) notification;
+            tokenLength = enhanced.getDeviceTokenLength();
+            payloadLength = enhanced.getPayloadLength();
+        } else if (notification instanceof JournaledNotification) {
+            JournaledNotification journaled = (JournaledNotification) notification;
+            tokenLength = journaled.getDeviceTokenLength();
+            payloadLength = journaled.getPayloadLength();
+        } else {
+            byte[] token = notification.getDeviceToken();
+            byte[] payload = notification.getPayload();
+            tokenLength = token == null ? 0 : token.length;
+            payloadLength = payload == null ? 0 : payload.length;
+        }
+        return validate(tokenLength, payloadLength);
+    }
+
+    static DeliveryError validate(int tokenLength, int payloadLength) {
+        if (tokenLength == 0) {
+            return DeliveryError.MISSING_DEVICE_TOKEN;
+        }
+        if (tokenLength != DEVICE_TOKEN_LENGTH) {
+            return DeliveryError.INVALID_TOKEN_SIZE;
+        }
+        if (payloadLength == 0) {
+            return DeliveryError.MISSING_PAYLOAD;
+        }
+        if (payloadLength > Utilities.MAX_PAYLOAD_LENGTH) {
+            return DeliveryError.INVALID_PAYLOAD_SIZE;
+        }
+        return null;
+    }
+}
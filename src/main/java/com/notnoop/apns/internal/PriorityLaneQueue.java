@@ -0,0 +1,298 @@
+/*
+ *  Copyright 2009, Mahmood Ali.
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are
+ *  met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ *      copyright notice, this list of conditions and the following disclaimer
+ *      in the documentation and/or other materials provided with the
+ *      distribution.
+ *    * Neither the name of Mahmood Ali. nor the names of its
+ *      contributors may be used to endorse or promote products derived from
+ *      this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.apns.internal;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.notnoop.apns.ApnsNotification;
+
+/**
+ * An unbounded blocking queue made of several FIFO lanes, lane 0 having
+ * the highest priority.
+ *
+ * With strict scheduling, a notification is only taken from a lane when
+ * all the lanes before it are empty.  With weighted scheduling, the
+ * non-empty lanes are served in proportion to their weights, using a
+ * smooth weighted round-robin, so a bulk lane keeps progressing without
+ * delaying the other lanes by more than a few notifications.
+ *
+ * Notifications added without a lane go to lane 0.
+ */
+public class PriorityLaneQueue extends AbstractQueue<ApnsNotification> implements BlockingQueue<ApnsNotification> {
+    private final ArrayDeque<ApnsNotification>[] lanes;
+    private final int[] weights;
+    private final int[] current;
+    private final boolean strict;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private int count;
+
+    /**
+     * Creates a queue serving its lanes in proportion to the weights.
+     *
+     * @param weights   the positive weight of each lane
+     */
+    public static PriorityLaneQueue weighted(int... weights) {
+        return new PriorityLaneQueue(weights.clone(), false);
+    }
+
+    /**
+     * Creates a queue serving its lanes in strict priority order.
+     *
+     * @param lanes the number of lanes
+     */
+    public static PriorityLaneQueue strict(int lanes) {
+        int[] weights = new int[lanes];
+        Arrays.fill(weights, 1);
+        return new PriorityLaneQueue(weights, true);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private PriorityLaneQueue(int[] weights, boolean strict) {
+        if (weights.length < 1) {
+            throw new IllegalArgumentException("At least one lane is needed");
+        }
+        for (int weight : weights) {
+            if (weight < 1) {
+                throw new IllegalArgumentException("Lane weights must be positive: " + weight);
+            }
+        }
+        this.weights = weights;
+        this.current = new int[weights.length];
+        this.strict = strict;
+        this.lanes = new ArrayDeque[weights.length];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new ArrayDeque<ApnsNotification>();
+        }
+    }
+
+    public int getLaneCount() {
+        return lanes.length;
+    }
+
+    /**
+     * Adds the notification to the given lane.
+     *
+     * @throws IllegalArgumentException if there is no such lane
+     */
+    public boolean offer(ApnsNotification notification, int lane) {
+        if (notification == null) {
+            throw new NullPointerException();
+        }
+        if (lane < 0 || lane >= lanes.length) {
+            throw new IllegalArgumentException("No such lane: " + lane);
+        }
+        lock.lock();
+        try {
+            lanes[lane].add(notification);
+            count++;
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of notifications in the given lane.
+     */
+    public int size(int lane) {
+        lock.lock();
+        try {
+            return lanes[lane].size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Must be called with the lock held and count > 0 */
+    private int nextLane(boolean update) {
+        if (strict) {
+            for (int i = 0; i < lanes.length; i++) {
+                if (!lanes[i].isEmpty()) {
+                    return i;
+                }
+            }
+        }
+        int best = -1;
+        int total = 0;
+        for (int i = 0; i < lanes.length; i++) {
+            if (!lanes[i].isEmpty()) {
+                total += weights[i];
+                if (best < 0 || current[i] + weights[i] > current[best] + weights[best]) {
+                    best = i;
+                }
+            }
+        }
+        if (update) {
+            for (int i = 0; i < lanes.length; i++) {
+                if (!lanes[i].isEmpty()) {
+                    current[i] += weights[i];
+                }
+            }
+            current[best] -= total;
+        }
+        return best;
+    }
+
+    private ApnsNotification dequeue() {
+        count--;
+        int lane = nextLane(true);
+        ApnsNotification notification = lanes[lane].poll();
+        if (lanes[lane].isEmpty()) {
+            // don't let an idle lane bank credit for a later burst
+            current[lane] = 0;
+        }
+        return notification;
+    }
+
+    public boolean offer(ApnsNotification notification) {
+        return offer(notification, 0);
+    }
+
+    public void put(ApnsNotification notification) {
+        offer(notification, 0);
+    }
+
+    public boolean offer(ApnsNotification notification, long timeout, TimeUnit unit) {
+        return offer(notification, 0);
+    }
+
+    public ApnsNotification poll() {
+        lock.lock();
+        try {
+            return count == 0 ? null : dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public ApnsNotification take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (count == 0) {
+                notEmpty.await();
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public ApnsNotification poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (count == 0) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public ApnsNotification peek() {
+        lock.lock();
+        try {
+            return count == 0 ? null : lanes[nextLane(false)].peek();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    public int drainTo(Collection<? super ApnsNotification> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    public int drainTo(Collection<? super ApnsNotification> c, int maxElements) {
+        if (c == this) {
+            throw new IllegalArgumentException();
+        }
+        lock.lock();
+        try {
+            int n = 0;
+            while (n < maxElements && count > 0) {
+                c.add(dequeue());
+                n++;
+            }
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns an iterator over a snapshot of the queue, lane by lane.
+     */
+    @Override
+    public Iterator<ApnsNotification> iterator() {
+        lock.lock();
+        try {
+            List<ApnsNotification> snapshot = new ArrayList<ApnsNotification>(count);
+            for (ArrayDeque<ApnsNotification> lane : lanes) {
+                snapshot.addAll(lane);
+            }
+            return Collections.unmodifiableList(snapshot).iterator();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ *  Copyright 2009, Mahmood Ali.
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are
+ *  met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ *      copyright notice, this list of conditions and the following disclaimer
+ *      in the documentation and/or other materials provided with the
+ *      distribution.
+ *    * Neither the name of Mahmood Ali. nor the names of its
+ *      contributors may be used to endorse or promote products derived from
+ *      this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.apns.internal;
+
+import java.util.Date;
+import java.util.Map;
+
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.PrioritizedApnsService;
+import com.notnoop.exceptions.NetworkIOException;
+
+/**
+ * Routes the priority lanes either to a shared queued service, which
+ * schedules them over the shared connections, or to a queued service of
+ * their own with a dedicated connection, which bulk traffic on the other
+ * lanes can't delay.
+ */
+public class PriorityLanesApnsService extends AbstractApnsService implements PrioritizedApnsService {
+    private final QueuedApnsService shared;
+    private final QueuedApnsService[] dedicated;
+
+    /**
+     * @param shared    the service of the lanes without a dedicated connection
+     * @param dedicated the service of each lane, or null for the lanes using
+     *                  the shared service
+     */
+    public PriorityLanesApnsService(QueuedApnsService shared, QueuedApnsService[] dedicated) {
+        super(null);
+        this.shared = shared;
+        this.dedicated = dedicated.clone();
+    }
+
+    @Override
+    public void push(ApnsNotification message) throws NetworkIOException {
+        push(message, 0);
+    }
+
+    public void push(ApnsNotification message, int lane) throws NetworkIOException {
+        if (lane < 0 || lane >= dedicated.length) {
+            throw new IllegalArgumentException("No such lane: " + lane);
+        }
+        if (dedicated[lane] != null) {
+            dedicated[lane].push(message);
+        } else {
+            shared.push(message, lane);
+        }
+    }
+
+    public void start() {
+        shared.start();
+        for (QueuedApnsService service : dedicated) {
+            if (service != null) {
+                service.start();
+            }
+        }
+    }
+
+    public void stop() {
+        for (QueuedApnsService service : dedicated) {
+            if (service != null) {
+                service.stop();
+            }
+        }
+        shared.stop();
+    }
+
+    @Override
+    public Map<String, Date> getInactiveDevices() throws NetworkIOException {
+        return shared.getInactiveDevices();
+    }
+
+    public void testConnection() throws NetworkIOException {
+        shared.testConnection();
+    }
+}
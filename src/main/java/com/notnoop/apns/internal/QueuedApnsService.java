@@ -37,32 +37,52 @@ import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.notnoop.apns.ApnsNotification;
 import com.notnoop.apns.ApnsService;
+import com.notnoop.apns.PrioritizedApnsService;
+import com.notnoop.apns.TraceEvent;
+import com.notnoop.apns.metrics.ApnsMetrics;
+import com.notnoop.apns.metrics.Gauge;
 import com.notnoop.exceptions.NetworkIOException;
 
-public class QueuedApnsService extends AbstractApnsService {
+public class QueuedApnsService extends AbstractApnsService implements PrioritizedApnsService {
 
 	private static final Logger logger = LoggerFactory.getLogger(QueuedApnsService.class);
 	
     private ApnsService service;
     private BlockingQueue<ApnsNotification> queue;
     private AtomicBoolean started = new AtomicBoolean(false);
+    private NotificationTracer tracer = NotificationTracer.DISABLED;
+    private NotificationJournal journal;
+    private PriorityLaneQueue lanes;
+    private ExpiryFilter expiryFilter;
 
     public QueuedApnsService(ApnsService service) {
         this(service, null);
     }
 
     public QueuedApnsService(ApnsService service, final ThreadFactory tf) {
+        this(service, tf, ApnsMetrics.DISABLED);
+    }
+
+    public QueuedApnsService(ApnsService service, final ThreadFactory tf, ApnsMetrics metrics) {
         super(null);
         this.service = service;
         this.queue = new LinkedBlockingQueue<ApnsNotification>();
         this.threadFactory = tf == null ? Executors.defaultThreadFactory() : tf;
         this.thread = null;
+        if (metrics != null) {
+            metrics.registerGauge(ApnsMetrics.QUEUE_DEPTH, new Gauge() {
+                public long value() {
+                    return queue.size();
+                }
+            });
+        }
     }
 
     @Override
@@ -70,15 +90,97 @@ public class QueuedApnsService extends AbstractApnsService {
         if (!started.get()) {
             throw new IllegalStateException("service hasn't be started or was closed");
         }
-        queue.add(msg);
+        if (journal != null) {
+            // keep the journal and the queue in the same order
+            synchronized (journal) {
+                journal.append(msg);
+                queue.add(msg);
+            }
+        } else {
+            queue.add(msg);
+        }
+        tracer.trace(TraceEvent.QUEUED, msg, -1);
     }
 
+    /**
+     * Queues the notification in the given priority lane.  Without
+     * {@link #setPriorityLanes priority lanes}, only lane 0 exists.
+     */
+    public void push(ApnsNotification msg, int lane) {
+        if (lanes == null) {
+            if (lane != 0) {
+                throw new IllegalArgumentException("No such lane: " + lane);
+            }
+            push(msg);
+            return;
+        }
+        if (!started.get()) {
+            throw new IllegalStateException("service hasn't be started or was closed");
+        }
+        lanes.offer(msg, lane);
+        tracer.trace(TraceEvent.QUEUED, msg, -1);
+    }
+
+    /**
+     * Replaces the queue with priority lanes.  Must be called before the
+     * service is started, and can't be combined with a journal, which
+     * needs notifications to be sent in the order they were queued.
+     */
+    public void setPriorityLanes(PriorityLaneQueue lanes) {
+        if (started.get() || journal != null || queue instanceof DeadlineQueue) {
+            throw new IllegalStateException("Priority lanes must be set before starting, without a journal or deadline ordering");
+        }
+        this.lanes = lanes;
+        this.queue = lanes;
+    }
+
+    /**
+     * Replaces the queue with one handing out the notifications that
+     * expire first.  Must be called before the service is started, and
+     * can't be combined with priority lanes or a journal.
+     */
+    public void setEarliestDeadlineFirst() {
+        if (started.get() || journal != null || lanes != null) {
+            throw new IllegalStateException("Deadline ordering must be set before starting, without lanes or a journal");
+        }
+        this.queue = new DeadlineQueue();
+    }
+
+    /**
+     * Sets the filter dropping the expired notifications instead of
+     * sending them when they are taken from the queue.
+     */
+    public void setExpiryFilter(ExpiryFilter expiryFilter) {
+        this.expiryFilter = expiryFilter;
+    }
+
+    /**
+     * Sets the journal recording the queued notifications until they are
+     * sent.  The notifications it replays are queued when the service
+     * starts, ahead of the new ones.
+     */
+    public void setJournal(NotificationJournal journal) {
+        if (lanes != null || queue instanceof DeadlineQueue) {
+            throw new IllegalStateException("A journal can't be combined with priority lanes or deadline ordering");
+        }
+        this.journal = journal;
+    }
+
+    /**
+     * Sets the tracer reporting the sampled notifications entering the queue.
+     */
+    public void setTracer(NotificationTracer tracer) {
+        this.tracer = tracer == null ? NotificationTracer.DISABLED : tracer;
+    }
+
+    private static final long JOURNAL_CHECKPOINT_INTERVAL = 1000;
+
     private final ThreadFactory threadFactory;
     private Thread thread;
     private volatile boolean shouldContinue;
 
     public void start() {
-        if (started.getAndSet(true)) {
+        if (!markStarted()) {
             // I prefer if we throw a runtime IllegalStateException here,
             // but I want to maintain semantic backward compatibility.
             // So it is returning immediately here
@@ -91,8 +193,20 @@ public class QueuedApnsService extends AbstractApnsService {
             public void run() {
                 while (shouldContinue) {
                     try {
-                        ApnsNotification msg = queue.take();
-                        service.push(msg);
+                        if (journal == null) {
+                            send(queue.take());
+                            continue;
+                        }
+                        ApnsNotification msg = queue.poll(JOURNAL_CHECKPOINT_INTERVAL, TimeUnit.MILLISECONDS);
+                        if (msg != null) {
+                            try {
+                                send(msg);
+                            } finally {
+                                journal.consumed();
+                            }
+                        } else {
+                            journal.checkpointIfDue();
+                        }
                     } catch (InterruptedException e) {
                     	// ignore
                     } catch (NetworkIOException e) {
@@ -107,11 +221,40 @@ public class QueuedApnsService extends AbstractApnsService {
         thread.start();
     }
 
+    /**
+     * Marks the service started, queueing the notifications replayed by
+     * the journal first, so that they stay ahead of the new ones.
+     *
+     * @return false if the service was already started
+     */
+    private boolean markStarted() {
+        if (journal == null) {
+            return !started.getAndSet(true);
+        }
+        synchronized (journal) {
+            if (started.get()) {
+                return false;
+            }
+            queue.addAll(journal.takeReplayed());
+            started.set(true);
+            return true;
+        }
+    }
+
+    private void send(ApnsNotification msg) {
+        if (expiryFilter == null || !expiryFilter.dropIfExpired(msg, -1)) {
+            service.push(msg);
+        }
+    }
+
     public void stop() {
         started.set(false);
         shouldContinue = false;
         thread.interrupt();
         service.stop();
+        if (journal != null) {
+            journal.close();
+        }
     }
 
     @Override
@@ -30,7 +30,10 @@
  */
 package com.notnoop.apns.internal;
 
+import java.util.Random;
+
 import com.notnoop.apns.ReconnectPolicy;
+import com.notnoop.apns.TrafficAwareReconnectPolicy;
 
 public final class ReconnectPolicies {
 
@@ -64,4 +67,110 @@ public final class ReconnectPolicies {
             return new EveryHalfHour();
         }
     }
+
+    /**
+     * Rotates the connection once it reaches a maximum age, transferred
+     * a maximum number of bytes, or stayed idle for too long.
+     *
+     * The maximum age is shortened by a random jitter for each connection,
+     * so that pooled connections don't reconnect all at once, and divided
+     * by {@value #ERROR_AGE_DIVISOR} while the recent failure rate is above
+     * the configured threshold, to move away from an unhealthy gateway.
+     */
+    public static class Adaptive implements TrafficAwareReconnectPolicy {
+        public static final long DEFAULT_MAX_AGE = 30 * 60 * 1000;
+        public static final double DEFAULT_JITTER = 0.2;
+        public static final long DEFAULT_MAX_IDLE = 10 * 60 * 1000;
+        public static final double DEFAULT_MAX_ERROR_RATE = 0.05;
+
+        static final int ERROR_AGE_DIVISOR = 4;
+        /** Weight of the latest notification in the failure rate average. */
+        private static final double ALPHA = 0.01;
+
+        private final long maxAge;
+        private final double jitter;
+        private final long maxIdle;
+        private final long maxBytes;
+        private final double maxErrorRate;
+        private final Random random = new Random();
+
+        private long connectedAt;
+        private long age;
+        private long lastActivity;
+        private long bytes;
+        private double errorRate;
+
+        /**
+         * Creates a policy rotating connections every 30 minutes (minus up
+         * to 20% jitter), after 10 idle minutes, and sooner while more
+         * than 5% of the recent notifications fail.
+         */
+        public Adaptive() {
+            this(DEFAULT_MAX_AGE, DEFAULT_JITTER, DEFAULT_MAX_IDLE, 0, DEFAULT_MAX_ERROR_RATE);
+        }
+
+        /**
+         * @param maxAge        the maximum connection age in milliseconds, 0 for none
+         * @param jitter        the fraction of {@code maxAge}, between 0 and 1, by
+         *                      which each connection's age is randomly shortened
+         * @param maxIdle       the maximum time in milliseconds without sending, 0 for none
+         * @param maxBytes      the maximum bytes sent per connection, 0 for none
+         * @param maxErrorRate  the failure rate, between 0 and 1, above which
+         *                      connections are rotated sooner
+         */
+        public Adaptive(long maxAge, double jitter, long maxIdle, long maxBytes, double maxErrorRate) {
+            if (maxAge < 0 || maxIdle < 0 || maxBytes < 0) {
+                throw new IllegalArgumentException("Limits must not be negative");
+            }
+            if (jitter < 0 || jitter > 1 || maxErrorRate < 0 || maxErrorRate > 1) {
+                throw new IllegalArgumentException("jitter and maxErrorRate must be between 0 and 1");
+            }
+            this.maxAge = maxAge;
+            this.jitter = jitter;
+            this.maxIdle = maxIdle;
+            this.maxBytes = maxBytes;
+            this.maxErrorRate = maxErrorRate;
+            reconnected();
+        }
+
+        public synchronized boolean shouldReconnect() {
+            long now = CoarseClock.currentTimeMillis();
+            if (maxBytes > 0 && bytes >= maxBytes) {
+                return true;
+            }
+            if (maxIdle > 0 && now - lastActivity > maxIdle) {
+                return true;
+            }
+            if (age > 0) {
+                long limit = errorRate > maxErrorRate ? age / ERROR_AGE_DIVISOR : age;
+                return now - connectedAt > limit;
+            }
+            return false;
+        }
+
+        public synchronized void reconnected() {
+            connectedAt = CoarseClock.currentTimeMillis();
+            lastActivity = connectedAt;
+            bytes = 0;
+            age = maxAge - (long) (maxAge * jitter * random.nextDouble());
+        }
+
+        public synchronized void sent(int size) {
+            lastActivity = CoarseClock.currentTimeMillis();
+            bytes += size;
+            errorRate -= errorRate * ALPHA;
+        }
+
+        public synchronized void failed() {
+            errorRate += (1 - errorRate) * ALPHA;
+        }
+
+        synchronized double getErrorRate() {
+            return errorRate;
+        }
+
+        public Adaptive copy() {
+            return new Adaptive(maxAge, jitter, maxIdle, maxBytes, maxErrorRate);
+        }
+    }
 }
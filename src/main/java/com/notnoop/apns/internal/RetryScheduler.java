@@ -0,0 +1,153 @@
+/*
+ *  Copyright 2009, Mahmood Ali.
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are
+ *  met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ *      copyright notice, this list of conditions and the following disclaimer
+ *      in the documentation and/or other materials provided with the
+ *      distribution.
+ *    * Neither the name of Mahmood Ali. nor the names of its
+ *      contributors may be used to endorse or promote products derived from
+ *      this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.apns.internal;
+
+import java.util.Collections;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the retries of notifications that failed to be written, after an
+ * exponentially growing delay, on a single background thread.
+ *
+ * The delay doubles with every failed attempt up to a maximum, and is
+ * randomly shortened by up to half so that notifications failing together
+ * aren't retried together.
+ */
+public class RetryScheduler {
+    /** The scheduled retries of a notification, unless configured */
+    public static final int DEFAULT_RETRIES = 5;
+
+    private final int retries;
+    private final long initialDelay;
+    private final long maxDelay;
+    private final ScheduledExecutorService executor;
+    private final Random random = new Random();
+    private final Set<Runnable> pending = Collections.newSetFromMap(new ConcurrentHashMap<Runnable, Boolean>());
+
+    /**
+     * @param initialDelay  the delay before the first scheduled retry, in milliseconds
+     * @param maxDelay      the maximum delay between retries, in milliseconds
+     */
+    public RetryScheduler(long initialDelay, long maxDelay) {
+        this(DEFAULT_RETRIES, initialDelay, maxDelay);
+    }
+
+    /**
+     * @param retries       the scheduled retries of a notification before it is failed
+     * @param initialDelay  the delay before the first scheduled retry, in milliseconds
+     * @param maxDelay      the maximum delay between retries, in milliseconds
+     */
+    public RetryScheduler(int retries, long initialDelay, long maxDelay) {
+        if (retries <= 0 || initialDelay <= 0 || maxDelay < initialDelay) {
+            throw new IllegalArgumentException("Expected retries > 0 and 0 < initialDelay <= maxDelay, got "
+                    + retries + ", " + initialDelay + " and " + maxDelay);
+        }
+        this.retries = retries;
+        this.initialDelay = initialDelay;
+        this.maxDelay = maxDelay;
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "ApnsRetryScheduler");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Returns the scheduled retries of a notification before it is failed.
+     */
+    public int getRetries() {
+        return retries;
+    }
+
+    /**
+     * Returns the delay before the given retry, in milliseconds.
+     *
+     * @param retry the number of the scheduled retry, starting at 1
+     */
+    long delayOf(int retry) {
+        long delay = maxDelay;
+        if (retry <= 62 && initialDelay <= (maxDelay >> (retry - 1))) {
+            delay = initialDelay << (retry - 1);
+        }
+        long jitter;
+        synchronized (random) {
+            jitter = (long) (random.nextDouble() * (delay / 2));
+        }
+        return delay - jitter;
+    }
+
+    /**
+     * Runs the retry after the backoff delay of the given retry number.
+     *
+     * @param retry the number of the scheduled retry, starting at 1
+     * @param task  the retry to run
+     */
+    public void schedule(int retry, final Runnable task) {
+        pending.add(task);
+        try {
+            executor.schedule(new Runnable() {
+                public void run() {
+                    if (pending.remove(task)) {
+                        task.run();
+                    }
+                }
+            }, delayOf(retry), TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // shut down meanwhile
+            if (pending.remove(task)) {
+                task.run();
+            }
+        }
+    }
+
+    /**
+     * Stops the scheduler, running the pending retries right away on the
+     * calling thread, so that retries of closed connections report their
+     * notifications as failed.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+        for (Runnable task : pending) {
+            if (pending.remove(task)) {
+                task.run();
+            }
+        }
+    }
+}
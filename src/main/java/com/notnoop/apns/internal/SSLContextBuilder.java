@@ -33,6 +33,7 @@ import com.notnoop.exceptions.InvalidSSLConfig;
 
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.TrustManagerFactory;
 import java.io.IOException;
@@ -50,6 +51,8 @@ public class SSLContextBuilder {
     private String algorithm = "sunx509";
     private KeyManagerFactory keyManagerFactory;
     private TrustManager[] trustManagers;
+    private int sessionCacheSize = -1;
+    private int sessionTimeout = -1;
 
     public SSLContextBuilder withAlgorithm(String algorithm) {
         this.algorithm = algorithm;
@@ -90,6 +93,30 @@ public class SSLContextBuilder {
         }
     }
 
+    /**
+     * Sets the number of client TLS sessions the context keeps for
+     * resumption, 0 meaning no limit.  Uses the JSSE default if not set.
+     */
+    public SSLContextBuilder withSessionCacheSize(int sessionCacheSize) {
+        if (sessionCacheSize < 0) {
+            throw new IllegalArgumentException("sessionCacheSize must not be negative: " + sessionCacheSize);
+        }
+        this.sessionCacheSize = sessionCacheSize;
+        return this;
+    }
+
+    /**
+     * Sets the time in seconds a cached TLS session may be resumed for,
+     * 0 meaning no limit.  Uses the JSSE default if not set.
+     */
+    public SSLContextBuilder withSessionTimeout(int sessionTimeout) {
+        if (sessionTimeout < 0) {
+            throw new IllegalArgumentException("sessionTimeout must not be negative: " + sessionTimeout);
+        }
+        this.sessionTimeout = sessionTimeout;
+        return this;
+    }
+
     public SSLContextBuilder withTrustManager(TrustManager trustManager) {
         trustManagers = new TrustManager[] { trustManager };
         return this;
@@ -159,6 +186,23 @@ public class SSLContextBuilder {
         return singleKeyKeyStore;
     }
 
+    /**
+     * Applies the session cache settings to the client sessions of the
+     * context; negative values leave the current setting unchanged.
+     */
+    public static void configureSessionCache(SSLContext sslContext, int sessionCacheSize, int sessionTimeout) {
+        SSLSessionContext sessions = sslContext.getClientSessionContext();
+        if (sessions == null) {
+            return;
+        }
+        if (sessionCacheSize >= 0) {
+            sessions.setSessionCacheSize(sessionCacheSize);
+        }
+        if (sessionTimeout >= 0) {
+            sessions.setSessionTimeout(sessionTimeout);
+        }
+    }
+
     public SSLContext build() throws InvalidSSLConfig {
         if (keyManagerFactory == null) {
             throw new InvalidSSLConfig("Missing KeyManagerFactory");
@@ -171,6 +215,7 @@ public class SSLContextBuilder {
         try {
             final SSLContext sslContext = SSLContext.getInstance("TLS");
             sslContext.init(keyManagerFactory.getKeyManagers(), trustManagers, null);
+            configureSessionCache(sslContext, sessionCacheSize, sessionTimeout);
             return sslContext;
         } catch (GeneralSecurityException e) {
             throw new InvalidSSLConfig(e);
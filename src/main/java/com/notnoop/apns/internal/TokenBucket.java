@@ -0,0 +1,192 @@
+/*
+ *  Copyright 2009, Mahmood Ali.
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are
+ *  met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ *      copyright notice, this list of conditions and the following disclaimer
+ *      in the documentation and/or other materials provided with the
+ *      distribution.
+ *    * Neither the name of Mahmood Ali. nor the names of its
+ *      contributors may be used to endorse or promote products derived from
+ *      this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.apns.internal;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Paces notifications to a sustained rate, letting short bursts through.
+ *
+ * The bucket is lock-free: each permit reserves the next free slot in
+ * time with a single compare-and-set, and the caller parks until its
+ * slot if the burst allowance is used up.
+ *
+ * An adaptive bucket halves its rate each time the gateway drops a
+ * connection, down to a floor, and raises it back additively every
+ * second without disconnects (AIMD), so that the sending rate settles
+ * just below the gateway's limit instead of repeatedly hitting it.
+ */
+public class TokenBucket {
+    static final long INCREASE_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final long maxRate;
+    private final long minRate;
+    private final long increaseStep;
+    private final int burst;
+
+    private final AtomicLong rate;
+    private final AtomicLong nextFree;
+    private final AtomicLong lastChange;
+
+    /**
+     * Creates a bucket with a fixed rate.
+     *
+     * @param permitsPerSecond  the sustained rate
+     * @param burst             the permits that can be taken at once after
+     *                          an idle period
+     */
+    public TokenBucket(long permitsPerSecond, int burst) {
+        this(permitsPerSecond, permitsPerSecond, burst);
+    }
+
+    /**
+     * Creates an adaptive bucket, starting at its maximum rate.
+     *
+     * @param maxPermitsPerSecond   the initial and maximum rate
+     * @param minPermitsPerSecond   the rate below which disconnects don't
+     *                              slow the bucket down further
+     * @param burst                 the permits that can be taken at once
+     *                              after an idle period
+     */
+    public TokenBucket(long maxPermitsPerSecond, long minPermitsPerSecond, int burst) {
+        if (minPermitsPerSecond <= 0 || maxPermitsPerSecond < minPermitsPerSecond) {
+            throw new IllegalArgumentException("Rates must be positive, and the minimum rate no higher than the maximum");
+        }
+        if (burst < 1) {
+            throw new IllegalArgumentException("Burst must be at least 1: " + burst);
+        }
+        this.maxRate = maxPermitsPerSecond;
+        this.minRate = minPermitsPerSecond;
+        this.increaseStep = Math.max(1, maxPermitsPerSecond / 20);
+        this.burst = burst;
+        long now = System.nanoTime();
+        this.rate = new AtomicLong(maxPermitsPerSecond);
+        this.nextFree = new AtomicLong(now);
+        this.lastChange = new AtomicLong(now);
+    }
+
+    /**
+     * Returns a new, full bucket with the same configuration.
+     */
+    public TokenBucket copy() {
+        return new TokenBucket(maxRate, minRate, burst);
+    }
+
+    public boolean isAdaptive() {
+        return minRate < maxRate;
+    }
+
+    /**
+     * Returns the current rate, in permits per second.
+     */
+    public long getRate() {
+        return rate.get();
+    }
+
+    /**
+     * Takes a permit, parking the calling thread until one is available.
+     *
+     * @return the nanoseconds spent waiting
+     */
+    public long acquire() {
+        long now = System.nanoTime();
+        long wait = reserve(now);
+        if (wait <= 0) {
+            return 0;
+        }
+        long deadline = now + wait;
+        long remaining = wait;
+        while (remaining > 0) {
+            LockSupport.parkNanos(this, remaining);
+            if (Thread.interrupted()) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            remaining = deadline - System.nanoTime();
+        }
+        return System.nanoTime() - now;
+    }
+
+    /**
+     * Reserves the next free slot.
+     *
+     * @return the nanoseconds to wait before using the permit, or a
+     *         non-positive value if it can be used right away
+     */
+    long reserve(long now) {
+        increaseIfDue(now);
+        long interval = NANOS_PER_SECOND / rate.get();
+        long tolerance = burst * interval;
+        while (true) {
+            long free = nextFree.get();
+            long next = Math.max(free, now) + interval;
+            if (nextFree.compareAndSet(free, next)) {
+                return next - tolerance - now;
+            }
+        }
+    }
+
+    /**
+     * Reports that the gateway dropped a connection: an adaptive bucket
+     * halves its rate.
+     */
+    public void backOff() {
+        if (!isAdaptive()) {
+            return;
+        }
+        lastChange.set(System.nanoTime());
+        while (true) {
+            long current = rate.get();
+            long lowered = Math.max(minRate, current / 2);
+            if (lowered == current || rate.compareAndSet(current, lowered)) {
+                return;
+            }
+        }
+    }
+
+    private void increaseIfDue(long now) {
+        long changed = lastChange.get();
+        if (now - changed < INCREASE_INTERVAL || rate.get() >= maxRate
+                || !lastChange.compareAndSet(changed, now)) {
+            return;
+        }
+        while (true) {
+            long current = rate.get();
+            long raised = Math.min(maxRate, current + increaseStep);
+            if (raised == current || rate.compareAndSet(current, raised)) {
+                return;
+            }
+        }
+    }
+}
@@ -39,11 +39,15 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
 import java.security.KeyStore;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.regex.Pattern;
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
@@ -68,8 +72,20 @@ public final class Utilities {
     public static final String PRODUCTION_FEEDBACK_HOST = "feedback.push.apple.com";
     public static final int PRODUCTION_FEEDBACK_PORT = 2196;
 
+    public static final String SANDBOX_HTTP2_HOST = "api.sandbox.push.apple.com";
+    public static final String PRODUCTION_HTTP2_HOST = "api.push.apple.com";
+    public static final int HTTP2_PORT = 443;
+
     public static final int MAX_PAYLOAD_LENGTH = 2048;
 
+    /** Command of the item-based frame format */
+    public static final byte FRAME_COMMAND = 2;
+    public static final byte ITEM_DEVICE_TOKEN = 1;
+    public static final byte ITEM_PAYLOAD = 2;
+    public static final byte ITEM_IDENTIFIER = 3;
+    public static final byte ITEM_EXPIRY = 4;
+    public static final byte ITEM_PRIORITY = 5;
+
     private Utilities() { throw new AssertionError("Uninstantiable class"); }
 
     private static final Pattern pattern = Pattern.compile("[ -]");
@@ -109,6 +125,70 @@ public final class Utilities {
         return new String(chars);
     }
 
+    private static final char BASE64[] =
+        "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+    private static final char BASE64_URL[] =
+        "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+
+    /**
+     * Encodes the bytes in the URL-safe Base64 alphabet, without padding,
+     * as used by JSON Web Tokens.
+     */
+    public static String encodeBase64Url(final byte[] bytes) {
+        final StringBuilder sb = new StringBuilder((bytes.length * 4 + 2) / 3);
+        for (int i = 0; i < bytes.length; i += 3) {
+            final int remaining = Math.min(3, bytes.length - i);
+            int block = (bytes[i] & 0xFF) << 16;
+            if (remaining > 1) {
+                block |= (bytes[i + 1] & 0xFF) << 8;
+            }
+            if (remaining > 2) {
+                block |= bytes[i + 2] & 0xFF;
+            }
+            for (int j = 0; j <= remaining; j++) {
+                sb.append(BASE64_URL[(block >>> (18 - 6 * j)) & 0x3F]);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Decodes Base64, in either alphabet, ignoring padding and whitespace.
+     */
+    public static byte[] decodeBase64(final String s) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(s.length() * 3 / 4);
+        int block = 0;
+        int bits = 0;
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            if (c == '=' || Character.isWhitespace(c)) {
+                continue;
+            }
+            block = (block << 6) | base64Value(c);
+            bits += 6;
+            if (bits >= 8) {
+                bits -= 8;
+                out.write(block >>> bits);
+                block &= (1 << bits) - 1;
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static int base64Value(final char c) {
+        if (c == '-') {
+            return 62;
+        } else if (c == '_') {
+            return 63;
+        }
+        for (int i = 0; i < BASE64.length; i++) {
+            if (BASE64[i] == c) {
+                return i;
+            }
+        }
+        throw new RuntimeException("Invalid base64 character: " + c);
+    }
+
     public static byte[] toUTF8Bytes(final String s) {
         try {
             return s.getBytes("UTF-8");
@@ -152,6 +232,31 @@ public final class Utilities {
         }
     }
 
+    /**
+     * Returns the length of the item-based (command 2) frame of a
+     * notification.
+     */
+    public static int frameLength(final int tokenLength, final int payloadLength) {
+        // command and frame length, then five items with their id and length
+        return 1 + 4 + 5 * 3 + tokenLength + payloadLength + 4 + 4 + 1;
+    }
+
+    /**
+     * Encodes a notification in the item-based (command 2) frame format.
+     */
+    public static byte[] marshallFrame(final int identifier, final int expiryTime,
+            final byte[] deviceToken, final byte[] payload, final byte priority) {
+        final ByteBuffer frame = ByteBuffer.allocate(frameLength(deviceToken.length, payload.length));
+        frame.put(FRAME_COMMAND);
+        frame.putInt(frame.capacity() - 5);
+        frame.put(ITEM_DEVICE_TOKEN).putShort((short) deviceToken.length).put(deviceToken);
+        frame.put(ITEM_PAYLOAD).putShort((short) payload.length).put(payload);
+        frame.put(ITEM_IDENTIFIER).putShort((short) 4).putInt(identifier);
+        frame.put(ITEM_EXPIRY).putShort((short) 4).putInt(expiryTime);
+        frame.put(ITEM_PRIORITY).putShort((short) 1).put(priority);
+        return frame.array();
+    }
+
     public static Map<byte[], Integer> parseFeedbackStreamRaw(final InputStream in) {
         final Map<byte[], Integer> result = new HashMap<byte[], Integer>();
 
@@ -191,6 +296,17 @@ public final class Utilities {
         return result;
     }
 
+    /**
+     * Returns the tasks opening the connections underlying the given one,
+     * or none if it can't be warmed up.
+     */
+    public static List<Callable<Void>> warmUpTasks(ApnsConnection connection) {
+        if (connection instanceof WarmableConnection) {
+            return ((WarmableConnection) connection).warmUpTasks();
+        }
+        return Collections.emptyList();
+    }
+
     public static void close(final Closeable closeable) {
         logger.debug("close {}", closeable);
 
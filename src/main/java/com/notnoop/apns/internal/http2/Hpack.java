@@ -0,0 +1,287 @@
+/*
+ *  Copyright 2009, Mahmood Ali.
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are
+ *  met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ *      copyright notice, this list of conditions and the following disclaimer
+ *      in the documentation and/or other materials provided with the
+ *      distribution.
+ *    * Neither the name of Mahmood Ali. nor the names of its
+ *      contributors may be used to endorse or promote products derived from
+ *      this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.apns.internal.http2;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * HPACK header compression (RFC 7541), as far as a client needs it.
+ *
+ * Headers are encoded as literals that don't enter the peer's dynamic
+ * table, with their names taken from the static table when possible: the
+ * requests of the provider API differ mostly by their path, so indexing
+ * would buy little.  Decoding supports the full format, including the
+ * dynamic table and Huffman-coded strings.
+ */
+public final class Hpack {
+    static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    static final String[][] STATIC_TABLE = {
+        { ":authority", "" },
+        { ":method", "GET" },
+        { ":method", "POST" },
+        { ":path", "/" },
+        { ":path", "/index.html" },
+        { ":scheme", "http" },
+        { ":scheme", "https" },
+        { ":status", "200" },
+        { ":status", "204" },
+        { ":status", "206" },
+        { ":status", "304" },
+        { ":status", "400" },
+        { ":status", "404" },
+        { ":status", "500" },
+        { "accept-charset", "" },
+        { "accept-encoding", "gzip, deflate" },
+        { "accept-language", "" },
+        { "accept-ranges", "" },
+        { "accept", "" },
+        { "access-control-allow-origin", "" },
+        { "age", "" },
+        { "allow", "" },
+        { "authorization", "" },
+        { "cache-control", "" },
+        { "content-disposition", "" },
+        { "content-encoding", "" },
+        { "content-language", "" },
+        { "content-length", "" },
+        { "content-location", "" },
+        { "content-range", "" },
+        { "content-type", "" },
+        { "cookie", "" },
+        { "date", "" },
+        { "etag", "" },
+        { "expect", "" },
+        { "expires", "" },
+        { "from", "" },
+        { "host", "" },
+        { "if-match", "" },
+        { "if-modified-since", "" },
+        { "if-none-match", "" },
+        { "if-range", "" },
+        { "if-unmodified-since", "" },
+        { "last-modified", "" },
+        { "link", "" },
+        { "location", "" },
+        { "max-forwards", "" },
+        { "proxy-authenticate", "" },
+        { "proxy-authorization", "" },
+        { "range", "" },
+        { "referer", "" },
+        { "refresh", "" },
+        { "retry-after", "" },
+        { "server", "" },
+        { "set-cookie", "" },
+        { "strict-transport-security", "" },
+        { "transfer-encoding", "" },
+        { "user-agent", "" },
+        { "vary", "" },
+        { "via", "" },
+        { "www-authenticate", "" },
+    };
+
+    private Hpack() { }
+
+    /**
+     * Encodes the headers, given as name and value pairs, into a header
+     * block.
+     */
+    public static byte[] encode(List<String[]> headers) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+        for (String[] header : headers) {
+            int nameIndex = staticNameIndex(header[0]);
+            // literal header field without indexing
+            writeInt(out, 0x00, 4, nameIndex);
+            if (nameIndex == 0) {
+                writeString(out, header[0]);
+            }
+            writeString(out, header[1]);
+        }
+        return out.toByteArray();
+    }
+
+    private static int staticNameIndex(String name) {
+        for (int i = 0; i < STATIC_TABLE.length; i++) {
+            if (STATIC_TABLE[i][0].equals(name)) {
+                return i + 1;
+            }
+        }
+        return 0;
+    }
+
+    static void writeInt(ByteArrayOutputStream out, int flags, int prefixBits, int value) {
+        int max = (1 << prefixBits) - 1;
+        if (value < max) {
+            out.write(flags | value);
+            return;
+        }
+        out.write(flags | max);
+        value -= max;
+        while (value >= 0x80) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String s) {
+        byte[] bytes = s.getBytes(ISO_8859_1);
+        writeInt(out, 0x00, 7, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Decodes the header blocks of one connection, in the order they were
+     * received, maintaining the dynamic table they share.
+     */
+    public static final class Decoder {
+        private final LinkedList<String[]> dynamicTable = new LinkedList<String[]>();
+        private final int maxAllowedSize;
+        private int maxSize;
+        private int size;
+
+        private byte[] block;
+        private int pos;
+
+        /**
+         * @param maxSize   the dynamic table size advertised to the peer
+         */
+        public Decoder(int maxSize) {
+            this.maxAllowedSize = maxSize;
+            this.maxSize = maxSize;
+        }
+
+        /**
+         * Decodes a complete header block into name and value pairs.
+         *
+         * @throws IOException if the block is malformed
+         */
+        public List<String[]> decode(byte[] headerBlock) throws IOException {
+            List<String[]> headers = new ArrayList<String[]>();
+            this.block = headerBlock;
+            this.pos = 0;
+            try {
+                while (pos < block.length) {
+                    int b = block[pos] & 0xff;
+                    if ((b & 0x80) != 0) {
+                        headers.add(entry(readInt(7)));
+                    } else if ((b & 0xc0) == 0x40) {
+                        String[] header = readLiteral(6);
+                        headers.add(header);
+                        add(header);
+                    } else if ((b & 0xe0) == 0x20) {
+                        int newSize = readInt(5);
+                        if (newSize > maxAllowedSize) {
+                            throw new IOException("Dynamic table size " + newSize + " over " + maxAllowedSize);
+                        }
+                        maxSize = newSize;
+                        evict();
+                    } else {
+                        headers.add(readLiteral(4));
+                    }
+                }
+            } catch (ArrayIndexOutOfBoundsException e) {
+                throw new IOException("Truncated header block");
+            } finally {
+                this.block = null;
+            }
+            return headers;
+        }
+
+        private String[] entry(int index) throws IOException {
+            if (index >= 1 && index <= STATIC_TABLE.length) {
+                return STATIC_TABLE[index - 1];
+            }
+            int dynamicIndex = index - STATIC_TABLE.length - 1;
+            if (dynamicIndex < 0 || dynamicIndex >= dynamicTable.size()) {
+                throw new IOException("Invalid header index " + index);
+            }
+            return dynamicTable.get(dynamicIndex);
+        }
+
+        private String[] readLiteral(int prefixBits) throws IOException {
+            int nameIndex = readInt(prefixBits);
+            String name = nameIndex == 0 ? readString() : entry(nameIndex)[0];
+            return new String[] { name, readString() };
+        }
+
+        private int readInt(int prefixBits) throws IOException {
+            int max = (1 << prefixBits) - 1;
+            int value = block[pos++] & max;
+            if (value < max) {
+                return value;
+            }
+            int shift = 0;
+            int b;
+            do {
+                if (shift > 28) {
+                    throw new IOException("Integer overflow in header block");
+                }
+                b = block[pos++] & 0xff;
+                value += (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+
+        private String readString() throws IOException {
+            boolean huffman = (block[pos] & 0x80) != 0;
+            int length = readInt(7);
+            if (length > block.length - pos) {
+                throw new IOException("Truncated header block");
+            }
+            String s = huffman ? Huffman.decode(block, pos, length) : new String(block, pos, length, ISO_8859_1);
+            pos += length;
+            return s;
+        }
+
+        private void add(String[] header) {
+            dynamicTable.addFirst(header);
+            size += entrySize(header);
+            evict();
+        }
+
+        private void evict() {
+            while (size > maxSize && !dynamicTable.isEmpty()) {
+                size -= entrySize(dynamicTable.removeLast());
+            }
+        }
+
+        private static int entrySize(String[] header) {
+            return header[0].length() + header[1].length() + 32;
+        }
+    }
+}
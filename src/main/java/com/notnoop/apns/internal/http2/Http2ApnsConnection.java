@@ -0,0 +1,359 @@
+/*
+ *  Copyright 2009, Mahmood Ali.
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are
+ *  met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ *      copyright notice, this list of conditions and the following disclaimer
+ *      in the documentation and/or other materials provided with the
+ *      distribution.
+ *    * Neither the name of Mahmood Ali. nor the names of its
+ *      contributors may be used to endorse or promote products derived from
+ *      this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.apns.internal.http2;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.net.ssl.SSLSocketFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.notnoop.apns.ApnsDelegate;
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.DeliveryError;
+import com.notnoop.apns.EnhancedApnsNotification;
+import com.notnoop.apns.FramedApnsNotification;
+import com.notnoop.apns.internal.ApnsConnection;
+import com.notnoop.apns.internal.InvalidTokenFilter;
+import com.notnoop.apns.internal.Utilities;
+import com.notnoop.apns.internal.WarmableConnection;
+import com.notnoop.apns.metrics.ApnsMetrics;
+import com.notnoop.apns.metrics.Counter;
+import com.notnoop.apns.metrics.Histogram;
+import com.notnoop.exceptions.ApnsDeliveryErrorException;
+import com.notnoop.exceptions.ApnsHttpErrorException;
+import com.notnoop.exceptions.NetworkIOException;
+
+/**
+ * A connection to the HTTP/2 provider API, usable wherever the binary
+ * gateway connection is.
+ *
+ * Unlike the binary protocol, every notification gets its own response,
+ * so there is nothing to resend after an error: {@code sendMessage}
+ * returns once the request is written, and the delegate is told about
+ * the outcome when the response arrives.  Many requests are in flight at
+ * once, up to the number of streams the server allows.
+ */
+public class Http2ApnsConnection implements WarmableConnection, Http2Connection.Listener {
+    private static final Logger logger = LoggerFactory.getLogger(Http2ApnsConnection.class);
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Pattern REASON = Pattern.compile("\"reason\"\\s*:\\s*\"([^\"]*)\"");
+    /** How long a sender waits for a free stream before giving up */
+    static final long STREAM_TIMEOUT_MILLIS = 30000;
+    /** How long closing waits for the outstanding responses */
+    static final long CLOSE_TIMEOUT_MILLIS = 5000;
+
+    private final SSLSocketFactory factory;
+    private final String host;
+    private final int port;
+    private final String topic;
+    private final ApnsDelegate delegate;
+    private final int connectTimeout;
+    private final ThreadFactory threadFactory;
+    // resends refused requests, off the reader thread that must free their streams;
+    // only alive while resending
+    private final ThreadPoolExecutor resender;
+
+    private ApnsMetrics metrics;
+    private Counter sentCounter;
+    private Counter bytesWrittenCounter;
+    private Counter reconnectCounter;
+    private Counter invalidTokenCounter;
+    private Histogram responseTime;
+    private InvalidTokenFilter invalidTokenFilter;
+    private ProviderTokenSigner tokenSigner;
+
+    // guarded by this
+    private Http2Connection connection;
+    private volatile boolean closed;
+
+    private static final class Request {
+        final ApnsNotification notification;
+        final String providerToken;
+        final long start = System.nanoTime();
+
+        Request(ApnsNotification notification, String providerToken) {
+            this.notification = notification;
+            this.providerToken = providerToken;
+        }
+    }
+
+    /**
+     * @param factory        creates the TLS sockets, authenticated with the provider certificate
+     * @param host           the provider API host
+     * @param port           the provider API port
+     * @param topic          the {@code apns-topic} of the requests, usually the bundle id;
+     *                       may be null if the certificate covers a single topic
+     * @param delegate       told about the outcome of every notification
+     * @param connectTimeout timeout of opening a connection, in milliseconds
+     * @param threadFactory  creates the thread reading the responses, or null
+     */
+    public Http2ApnsConnection(SSLSocketFactory factory, String host, int port, String topic,
+            ApnsDelegate delegate, int connectTimeout, ThreadFactory threadFactory) {
+        this.factory = factory;
+        this.host = host;
+        this.port = port;
+        this.topic = topic;
+        this.delegate = delegate == null ? ApnsDelegate.EMPTY : delegate;
+        this.connectTimeout = connectTimeout;
+        this.threadFactory = threadFactory;
+        this.resender = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                threadFactory != null ? threadFactory : new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "apns-http2-resender");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        this.resender.allowCoreThreadTimeOut(true);
+        setMetrics(ApnsMetrics.DISABLED);
+    }
+
+    /**
+     * Sets the registry this connection records its metrics into.
+     */
+    public void setMetrics(ApnsMetrics metrics) {
+        this.metrics = metrics == null ? ApnsMetrics.DISABLED : metrics;
+        this.sentCounter = this.metrics.counter(ApnsMetrics.SENT);
+        this.bytesWrittenCounter = this.metrics.counter(ApnsMetrics.BYTES_WRITTEN);
+        this.reconnectCounter = this.metrics.counter(ApnsMetrics.RECONNECTS);
+        this.invalidTokenCounter = this.metrics.counter(ApnsMetrics.INVALID_TOKENS_DROPPED);
+        this.responseTime = this.metrics.histogram(ApnsMetrics.HTTP2_RESPONSE_TIME);
+    }
+
+    /**
+     * Sets the filter of tokens known to be invalid: notifications to them
+     * aren't sent, and tokens rejected by the server are added to it.
+     */
+    public void setInvalidTokenFilter(InvalidTokenFilter invalidTokenFilter) {
+        this.invalidTokenFilter = invalidTokenFilter;
+    }
+
+    /**
+     * Authenticates the requests with the provider tokens of the given
+     * signer, in addition to the TLS client certificate if any.  Copies of
+     * this connection share the signer.
+     */
+    public void setProviderTokenSigner(ProviderTokenSigner tokenSigner) {
+        this.tokenSigner = tokenSigner;
+    }
+
+    private synchronized Http2Connection getConnection() throws IOException {
+        // a connection that is going away completes its open streams on its own
+        if (connection == null || connection.isClosed()) {
+            connection = Http2Connection.open(factory, host, port, connectTimeout, this, threadFactory);
+            reconnectCounter.increment();
+        }
+        return connection;
+    }
+
+    private synchronized void discard(Http2Connection failed) {
+        if (connection == failed) {
+            connection = null;
+        }
+    }
+
+    public void sendMessage(ApnsNotification m) throws NetworkIOException {
+        if (invalidTokenFilter != null && invalidTokenFilter.contains(m.getDeviceToken())) {
+            invalidTokenCounter.increment();
+            delegate.messageSendFailed(m, new ApnsDeliveryErrorException(DeliveryError.INVALID_TOKEN));
+            return;
+        }
+
+        String providerToken = tokenSigner == null ? null : tokenSigner.currentToken();
+        List<String[]> headers = headersOf(m, providerToken);
+        byte[] payload = m.getPayload();
+        IOException failure = null;
+        // a second attempt on a fresh connection covers servers closing idle ones
+        for (int attempt = 0; attempt < 2; attempt++) {
+            Http2Connection current = null;
+            try {
+                current = getConnection();
+                current.send(headers, payload, new Request(m, providerToken), STREAM_TIMEOUT_MILLIS);
+                sentCounter.increment();
+                bytesWrittenCounter.add(payload.length);
+                return;
+            } catch (IOException e) {
+                logger.debug("Couldn't send notification on attempt {}", attempt + 1, e);
+                failure = e;
+                if (current != null) {
+                    discard(current);
+                }
+            }
+        }
+        delegate.messageSendFailed(m, failure);
+        throw new NetworkIOException(failure);
+    }
+
+    List<String[]> headersOf(ApnsNotification m, String providerToken) {
+        List<String[]> headers = new ArrayList<String[]>(10);
+        headers.add(header(":method", "POST"));
+        headers.add(header(":scheme", "https"));
+        headers.add(header(":path", "/3/device/" + Utilities.encodeHex(m.getDeviceToken()).toLowerCase()));
+        headers.add(header(":authority", host));
+        if (providerToken != null) {
+            headers.add(header("authorization", "bearer " + providerToken));
+        }
+        if (topic != null) {
+            headers.add(header("apns-topic", topic));
+        }
+        if (m instanceof EnhancedApnsNotification && m.getExpiry() >= 0) {
+            headers.add(header("apns-expiration", String.valueOf(m.getExpiry())));
+        }
+        if (m instanceof FramedApnsNotification) {
+            headers.add(header("apns-priority", String.valueOf(((FramedApnsNotification) m).getPriority())));
+        }
+        headers.add(header("content-length", String.valueOf(m.getPayload().length)));
+        return headers;
+    }
+
+    private static String[] header(String name, String value) {
+        return new String[] { name, value };
+    }
+
+    public void responseReceived(Object attachment, int status, List<String[]> headers, byte[] body) {
+        Request request = (Request) attachment;
+        responseTime.recordSince(request.start);
+        if (status == 200) {
+            delegate.messageSent(request.notification, false);
+            return;
+        }
+
+        String reason = reasonOf(body);
+        metrics.counter(ApnsMetrics.ERRORS_PREFIX + (reason == null ? String.valueOf(status) : reason)).increment();
+        if (invalidTokenFilter != null
+                && (status == 410 || "BadDeviceToken".equals(reason) || "Unregistered".equals(reason))) {
+            invalidTokenFilter.add(request.notification.getDeviceToken());
+        }
+        if (tokenSigner != null && "ExpiredProviderToken".equals(reason)) {
+            tokenSigner.tokenExpired(request.providerToken);
+        }
+        delegate.messageSendFailed(request.notification, new ApnsHttpErrorException(status, reason));
+    }
+
+    static String reasonOf(byte[] body) {
+        Matcher matcher = REASON.matcher(new String(body, UTF_8));
+        return matcher.find() ? matcher.group(1) : null;
+    }
+
+    public void requestFailed(Object attachment, final IOException cause, boolean refused) {
+        final Request request = (Request) attachment;
+        if (refused && !closed) {
+            // sending waits for a free stream, which only this reader thread can free
+            try {
+                resender.execute(new Runnable() {
+                    public void run() {
+                        if (closed) {
+                            delegate.messageSendFailed(request.notification, cause);
+                            return;
+                        }
+                        try {
+                            sendMessage(request.notification);
+                        } catch (NetworkIOException e) {
+                            // the delegate was told by sendMessage
+                        }
+                    }
+                });
+                return;
+            } catch (RejectedExecutionException e) {
+                // closed meanwhile
+            }
+        }
+        delegate.messageSendFailed(request.notification, cause);
+    }
+
+    public List<Callable<Void>> warmUpTasks() {
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(1);
+        tasks.add(new Callable<Void>() {
+            public Void call() throws IOException {
+                getConnection();
+                return null;
+            }
+        });
+        return tasks;
+    }
+
+    public void testConnection() throws NetworkIOException {
+        Http2Connection test = null;
+        try {
+            test = Http2Connection.open(factory, host, port, connectTimeout, new Http2Connection.Listener() {
+                public void responseReceived(Object attachment, int status, List<String[]> headers, byte[] body) { }
+                public void requestFailed(Object attachment, IOException cause, boolean refused) { }
+            }, threadFactory);
+        } catch (IOException e) {
+            throw new NetworkIOException(e);
+        } finally {
+            if (test != null) {
+                test.close(0);
+            }
+        }
+    }
+
+    public synchronized void close() throws IOException {
+        closed = true;
+        resender.shutdown();
+        if (connection != null) {
+            connection.close(CLOSE_TIMEOUT_MILLIS);
+            connection = null;
+        }
+    }
+
+    public ApnsConnection copy() {
+        Http2ApnsConnection copy = new Http2ApnsConnection(factory, host, port, topic,
+                delegate, connectTimeout, threadFactory);
+        copy.setMetrics(metrics);
+        copy.setInvalidTokenFilter(invalidTokenFilter);
+        copy.setProviderTokenSigner(tokenSigner);
+        return copy;
+    }
+
+    /**
+     * Ignored: responses are per notification, so nothing is cached for resending.
+     */
+    public void setCacheLength(int cacheLength) {
+    }
+
+    public int getCacheLength() {
+        return 0;
+    }
+}
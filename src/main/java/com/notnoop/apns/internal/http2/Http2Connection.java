@@ -0,0 +1,765 @@
+/*
+ *  Copyright 2009, Mahmood Ali.
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are
+ *  met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ *      copyright notice, this list of conditions and the following disclaimer
+ *      in the documentation and/or other materials provided with the
+ *      distribution.
+ *    * Neither the name of Mahmood Ali. nor the names of its
+ *      contributors may be used to endorse or promote products derived from
+ *      this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.apns.internal.http2;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.notnoop.apns.internal.Utilities;
+
+/**
+ * The client side of a single HTTP/2 connection (RFC 7540), multiplexing
+ * requests over one TLS socket.
+ *
+ * Requests are written by the calling threads, each on a new stream, and
+ * the responses are read by a dedicated thread that hands them to the
+ * {@link Listener}.  A sender blocks while the connection already has as
+ * many open streams as the server allows, or while the flow-control
+ * window can't take its body.
+ *
+ * Only what a provider-API client needs is implemented: no server push,
+ * no priorities, and request bodies are sent in full right away.
+ */
+public class Http2Connection {
+    private static final Logger logger = LoggerFactory.getLogger(Http2Connection.class);
+
+    static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(Hpack.ISO_8859_1);
+
+    static final int DATA = 0x0;
+    static final int HEADERS = 0x1;
+    static final int RST_STREAM = 0x3;
+    static final int SETTINGS = 0x4;
+    static final int PUSH_PROMISE = 0x5;
+    static final int PING = 0x6;
+    static final int GOAWAY = 0x7;
+    static final int WINDOW_UPDATE = 0x8;
+    static final int CONTINUATION = 0x9;
+
+    static final int FLAG_END_STREAM = 0x1;
+    static final int FLAG_ACK = 0x1;
+    static final int FLAG_END_HEADERS = 0x4;
+    static final int FLAG_PADDED = 0x8;
+    static final int FLAG_PRIORITY = 0x20;
+
+    static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    static final int SETTINGS_ENABLE_PUSH = 0x2;
+    static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+
+    static final int REFUSED_STREAM = 0x7;
+
+    static final int DEFAULT_WINDOW_SIZE = 65535;
+    static final int DEFAULT_MAX_FRAME_SIZE = 16384;
+    /** Streams allowed until the server tells its own limit */
+    static final int INITIAL_MAX_STREAMS = 100;
+    /** How long to wait for the server settings when no connect timeout is set */
+    static final long DEFAULT_SETTINGS_TIMEOUT_MILLIS = 10000;
+    /** The receive window advertised for the connection and every stream */
+    static final int RECEIVE_WINDOW_SIZE = 1 << 20;
+
+    /**
+     * Receives the outcome of the requests sent on a connection.  Called
+     * from the reading thread, so implementations shouldn't block.
+     */
+    public interface Listener {
+
+        /**
+         * Called when the complete response to a request is received.
+         *
+         * @param attachment    the object passed with the request
+         * @param status        the HTTP status of the response
+         * @param headers       the response headers, as name/value pairs
+         * @param body          the response body, possibly empty
+         */
+        void responseReceived(Object attachment, int status, List<String[]> headers, byte[] body);
+
+        /**
+         * Called when a request won't get a response.
+         *
+         * @param attachment    the object passed with the request
+         * @param cause         why the request failed
+         * @param refused       true if the server is known not to have
+         *                      processed the request, so it can be retried
+         */
+        void requestFailed(Object attachment, IOException cause, boolean refused);
+    }
+
+    private static final class Stream {
+        final Object attachment;
+        List<String[]> headers;
+        int status;
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+        Stream(Object attachment) {
+            this.attachment = attachment;
+        }
+    }
+
+    private final SSLSocket socket;
+    private final DataInputStream in;
+    private final OutputStream out;
+    private final Listener listener;
+    private final Hpack.Decoder decoder = new Hpack.Decoder(4096);
+    private final Map<Integer, Stream> streams = new ConcurrentHashMap<Integer, Stream>();
+    private final CountDownLatch settingsReceived = new CountDownLatch(1);
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition capacity = lock.newCondition();
+    // guarded by lock
+    private int openStreams;
+    private int maxConcurrentStreams = INITIAL_MAX_STREAMS;
+    private long sendWindow = DEFAULT_WINDOW_SIZE;
+    private int initialStreamWindow = DEFAULT_WINDOW_SIZE;
+    private boolean goingAway;
+    private int lastAcceptedStream = Integer.MAX_VALUE;
+    private boolean terminated;
+    private String closeReason;
+
+    private final Object writeLock = new Object();
+    // guarded by writeLock
+    private int nextStreamId = 1;
+
+    private volatile int maxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+
+    // only touched by the reading thread
+    private int unacknowledgedBytes;
+    private ByteArrayOutputStream pendingHeaderBlock;
+    private int pendingHeadersStream;
+    private boolean pendingEndStream;
+
+    Http2Connection(SSLSocket socket, Listener listener) throws IOException {
+        this.socket = socket;
+        this.in = new DataInputStream(socket.getInputStream());
+        this.out = new BufferedOutputStream(socket.getOutputStream(), DEFAULT_MAX_FRAME_SIZE + 9);
+        this.listener = listener;
+    }
+
+    /**
+     * Opens a connection: connects the TLS socket, negotiating {@code h2}
+     * through ALPN when the JRE supports it, sends the connection preface,
+     * starts the reading thread and waits for the server settings.
+     *
+     * @param factory       the factory of the TLS sockets
+     * @param host          the server host
+     * @param port          the server port
+     * @param connectTimeout timeout of the TCP connection and TLS handshake, in milliseconds
+     * @param listener      receives the responses
+     * @param threadFactory creates the reading thread, or null for a default daemon thread
+     * @return the open connection
+     * @throws IOException if the server can't be reached
+     */
+    public static Http2Connection open(SSLSocketFactory factory, String host, int port,
+            int connectTimeout, Listener listener, ThreadFactory threadFactory) throws IOException {
+        SSLSocket socket = (SSLSocket) factory.createSocket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), connectTimeout);
+            socket.setSoTimeout(connectTimeout);
+            socket.setTcpNoDelay(true);
+            requestAlpn(socket);
+            socket.startHandshake();
+            // the reading thread waits for frames indefinitely
+            socket.setSoTimeout(0);
+
+            Http2Connection connection = new Http2Connection(socket, listener);
+            connection.start(threadFactory);
+            // the server's stream limit applies to the very first requests
+            long settingsTimeout = connectTimeout > 0 ? connectTimeout : DEFAULT_SETTINGS_TIMEOUT_MILLIS;
+            if (!connection.settingsReceived.await(settingsTimeout, TimeUnit.MILLISECONDS)
+                    || connection.isClosed()) {
+                connection.terminate(new IOException("No SETTINGS received"));
+                throw new IOException("The server didn't complete the HTTP/2 connection setup");
+            }
+            return connection;
+        } catch (InterruptedException e) {
+            Utilities.close(socket);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted opening the connection");
+        } catch (IOException e) {
+            Utilities.close(socket);
+            throw e;
+        }
+    }
+
+    /**
+     * Sets the ALPN protocols of the socket, through reflection as the
+     * API only exists from Java 8u252 on.  Servers that require {@code h2}
+     * reject the handshake when ALPN isn't available.
+     */
+    private static void requestAlpn(SSLSocket socket) {
+        try {
+            Method setter = SSLParameters.class.getMethod("setApplicationProtocols", String[].class);
+            SSLParameters parameters = socket.getSSLParameters();
+            setter.invoke(parameters, (Object) new String[] { "h2" });
+            socket.setSSLParameters(parameters);
+        } catch (NoSuchMethodException e) {
+            logger.debug("ALPN isn't supported by this JRE");
+        } catch (Exception e) {
+            logger.warn("Couldn't request ALPN", e);
+        }
+    }
+
+    void start(ThreadFactory threadFactory) throws IOException {
+        ByteArrayOutputStream settings = new ByteArrayOutputStream();
+        writeSetting(settings, SETTINGS_ENABLE_PUSH, 0);
+        writeSetting(settings, SETTINGS_INITIAL_WINDOW_SIZE, RECEIVE_WINDOW_SIZE);
+        synchronized (writeLock) {
+            out.write(PREFACE);
+            writeFrame(SETTINGS, 0, 0, settings.toByteArray(), 0, settings.size());
+            byte[] increment = intBytes(RECEIVE_WINDOW_SIZE - DEFAULT_WINDOW_SIZE);
+            writeFrame(WINDOW_UPDATE, 0, 0, increment, 0, increment.length);
+            out.flush();
+        }
+
+        Runnable reader = new Runnable() {
+            public void run() {
+                readFrames();
+            }
+        };
+        Thread thread;
+        if (threadFactory == null) {
+            thread = new Thread(reader, "http2-reader-" + socket.getInetAddress());
+            thread.setDaemon(true);
+        } else {
+            thread = threadFactory.newThread(reader);
+        }
+        thread.start();
+    }
+
+    /**
+     * Sends a request on a new stream.
+     *
+     * @param headers       the request headers, pseudo-headers first
+     * @param body          the request body
+     * @param attachment    passed back to the listener with the outcome
+     * @param timeoutMillis how long to wait for a free stream
+     * @throws IOException if the connection is closed, or no stream became
+     *                     available in time; the listener isn't called then
+     */
+    public void send(List<String[]> headers, byte[] body, Object attachment, long timeoutMillis)
+            throws IOException {
+        reserve(body.length, timeoutMillis);
+
+        byte[] headerBlock = Hpack.encode(headers);
+        int streamId = 0;
+        boolean refused = false;
+        try {
+            synchronized (writeLock) {
+                streamId = nextStreamId;
+                if (streamId < 0) {
+                    throw new IOException("Stream identifiers exhausted");
+                }
+                nextStreamId += 2;
+                streams.put(streamId, new Stream(attachment));
+                refused = isRefused(streamId);
+                if (!refused) {
+                    writeHeaders(streamId, headerBlock, body.length == 0);
+                    int offset = 0;
+                    while (offset < body.length) {
+                        int length = Math.min(maxFrameSize, body.length - offset);
+                        int flags = offset + length == body.length ? FLAG_END_STREAM : 0;
+                        writeFrame(DATA, flags, streamId, body, offset, length);
+                        offset += length;
+                    }
+                    out.flush();
+                }
+            }
+        } catch (IOException e) {
+            boolean ours = streamId == 0 || streams.remove(streamId) != null;
+            if (ours) {
+                release();
+            }
+            terminate(e);
+            if (ours) {
+                throw e;
+            }
+            // otherwise the reading thread already failed it through the listener
+        }
+        // a GOAWAY raced with this request; whoever removes the stream reports it
+        if (refused && streams.remove(streamId) != null) {
+            release();
+            throw new IOException("Connection closed: " + getCloseReason());
+        }
+    }
+
+    private boolean isRefused(int streamId) {
+        lock.lock();
+        try {
+            return goingAway && streamId > lastAcceptedStream;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private String getCloseReason() {
+        lock.lock();
+        try {
+            return closeReason;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void reserve(int bodyLength, long timeoutMillis) throws IOException {
+        long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        lock.lock();
+        try {
+            while (true) {
+                if (goingAway || terminated) {
+                    throw new IOException("Connection closed: " + closeReason);
+                }
+                if (openStreams < maxConcurrentStreams
+                        && sendWindow >= bodyLength && initialStreamWindow >= bodyLength) {
+                    openStreams++;
+                    sendWindow -= bodyLength;
+                    return;
+                }
+                if (remaining <= 0) {
+                    throw new IOException("Timed out waiting for a stream");
+                }
+                remaining = capacity.awaitNanos(remaining);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a stream");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void release() {
+        lock.lock();
+        try {
+            openStreams--;
+            capacity.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of requests waiting for their response.
+     */
+    public int getOpenStreams() {
+        lock.lock();
+        try {
+            return openStreams;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns true once the connection doesn't accept new requests, either
+     * because the server sent a {@code GOAWAY} or the socket was closed.
+     * Requests already sent may still complete.
+     */
+    public boolean isClosed() {
+        lock.lock();
+        try {
+            return goingAway || terminated;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Closes the connection, after waiting up to the given time for the
+     * open streams to complete.  Requests still open then are failed.
+     */
+    public void close(long timeoutMillis) {
+        long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        lock.lock();
+        try {
+            goingAway = true;
+            if (closeReason == null) {
+                closeReason = "closed by the client";
+            }
+            while (openStreams > 0 && remaining > 0) {
+                remaining = capacity.awaitNanos(remaining);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            lock.unlock();
+        }
+        terminate(new IOException("Connection closed"));
+    }
+
+    private void terminate(IOException cause) {
+        lock.lock();
+        try {
+            if (terminated) {
+                return;
+            }
+            terminated = true;
+            if (closeReason == null) {
+                closeReason = String.valueOf(cause.getMessage());
+            }
+            capacity.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        Utilities.close(socket);
+        settingsReceived.countDown();
+
+        for (Integer id : new ArrayList<Integer>(streams.keySet())) {
+            Stream stream = streams.remove(id);
+            if (stream != null) {
+                release();
+                listener.requestFailed(stream.attachment, cause, false);
+            }
+        }
+    }
+
+    private void readFrames() {
+        try {
+            while (true) {
+                int length = (in.readUnsignedByte() << 16) | in.readUnsignedShort();
+                int type = in.readUnsignedByte();
+                int flags = in.readUnsignedByte();
+                int streamId = in.readInt() & 0x7fffffff;
+                if (length > DEFAULT_MAX_FRAME_SIZE) {
+                    throw new IOException("Frame of " + length + " bytes exceeds the maximum frame size");
+                }
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                frameReceived(type, flags, streamId, payload);
+            }
+        } catch (IOException e) {
+            boolean expected;
+            lock.lock();
+            try {
+                expected = goingAway || terminated;
+            } finally {
+                lock.unlock();
+            }
+            if (!expected) {
+                logger.warn("HTTP/2 connection to {} failed", socket.getInetAddress(), e);
+            }
+            terminate(e);
+        } catch (RuntimeException e) {
+            logger.error("Unexpected failure reading HTTP/2 frames", e);
+            terminate(new IOException(e.toString()));
+        }
+    }
+
+    private void frameReceived(int type, int flags, int streamId, byte[] payload) throws IOException {
+        if (pendingHeaderBlock != null && type != CONTINUATION) {
+            throw new IOException("Expected a CONTINUATION frame, got type " + type);
+        }
+        switch (type) {
+        case DATA:
+            dataReceived(flags, streamId, payload);
+            break;
+        case HEADERS: {
+            int offset = 0;
+            int padding = 0;
+            if ((flags & FLAG_PADDED) != 0) {
+                padding = payload[0] & 0xff;
+                offset = 1;
+            }
+            if ((flags & FLAG_PRIORITY) != 0) {
+                offset += 5;
+            }
+            if (offset + padding > payload.length) {
+                throw new IOException("Invalid HEADERS padding");
+            }
+            pendingHeaderBlock = new ByteArrayOutputStream();
+            pendingHeaderBlock.write(payload, offset, payload.length - offset - padding);
+            pendingHeadersStream = streamId;
+            pendingEndStream = (flags & FLAG_END_STREAM) != 0;
+            if ((flags & FLAG_END_HEADERS) != 0) {
+                headersReceived();
+            }
+            break;
+        }
+        case CONTINUATION:
+            if (pendingHeaderBlock == null || streamId != pendingHeadersStream) {
+                throw new IOException("Unexpected CONTINUATION frame");
+            }
+            pendingHeaderBlock.write(payload, 0, payload.length);
+            if ((flags & FLAG_END_HEADERS) != 0) {
+                headersReceived();
+            }
+            break;
+        case RST_STREAM: {
+            checkLength(payload, 4, "RST_STREAM");
+            int errorCode = readInt(payload, 0);
+            Stream stream = streams.remove(streamId);
+            if (stream != null) {
+                release();
+                listener.requestFailed(stream.attachment,
+                        new IOException("Stream reset with error code " + errorCode),
+                        errorCode == REFUSED_STREAM);
+            }
+            break;
+        }
+        case SETTINGS:
+            if ((flags & FLAG_ACK) == 0) {
+                settingsReceived(payload);
+            }
+            break;
+        case PUSH_PROMISE:
+            throw new IOException("Received PUSH_PROMISE though push is disabled");
+        case PING:
+            if ((flags & FLAG_ACK) == 0) {
+                writeControl(PING, FLAG_ACK, 0, payload);
+            }
+            break;
+        case GOAWAY:
+            goAwayReceived(payload);
+            break;
+        case WINDOW_UPDATE:
+            // request bodies are sent whole, so only the connection window matters
+            checkLength(payload, 4, "WINDOW_UPDATE");
+            if (streamId == 0) {
+                lock.lock();
+                try {
+                    sendWindow += readInt(payload, 0) & 0x7fffffff;
+                    capacity.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+            break;
+        default:
+            // unknown frame types must be ignored
+            break;
+        }
+    }
+
+    private void dataReceived(int flags, int streamId, byte[] payload) throws IOException {
+        int offset = 0;
+        int padding = 0;
+        if ((flags & FLAG_PADDED) != 0) {
+            padding = payload[0] & 0xff;
+            offset = 1;
+        }
+        if (offset + padding > payload.length) {
+            throw new IOException("Invalid DATA padding");
+        }
+        Stream stream = streams.get(streamId);
+        if (stream != null) {
+            stream.body.write(payload, offset, payload.length - offset - padding);
+        }
+
+        // responses are small; replenishing the connection window suffices
+        unacknowledgedBytes += payload.length;
+        if (unacknowledgedBytes >= RECEIVE_WINDOW_SIZE / 2) {
+            writeControl(WINDOW_UPDATE, 0, 0, intBytes(unacknowledgedBytes));
+            unacknowledgedBytes = 0;
+        }
+        if ((flags & FLAG_END_STREAM) != 0) {
+            streamCompleted(streamId);
+        }
+    }
+
+    private void headersReceived() throws IOException {
+        // the block must be decoded even for unknown streams, to keep the table in sync
+        List<String[]> headers = decoder.decode(pendingHeaderBlock.toByteArray());
+        int streamId = pendingHeadersStream;
+        boolean endStream = pendingEndStream;
+        pendingHeaderBlock = null;
+
+        Stream stream = streams.get(streamId);
+        if (stream != null && stream.headers == null) {
+            stream.headers = headers;
+            for (String[] header : headers) {
+                if (":status".equals(header[0])) {
+                    try {
+                        stream.status = Integer.parseInt(header[1]);
+                    } catch (NumberFormatException e) {
+                        throw new IOException("Invalid status " + header[1]);
+                    }
+                }
+            }
+        }
+        if (endStream) {
+            streamCompleted(streamId);
+        }
+    }
+
+    private void streamCompleted(int streamId) {
+        Stream stream = streams.remove(streamId);
+        if (stream == null) {
+            return;
+        }
+        release();
+        listener.responseReceived(stream.attachment, stream.status,
+                stream.headers == null ? new ArrayList<String[]>() : stream.headers,
+                stream.body.toByteArray());
+    }
+
+    private void settingsReceived(byte[] payload) throws IOException {
+        if (payload.length % 6 != 0) {
+            throw new IOException("Invalid SETTINGS length " + payload.length);
+        }
+        for (int i = 0; i < payload.length; i += 6) {
+            int id = ((payload[i] & 0xff) << 8) | (payload[i + 1] & 0xff);
+            int value = readInt(payload, i + 2);
+            switch (id) {
+            case SETTINGS_MAX_CONCURRENT_STREAMS:
+                lock.lock();
+                try {
+                    maxConcurrentStreams = value < 0 ? Integer.MAX_VALUE : value;
+                    capacity.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+                break;
+            case SETTINGS_INITIAL_WINDOW_SIZE:
+                lock.lock();
+                try {
+                    initialStreamWindow = value;
+                    capacity.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+                break;
+            case SETTINGS_MAX_FRAME_SIZE:
+                maxFrameSize = value;
+                break;
+            default:
+                // the encoder doesn't use the server's dynamic table
+                break;
+            }
+        }
+        writeControl(SETTINGS, FLAG_ACK, 0, new byte[0]);
+        settingsReceived.countDown();
+    }
+
+    private void goAwayReceived(byte[] payload) throws IOException {
+        checkLength(payload, 8, "GOAWAY");
+        int lastStreamId = readInt(payload, 0) & 0x7fffffff;
+        int errorCode = readInt(payload, 4);
+        String debug = new String(payload, 8, payload.length - 8, Hpack.ISO_8859_1);
+        logger.info("Received GOAWAY with error code {} ({}), last stream {}",
+                new Object[] { errorCode, debug, lastStreamId });
+        lock.lock();
+        try {
+            goingAway = true;
+            lastAcceptedStream = lastStreamId;
+            closeReason = "GOAWAY with error code " + errorCode + (debug.length() == 0 ? "" : ": " + debug);
+            capacity.signalAll();
+        } finally {
+            lock.unlock();
+        }
+
+        // streams above the last one weren't processed and can be retried
+        IOException cause = new IOException("Stream refused by GOAWAY");
+        for (Integer id : new ArrayList<Integer>(streams.keySet())) {
+            if (id > lastStreamId) {
+                Stream stream = streams.remove(id);
+                if (stream != null) {
+                    release();
+                    listener.requestFailed(stream.attachment, cause, true);
+                }
+            }
+        }
+    }
+
+    private void writeHeaders(int streamId, byte[] block, boolean endStream) throws IOException {
+        int frameSize = maxFrameSize;
+        int length = Math.min(frameSize, block.length);
+        int flags = (endStream ? FLAG_END_STREAM : 0) | (length == block.length ? FLAG_END_HEADERS : 0);
+        writeFrame(HEADERS, flags, streamId, block, 0, length);
+        int offset = length;
+        while (offset < block.length) {
+            length = Math.min(frameSize, block.length - offset);
+            flags = offset + length == block.length ? FLAG_END_HEADERS : 0;
+            writeFrame(CONTINUATION, flags, streamId, block, offset, length);
+            offset += length;
+        }
+    }
+
+    private void writeControl(int type, int flags, int streamId, byte[] payload) throws IOException {
+        synchronized (writeLock) {
+            writeFrame(type, flags, streamId, payload, 0, payload.length);
+            out.flush();
+        }
+    }
+
+    private void writeFrame(int type, int flags, int streamId, byte[] payload, int offset, int length)
+            throws IOException {
+        out.write(length >>> 16);
+        out.write(length >>> 8);
+        out.write(length);
+        out.write(type);
+        out.write(flags);
+        out.write(intBytes(streamId & 0x7fffffff));
+        out.write(payload, offset, length);
+    }
+
+    private static void writeSetting(ByteArrayOutputStream out, int id, int value) {
+        out.write(id >>> 8);
+        out.write(id);
+        out.write(intBytes(value), 0, 4);
+    }
+
+    private static byte[] intBytes(int value) {
+        return new byte[] {
+            (byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value
+        };
+    }
+
+    private static void checkLength(byte[] payload, int minimum, String frame) throws IOException {
+        if (payload.length < minimum) {
+            throw new IOException("Invalid " + frame + " length " + payload.length);
+        }
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xff) << 24) | ((bytes[offset + 1] & 0xff) << 16)
+                | ((bytes[offset + 2] & 0xff) << 8) | (bytes[offset + 3] & 0xff);
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ *  Copyright 2009, Mahmood Ali.
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are
+ *  met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ *      copyright notice, this list of conditions and the following disclaimer
+ *      in the documentation and/or other materials provided with the
+ *      distribution.
+ *    * Neither the name of Mahmood Ali. nor the names of its
+ *      contributors may be used to endorse or promote products derived from
+ *      this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.apns.internal.http2;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.notnoop.apns.internal.Utilities;
+
+/**
+ * Signs the ES256 JSON Web Tokens used to authenticate to the provider API
+ * instead of a client certificate.
+ *
+ * The token is signed once and then reused by every request of every
+ * connection sharing the signer, until it gets old: Apple rejects tokens
+ * issued more than an hour ago, and refreshing them more than once every
+ * twenty minutes.  A token past {@link #REFRESH_MILLIS} is still handed
+ * out while a fresh one is signed in the background, so no request waits
+ * for an ECDSA signature.  Only a token past its hour, e.g. after a long
+ * idle period, is re-signed on the calling thread.
+ */
+public class ProviderTokenSigner {
+    private static final Logger logger = LoggerFactory.getLogger(ProviderTokenSigner.class);
+
+    /** Age after which a token is refreshed in the background */
+    public static final long REFRESH_MILLIS = TimeUnit.MINUTES.toMillis(50);
+    /** Age after which Apple rejects a token */
+    public static final long MAX_AGE_MILLIS = TimeUnit.MINUTES.toMillis(60);
+    /** Minimum age before Apple accepts a replacement token */
+    public static final long MIN_REFRESH_MILLIS = TimeUnit.MINUTES.toMillis(20);
+
+    private static final int SIGNATURE_PART_LENGTH = 32;
+
+    // a single thread, shared by all signers and only alive while refreshing
+    private static final Executor REFRESHER;
+    static {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "apns-token-refresher");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        REFRESHER = executor;
+    }
+
+    private static final class Token {
+        final String value;
+        final long issuedAt;
+
+        Token(String value, long issuedAt) {
+            this.value = value;
+            this.issuedAt = issuedAt;
+        }
+    }
+
+    private final PrivateKey key;
+    private final String header;
+    private final String teamId;
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+    private final Runnable refresh = new Runnable() {
+        public void run() {
+            try {
+                token = sign(System.currentTimeMillis());
+            } catch (RuntimeException e) {
+                // keep the current token; the next request tries again
+                logger.warn("Failed refreshing the provider token", e);
+            } finally {
+                refreshing.set(false);
+            }
+        }
+    };
+    private volatile Token token;
+
+    /**
+     * Creates a signer and signs the first token.
+     *
+     * @param key       the EC private key of the provider, from the .p8 file
+     * @param keyId     the 10-character identifier of the key
+     * @param teamId    the 10-character identifier of the developer team
+     * @throws IllegalArgumentException if the key can't sign ES256 tokens
+     */
+    public ProviderTokenSigner(PrivateKey key, String keyId, String teamId) {
+        this.key = key;
+        this.header = Utilities.encodeBase64Url(Utilities.toUTF8Bytes(
+                "{\"alg\":\"ES256\",\"kid\":\"" + keyId + "\"}"));
+        this.teamId = teamId;
+        this.token = sign(System.currentTimeMillis());
+    }
+
+    /**
+     * Reads a PKCS#8 private key, as in the .p8 files issued by Apple:
+     * either PEM text or the raw DER bytes.
+     *
+     * @param stream    the key file
+     * @return the private key
+     * @throws IOException if the stream can't be read
+     * @throws IllegalArgumentException if it doesn't hold an EC private key
+     */
+    public static PrivateKey loadKey(InputStream stream) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int read;
+        while ((read = stream.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        byte[] der = out.toByteArray();
+        String text = new String(der, "ISO-8859-1");
+        if (text.contains("-----BEGIN")) {
+            der = Utilities.decodeBase64(text.replaceAll("-----[A-Z ]+-----", ""));
+        }
+        try {
+            return KeyFactory.getInstance("EC").generatePrivate(new PKCS8EncodedKeySpec(der));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalArgumentException("Not a PKCS#8 EC private key", e);
+        }
+    }
+
+    /**
+     * Returns the current token, for the {@code authorization} header.
+     * Never blocks unless the token is past its hour.
+     */
+    public String currentToken() {
+        return currentToken(System.currentTimeMillis());
+    }
+
+    String currentToken(long now) {
+        Token current = token;
+        long age = now - current.issuedAt;
+        if (age >= MAX_AGE_MILLIS) {
+            current = sign(now);
+            token = current;
+        } else if (age >= REFRESH_MILLIS && refreshing.compareAndSet(false, true)) {
+            REFRESHER.execute(refresh);
+        }
+        return current.value;
+    }
+
+    /**
+     * Reports that the server rejected the given token as expired, which
+     * can happen when the local clock is behind.  A replacement is signed in
+     * the background, unless the token is too recent to be replaced.
+     *
+     * @param rejected  the token sent with the rejected request
+     */
+    public void tokenExpired(String rejected) {
+        Token current = token;
+        if (current.value.equals(rejected)
+                && System.currentTimeMillis() - current.issuedAt >= MIN_REFRESH_MILLIS
+                && refreshing.compareAndSet(false, true)) {
+            REFRESHER.execute(refresh);
+        }
+    }
+
+    private Token sign(long now) {
+        long issuedAt = now / 1000;
+        String claims = Utilities.encodeBase64Url(Utilities.toUTF8Bytes(
+                "{\"iss\":\"" + teamId + "\",\"iat\":" + issuedAt + "}"));
+        String content = header + "." + claims;
+        try {
+            Signature signature = Signature.getInstance("SHA256withECDSA");
+            signature.initSign(key);
+            signature.update(Utilities.toUTF8Bytes(content));
+            byte[] jose = toConcatenated(signature.sign());
+            return new Token(content + "." + Utilities.encodeBase64Url(jose), now);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalArgumentException("Couldn't sign the provider token", e);
+        }
+    }
+
+    /**
+     * Converts a DER-encoded ECDSA signature, {@code SEQUENCE { r, s }},
+     * into the fixed-length {@code r || s} form required by JWS.
+     */
+    static byte[] toConcatenated(byte[] der) throws GeneralSecurityException {
+        if (der.length < 8 || der[0] != 0x30) {
+            throw new GeneralSecurityException("Invalid ECDSA signature");
+        }
+        // the sequence length takes one byte, or two for long forms
+        int offset = (der[1] & 0x80) != 0 ? 3 : 2;
+        byte[] result = new byte[2 * SIGNATURE_PART_LENGTH];
+        for (int part = 0; part < 2; part++) {
+            if (der[offset] != 0x02) {
+                throw new GeneralSecurityException("Invalid ECDSA signature");
+            }
+            int length = der[offset + 1];
+            int start = offset + 2;
+            int end = start + length;
+            // drop the sign byte and any leading zeros
+            while (length > SIGNATURE_PART_LENGTH && der[start] == 0) {
+                start++;
+                length--;
+            }
+            if (length > SIGNATURE_PART_LENGTH) {
+                throw new GeneralSecurityException("Invalid ECDSA signature");
+            }
+            System.arraycopy(der, start, result, (part + 1) * SIGNATURE_PART_LENGTH - length, length);
+            offset = end;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,352 @@
+/*
+ *  Copyright 2009, Mahmood Ali.
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are
+ *  met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ *      copyright notice, this list of conditions and the following disclaimer
+ *      in the documentation and/or other materials provided with the
+ *      distribution.
+ *    * Neither the name of Mahmood Ali. nor the names of its
+ *      contributors may be used to endorse or promote products derived from
+ *      this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.apns.metrics;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A registry of the counters, histograms and gauges maintained by the
+ * library.
+ *
+ * Pass an instance to {@link com.notnoop.apns.ApnsServiceBuilder#withMetrics(ApnsMetrics)}
+ * to have the connections, pools and queues of the service record into it,
+ * then either poll {@link #snapshot()} or register a {@link MetricsExporter}:
+ *
+ * <pre>
+ *   ApnsMetrics metrics = new ApnsMetrics();
+ *   metrics.startExporting(myExporter, 10, TimeUnit.SECONDS);
+ *   ApnsService service = APNS.newService()
+ *                  .withCert("/path/to/certificate.p12", "MyCertPassword")
+ *                  .withSandboxDestination()
+ *                  .withMetrics(metrics)
+ *                  .build();
+ * </pre>
+ *
+ * Durations are recorded in nanoseconds.  Metrics that relate to a single
+ * gateway connection are prefixed with {@code gateway.connection.<id>.}.
+ */
+public class ApnsMetrics {
+    private static final Logger logger = LoggerFactory.getLogger(ApnsMetrics.class);
+
+    /** Notifications written to a gateway socket */
+    public static final String SENT = "gateway.sent";
+    /** Bytes written to gateway sockets */
+    public static final String BYTES_WRITTEN = "gateway.bytes.written";
+    /** Time spent writing and flushing a notification */
+    public static final String WRITE_LATENCY = "gateway.write.latency";
+    /** New gateway sockets opened, including the initial ones */
+    public static final String RECONNECTS = "gateway.reconnects";
+    /** Gateway sockets replaced by a pre-opened standby socket */
+    public static final String STANDBY_SWAPS = "gateway.standby.swaps";
+    /** Time spent in the TLS handshake of new gateway sockets */
+    public static final String HANDSHAKE_TIME = "gateway.handshake.time";
+    /** Time spent in TLS handshakes that negotiated a new session */
+    public static final String HANDSHAKE_FULL = "gateway.handshake.full";
+    /** Time spent in TLS handshakes that resumed a cached session */
+    public static final String HANDSHAKE_RESUMED = "gateway.handshake.resumed";
+    /** Time spent waiting for a rate limiter before writing a notification */
+    public static final String PACING_WAIT = "gateway.pacing.wait";
+    /** Time from sending a request to the HTTP/2 provider API until its response */
+    public static final String HTTP2_RESPONSE_TIME = "gateway.http2.response.time";
+    /** Prefix of the error-response counters, followed by the {@code DeliveryError} name */
+    public static final String ERRORS_PREFIX = "gateway.errors.";
+    /** Notifications queued for resending after an error-response */
+    public static final String RESENT = "gateway.resent";
+    /** Suffix of the per-connection gauge of cached (sent) notifications */
+    public static final String CACHE_DEPTH = "cache.depth";
+    /** Suffix of the per-connection gauge of notifications waiting to be resent */
+    public static final String RESEND_DEPTH = "resend.depth";
+
+    /** Notifications sent together by the writer thread of a single-writer connection */
+    public static final String WRITER_BATCH = "gateway.writer.batch";
+
+    /** Number of connections created by a pool */
+    public static final String POOL_CONNECTIONS = "pool.connections";
+    /** Connections added by an elastic pool */
+    public static final String POOL_SCALE_UPS = "pool.scale.up";
+    /** Idle connections retired by an elastic pool */
+    public static final String POOL_SCALE_DOWNS = "pool.scale.down";
+    /** Notifications waiting for a connection of an elastic pool */
+    public static final String POOL_BACKLOG = "pool.backlog";
+    /** Notifications a pool sent past the stalled connection sending to the same device */
+    public static final String POOL_STEALS = "pool.steals";
+    /** Time from handing a notification to the pool until it is written */
+    public static final String POOL_SEND_LATENCY = "pool.send.latency";
+
+    /** Delegate events waiting for the asynchronous dispatcher */
+    public static final String DELEGATE_BACKLOG = "delegate.backlog";
+    /** Delegate events discarded because the dispatcher buffer was full */
+    public static final String DELEGATE_DROPPED = "delegate.dropped";
+
+    /** Connections opened by the warm-up of a service while it started */
+    public static final String WARMUP_OPENED = "warmup.opened";
+    /** Connections the warm-up of a service couldn't open in time */
+    public static final String WARMUP_FAILED = "warmup.failed";
+
+    /** Notifications waiting in the queue of a queued service */
+    public static final String QUEUE_DEPTH = "queue.depth";
+    /** Notifications waiting for the next batch of a batched service */
+    public static final String BATCH_DEPTH = "batch.depth";
+    /** Batches flushed by a batched service */
+    public static final String BATCH_FLUSHES = "batch.flushes";
+    /** Notifications dropped instead of being sent because they expired */
+    public static final String EXPIRED = "expired.dropped";
+    /** Notifications dropped instead of being sent because their token is known to be invalid */
+    public static final String INVALID_TOKENS_DROPPED = "invalid.tokens.dropped";
+    /** Notifications rejected before being sent because they are malformed */
+    public static final String MALFORMED_REJECTED = "malformed.rejected";
+
+    /**
+     * A registry that doesn't record anything; used when no metrics are
+     * configured.
+     */
+    public static final ApnsMetrics DISABLED = new ApnsMetrics(false);
+
+    private final boolean enabled;
+    private final ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<String, Counter>();
+    private final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+    private final ConcurrentMap<String, Gauge> gauges = new ConcurrentHashMap<String, Gauge>();
+    private final ConcurrentMap<Integer, SendPhaseTimings> phaseTimings = new ConcurrentHashMap<Integer, SendPhaseTimings>();
+    private final AtomicInteger connectionIds = new AtomicInteger();
+    private ScheduledExecutorService exporterService;
+
+    /**
+     * Constructs a new, empty registry.
+     */
+    public ApnsMetrics() {
+        this(true);
+    }
+
+    private ApnsMetrics(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Returns {@code false} for the {@link #DISABLED} registry.
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Returns the counter with the given name, creating it if needed.
+     */
+    public Counter counter(String name) {
+        if (!enabled) {
+            return Counter.NOOP;
+        }
+        Counter counter = counters.get(name);
+        if (counter == null) {
+            Counter created = new Counter();
+            counter = counters.putIfAbsent(name, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+    /**
+     * Returns the histogram with the given name, creating it if needed.
+     */
+    public Histogram histogram(String name) {
+        if (!enabled) {
+            return Histogram.NOOP;
+        }
+        Histogram histogram = histograms.get(name);
+        if (histogram == null) {
+            Histogram created = new Histogram();
+            histogram = histograms.putIfAbsent(name, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * Registers a gauge under the given name, replacing any previous one.
+     */
+    public void registerGauge(String name, Gauge gauge) {
+        if (enabled) {
+            gauges.put(name, gauge);
+        }
+    }
+
+    /**
+     * Removes the gauge with the given name, if any.
+     */
+    public void removeGauge(String name) {
+        gauges.remove(name);
+    }
+
+    /**
+     * Returns a new unique identifier for a gateway connection, used to
+     * name its metrics.
+     */
+    public int nextConnectionId() {
+        return connectionIds.incrementAndGet();
+    }
+
+    /**
+     * Returns the name of a metric of the gateway connection with the given id.
+     */
+    public static String connectionMetric(int connectionId, String suffix) {
+        return "gateway.connection." + connectionId + "." + suffix;
+    }
+
+    /**
+     * Removes all the metrics of the gateway connection with the given id,
+     * once the connection is closed.
+     */
+    public void removeConnection(int connectionId) {
+        String prefix = connectionMetric(connectionId, "");
+        removeByPrefix(counters, prefix);
+        removeByPrefix(histograms, prefix);
+        removeByPrefix(gauges, prefix);
+        phaseTimings.remove(connectionId);
+    }
+
+    private static void removeByPrefix(Map<String, ?> metrics, String prefix) {
+        for (Iterator<String> it = metrics.keySet().iterator(); it.hasNext(); ) {
+            if (it.next().startsWith(prefix)) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Returns the send phase timings of the gateway connection with the
+     * given id, creating them if needed.
+     */
+    public SendPhaseTimings sendPhaseTimings(int connectionId) {
+        SendPhaseTimings timings = phaseTimings.get(connectionId);
+        if (timings == null) {
+            SendPhaseTimings created = new SendPhaseTimings(this, connectionId);
+            timings = phaseTimings.putIfAbsent(connectionId, created);
+            if (timings == null) {
+                timings = created;
+            }
+        }
+        return timings;
+    }
+
+    /**
+     * Takes a snapshot of the send phase timings of every open gateway
+     * connection that has phase timing enabled.
+     *
+     * @return the phase histograms, by connection id
+     */
+    public Map<Integer, Map<SendPhase, HistogramSnapshot>> sendPhaseSnapshots() {
+        Map<Integer, Map<SendPhase, HistogramSnapshot>> result = new TreeMap<Integer, Map<SendPhase, HistogramSnapshot>>();
+        for (SendPhaseTimings timings : phaseTimings.values()) {
+            result.put(timings.getConnectionId(), timings.snapshot());
+        }
+        return result;
+    }
+
+    /**
+     * Reads all the metrics of this registry.
+     *
+     * @return  the current values of all metrics
+     */
+    public MetricsSnapshot snapshot() {
+        Map<String, Long> counterValues = new TreeMap<String, Long>();
+        for (Map.Entry<String, Counter> e : counters.entrySet()) {
+            counterValues.put(e.getKey(), e.getValue().get());
+        }
+        Map<String, Long> gaugeValues = new TreeMap<String, Long>();
+        for (Map.Entry<String, Gauge> e : gauges.entrySet()) {
+            try {
+                gaugeValues.put(e.getKey(), e.getValue().value());
+            } catch (RuntimeException ex) {
+                logger.debug("Gauge {} failed", e.getKey(), ex);
+            }
+        }
+        Map<String, HistogramSnapshot> histogramValues = new TreeMap<String, HistogramSnapshot>();
+        for (Map.Entry<String, Histogram> e : histograms.entrySet()) {
+            histogramValues.put(e.getKey(), e.getValue().snapshot());
+        }
+        return new MetricsSnapshot(System.currentTimeMillis(), counterValues, gaugeValues, histogramValues);
+    }
+
+    /**
+     * Passes a snapshot of this registry to the given exporter every
+     * {@code period}, from a dedicated daemon thread.
+     *
+     * Calling this method again replaces the previous exporter.
+     *
+     * @param exporter  the exporter to call
+     * @param period    the time between two exports
+     * @param unit      the unit of {@code period}
+     */
+    public synchronized void startExporting(final MetricsExporter exporter, long period, TimeUnit unit) {
+        stopExporting();
+        exporterService = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "ApnsMetricsExporter");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        exporterService.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                try {
+                    exporter.export(snapshot());
+                } catch (RuntimeException e) {
+                    logger.warn("Metrics exporter failed", e);
+                }
+            }
+        }, period, period, unit);
+    }
+
+    /**
+     * Stops the periodic export started by {@link #startExporting}.
+     */
+    public synchronized void stopExporting() {
+        if (exporterService != null) {
+            exporterService.shutdownNow();
+            exporterService = null;
+        }
+    }
+}
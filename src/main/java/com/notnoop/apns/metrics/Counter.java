@@ -0,0 +1,112 @@
+/*
+ *  Copyright 2009, Mahmood Ali.
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are
+ *  met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ *      copyright notice, this list of conditions and the following disclaimer
+ *      in the documentation and/or other materials provided with the
+ *      distribution.
+ *    * Neither the name of Mahmood Ali. nor the names of its
+ *      contributors may be used to endorse or promote products derived from
+ *      this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.apns.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A monotonically increasing counter that is cheap to update from many
+ * threads at once.
+ *
+ * Updates are spread over a small number of padded cells, picked by the
+ * updating thread, so that producer threads do not contend on a single
+ * cache line.  Reading the value sums up all the cells and is therefore
+ * more expensive than updating it.
+ */
+public class Counter {
+    // each cell occupies its own 64-byte cache line
+    static final int PAD = 8;
+    static final int STRIPES = stripes();
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PAD);
+
+    Counter() { }
+
+    private static int stripes() {
+        int n = 1;
+        int cpus = Runtime.getRuntime().availableProcessors();
+        while (n < cpus && n < 64) {
+            n <<= 1;
+        }
+        return n;
+    }
+
+    static int threadHash() {
+        long id = Thread.currentThread().getId();
+        int h = (int) (id ^ (id >>> 32));
+        return h ^ (h >>> 16);
+    }
+
+    static int stripe() {
+        return (threadHash() & (STRIPES - 1)) * PAD;
+    }
+
+    /**
+     * Increments the counter by one.
+     */
+    public void increment() {
+        cells.getAndIncrement(stripe());
+    }
+
+    /**
+     * Increments the counter by {@code delta}.
+     *
+     * @param delta the amount to add
+     */
+    public void add(long delta) {
+        cells.getAndAdd(stripe(), delta);
+    }
+
+    /**
+     * Returns the current value of the counter.
+     *
+     * The returned value isn't an atomic snapshot if the counter is
+     * updated concurrently.
+     *
+     * @return the sum of all the increments so far
+     */
+    public long get() {
+        long sum = 0;
+        for (int i = 0; i < cells.length(); i += PAD) {
+            sum += cells.get(i);
+        }
+        return sum;
+    }
+
+    /**
+     * A counter that ignores all updates, handed out by the disabled registry.
+     */
+    static final Counter NOOP = new Counter() {
+        @Override public void increment() { }
+        @Override public void add(long delta) { }
+        @Override public long get() { return 0; }
+    };
+}
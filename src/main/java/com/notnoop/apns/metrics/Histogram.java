@@ -0,0 +1,180 @@
+/*
+ *  Copyright 2009, Mahmood Ali.
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are
+ *  met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ *      copyright notice, this list of conditions and the following disclaimer
+ *      in the documentation and/or other materials provided with the
+ *      distribution.
+ *    * Neither the name of Mahmood Ali. nor the names of its
+ *      contributors may be used to endorse or promote products derived from
+ *      this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.apns.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A fixed-size, log-linear histogram of non-negative {@code long} values,
+ * typically durations in nanoseconds.
+ *
+ * Values are grouped into buckets: each power of two is split into 32
+ * linear sub-buckets, so any recorded value is reported back with a
+ * relative error of at most ~3%.  Values below 32 are kept exactly.
+ *
+ * Like a {@link Counter}, the histogram is striped by the recording
+ * thread: each stripe has its own buckets and its own count, sum and max,
+ * so threads recording at the same time don't contend on shared cache
+ * lines.  A stripe's buckets are allocated the first time a thread records
+ * into it; after that, recording a value never allocates and costs a
+ * couple of uncontended atomic updates, which makes the histogram suitable
+ * for the send path.  Percentiles are computed on
+ * {@link #snapshot() snapshots}, which merge the stripes.
+ */
+public class Histogram {
+    static final int SUB_BUCKET_BITS = 5;
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    static final int BUCKETS = (63 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    // a stripe's buckets take 15KB, so don't go as wide as the counters
+    private static final int STRIPES = Math.min(Counter.STRIPES, 16);
+    private static final int PAD = Counter.PAD;
+    private static final int COUNT = 0, SUM = 1, MAX = 2;
+
+    private final AtomicReferenceArray<AtomicLongArray> counts =
+            new AtomicReferenceArray<AtomicLongArray>(STRIPES);
+    // count, sum and max of each stripe, on their own cache line
+    private final AtomicLongArray totals = new AtomicLongArray(STRIPES * PAD);
+
+    Histogram() { }
+
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        int mantissa = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+        return (shift + 1) * SUB_BUCKETS + mantissa;
+    }
+
+    static long lowestValueOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        int mantissa = bucket & (SUB_BUCKETS - 1);
+        return ((long) (SUB_BUCKETS | mantissa)) << shift;
+    }
+
+    static long highestValueOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        return lowestValueOf(bucket) + (1L << shift) - 1;
+    }
+
+    /**
+     * Records a single value.  Negative values are recorded as zero.
+     *
+     * @param value the value to record
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        int stripe = Counter.threadHash() & (STRIPES - 1);
+        AtomicLongArray buckets = counts.get(stripe);
+        if (buckets == null) {
+            counts.compareAndSet(stripe, null, new AtomicLongArray(BUCKETS));
+            buckets = counts.get(stripe);
+        }
+        buckets.getAndIncrement(bucketOf(value));
+
+        int base = stripe * PAD;
+        totals.getAndIncrement(base + COUNT);
+        totals.getAndAdd(base + SUM, value);
+        long currentMax = totals.get(base + MAX);
+        while (value > currentMax && !totals.compareAndSet(base + MAX, currentMax, value)) {
+            currentMax = totals.get(base + MAX);
+        }
+    }
+
+    /**
+     * Records the time elapsed since {@code startNanos}, as returned by
+     * {@link System#nanoTime()}.
+     *
+     * @param startNanos the start of the measured interval
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Returns the number of values recorded so far.
+     */
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            count += totals.get(i * PAD + COUNT);
+        }
+        return count;
+    }
+
+    /**
+     * Takes a point-in-time copy of the histogram.
+     *
+     * The copy isn't atomic with respect to concurrent recordings, though
+     * every value recorded before the call is included.
+     *
+     * @return a snapshot of the recorded values
+     */
+    public HistogramSnapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        long total = 0;
+        long sum = 0;
+        long max = 0;
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            AtomicLongArray buckets = counts.get(stripe);
+            if (buckets == null) {
+                continue;
+            }
+            for (int i = 0; i < BUCKETS; i++) {
+                long n = buckets.get(i);
+                copy[i] += n;
+                total += n;
+            }
+            sum += totals.get(stripe * PAD + SUM);
+            max = Math.max(max, totals.get(stripe * PAD + MAX));
+        }
+        return new HistogramSnapshot(copy, total, sum, max);
+    }
+
+    /**
+     * A histogram that ignores all values, handed out by the disabled registry.
+     */
+    static final Histogram NOOP = new Histogram() {
+        @Override public void record(long value) { }
+        @Override public void recordSince(long startNanos) { }
+    };
+}
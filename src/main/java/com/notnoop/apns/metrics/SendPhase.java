@@ -0,0 +1,72 @@
+/*
+ *  Copyright 2009, Mahmood Ali.
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are
+ *  met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ *      copyright notice, this list of conditions and the following disclaimer
+ *      in the documentation and/or other materials provided with the
+ *      distribution.
+ *    * Neither the name of Mahmood Ali. nor the names of its
+ *      contributors may be used to endorse or promote products derived from
+ *      this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.apns.metrics;
+
+/**
+ * The phases a gateway connection goes through when sending a single
+ * notification, as timed by {@link SendPhaseTimings}.
+ */
+public enum SendPhase {
+    /**
+     * Waiting to acquire the connection, while other threads are sending
+     * through it or replaying notifications after an error.
+     */
+    LOCK_WAIT("lock_wait"),
+
+    /**
+     * Opening a new socket, including the TLS handshake.  Only recorded
+     * when a new socket is actually created.
+     */
+    SOCKET_CREATION("socket_creation"),
+
+    /**
+     * Writing and flushing the notification to the socket.
+     */
+    WRITE("write"),
+
+    /**
+     * Running the {@code ApnsDelegate} callbacks of the notification.
+     */
+    DELEGATE("delegate");
+
+    private final String metricName;
+
+    SendPhase(String metricName) {
+        this.metricName = metricName;
+    }
+
+    /**
+     * The suffix of the per-connection histogram of this phase.
+     */
+    public String metricName() {
+        return "phase." + metricName;
+    }
+}
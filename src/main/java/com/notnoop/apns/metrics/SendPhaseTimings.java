@@ -0,0 +1,104 @@
+/*
+ *  Copyright 2009, Mahmood Ali.
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are
+ *  met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ *      copyright notice, this list of conditions and the following disclaimer
+ *      in the documentation and/or other materials provided with the
+ *      distribution.
+ *    * Neither the name of Mahmood Ali. nor the names of its
+ *      contributors may be used to endorse or promote products derived from
+ *      this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.apns.metrics;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * The time spent by a single gateway connection in each {@link SendPhase}
+ * of sending a notification.
+ *
+ * Timing the phases is opt-in, see
+ * {@link com.notnoop.apns.ApnsServiceBuilder#withSendPhaseTiming()}, as it
+ * adds a few {@code System.nanoTime()} calls to every send.  The
+ * histograms are also part of the registry snapshot, named
+ * {@code gateway.connection.<id>.phase.<phase>}.
+ */
+public final class SendPhaseTimings {
+    private final int connectionId;
+    private final Histogram[] histograms;
+
+    SendPhaseTimings(ApnsMetrics metrics, int connectionId) {
+        this.connectionId = connectionId;
+        SendPhase[] phases = SendPhase.values();
+        this.histograms = new Histogram[phases.length];
+        for (SendPhase phase : phases) {
+            histograms[phase.ordinal()] =
+                    metrics.histogram(ApnsMetrics.connectionMetric(connectionId, phase.metricName()));
+        }
+    }
+
+    /**
+     * Returns the identifier of the connection these timings belong to.
+     */
+    public int getConnectionId() {
+        return connectionId;
+    }
+
+    /**
+     * Records the time spent in a phase.
+     *
+     * @param phase the phase
+     * @param nanos the duration of the phase, in nanoseconds
+     */
+    public void record(SendPhase phase, long nanos) {
+        histograms[phase.ordinal()].record(nanos);
+    }
+
+    /**
+     * Records the time spent in a phase that started at {@code startNanos}.
+     *
+     * @param phase the phase
+     * @param startNanos the start of the phase, as returned by {@link System#nanoTime()}
+     */
+    public void recordSince(SendPhase phase, long startNanos) {
+        histograms[phase.ordinal()].recordSince(startNanos);
+    }
+
+    /**
+     * Takes a snapshot of the histogram of every phase.
+     *
+     * @return the histogram snapshots, by phase
+     */
+    public Map<SendPhase, HistogramSnapshot> snapshot() {
+        Map<SendPhase, HistogramSnapshot> result = new EnumMap<SendPhase, HistogramSnapshot>(SendPhase.class);
+        for (SendPhase phase : SendPhase.values()) {
+            result.put(phase, histograms[phase.ordinal()].snapshot());
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "SendPhaseTimings(connection=" + connectionId + "; " + snapshot() + ")";
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ *  Copyright 2009, Mahmood Ali.
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are
+ *  met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ *      copyright notice, this list of conditions and the following disclaimer
+ *      in the documentation and/or other materials provided with the
+ *      distribution.
+ *    * Neither the name of Mahmood Ali. nor the names of its
+ *      contributors may be used to endorse or promote products derived from
+ *      this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.exceptions;
+
+/**
+ * Thrown, or passed to the delegate, when the HTTP/2 provider API rejects
+ * a notification.
+ */
+public class ApnsHttpErrorException extends ApnsException {
+    private static final long serialVersionUID = 6620428341226613829L;
+
+    private final int status;
+    private final String reason;
+
+    public ApnsHttpErrorException(int status, String reason) {
+        this.status = status;
+        this.reason = reason;
+    }
+
+    @Override
+    public String getMessage() {
+        return "Failed to deliver notification with status " + status
+                + (reason == null ? "" : " (" + reason + ")");
+    }
+
+    /**
+     * Returns the HTTP status of the response, e.g. 400 or 410.
+     */
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * Returns the reason given in the response body, e.g.
+     * {@code BadDeviceToken}, or null if there was none.
+     */
+    public String getReason() {
+        return reason;
+    }
+}
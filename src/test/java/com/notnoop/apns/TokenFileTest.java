@@ -0,0 +1,117 @@
+/*
+ *  Copyright 2009, Mahmood Ali.
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are
+ *  met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ *      copyright notice, this list of conditions and the following disclaimer
+ *      in the documentation and/or other materials provided with the
+ *      distribution.
+ *    * Neither the name of Mahmood Ali. nor the names of its
+ *      contributors may be used to endorse or promote products derived from
+ *      this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.apns;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.notnoop.apns.internal.Utilities;
+
+import static org.junit.Assert.*;
+
+public class TokenFileTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static String hexToken(int i) {
+        StringBuilder sb = new StringBuilder();
+        for (int j = 0; j < TokenFile.RECORD_SIZE; j++) {
+            sb.append(String.format("%02x", (i + j) & 0xff));
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void convertsAndReadsTokens() throws IOException {
+        StringBuilder list = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            list.append(hexToken(i)).append(i % 10 == 0 ? "\n\n" : "\n");
+        }
+        File file = folder.newFile("tokens.bin");
+        assertEquals(100, TokenFile.convert(new BufferedReader(new StringReader(list.toString())), file));
+        assertEquals(TokenFile.HEADER_SIZE + 100 * TokenFile.RECORD_SIZE, file.length());
+
+        TokenFile tokens = TokenFile.open(file);
+        try {
+            assertEquals(100, tokens.size());
+            byte[] token = new byte[TokenFile.RECORD_SIZE];
+            for (int i = 0; i < 100; i++) {
+                tokens.read(i, token);
+                assertEquals(hexToken(i).toUpperCase(), Utilities.encodeHex(token));
+            }
+        } finally {
+            tokens.close();
+        }
+    }
+
+    @Test
+    public void readsFilesWithoutHeader() throws IOException {
+        File file = folder.newFile("raw.bin");
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(Utilities.decodeHex(hexToken(1)));
+        out.write(Utilities.decodeHex(hexToken(2)));
+        out.close();
+
+        TokenFile tokens = TokenFile.open(file);
+        try {
+            assertEquals(2, tokens.size());
+            byte[] token = new byte[TokenFile.RECORD_SIZE];
+            tokens.read(1, token);
+            assertTrue(Arrays.equals(Utilities.decodeHex(hexToken(2)), token));
+        } finally {
+            tokens.close();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsPartialRecords() throws IOException {
+        File file = folder.newFile("partial.bin");
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[TokenFile.RECORD_SIZE + 1]);
+        out.close();
+        TokenFile.open(file);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsShortTokens() throws IOException {
+        TokenFile.convert(new BufferedReader(new StringReader(hexToken(0) + "\n2342\n")),
+                folder.newFile("short.bin"));
+    }
+}
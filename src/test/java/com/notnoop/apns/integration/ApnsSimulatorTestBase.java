@@ -84,14 +84,21 @@ public class ApnsSimulatorTestBase {
         server.start();
         delegate = ApnsDelegate.EMPTY;
         delegate = mock(ApnsDelegate.class);
-        service = APNS.newService()
+        service = configure(APNS.newService()
                 .withSSLContext(clientContext())
                 .withGatewayDestination(LOCALHOST, server.getEffectiveGatewayPort())
                 .withFeedbackDestination(LOCALHOST, server.getEffectiveFeedbackPort())
-                .withDelegate(delegate).build();
+                .withDelegate(delegate)).build();
         random = new Random();
     }
 
+    /**
+     * Hook for subclasses to set additional options on the service under test.
+     */
+    protected ApnsServiceBuilder configure(ApnsServiceBuilder builder) {
+        return builder;
+    }
+
     @After
     public void tearDown() {
         server.stop();
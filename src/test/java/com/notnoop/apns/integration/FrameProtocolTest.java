@@ -0,0 +1,79 @@
+/*
+ *  Copyright 2009, Mahmood Ali.
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are
+ *  met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ *      copyright notice, this list of conditions and the following disclaimer
+ *      in the documentation and/or other materials provided with the
+ *      distribution.
+ *    * Neither the name of Mahmood Ali. nor the names of its
+ *      contributors may be used to endorse or promote products derived from
+ *      this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.apns.integration;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.FramedApnsNotification;
+import com.notnoop.apns.internal.ApnsConnectionImpl;
+import com.notnoop.apns.internal.Utilities;
+import com.notnoop.apns.utils.Simulator.ApnsServerSimulator;
+import org.junit.Test;
+
+import static com.notnoop.apns.utils.FixedCertificates.LOCALHOST;
+import static com.notnoop.apns.utils.FixedCertificates.clientContext;
+import static org.junit.Assert.*;
+
+public class FrameProtocolTest extends ApnsSimulatorTestBase {
+
+    private static FramedApnsNotification notification(int id) {
+        byte[] token = new byte[32];
+        token[0] = 42;
+        return new FramedApnsNotification(id, 1, token, Utilities.toUTF8Bytes("{\"aps\":{}}"),
+                FramedApnsNotification.PRIORITY_CONSERVE_POWER);
+    }
+
+    @Test
+    public void sendsPackedFramesWithPriority() throws InterruptedException {
+        ApnsConnectionImpl connection = new ApnsConnectionImpl(clientContext().getSocketFactory(),
+                LOCALHOST, server.getEffectiveGatewayPort());
+        try {
+            List<ApnsNotification> notifications = new ArrayList<ApnsNotification>();
+            for (int i = 1; i <= 20; i++) {
+                notifications.add(notification(i));
+            }
+            connection.sendMessages(notifications);
+
+            for (int i = 1; i <= 20; i++) {
+                ApnsServerSimulator.Notification received = server.getQueue().poll(5, TimeUnit.SECONDS);
+                assertNotNull(received);
+                assertEquals(2, received.getType());
+                assertEquals(i, received.getIdentifier());
+                assertEquals(FramedApnsNotification.PRIORITY_CONSERVE_POWER, received.getPriority());
+            }
+        } finally {
+            connection.close();
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ *  Copyright 2009, Mahmood Ali.
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are
+ *  met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ *      copyright notice, this list of conditions and the following disclaimer
+ *      in the documentation and/or other materials provided with the
+ *      distribution.
+ *    * Neither the name of Mahmood Ali. nor the names of its
+ *      contributors may be used to endorse or promote products derived from
+ *      this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.apns.integration;
+
+import com.notnoop.apns.APNS;
+import com.notnoop.apns.ApnsDelegate;
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.ApnsService;
+import com.notnoop.apns.utils.Http2ServerStub;
+import com.notnoop.exceptions.ApnsHttpErrorException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import static com.notnoop.apns.utils.FixedCertificates.LOCALHOST;
+import static com.notnoop.apns.utils.FixedCertificates.clientContext;
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+public class Http2ProtocolTest {
+
+    private static final String PAYLOAD = "{\"aps\":{\"alert\":\"hi\"}}";
+    private static final String GOOD_TOKEN = "0123456789abcdef0123456789abcdef0123456789abcdef0123456789abcdef";
+    private static final String BAD_TOKEN = "ff23456789abcdef0123456789abcdef0123456789abcdef0123456789abcdef";
+
+    private Http2ServerStub server;
+    private ApnsDelegate delegate;
+    private ApnsService service;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new Http2ServerStub(3, 50);
+        delegate = mock(ApnsDelegate.class);
+        service = APNS.newService().withSSLContext(clientContext())
+                .withGatewayDestination(LOCALHOST, server.getPort())
+                .withHttp2Protocol("com.example.app")
+                .withDelegate(delegate)
+                .build();
+    }
+
+    @After
+    public void tearDown() {
+        service.stop();
+        server.stop();
+    }
+
+    @Test
+    public void reportsEachResponse() {
+        ApnsNotification good = service.push(GOOD_TOKEN, PAYLOAD);
+        ApnsNotification bad = service.push(BAD_TOKEN, PAYLOAD);
+
+        verify(delegate, timeout(5000)).messageSent(good, false);
+        ArgumentCaptor<Throwable> error = ArgumentCaptor.forClass(Throwable.class);
+        verify(delegate, timeout(5000)).messageSendFailed(eq(bad), error.capture());
+        ApnsHttpErrorException httpError = (ApnsHttpErrorException) error.getValue();
+        assertEquals(400, httpError.getStatus());
+        assertEquals("BadDeviceToken", httpError.getReason());
+        assertTrue(server.getPaths().contains("/3/device/" + GOOD_TOKEN));
+    }
+
+    @Test
+    public void keepsWithinTheServerStreamLimit() {
+        for (int i = 0; i < 20; i++) {
+            service.push(GOOD_TOKEN, PAYLOAD);
+        }
+        verify(delegate, timeout(10000).times(20)).messageSent(any(ApnsNotification.class), eq(false));
+        assertEquals(3, server.getPeakStreams());
+        assertEquals(1, server.getConnections());
+    }
+
+    @Test
+    public void resendsRequestsRefusedByGoAway() {
+        server.goAwayAfter(2);
+        for (int i = 0; i < 6; i++) {
+            service.push(GOOD_TOKEN, PAYLOAD);
+        }
+        verify(delegate, timeout(10000).times(6)).messageSent(any(ApnsNotification.class), eq(false));
+        assertEquals(6, server.getPaths().size());
+        assertEquals(2, server.getConnections());
+    }
+
+    @Test
+    public void resendsRefusedStreamsOffTheReaderThread() throws Exception {
+        server.stop();
+        service.stop();
+        server = new Http2ServerStub(1, 50);
+        service = APNS.newService().withSSLContext(clientContext())
+                .withGatewayDestination(LOCALHOST, server.getPort())
+                .withHttp2Protocol("com.example.app")
+                .withDelegate(delegate)
+                .build();
+        server.refuse(1);
+        for (int i = 0; i < 3; i++) {
+            service.push(GOOD_TOKEN, PAYLOAD);
+        }
+        verify(delegate, timeout(5000).times(3)).messageSent(any(ApnsNotification.class), eq(false));
+        assertEquals(1, server.getConnections());
+    }
+}
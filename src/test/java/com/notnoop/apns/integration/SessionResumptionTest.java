@@ -0,0 +1,57 @@
+/*
+ *  Copyright 2009, Mahmood Ali.
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are
+ *  met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ *      copyright notice, this list of conditions and the following disclaimer
+ *      in the documentation and/or other materials provided with the
+ *      distribution.
+ *    * Neither the name of Mahmood Ali. nor the names of its
+ *      contributors may be used to endorse or promote products derived from
+ *      this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.apns.integration;
+
+import com.notnoop.apns.ApnsServiceBuilder;
+import com.notnoop.apns.metrics.ApnsMetrics;
+import com.notnoop.apns.metrics.MetricsSnapshot;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class SessionResumptionTest extends ApnsSimulatorTestBase {
+
+    private final ApnsMetrics metrics = new ApnsMetrics();
+
+    @Override
+    protected ApnsServiceBuilder configure(ApnsServiceBuilder builder) {
+        return builder.withSessionCache(16, 300).withMetrics(metrics);
+    }
+
+    @Test
+    public void reconnectResumesSession() throws InterruptedException {
+        send(8, 0);
+        assertNumberReceived(2);
+        MetricsSnapshot snapshot = metrics.snapshot();
+        assertEquals(1, snapshot.getHistogram(ApnsMetrics.HANDSHAKE_FULL).getCount());
+        assertEquals(1, snapshot.getHistogram(ApnsMetrics.HANDSHAKE_RESUMED).getCount());
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ *  Copyright 2009, Mahmood Ali.
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are
+ *  met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ *      copyright notice, this list of conditions and the following disclaimer
+ *      in the documentation and/or other materials provided with the
+ *      distribution.
+ *    * Neither the name of Mahmood Ali. nor the names of its
+ *      contributors may be used to endorse or promote products derived from
+ *      this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.apns.integration;
+
+import com.notnoop.apns.ApnsServiceBuilder;
+import com.notnoop.apns.DeliveryError;
+import org.junit.Test;
+import org.mockito.Matchers;
+
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class SharedErrorReaderTest extends ApnsSimulatorTestBase {
+
+    @Override
+    protected ApnsServiceBuilder configure(ApnsServiceBuilder builder) {
+        return builder.withSharedErrorReader(1);
+    }
+
+    @Test
+    public void sendThree() throws InterruptedException {
+        send(0, 0, 0);
+        assertNumberReceived(3);
+        assertDelegateSentCount(3);
+    }
+
+    @Test
+    public void handleRetransmissionWithSeveralOutstandingMessages() throws InterruptedException {
+        send(-1, -1, -1, -1, -1, 8, -1, -1, -1, -1, -1, -1, -1);
+        assertNumberReceived(13);
+        assertDelegateSentCount(13 + 7); // Initially sending all 13 notifications, then resend the last 7 ones
+        verify(delegate, times(1)).connectionClosed(Matchers.any(DeliveryError.class), Matchers.anyInt());
+    }
+
+    @Test
+    public void reconnectAfterError() throws InterruptedException {
+        send(8);
+        assertNumberReceived(1);
+        send(0, 0);
+        assertNumberReceived(2);
+        verify(delegate, times(1)).connectionClosed(Matchers.any(DeliveryError.class), Matchers.anyInt());
+    }
+}
@@ -31,12 +31,25 @@
 package com.notnoop.apns.internal;
 
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.net.SocketFactory;
+import com.notnoop.apns.ApnsDelegate;
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.ReconnectPolicy;
 import com.notnoop.apns.SimpleApnsNotification;
+import com.notnoop.exceptions.NetworkIOException;
 import org.junit.Assert;
 import org.junit.Ignore;
 import org.junit.Test;
 import static com.notnoop.apns.internal.MockingUtils.*;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.*;
 
 
 @SuppressWarnings("deprecation")
@@ -82,6 +95,215 @@ public class ApnsConnectionTest {
         packetSentRegardless(factory, baos);
     }
 
+    @Test
+    public void reportsEveryPackedMessageWhenConnectFails() {
+        SocketFactory factory = new SocketFactory() {
+            public Socket createSocket(String host, int port) throws IOException {
+                throw new IOException("refused");
+            }
+            public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+                throw new IOException("refused");
+            }
+            public Socket createSocket(InetAddress host, int port) throws IOException {
+                throw new IOException("refused");
+            }
+            public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+                throw new IOException("refused");
+            }
+        };
+        ApnsDelegate delegate = mock(ApnsDelegate.class);
+        ApnsConnectionImpl connection = new ApnsConnectionImpl(factory, "localhost", 80, null, null, null,
+                new ReconnectPolicies.Never(), delegate, false, null, 2, false, 0, 0);
+        SimpleApnsNotification other = new SimpleApnsNotification("b87d8878d878a7", "{\"aps\":{}}");
+        SimpleApnsNotification third = new SimpleApnsNotification("c87d8878d878a7", "{\"aps\":{}}");
+        connection.sendMessages(Arrays.asList(msg, other, third));
+        verify(delegate).messageSendFailed(eq(msg), any(NetworkIOException.class));
+        verify(delegate).messageSendFailed(eq(other), any(NetworkIOException.class));
+        verify(delegate).messageSendFailed(eq(third), any(NetworkIOException.class));
+        verify(delegate, never()).messageSent(any(ApnsNotification.class), anyBoolean());
+        connection.close();
+    }
+
+    @Test
+    public void backsOffOverTheConfiguredAsyncRetries() {
+        final AtomicInteger connects = new AtomicInteger();
+        SocketFactory factory = new SocketFactory() {
+            // unconnected sockets, failing every write
+            public Socket createSocket(String host, int port) {
+                connects.incrementAndGet();
+                return new Socket();
+            }
+            public Socket createSocket(String host, int port, InetAddress localHost, int localPort) {
+                return createSocket(host, port);
+            }
+            public Socket createSocket(InetAddress host, int port) {
+                return createSocket(host.getHostName(), port);
+            }
+            public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) {
+                return createSocket(address.getHostName(), port);
+            }
+        };
+        ApnsDelegate delegate = mock(ApnsDelegate.class);
+        ApnsConnectionImpl connection = new ApnsConnectionImpl(factory, "localhost", 80, null, null, null,
+                new ReconnectPolicies.Never(), delegate, false, null, 2, false, 0, 0);
+        RetryScheduler scheduler = new RetryScheduler(3, 1, 1);
+        connection.setRetryScheduler(scheduler);
+        try {
+            connection.sendMessage(msg);
+            verify(delegate, timeout(5000)).messageSendFailed(eq(msg), any(IOException.class));
+            // two attempts right away, then the three delayed ones
+            assertEquals(5, connects.get());
+        } finally {
+            scheduler.shutdown();
+            connection.close();
+        }
+    }
+
+    @Test
+    public void isRecoveringWhileRetryingAsynchronously() throws InterruptedException {
+        final ApnsConnectionImpl[] holder = new ApnsConnectionImpl[1];
+        final AtomicInteger recoveringConnects = new AtomicInteger();
+        final AtomicInteger connects = new AtomicInteger();
+        SocketFactory factory = new SocketFactory() {
+            // unconnected sockets, failing every write
+            public Socket createSocket(String host, int port) {
+                connects.incrementAndGet();
+                if (holder[0].isRecovering()) {
+                    recoveringConnects.incrementAndGet();
+                }
+                return new Socket();
+            }
+            public Socket createSocket(String host, int port, InetAddress localHost, int localPort) {
+                return createSocket(host, port);
+            }
+            public Socket createSocket(InetAddress host, int port) {
+                return createSocket(host.getHostName(), port);
+            }
+            public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) {
+                return createSocket(address.getHostName(), port);
+            }
+        };
+        ApnsDelegate delegate = mock(ApnsDelegate.class);
+        ApnsConnectionImpl connection = new ApnsConnectionImpl(factory, "localhost", 80, null, null, null,
+                new ReconnectPolicies.Never(), delegate, false, null, 2, false, 0, 0);
+        holder[0] = connection;
+        RetryScheduler scheduler = new RetryScheduler(2, 1, 1);
+        connection.setRetryScheduler(scheduler);
+        try {
+            connection.sendMessage(msg);
+            verify(delegate, timeout(5000)).messageSendFailed(eq(msg), any(IOException.class));
+            // the two attempts on the sending thread aren't recovering, the scheduled ones are
+            assertEquals(4, connects.get());
+            assertEquals(2, recoveringConnects.get());
+            // the failure is reported just before the retry ends
+            for (int i = 0; i < 100 && connection.isRecovering(); i++) {
+                Thread.sleep(10);
+            }
+            Assert.assertFalse(connection.isRecovering());
+        } finally {
+            scheduler.shutdown();
+            connection.close();
+        }
+    }
+
+    @Test
+    public void opensNoStandbyWhenConnectFails() throws InterruptedException {
+        final AtomicInteger connects = new AtomicInteger();
+        SocketFactory factory = new SocketFactory() {
+            public Socket createSocket(String host, int port) throws IOException {
+                connects.incrementAndGet();
+                throw new IOException("refused");
+            }
+            public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+                return createSocket(host, port);
+            }
+            public Socket createSocket(InetAddress host, int port) throws IOException {
+                return createSocket(host.getHostName(), port);
+            }
+            public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+                return createSocket(address.getHostName(), port);
+            }
+        };
+        ApnsConnectionImpl connection = new ApnsConnectionImpl(factory, "localhost", 80);
+        connection.setStandbyConnection(true);
+        try {
+            connection.sendMessage(msg);
+            Assert.fail("the connect failure should propagate");
+        } catch (NetworkIOException e) {
+            // expected
+        }
+        Thread.sleep(200);
+        assertEquals(1, connects.get());
+        connection.close();
+    }
+
+    @Test
+    public void keepsTheStandbyFresherThanItsMaxAge() throws InterruptedException {
+        final Thread sender = Thread.currentThread();
+        final AtomicInteger connects = new AtomicInteger();
+        final AtomicInteger senderConnects = new AtomicInteger();
+        SocketFactory factory = new SocketFactory() {
+            public Socket createSocket(String host, int port) {
+                connects.incrementAndGet();
+                if (Thread.currentThread() == sender) {
+                    senderConnects.incrementAndGet();
+                }
+                return new Socket() {
+                    private final OutputStream out = new ByteArrayOutputStream();
+                    private volatile boolean closed;
+                    public OutputStream getOutputStream() {
+                        return out;
+                    }
+                    public boolean isClosed() {
+                        return closed;
+                    }
+                    public synchronized void close() throws IOException {
+                        closed = true;
+                        super.close();
+                    }
+                };
+            }
+            public Socket createSocket(String host, int port, InetAddress localHost, int localPort) {
+                return createSocket(host, port);
+            }
+            public Socket createSocket(InetAddress host, int port) {
+                return createSocket(host.getHostName(), port);
+            }
+            public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) {
+                return createSocket(address.getHostName(), port);
+            }
+        };
+        final boolean[] reconnect = new boolean[1];
+        ReconnectPolicy policy = new ReconnectPolicy() {
+            public boolean shouldReconnect() {
+                return reconnect[0];
+            }
+            public void reconnected() {
+                reconnect[0] = false;
+            }
+            public ReconnectPolicy copy() {
+                return this;
+            }
+        };
+        ApnsConnectionImpl connection = new ApnsConnectionImpl(factory, "localhost", 80, null, null, null,
+                policy, null, false, null, 2, false, 0, 0);
+        connection.setStandbyConnection(true);
+        connection.standbyMaxAge = 100;
+        try {
+            connection.sendMessage(msg);
+            assertEquals(1, senderConnects.get());
+
+            // the standby opened after the first connect is long expired by now
+            Thread.sleep(10 * connection.standbyMaxAge);
+            Assert.assertTrue("standby not refreshed: " + connects.get(), connects.get() > 3);
+            reconnect[0] = true;
+            connection.sendMessage(msg);
+            assertEquals(1, senderConnects.get());
+        } finally {
+            connection.close();
+        }
+    }
+
     private void packetSentRegardless(SocketFactory sf, ByteArrayOutputStream baos) {
         ApnsConnectionImpl connection = new ApnsConnectionImpl(sf, "localhost", 80);
         connection.DELAY_IN_MS = 0;
@@ -0,0 +1,164 @@
+/*
+ *  Copyright 2009, Mahmood Ali.
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are
+ *  met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ *      copyright notice, this list of conditions and the following disclaimer
+ *      in the documentation and/or other materials provided with the
+ *      distribution.
+ *    * Neither the name of Mahmood Ali. nor the names of its
+ *      contributors may be used to endorse or promote products derived from
+ *      this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.apns.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.notnoop.apns.ApnsNotification;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class ApnsElasticPooledConnectionTest {
+
+    private final List<ApnsConnection> copies = new ArrayList<ApnsConnection>();
+    private ApnsElasticPooledConnection pool;
+
+    private ApnsConnection prototype(final Answer<Void> send) {
+        ApnsConnection prototype = mock(ApnsConnection.class);
+        when(prototype.copy()).thenAnswer(new Answer<ApnsConnection>() {
+            public ApnsConnection answer(InvocationOnMock invocation) {
+                ApnsConnection copy = mock(ApnsConnection.class);
+                doAnswer(send).when(copy).sendMessage(any(ApnsNotification.class));
+                synchronized (copies) {
+                    copies.add(copy);
+                }
+                return copy;
+            }
+        });
+        return prototype;
+    }
+
+    private static Answer<Void> sleeping(final long millis) {
+        return new Answer<Void>() {
+            public Void answer(InvocationOnMock invocation) throws InterruptedException {
+                Thread.sleep(millis);
+                return null;
+            }
+        };
+    }
+
+    @After
+    public void tearDown() {
+        if (pool != null) {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void growsWhenNotificationsWaitForAConnection() throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        pool = new ApnsElasticPooledConnection(prototype(new Answer<Void>() {
+            public Void answer(InvocationOnMock invocation) throws InterruptedException {
+                release.await();
+                return null;
+            }
+        }), 1, 4, 1, 60, 5, TimeUnit.SECONDS);
+        assertEquals(1, pool.size());
+
+        List<Thread> senders = new ArrayList<Thread>();
+        for (int i = 0; i < 3; i++) {
+            Thread sender = new Thread(new Runnable() {
+                public void run() {
+                    pool.sendMessage(mock(ApnsNotification.class));
+                }
+            });
+            sender.start();
+            senders.add(sender);
+        }
+        Thread.sleep(100);
+        pool.rebalance(System.currentTimeMillis());
+        assertTrue(pool.size() >= 2);
+
+        release.countDown();
+        for (Thread sender : senders) {
+            sender.join();
+        }
+    }
+
+    @Test
+    public void growsWhenSendingIsSlow() {
+        pool = new ApnsElasticPooledConnection(prototype(sleeping(20)), 1, 2, 5, 60000, 5000, TimeUnit.MILLISECONDS);
+        for (int i = 0; i < 3; i++) {
+            pool.sendMessage(mock(ApnsNotification.class));
+        }
+        pool.rebalance(System.currentTimeMillis());
+        assertEquals(2, pool.size());
+
+        // never beyond the maximum
+        pool.sendMessage(mock(ApnsNotification.class));
+        pool.rebalance(System.currentTimeMillis());
+        assertEquals(2, pool.size());
+    }
+
+    @Test
+    public void retiresIdleConnectionsAfterTheirErrorWindow() throws Exception {
+        pool = new ApnsElasticPooledConnection(prototype(sleeping(20)), 1, 3, 5, 60000, 5000, TimeUnit.MILLISECONDS);
+        for (int i = 0; i < 3; i++) {
+            pool.sendMessage(mock(ApnsNotification.class));
+        }
+        long now = System.currentTimeMillis();
+        pool.rebalance(now);
+        assertEquals(2, pool.size());
+
+        long idle = now + 60000;
+        pool.rebalance(idle);
+        assertEquals(1, pool.size());
+        // retired, but still open for late error-responses
+        for (ApnsConnection copy : copies) {
+            verify(copy, never()).close();
+        }
+
+        pool.rebalance(idle + 5000);
+        int closed = 0;
+        for (ApnsConnection copy : copies) {
+            try {
+                verify(copy).close();
+                closed++;
+            } catch (AssertionError e) {
+                // still in use
+            }
+        }
+        assertEquals(1, closed);
+
+        // never below the minimum
+        pool.rebalance(idle + 120000);
+        assertEquals(1, pool.size());
+    }
+}
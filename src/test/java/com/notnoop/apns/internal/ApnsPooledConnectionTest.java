@@ -31,14 +31,24 @@
 package com.notnoop.apns.internal;
 
 import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.WarmUpReport;
 import com.notnoop.exceptions.NetworkIOException;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
 
 public class ApnsPooledConnectionTest {
@@ -89,6 +99,158 @@ public class ApnsPooledConnectionTest {
         verify(prototype, times(2)).close();
     }
 
+    @Test
+    public void testWorkStealingSkipsBusyConnection() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        ApnsConnection blocked = blockingConnection(release);
+        ApnsConnection idle = mock(ApnsConnection.class);
+        when(prototype.copy()).thenReturn(blocked, idle);
+
+        final ApnsPooledConnection conn = new ApnsPooledConnection(prototype, 2, getFixedThreadExecutor(2));
+        conn.setWorkStealing(10, TimeUnit.SECONDS);
+        Thread first = sendInBackground(conn, notification(1));
+        Thread.sleep(100);
+
+        conn.sendMessage(notification(2));
+        verify(idle).sendMessage(any(ApnsNotification.class));
+
+        release.countDown();
+        first.join();
+    }
+
+    @Test
+    public void testWorkStealingSkipsRecoveringConnection() throws Exception {
+        // resending its buffer after an error, on the error-reader thread
+        ApnsConnectionImpl recovering = mock(ApnsConnectionImpl.class);
+        when(recovering.isRecovering()).thenReturn(true);
+        ApnsConnectionImpl idle = mock(ApnsConnectionImpl.class);
+        when(prototype.copy()).thenReturn(recovering, idle);
+
+        ApnsPooledConnection conn = new ApnsPooledConnection(prototype, 2, getFixedThreadExecutor(2));
+        conn.setWorkStealing(10, TimeUnit.SECONDS);
+        conn.sendMessage(notification(1));
+        conn.sendMessage(notification(2));
+        verify(idle, times(2)).sendMessage(any(ApnsNotification.class));
+        verify(recovering, never()).sendMessage(any(ApnsNotification.class));
+
+        // with nothing else idle, the recovering connection is still used
+        when(idle.isRecovering()).thenReturn(true);
+        conn.sendMessage(notification(3));
+        verify(recovering).sendMessage(any(ApnsNotification.class));
+    }
+
+    @Test
+    public void testWorkStealingTakesOverFromStalledConnection() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        ApnsConnection blocked = blockingConnection(release);
+        ApnsConnection idle = mock(ApnsConnection.class);
+        when(prototype.copy()).thenReturn(blocked, idle);
+
+        final ApnsPooledConnection conn = new ApnsPooledConnection(prototype, 2, getFixedThreadExecutor(2));
+        conn.setWorkStealing(300, TimeUnit.MILLISECONDS);
+        long start = System.nanoTime();
+        Thread first = sendInBackground(conn, notification(1));
+        Thread.sleep(50);
+
+        // same device: waits for the first send until the connection stalls
+        conn.sendMessage(notification(1));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(300));
+        verify(idle).sendMessage(any(ApnsNotification.class));
+
+        release.countDown();
+        first.join();
+    }
+
+    @Test
+    public void testWarmUpOpensConnectionsInParallel() throws Exception {
+        final WarmableConnection warmable = mock(WarmableConnection.class);
+        when(warmable.copy()).thenAnswer(new Answer<ApnsConnection>() {
+            public ApnsConnection answer(InvocationOnMock invocation) {
+                return warmableCopy(200);
+            }
+        });
+
+        ApnsPooledConnection conn = new ApnsPooledConnection(warmable, 4, getFixedThreadExecutor(4));
+        ApnsServiceImpl service = new ApnsServiceImpl(conn, null);
+        service.setWarmUp(5, TimeUnit.SECONDS, false);
+        service.start();
+
+        WarmUpReport report = service.getWarmUpReport();
+        assertEquals(4, report.getAttempted());
+        assertTrue(report.isComplete());
+        assertTrue(report.getElapsedMillis() < 600);
+        verify(warmable, times(4)).copy();
+
+        // the pool threads use the warmed-up connections
+        for (int i = 0; i < 8; i++) {
+            conn.sendMessage(mock(ApnsNotification.class));
+        }
+        verify(warmable, times(4)).copy();
+    }
+
+    @Test
+    public void testWarmUpReportsConnectionsNotOpenedInTime() throws Exception {
+        final WarmableConnection warmable = mock(WarmableConnection.class);
+        WarmableConnection fast = warmableCopy(0), other = warmableCopy(0), slow = warmableCopy(10000);
+        when(warmable.copy()).thenReturn(fast, other, slow);
+
+        ApnsServiceImpl service = new ApnsServiceImpl(
+                new ApnsPooledConnection(warmable, 3, getFixedThreadExecutor(3)), null);
+        service.setWarmUp(300, TimeUnit.MILLISECONDS, false);
+        service.start();
+
+        WarmUpReport report = service.getWarmUpReport();
+        assertEquals(3, report.getAttempted());
+        assertEquals(2, report.getSucceeded());
+        assertEquals(1, report.getFailed());
+        assertTrue(report.getElapsedMillis() < 2000);
+    }
+
+    private static WarmableConnection warmableCopy(final long connectMillis) {
+        WarmableConnection copy = mock(WarmableConnection.class);
+        Callable<Void> connect = new Callable<Void>() {
+            public Void call() throws InterruptedException {
+                Thread.sleep(connectMillis);
+                return null;
+            }
+        };
+        List<Callable<Void>> tasks = Collections.singletonList(connect);
+        when(copy.warmUpTasks()).thenReturn(tasks);
+        return copy;
+    }
+
+    private static ApnsNotification notification(int token) {
+        ApnsNotification notification = mock(ApnsNotification.class);
+        when(notification.getDeviceToken()).thenReturn(new byte[] { 1, 2, (byte) token });
+        return notification;
+    }
+
+    private static ApnsConnection blockingConnection(final CountDownLatch release) {
+        ApnsConnection connection = mock(ApnsConnection.class);
+        doAnswer(new Answer<Void>() {
+            public Void answer(InvocationOnMock invocation) throws InterruptedException {
+                release.await();
+                return null;
+            }
+        }).when(connection).sendMessage(any(ApnsNotification.class));
+        return connection;
+    }
+
+    private static Thread sendInBackground(final ApnsConnection conn, final ApnsNotification notification) {
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                conn.sendMessage(notification);
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    private ExecutorService getFixedThreadExecutor(int threads) {
+        executorService = Executors.newFixedThreadPool(threads);
+        return executorService;
+    }
+
     private ExecutorService getSingleThreadExecutor() {
         executorService = Executors.newSingleThreadExecutor();
         return executorService;
@@ -30,11 +30,29 @@
  */
 package com.notnoop.apns.internal;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
 
+import com.notnoop.apns.ApnsNotification;
 import com.notnoop.apns.ApnsService;
 import com.notnoop.apns.EnhancedApnsNotification;
+import com.notnoop.apns.PushAllListener;
+import com.notnoop.apns.PushAllOptions;
+import com.notnoop.apns.PushAllSummary;
+import com.notnoop.apns.TokenFile;
 
 public class ApnsServiceImplTest {
 
@@ -61,6 +79,133 @@ public class ApnsServiceImplTest {
         verify(connection, times(1)).sendMessage(notification);
     }
 
+    @Test
+    public void pushAllStreamsTokens() {
+        ApnsConnection connection = mock(ApnsConnection.class);
+        ApnsServiceImpl service = new ApnsServiceImpl(connection, null);
+        final AtomicInteger reports = new AtomicInteger();
+
+        PushAllSummary summary = service.pushAll(tokens(1000), "{}", new PushAllOptions()
+                .withParallelism(4)
+                .withProgressListener(new PushAllListener() {
+                    public void progress(PushAllSummary progress) {
+                        reports.incrementAndGet();
+                    }
+                }, 100));
+
+        assertEquals(1000, summary.getPushed());
+        assertEquals(0, summary.getFailed());
+        assertEquals(10, reports.get());
+        verify(connection, times(1000)).sendMessage(any(ApnsNotification.class));
+    }
+
+    @Test
+    public void pushAllCountsFailures() {
+        ApnsConnection connection = mock(ApnsConnection.class);
+        ApnsServiceImpl service = new ApnsServiceImpl(connection, null);
+        List<String> tokens = new ArrayList<String>();
+        tokens.add("2342");
+        tokens.add("not hex");
+        tokens.add("2343");
+
+        PushAllSummary summary = service.pushAll(tokens.iterator(), "{}", null);
+
+        assertEquals(2, summary.getPushed());
+        assertEquals(1, summary.getFailed());
+        verify(connection, times(1)).sendMessage(notification);
+    }
+
+    @Test
+    public void pushAllStopsItsThreadsWhenTheTokensFail() throws InterruptedException {
+        ApnsConnection connection = mock(ApnsConnection.class);
+        ApnsServiceImpl service = new ApnsServiceImpl(connection, null);
+        final Iterator<String> tokens = tokens(600);
+        Iterator<String> failing = new Iterator<String>() {
+            public boolean hasNext() {
+                return true;
+            }
+
+            public String next() {
+                if (!tokens.hasNext()) {
+                    throw new IllegalStateException("token source failed");
+                }
+                return tokens.next();
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+
+        try {
+            service.pushAll(failing, "{}", new PushAllOptions().withParallelism(4));
+            fail("the iterator failure should propagate");
+        } catch (IllegalStateException e) {
+            assertEquals("token source failed", e.getMessage());
+        }
+        for (int i = 0; i < 100 && pushAllThreadsAlive(); i++) {
+            Thread.sleep(20);
+        }
+        assertFalse(pushAllThreadsAlive());
+    }
+
+    private static boolean pushAllThreadsAlive() {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("apns-push-all-") && thread.isAlive()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Test
+    public void pushAllReadsTokenFiles() throws IOException {
+        StringBuilder list = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            list.append(String.format("%064x", i)).append('\n');
+        }
+        File file = File.createTempFile("tokens", ".bin");
+        file.deleteOnExit();
+        TokenFile.convert(new BufferedReader(new StringReader(list.toString())), file);
+
+        ApnsConnection connection = mock(ApnsConnection.class);
+        ApnsServiceImpl service = new ApnsServiceImpl(connection, null);
+        TokenFile tokens = TokenFile.open(file);
+        try {
+            PushAllSummary summary = service.pushAll(tokens, Utilities.toUTF8Bytes("{}"),
+                    new PushAllOptions().withParallelism(3));
+            assertEquals(1000, summary.getPushed());
+        } finally {
+            tokens.close();
+        }
+        ArgumentCaptor<ApnsNotification> sent = ArgumentCaptor.forClass(ApnsNotification.class);
+        verify(connection, times(1000)).sendMessage(sent.capture());
+        Set<String> devices = new HashSet<String>();
+        for (ApnsNotification notification : sent.getAllValues()) {
+            devices.add(Utilities.encodeHex(notification.getDeviceToken()));
+        }
+        assertEquals(1000, devices.size());
+        assertTrue(devices.contains(String.format("%064X", 999)));
+    }
+
+    private static Iterator<String> tokens(final int count) {
+        return new Iterator<String>() {
+            private int next;
+
+            public boolean hasNext() {
+                return next < count;
+            }
+
+            public String next() {
+                return String.format("%08x", next++);
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
     protected ApnsService newService(ApnsConnection connection, ApnsFeedbackConnection feedback) {
         return new ApnsServiceImpl(connection, null);
     }
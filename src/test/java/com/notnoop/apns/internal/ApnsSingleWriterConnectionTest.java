@@ -0,0 +1,172 @@
+/*
+ *  Copyright 2009, Mahmood Ali.
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are
+ *  met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ *      copyright notice, this list of conditions and the following disclaimer
+ *      in the documentation and/or other materials provided with the
+ *      distribution.
+ *    * Neither the name of Mahmood Ali. nor the names of its
+ *      contributors may be used to endorse or promote products derived from
+ *      this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.apns.internal;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.notnoop.apns.ApnsDelegate;
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.EnhancedApnsNotification;
+import com.notnoop.apns.WaitStrategy;
+import com.notnoop.exceptions.NetworkIOException;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class ApnsSingleWriterConnectionTest {
+
+    private final List<ApnsNotification> written = Collections.synchronizedList(new ArrayList<ApnsNotification>());
+    private final List<String> writers = Collections.synchronizedList(new ArrayList<String>());
+
+    private ApnsConnectionImpl recordingConnection() {
+        ApnsConnectionImpl connection = mock(ApnsConnectionImpl.class);
+        when(connection.getCacheLength()).thenReturn(100);
+        doAnswer(new Answer<Void>() {
+            public Void answer(InvocationOnMock invocation) {
+                written.add((ApnsNotification) invocation.getArguments()[0]);
+                writers.add(Thread.currentThread().getName());
+                return null;
+            }
+        }).when(connection).sendMessage(any(ApnsNotification.class));
+        doAnswer(new Answer<Void>() {
+            @SuppressWarnings("unchecked")
+            public Void answer(InvocationOnMock invocation) {
+                written.addAll((Collection<ApnsNotification>) invocation.getArguments()[0]);
+                writers.add(Thread.currentThread().getName());
+                return null;
+            }
+        }).when(connection).sendMessages(anyCollectionOf(ApnsNotification.class));
+        return connection;
+    }
+
+    @Test
+    public void writesEverythingFromTheWriterThread() throws InterruptedException {
+        for (WaitStrategy strategy : WaitStrategy.values()) {
+            written.clear();
+            writers.clear();
+            final ApnsSingleWriterConnection conn = new ApnsSingleWriterConnection(
+                    recordingConnection(), null, strategy, 16, null);
+            List<Thread> producers = new ArrayList<Thread>();
+            for (int p = 0; p < 4; p++) {
+                final int first = p * 500;
+                // real notifications: creating mocks here would race with the writer using them
+                Thread producer = new Thread(new Runnable() {
+                    public void run() {
+                        for (int i = first; i < first + 500; i++) {
+                            conn.sendMessage(new EnhancedApnsNotification(i, 0, new byte[32], new byte[] { '{', '}' }));
+                        }
+                    }
+                });
+                producer.start();
+                producers.add(producer);
+            }
+            for (Thread producer : producers) {
+                producer.join();
+            }
+            conn.close();
+
+            assertEquals(strategy.name(), 2000, written.size());
+            for (String writer : writers) {
+                assertTrue(writer.startsWith("apns-writer-"));
+            }
+        }
+    }
+
+    @Test
+    public void reportsNotificationsTheConnectionDidNotReport() {
+        ApnsDelegate delegate = mock(ApnsDelegate.class);
+        ApnsConnectionImpl connection = mock(ApnsConnectionImpl.class);
+        when(connection.getCacheLength()).thenReturn(100);
+        NetworkIOException failure = new NetworkIOException("Connection refused");
+        doThrow(failure).when(connection).sendMessage(any(ApnsNotification.class));
+
+        ApnsSingleWriterConnection conn = new ApnsSingleWriterConnection(
+                connection, delegate, WaitStrategy.PARK, 16, null);
+        ApnsNotification notification = mock(ApnsNotification.class);
+        conn.sendMessage(notification);
+        conn.close();
+
+        verify(delegate).messageSendFailed(notification, failure);
+    }
+
+    @Test
+    public void resendsOnTheWriterThread() throws InterruptedException {
+        ApnsConnectionImpl connection = recordingConnection();
+        doAnswer(new Answer<Void>() {
+            public Void answer(InvocationOnMock invocation) {
+                writers.add("resend:" + Thread.currentThread().getName());
+                return null;
+            }
+        }).when(connection).resendBuffered();
+        ArgumentCaptor<Runnable> handoff = ArgumentCaptor.forClass(Runnable.class);
+        ApnsSingleWriterConnection conn = new ApnsSingleWriterConnection(
+                connection, null, WaitStrategy.PARK, 16, null);
+        verify(connection).setResendHandoff(handoff.capture());
+        conn.sendMessage(new EnhancedApnsNotification(1, 0, new byte[32], new byte[] { '{', '}' }));
+
+        // as the error-response reader does after an error
+        Thread reader = new Thread(handoff.getValue(), "error-reader");
+        reader.start();
+        reader.join();
+        verify(connection, timeout(5000)).resendBuffered();
+        conn.close();
+
+        List<String> resenders = new ArrayList<String>();
+        for (String writer : writers) {
+            if (writer.startsWith("resend:")) {
+                resenders.add(writer);
+            }
+        }
+        assertEquals(1, resenders.size());
+        assertTrue(resenders.get(0), resenders.get(0).startsWith("resend:apns-writer-"));
+
+        // once the writer is gone, the handoff resends right away
+        handoff.getValue().run();
+        verify(connection, times(2)).resendBuffered();
+        assertEquals("resend:" + Thread.currentThread().getName(), writers.get(writers.size() - 1));
+    }
+
+    @Test(expected = NetworkIOException.class)
+    public void rejectsNotificationsOnceClosed() {
+        ApnsSingleWriterConnection conn = new ApnsSingleWriterConnection(
+                recordingConnection(), null, WaitStrategy.YIELD, 16, null);
+        conn.close();
+        conn.sendMessage(mock(ApnsNotification.class));
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ *  Copyright 2009, Mahmood Ali.
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are
+ *  met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ *      copyright notice, this list of conditions and the following disclaimer
+ *      in the documentation and/or other materials provided with the
+ *      distribution.
+ *    * Neither the name of Mahmood Ali. nor the names of its
+ *      contributors may be used to endorse or promote products derived from
+ *      this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.apns.internal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.notnoop.apns.ApnsDelegateAdapter;
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.BatchApnsDelegate;
+import com.notnoop.apns.DelegateOverflow;
+import com.notnoop.apns.EnhancedApnsNotification;
+import com.notnoop.apns.metrics.ApnsMetrics;
+
+import static org.junit.Assert.*;
+
+public class AsyncApnsDelegateTest {
+
+    /** Records the calls, optionally blocking until released */
+    private static class RecordingDelegate extends ApnsDelegateAdapter implements BatchApnsDelegate {
+        final List<String> calls = Collections.synchronizedList(new ArrayList<String>());
+        final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<Integer>());
+        final List<Thread> threads = Collections.synchronizedList(new ArrayList<Thread>());
+        final CountDownLatch release;
+
+        RecordingDelegate(CountDownLatch release) {
+            this.release = release;
+        }
+
+        private void await() {
+            threads.add(Thread.currentThread());
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        public void messagesSent(List<ApnsNotification> messages) {
+            await();
+            batchSizes.add(messages.size());
+            for (ApnsNotification message : messages) {
+                calls.add("sent " + message.getIdentifier());
+            }
+        }
+
+        @Override
+        public void messageSent(ApnsNotification message, boolean resent) {
+            await();
+            calls.add((resent ? "resent " : "sent ") + message.getIdentifier());
+        }
+
+        @Override
+        public void messageSendFailed(ApnsNotification message, Throwable e) {
+            await();
+            calls.add("failed " + message.getIdentifier());
+        }
+    }
+
+    private static ApnsNotification notification(int id) {
+        return new EnhancedApnsNotification(id, EnhancedApnsNotification.MAXIMUM_EXPIRY, "2342", "{}");
+    }
+
+    @Test
+    public void deliversInOrderWithoutBlockingTheSender() {
+        CountDownLatch release = new CountDownLatch(1);
+        RecordingDelegate recording = new RecordingDelegate(release);
+        AsyncApnsDelegate delegate = new AsyncApnsDelegate(recording, 1024, DelegateOverflow.BLOCK, null);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 100; i++) {
+            delegate.messageSent(notification(i), false);
+        }
+        delegate.messageSendFailed(notification(100), new Exception());
+        delegate.messageSent(notification(101), true);
+        delegate.messageSent(notification(102), false);
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+        assertTrue(recording.calls.isEmpty());
+
+        release.countDown();
+        delegate.close();
+
+        List<String> expected = new ArrayList<String>();
+        for (int i = 0; i < 100; i++) {
+            expected.add("sent " + i);
+        }
+        expected.add("failed 100");
+        expected.add("resent 101");
+        expected.add("sent 102");
+        assertEquals(expected, recording.calls);
+        assertTrue(Collections.max(recording.batchSizes) > 1);
+        assertFalse(recording.threads.contains(Thread.currentThread()));
+    }
+
+    @Test
+    public void dropsEventsWhenFull() {
+        CountDownLatch release = new CountDownLatch(1);
+        RecordingDelegate recording = new RecordingDelegate(release);
+        AsyncApnsDelegate delegate = new AsyncApnsDelegate(recording, 4, DelegateOverflow.DROP, null);
+        ApnsMetrics metrics = new ApnsMetrics();
+        delegate.setMetrics(metrics);
+
+        for (int i = 0; i < 20; i++) {
+            delegate.messageSendFailed(notification(i), new Exception());
+        }
+        release.countDown();
+        delegate.close();
+
+        long dropped = metrics.counter(ApnsMetrics.DELEGATE_DROPPED).get();
+        assertTrue(dropped > 0);
+        assertEquals(20, recording.calls.size() + dropped);
+    }
+
+    @Test
+    public void callerRunsWhenFull() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        final RecordingDelegate recording = new RecordingDelegate(release);
+        final AsyncApnsDelegate delegate = new AsyncApnsDelegate(recording, 4, DelegateOverflow.CALLER_RUNS, null);
+
+        final Thread sender = new Thread(new Runnable() {
+            public void run() {
+                for (int i = 0; i < 20; i++) {
+                    delegate.messageSendFailed(notification(i), new Exception());
+                }
+            }
+        });
+        sender.start();
+        // the sender runs the overflowing event itself, and blocks in the delegate
+        while (!recording.threads.contains(sender)) {
+            Thread.sleep(10);
+        }
+        release.countDown();
+        sender.join();
+        delegate.close();
+
+        assertEquals(20, recording.calls.size());
+    }
+}
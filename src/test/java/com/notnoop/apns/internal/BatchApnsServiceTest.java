@@ -30,17 +30,32 @@
  */
 package com.notnoop.apns.internal;
 
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.net.SocketFactory;
 
 import org.junit.Before;
 import org.junit.Test;
 
+import com.notnoop.apns.ApnsDelegate;
 import com.notnoop.apns.ApnsNotification;
 
 public class BatchApnsServiceTest {
@@ -140,4 +155,68 @@ public class BatchApnsServiceTest {
 		verify(prototype, times(1)).close();
 	}
 
+	@Test
+	public void firstBatchSendsOnTheWarmedConnection() throws IOException, InterruptedException {
+		ApnsConnection warm = mock(ApnsConnection.class);
+		ApnsConnection other = mock(ApnsConnection.class);
+		ApnsConnection source = mock(ApnsConnection.class);
+		when(source.copy()).thenReturn(warm, other);
+		BatchApnsService warmed = new BatchApnsService(source, null, delayTimeInSec, maxDelayTimeInSec, Executors.defaultThreadFactory());
+		warmed.setWarmUp(1, TimeUnit.SECONDS, false);
+		warmed.start();
+		verify(source, times(1)).copy();
+
+		ApnsNotification message = warmed.push("1234", "{}");
+
+		verify(warm, timeout(delayTimeInSec_millis + 5000)).sendMessage(message);
+		verify(warm, timeout(5000)).close();
+		verify(source, times(1)).copy();
+		warmed.stop();
+		verifyZeroInteractions(other);
+	}
+
+	@Test
+	public void retriesOutliveTheBatch() throws InterruptedException {
+		final AtomicInteger connects = new AtomicInteger();
+		SocketFactory factory = new SocketFactory() {
+			public Socket createSocket(String host, int port) {
+				// the packed write and the two immediate attempts fail
+				if (connects.incrementAndGet() <= 3) {
+					// unconnected, failing the write
+					return new Socket();
+				}
+				return new Socket() {
+					private final OutputStream out = new ByteArrayOutputStream();
+					public OutputStream getOutputStream() {
+						return out;
+					}
+				};
+			}
+			public Socket createSocket(String host, int port, InetAddress localHost, int localPort) {
+				return createSocket(host, port);
+			}
+			public Socket createSocket(InetAddress host, int port) {
+				return createSocket(host.getHostName(), port);
+			}
+			public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) {
+				return createSocket(address.getHostName(), port);
+			}
+		};
+		ApnsDelegate delegate = mock(ApnsDelegate.class);
+		ApnsConnectionImpl connection = new ApnsConnectionImpl(factory, "localhost", 80, null, null, null,
+				new ReconnectPolicies.Never(), delegate, false, null, 2, false, 0, 0);
+		RetryScheduler scheduler = new RetryScheduler(3, 500, 500);
+		connection.setRetryScheduler(scheduler);
+		BatchApnsService batching = new BatchApnsService(connection, null, 1, 2, Executors.defaultThreadFactory());
+		batching.setRetryScheduler(scheduler);
+		try {
+			ApnsNotification message = batching.push("1234", "{}");
+			verify(delegate, timeout(5000)).messageSent(eq(message), anyBoolean());
+			verify(delegate, never()).messageSendFailed(eq(message), any(Exception.class));
+			assertEquals(4, connects.get());
+		} finally {
+			batching.stop();
+		}
+	}
+
 }
@@ -0,0 +1,166 @@
+/*
+ *  Copyright 2009, Mahmood Ali.
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are
+ *  met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ *      copyright notice, this list of conditions and the following disclaimer
+ *      in the documentation and/or other materials provided with the
+ *      distribution.
+ *    * Neither the name of Mahmood Ali. nor the names of its
+ *      contributors may be used to endorse or promote products derived from
+ *      this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.apns.internal;
+
+import java.util.concurrent.TimeUnit;
+
+import com.notnoop.apns.ApnsDelegate;
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.ApnsService;
+import com.notnoop.apns.EnhancedApnsNotification;
+import com.notnoop.exceptions.CircuitOpenException;
+import com.notnoop.exceptions.NetworkIOException;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.*;
+
+public class CircuitBreakerApnsServiceTest {
+
+    private final ApnsNotification notification =
+            new EnhancedApnsNotification(1, 0, new byte[32], new byte[] { '{', '}' });
+
+    @Test
+    public void opensAfterConsecutiveFailures() {
+        ApnsService service = mock(ApnsService.class);
+        doThrow(new NetworkIOException()).when(service).push(any(ApnsNotification.class));
+        CircuitBreakerApnsService breaker = new CircuitBreakerApnsService(service, 2, 1, TimeUnit.HOURS, 0);
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                breaker.push(notification);
+                fail();
+            } catch (NetworkIOException e) {
+                assertFalse(e instanceof CircuitOpenException);
+            }
+        }
+        assertEquals(CircuitBreakerApnsService.State.OPEN, breaker.getState());
+
+        try {
+            breaker.push(notification);
+            fail();
+        } catch (CircuitOpenException e) {
+            // expected
+        }
+        verify(service, times(2)).push(any(ApnsNotification.class));
+    }
+
+    @Test
+    public void successResetsFailureCount() {
+        ApnsService service = mock(ApnsService.class);
+        doThrow(new NetworkIOException()).doNothing().doThrow(new NetworkIOException())
+                .when(service).push(any(ApnsNotification.class));
+        CircuitBreakerApnsService breaker = new CircuitBreakerApnsService(service, 2, 1, TimeUnit.HOURS, 0);
+
+        pushIgnoringFailure(breaker);
+        pushIgnoringFailure(breaker);
+        pushIgnoringFailure(breaker);
+        assertEquals(CircuitBreakerApnsService.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void probeClosesAndFlushesBuffer() {
+        ApnsService service = mock(ApnsService.class);
+        doThrow(new NetworkIOException()).doNothing().when(service).push(any(ApnsNotification.class));
+        CircuitBreakerApnsService breaker = new CircuitBreakerApnsService(service, 1, 0, TimeUnit.MILLISECONDS, 10);
+
+        pushIgnoringFailure(breaker);
+        doThrow(new NetworkIOException()).when(service).testConnection();
+        breaker.push(notification);
+        assertEquals(CircuitBreakerApnsService.State.OPEN, breaker.getState());
+
+        doNothing().when(service).testConnection();
+        breaker.push(notification);
+        assertEquals(CircuitBreakerApnsService.State.CLOSED, breaker.getState());
+        // the failed one, the buffered one and the last one
+        verify(service, times(3)).push(any(ApnsNotification.class));
+    }
+
+    @Test
+    public void reportsRejectedNotifications() {
+        ApnsService service = mock(ApnsService.class);
+        doThrow(new NetworkIOException()).when(service).push(any(ApnsNotification.class));
+        ApnsDelegate delegate = mock(ApnsDelegate.class);
+        CircuitBreakerApnsService breaker = new CircuitBreakerApnsService(service, 1, 1, TimeUnit.HOURS, 0);
+        breaker.setDelegate(delegate);
+
+        pushIgnoringFailure(breaker);
+        pushIgnoringFailure(breaker);
+        verify(delegate).messageSendFailed(eq(notification), any(CircuitOpenException.class));
+    }
+
+    @Test
+    public void probesAndFlushesWithoutPushes() {
+        ApnsService service = mock(ApnsService.class);
+        doThrow(new NetworkIOException()).doNothing().when(service).push(any(ApnsNotification.class));
+        doThrow(new NetworkIOException()).doNothing().when(service).testConnection();
+        CircuitBreakerApnsService breaker = new CircuitBreakerApnsService(service, 1, 10, TimeUnit.MILLISECONDS, 10);
+        breaker.start();
+        try {
+            pushIgnoringFailure(breaker);
+            breaker.push(notification);
+
+            // the first probe fails, the second one closes the breaker
+            verify(service, timeout(5000).times(2)).push(any(ApnsNotification.class));
+            assertEquals(CircuitBreakerApnsService.State.CLOSED, breaker.getState());
+            verify(service, times(2)).testConnection();
+        } finally {
+            breaker.stop();
+        }
+    }
+
+    @Test
+    public void reportsBufferedNotificationsOnStop() {
+        ApnsService service = mock(ApnsService.class);
+        doThrow(new NetworkIOException()).when(service).push(any(ApnsNotification.class));
+        ApnsDelegate delegate = mock(ApnsDelegate.class);
+        CircuitBreakerApnsService breaker = new CircuitBreakerApnsService(service, 1, 1, TimeUnit.HOURS, 10);
+        breaker.setDelegate(delegate);
+        breaker.start();
+
+        pushIgnoringFailure(breaker);
+        breaker.push(notification);
+        verify(delegate, never()).messageSendFailed(any(ApnsNotification.class), any(Throwable.class));
+        breaker.stop();
+        verify(delegate).messageSendFailed(eq(notification), any(CircuitOpenException.class));
+        verify(service).stop();
+    }
+
+    private void pushIgnoringFailure(ApnsService service) {
+        try {
+            service.push(notification);
+        } catch (NetworkIOException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ *  Copyright 2009, Mahmood Ali.
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are
+ *  met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ *      copyright notice, this list of conditions and the following disclaimer
+ *      in the documentation and/or other materials provided with the
+ *      distribution.
+ *    * Neither the name of Mahmood Ali. nor the names of its
+ *      contributors may be used to endorse or promote products derived from
+ *      this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.apns.internal;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CoarseClockTest {
+
+    @Test
+    public void tracksTheTimeAcrossIdlePeriods() throws InterruptedException {
+        assertCloseToNow(CoarseClock.currentTimeMillis());
+        Thread.sleep(5 * CoarseClock.RESOLUTION_MS);
+        assertCloseToNow(CoarseClock.currentTimeMillis());
+
+        // long enough for the ticker to park
+        Thread.sleep(CoarseClock.IDLE_MS + 20 * CoarseClock.RESOLUTION_MS);
+        assertCloseToNow(CoarseClock.currentTimeMillis());
+        Thread.sleep(5 * CoarseClock.RESOLUTION_MS);
+        assertCloseToNow(CoarseClock.currentTimeMillis());
+    }
+
+    @Test
+    public void keepsOneTickerAcrossIdlePeriods() throws InterruptedException {
+        CoarseClock.currentTimeMillis();
+        Thread ticker = CoarseClock.ticker();
+        assertNotNull(ticker);
+
+        for (int i = 0; i < 3; i++) {
+            Thread.sleep(CoarseClock.IDLE_MS + 20 * CoarseClock.RESOLUTION_MS);
+            assertCloseToNow(CoarseClock.currentTimeMillis());
+            assertSame(ticker, CoarseClock.ticker());
+            assertTrue(ticker.isAlive());
+            assertEquals(1, countTickers());
+        }
+    }
+
+    private static int countTickers() {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if ("apns-coarse-clock".equals(thread.getName())) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static void assertCloseToNow(long time) {
+        long lag = System.currentTimeMillis() - time;
+        assertTrue("lagging by " + lag + "ms", lag >= 0 && lag <= 3 * CoarseClock.RESOLUTION_MS);
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ *  Copyright 2009, Mahmood Ali.
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are
+ *  met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ *      copyright notice, this list of conditions and the following disclaimer
+ *      in the documentation and/or other materials provided with the
+ *      distribution.
+ *    * Neither the name of Mahmood Ali. nor the names of its
+ *      contributors may be used to endorse or promote products derived from
+ *      this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.apns.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.notnoop.apns.ApnsDelegateAdapter;
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.EnhancedApnsNotification;
+import com.notnoop.apns.ExpiryAwareApnsDelegate;
+import com.notnoop.apns.metrics.ApnsMetrics;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ExpiryFilterTest {
+
+    private static ApnsNotification notification(int id, int expiry) {
+        return new EnhancedApnsNotification(id, expiry, "a87d8878d878a79", "{\"aps\":{}}");
+    }
+
+    private static class RecordingDelegate extends ApnsDelegateAdapter implements ExpiryAwareApnsDelegate {
+        final List<ApnsNotification> expired = new ArrayList<ApnsNotification>();
+
+        public void messageExpired(ApnsNotification message) {
+            expired.add(message);
+        }
+    }
+
+    @Test
+    public void onlyPastExpiriesAreExpired() {
+        long now = 1000000000000L;
+        assertTrue(ExpiryFilter.isExpired(notification(1, 999999999), now));
+        assertFalse(ExpiryFilter.isExpired(notification(1, 1000000001), now));
+        assertFalse(ExpiryFilter.isExpired(notification(1, 0), now));
+        assertFalse(ExpiryFilter.isExpired(notification(1, -1), now));
+        assertFalse(ExpiryFilter.isExpired(notification(1, EnhancedApnsNotification.MAXIMUM_EXPIRY), now));
+    }
+
+    @Test
+    public void dropsExpiredAndReportsThem() {
+        RecordingDelegate delegate = new RecordingDelegate();
+        ApnsMetrics metrics = new ApnsMetrics();
+        ExpiryFilter filter = new ExpiryFilter(delegate);
+        filter.setMetrics(metrics);
+
+        ApnsNotification stale = notification(1, 1);
+        assertTrue(filter.dropIfExpired(stale, -1));
+        assertFalse(filter.dropIfExpired(notification(2, EnhancedApnsNotification.MAXIMUM_EXPIRY), -1));
+
+        assertEquals(1, delegate.expired.size());
+        assertSame(stale, delegate.expired.get(0));
+        assertEquals(1, metrics.snapshot().getCounter(ApnsMetrics.EXPIRED));
+    }
+
+    @Test
+    public void deadlineQueueServesEarliestExpiryFirst() {
+        DeadlineQueue queue = new DeadlineQueue();
+        queue.add(notification(1, -1));
+        queue.add(notification(2, 2000));
+        queue.add(notification(3, 1000));
+        queue.add(notification(4, 2000));
+        queue.add(notification(5, 0));
+
+        int[] expected = { 5, 3, 2, 4, 1 };
+        for (int id : expected) {
+            assertEquals(id, queue.poll().getIdentifier());
+        }
+        assertNull(queue.poll());
+    }
+}
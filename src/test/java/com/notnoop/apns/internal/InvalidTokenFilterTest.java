@@ -0,0 +1,97 @@
+/*
+ *  Copyright 2009, Mahmood Ali.
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are
+ *  met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ *      copyright notice, this list of conditions and the following disclaimer
+ *      in the documentation and/or other materials provided with the
+ *      distribution.
+ *    * Neither the name of Mahmood Ali. nor the names of its
+ *      contributors may be used to endorse or promote products derived from
+ *      this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.apns.internal;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class InvalidTokenFilterTest {
+
+    private static byte[] token(int i) {
+        byte[] token = new byte[32];
+        token[0] = (byte) i;
+        token[1] = (byte) (i >> 8);
+        token[31] = (byte) 0x5a;
+        return token;
+    }
+
+    @Test
+    public void remembersAddedTokensOnly() {
+        InvalidTokenFilter filter = new InvalidTokenFilter(100, 60000);
+        for (int i = 0; i < 1000; i += 2) {
+            filter.add(token(i));
+        }
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i % 2 == 0, filter.contains(token(i)));
+        }
+        assertEquals(500, filter.size());
+    }
+
+    @Test
+    public void addsFeedbackTokens() {
+        InvalidTokenFilter filter = new InvalidTokenFilter(10, 60000);
+        filter.addAll(Arrays.asList(Utilities.encodeHex(token(7))));
+        assertTrue(filter.contains(token(7)));
+    }
+
+    @Test
+    public void forgetsRemovedAndExpiredTokens() {
+        InvalidTokenFilter filter = new InvalidTokenFilter(10, 1000);
+        filter.add(token(1));
+        filter.add(token(2));
+        filter.remove(token(1));
+        assertFalse(filter.contains(token(1)));
+
+        long now = CoarseClock.currentTimeMillis();
+        assertTrue(filter.contains(token(2), now));
+        assertFalse(filter.contains(token(2), now + 2000));
+        assertEquals(0, filter.size());
+    }
+
+    @Test
+    public void sweepsExpiredTokensWhenAdding() {
+        InvalidTokenFilter filter = new InvalidTokenFilter(1000, 1000);
+        long now = CoarseClock.currentTimeMillis();
+        for (int i = 0; i < 500; i++) {
+            filter.add(token(i), now);
+        }
+        assertEquals(500, filter.size());
+
+        // never looked up again, but swept by a later add
+        filter.add(token(1000), now + 2000);
+        assertEquals(1, filter.size());
+        assertTrue(filter.contains(token(1000), now + 2000));
+        assertFalse(filter.contains(token(1), now + 2000));
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ *  Copyright 2009, Mahmood Ali.
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are
+ *  met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ *      copyright notice, this list of conditions and the following disclaimer
+ *      in the documentation and/or other materials provided with the
+ *      distribution.
+ *    * Neither the name of Mahmood Ali. nor the names of its
+ *      contributors may be used to endorse or promote products derived from
+ *      this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.apns.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MpscRingTest {
+
+    @Test
+    public void roundsCapacityAndRejectsWhenFull() {
+        MpscRing<Integer> ring = new MpscRing<Integer>(3);
+        assertEquals(4, ring.capacity());
+        for (int i = 0; i < 4; i++) {
+            assertTrue(ring.offer(i));
+        }
+        assertFalse(ring.offer(4));
+        assertEquals(4, ring.size());
+        assertEquals(Integer.valueOf(0), ring.poll());
+        assertTrue(ring.offer(4));
+    }
+
+    @Test
+    public void keepsOrderAcrossLaps() {
+        MpscRing<Integer> ring = new MpscRing<Integer>(4);
+        List<Integer> drained = new ArrayList<Integer>();
+        for (int i = 0; i < 20; i++) {
+            assertTrue(ring.offer(i));
+            if (i % 3 == 2) {
+                ring.drainTo(drained, 10);
+            }
+        }
+        ring.drainTo(drained, 10);
+        assertNull(ring.poll());
+        for (int i = 0; i < 20; i++) {
+            assertEquals(Integer.valueOf(i), drained.get(i));
+        }
+    }
+
+    @Test
+    public void deliversEveryElementOfConcurrentProducers() throws InterruptedException {
+        final int producers = 4;
+        final int perProducer = 50000;
+        final MpscRing<int[]> ring = new MpscRing<int[]>(64);
+        final CountDownLatch start = new CountDownLatch(1);
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < perProducer; i++) {
+                        int[] element = { producer, i };
+                        while (!ring.offer(element)) {
+                            Thread.yield();
+                        }
+                    }
+                }
+            }).start();
+        }
+        start.countDown();
+
+        int[] next = new int[producers];
+        int received = 0;
+        long deadline = System.currentTimeMillis() + 30000;
+        while (received < producers * perProducer && System.currentTimeMillis() < deadline) {
+            int[] element = ring.poll();
+            if (element == null) {
+                Thread.yield();
+                continue;
+            }
+            // each producer's elements arrive in order, none lost or repeated
+            assertEquals(next[element[0]]++, element[1]);
+            received++;
+        }
+        assertEquals(producers * perProducer, received);
+    }
+}
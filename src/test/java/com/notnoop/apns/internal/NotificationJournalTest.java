@@ -0,0 +1,179 @@
+/*
+ *  Copyright 2009, Mahmood Ali.
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are
+ *  met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ *      copyright notice, this list of conditions and the following disclaimer
+ *      in the documentation and/or other materials provided with the
+ *      distribution.
+ *    * Neither the name of Mahmood Ali. nor the names of its
+ *      contributors may be used to endorse or promote products derived from
+ *      this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.apns.internal;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.Executors;
+
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.ApnsService;
+import com.notnoop.apns.EnhancedApnsNotification;
+import com.notnoop.apns.FramedApnsNotification;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentMatcher;
+import org.mockito.InOrder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class NotificationJournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static EnhancedApnsNotification notification(int id, int expiry) {
+        byte[] token = new byte[32];
+        token[0] = (byte) id;
+        return new EnhancedApnsNotification(id, expiry, token, Utilities.toUTF8Bytes("{\"aps\":{\"id\":" + id + "}}"));
+    }
+
+    @Test
+    public void replaysUnconsumedNotifications() {
+        File dir = folder.getRoot();
+        NotificationJournal journal = new NotificationJournal(dir, 4096, 0);
+        for (int i = 1; i <= 3; i++) {
+            journal.append(notification(i, 0));
+        }
+        journal.consumed();
+        journal.close();
+
+        List<ApnsNotification> replayed = new NotificationJournal(dir, 4096, 0).takeReplayed();
+        assertEquals(2, replayed.size());
+        assertEquals(2, replayed.get(0).getIdentifier());
+        assertArrayEquals(notification(2, 0).marshall(), replayed.get(0).marshall());
+        assertArrayEquals(notification(3, 0).getDeviceToken(), replayed.get(1).getDeviceToken());
+        assertArrayEquals(notification(3, 0).getPayload(), replayed.get(1).getPayload());
+    }
+
+    @Test
+    public void queuesReplayedNotificationsAheadOfNewOnes() {
+        File dir = folder.getRoot();
+        NotificationJournal journal = new NotificationJournal(dir, 4096, 0);
+        journal.append(notification(1, 0));
+        journal.append(notification(2, 0));
+        journal.close();
+
+        ApnsService service = mock(ApnsService.class);
+        final QueuedApnsService queued = new QueuedApnsService(service, Executors.defaultThreadFactory());
+        queued.setJournal(new NotificationJournal(dir, 4096, 0));
+        final ApnsNotification fresh = notification(3, 0);
+        // a push racing with start, once pushes are accepted
+        doAnswer(new Answer<Void>() {
+            public Void answer(InvocationOnMock invocation) {
+                queued.push(fresh);
+                return null;
+            }
+        }).when(service).start();
+
+        queued.start();
+        try {
+            verify(service, timeout(5000).times(3)).push(any(ApnsNotification.class));
+            InOrder order = inOrder(service);
+            order.verify(service).push(argThat(hasIdentifier(1)));
+            order.verify(service).push(argThat(hasIdentifier(2)));
+            order.verify(service).push(fresh);
+        } finally {
+            queued.stop();
+        }
+    }
+
+    private static ArgumentMatcher<ApnsNotification> hasIdentifier(final int id) {
+        return new ArgumentMatcher<ApnsNotification>() {
+            @Override
+            public boolean matches(Object argument) {
+                return ((ApnsNotification) argument).getIdentifier() == id;
+            }
+        };
+    }
+
+    @Test
+    public void replaysFramedNotifications() {
+        File dir = folder.getRoot();
+        FramedApnsNotification framed = new FramedApnsNotification(7, 0, notification(7, 0).getDeviceToken(),
+                notification(7, 0).getPayload(), FramedApnsNotification.PRIORITY_CONSERVE_POWER);
+        NotificationJournal journal = new NotificationJournal(dir, 4096, 0);
+        journal.append(framed);
+        journal.close();
+
+        ApnsNotification replayed = new NotificationJournal(dir, 4096, 0).takeReplayed().get(0);
+        assertArrayEquals(framed.marshall(), replayed.marshall());
+        assertArrayEquals(framed.getDeviceToken(), replayed.getDeviceToken());
+        assertArrayEquals(framed.getPayload(), replayed.getPayload());
+        assertNull(NotificationValidator.validate(replayed));
+    }
+
+    @Test
+    public void keepsConsumedNotificationsUntilCheckpointDelay() {
+        File dir = folder.getRoot();
+        NotificationJournal journal = new NotificationJournal(dir, 4096, 60000);
+        journal.append(notification(1, 0));
+        journal.consumed();
+        journal.close();
+
+        assertEquals(1, new NotificationJournal(dir, 4096, 60000).takeReplayed().size());
+    }
+
+    @Test
+    public void rollsAndRecyclesSegments() {
+        File dir = folder.getRoot();
+        NotificationJournal journal = new NotificationJournal(dir, 1024, 0);
+        for (int i = 1; i <= 100; i++) {
+            journal.append(notification(i, 0));
+            if (i <= 90) {
+                journal.consumed();
+            }
+        }
+        journal.close();
+
+        List<ApnsNotification> replayed = new NotificationJournal(dir, 1024, 0).takeReplayed();
+        assertEquals(10, replayed.size());
+        assertEquals(91, replayed.get(0).getIdentifier());
+        assertTrue(dir.list().length <= 2 + NotificationJournal.SPARE_SEGMENTS + 1);
+    }
+
+    @Test
+    public void skipsExpiredNotifications() {
+        File dir = folder.getRoot();
+        NotificationJournal journal = new NotificationJournal(dir, 4096, 0);
+        journal.append(notification(1, 1));
+        journal.append(notification(2, 0));
+        journal.close();
+
+        List<ApnsNotification> replayed = new NotificationJournal(dir, 4096, 0).takeReplayed();
+        assertEquals(1, replayed.size());
+        assertEquals(2, replayed.get(0).getIdentifier());
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ *  Copyright 2009, Mahmood Ali.
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are
+ *  met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ *      copyright notice, this list of conditions and the following disclaimer
+ *      in the documentation and/or other materials provided with the
+ *      distribution.
+ *    * Neither the name of Mahmood Ali. nor the names of its
+ *      contributors may be used to endorse or promote products derived from
+ *      this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.apns.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.EnhancedApnsNotification;
+import com.notnoop.apns.NotificationTraceListener;
+import com.notnoop.apns.TraceEvent;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class NotificationTracerTest {
+
+    private static ApnsNotification notification(int id) {
+        return new EnhancedApnsNotification(id, 0, new byte[32], new byte[] { '{', '}' });
+    }
+
+    @Test
+    public void disabledTracesNothing() {
+        assertFalse(NotificationTracer.DISABLED.isEnabled());
+        assertFalse(NotificationTracer.DISABLED.isTraced(notification(0)));
+    }
+
+    @Test
+    public void samplesByIdentifier() {
+        final List<Integer> traced = new ArrayList<Integer>();
+        NotificationTracer tracer = new NotificationTracer(4, new NotificationTraceListener() {
+            public void traced(TraceEvent event, ApnsNotification notification, int connectionId) {
+                traced.add(notification.getIdentifier());
+            }
+        });
+        for (int i = 1; i <= 12; i++) {
+            tracer.trace(TraceEvent.SENT, notification(i), 1);
+        }
+        assertEquals(3, traced.size());
+        assertEquals(Integer.valueOf(4), traced.get(0));
+        assertEquals(Integer.valueOf(12), traced.get(2));
+    }
+
+    @Test
+    public void listenerFailureIsContained() {
+        NotificationTracer tracer = new NotificationTracer(1, new NotificationTraceListener() {
+            public void traced(TraceEvent event, ApnsNotification notification, int connectionId) {
+                throw new IllegalStateException();
+            }
+        });
+        tracer.trace(TraceEvent.SENT, notification(1), 1);
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ *  Copyright 2009, Mahmood Ali.
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are
+ *  met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ *      copyright notice, this list of conditions and the following disclaimer
+ *      in the documentation and/or other materials provided with the
+ *      distribution.
+ *    * Neither the name of Mahmood Ali. nor the names of its
+ *      contributors may be used to endorse or promote products derived from
+ *      this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.apns.internal;
+
+import com.notnoop.apns.DeliveryError;
+import com.notnoop.apns.EnhancedApnsNotification;
+import com.notnoop.apns.SimpleApnsNotification;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class NotificationValidatorTest {
+
+    private static EnhancedApnsNotification notification(int tokenLength, int payloadLength) {
+        return new EnhancedApnsNotification(1, EnhancedApnsNotification.MAXIMUM_EXPIRY,
+                new byte[tokenLength], new byte[payloadLength]);
+    }
+
+    @Test
+    public void acceptsWellFormedNotifications() {
+        assertNull(NotificationValidator.validate(notification(32, 1)));
+        assertNull(NotificationValidator.validate(notification(32, Utilities.MAX_PAYLOAD_LENGTH)));
+    }
+
+    @Test
+    public void rejectsWithTheGatewayError() {
+        assertEquals(DeliveryError.MISSING_DEVICE_TOKEN, NotificationValidator.validate(notification(0, 10)));
+        assertEquals(DeliveryError.INVALID_TOKEN_SIZE, NotificationValidator.validate(notification(8, 10)));
+        assertEquals(DeliveryError.MISSING_PAYLOAD, NotificationValidator.validate(notification(32, 0)));
+        assertEquals(DeliveryError.INVALID_PAYLOAD_SIZE,
+                NotificationValidator.validate(notification(32, Utilities.MAX_PAYLOAD_LENGTH + 1)));
+    }
+
+    @Test
+    public void checksOtherNotificationTypes() {
+        assertEquals(DeliveryError.INVALID_TOKEN_SIZE,
+                NotificationValidator.validate(new SimpleApnsNotification(new byte[4], new byte[10])));
+        assertNull(NotificationValidator.validate(new SimpleApnsNotification(new byte[32], new byte[10])));
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ *  Copyright 2009, Mahmood Ali.
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are
+ *  met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ *      copyright notice, this list of conditions and the following disclaimer
+ *      in the documentation and/or other materials provided with the
+ *      distribution.
+ *    * Neither the name of Mahmood Ali. nor the names of its
+ *      contributors may be used to endorse or promote products derived from
+ *      this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.apns.internal;
+
+import java.util.concurrent.TimeUnit;
+
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.EnhancedApnsNotification;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PriorityLaneQueueTest {
+
+    private static ApnsNotification notification(int id) {
+        return new EnhancedApnsNotification(id, EnhancedApnsNotification.MAXIMUM_EXPIRY,
+                "a87d8878d878a79", "{\"aps\":{}}");
+    }
+
+    @Test
+    public void strictServesEarlierLanesFirst() {
+        PriorityLaneQueue queue = PriorityLaneQueue.strict(3);
+        queue.offer(notification(1), 2);
+        queue.offer(notification(2), 1);
+        queue.offer(notification(3), 0);
+        queue.offer(notification(4), 2);
+
+        assertEquals(3, queue.poll().getIdentifier());
+        assertEquals(2, queue.poll().getIdentifier());
+        assertEquals(1, queue.poll().getIdentifier());
+        assertEquals(4, queue.poll().getIdentifier());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void weightedServesLanesInProportion() {
+        PriorityLaneQueue queue = PriorityLaneQueue.weighted(3, 1);
+        for (int i = 0; i < 100; i++) {
+            queue.offer(notification(0), 0);
+            queue.offer(notification(1), 1);
+        }
+        int fromFirst = 0;
+        for (int i = 0; i < 40; i++) {
+            if (queue.poll().getIdentifier() == 0) {
+                fromFirst++;
+            }
+        }
+        assertEquals(30, fromFirst);
+        assertEquals(160, queue.size());
+    }
+
+    @Test
+    public void plainOfferGoesToFirstLane() {
+        PriorityLaneQueue queue = PriorityLaneQueue.strict(2);
+        queue.offer(notification(1), 1);
+        queue.offer(notification(2));
+        assertEquals(1, queue.size(0));
+        assertEquals(2, queue.peek().getIdentifier());
+    }
+
+    @Test
+    public void pollTimesOutWhenEmpty() throws InterruptedException {
+        PriorityLaneQueue queue = PriorityLaneQueue.weighted(1, 1);
+        long start = System.nanoTime();
+        assertNull(queue.poll(50, TimeUnit.MILLISECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(40));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownLane() {
+        PriorityLaneQueue.strict(2).offer(notification(1), 2);
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ *  Copyright 2009, Mahmood Ali.
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are
+ *  met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ *      copyright notice, this list of conditions and the following disclaimer
+ *      in the documentation and/or other materials provided with the
+ *      distribution.
+ *    * Neither the name of Mahmood Ali. nor the names of its
+ *      contributors may be used to endorse or promote products derived from
+ *      this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.apns.internal;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ReconnectPoliciesTest {
+
+    @Test
+    public void adaptiveKeepsFreshConnection() {
+        ReconnectPolicies.Adaptive policy = new ReconnectPolicies.Adaptive();
+        policy.sent(100);
+        assertFalse(policy.shouldReconnect());
+    }
+
+    @Test
+    public void adaptiveRotatesAfterMaxBytes() {
+        ReconnectPolicies.Adaptive policy = new ReconnectPolicies.Adaptive(0, 0, 0, 1000, 1);
+        policy.sent(600);
+        assertFalse(policy.shouldReconnect());
+        policy.sent(600);
+        assertTrue(policy.shouldReconnect());
+
+        policy.reconnected();
+        assertFalse(policy.shouldReconnect());
+    }
+
+    @Test
+    public void adaptiveErrorRateDecays() {
+        ReconnectPolicies.Adaptive policy = new ReconnectPolicies.Adaptive();
+        for (int i = 0; i < 10; i++) {
+            policy.failed();
+        }
+        double afterFailures = policy.getErrorRate();
+        assertTrue(afterFailures > ReconnectPolicies.Adaptive.DEFAULT_MAX_ERROR_RATE);
+
+        for (int i = 0; i < 500; i++) {
+            policy.sent(10);
+        }
+        assertTrue(policy.getErrorRate() < ReconnectPolicies.Adaptive.DEFAULT_MAX_ERROR_RATE);
+    }
+
+    @Test
+    public void adaptiveRotatesAfterMaxAge() throws InterruptedException {
+        ReconnectPolicies.Adaptive policy = new ReconnectPolicies.Adaptive(50, 0, 0, 0, 1);
+        assertFalse(policy.shouldReconnect());
+        Thread.sleep(50 + 3 * CoarseClock.RESOLUTION_MS);
+        assertTrue(policy.shouldReconnect());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void adaptiveRejectsInvalidJitter() {
+        new ReconnectPolicies.Adaptive(1000, 2, 0, 0, 0.1);
+    }
+}
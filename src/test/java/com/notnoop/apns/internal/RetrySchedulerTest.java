@@ -0,0 +1,92 @@
+/*
+ *  Copyright 2009, Mahmood Ali.
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are
+ *  met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ *      copyright notice, this list of conditions and the following disclaimer
+ *      in the documentation and/or other materials provided with the
+ *      distribution.
+ *    * Neither the name of Mahmood Ali. nor the names of its
+ *      contributors may be used to endorse or promote products derived from
+ *      this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.apns.internal;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RetrySchedulerTest {
+
+    @Test
+    public void delayDoublesWithJitterUpToMax() {
+        RetryScheduler scheduler = new RetryScheduler(100, 1000);
+        try {
+            for (int i = 0; i < 100; i++) {
+                long first = scheduler.delayOf(1);
+                assertTrue(first > 50 && first <= 100);
+                long third = scheduler.delayOf(3);
+                assertTrue(third > 200 && third <= 400);
+                long late = scheduler.delayOf(40);
+                assertTrue(late > 500 && late <= 1000);
+            }
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    public void runsScheduledRetry() throws InterruptedException {
+        RetryScheduler scheduler = new RetryScheduler(10, 10);
+        try {
+            final CountDownLatch ran = new CountDownLatch(1);
+            scheduler.schedule(1, new Runnable() {
+                public void run() {
+                    ran.countDown();
+                }
+            });
+            assertTrue(ran.await(5, TimeUnit.SECONDS));
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    public void shutdownRunsPendingRetries() {
+        RetryScheduler scheduler = new RetryScheduler(60000, 60000);
+        final CountDownLatch ran = new CountDownLatch(1);
+        scheduler.schedule(1, new Runnable() {
+            public void run() {
+                ran.countDown();
+            }
+        });
+        scheduler.shutdown();
+        assertEquals(0, ran.getCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMaxBelowInitialDelay() {
+        new RetryScheduler(100, 10);
+    }
+}
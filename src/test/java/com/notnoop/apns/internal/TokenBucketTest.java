@@ -0,0 +1,97 @@
+/*
+ *  Copyright 2009, Mahmood Ali.
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are
+ *  met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ *      copyright notice, this list of conditions and the following disclaimer
+ *      in the documentation and/or other materials provided with the
+ *      distribution.
+ *    * Neither the name of Mahmood Ali. nor the names of its
+ *      contributors may be used to endorse or promote products derived from
+ *      this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.apns.internal;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TokenBucketTest {
+
+    @Test
+    public void letsBurstThroughThenPaces() {
+        TokenBucket bucket = new TokenBucket(1000, 10);
+        long now = System.nanoTime();
+        for (int i = 0; i < 10; i++) {
+            assertTrue(bucket.reserve(now) <= 0);
+        }
+        long wait = bucket.reserve(now);
+        assertTrue(wait > 0 && wait <= TimeUnit.MILLISECONDS.toNanos(1));
+        assertTrue(bucket.reserve(now) > wait);
+    }
+
+    @Test
+    public void refillsAfterIdlePeriod() {
+        TokenBucket bucket = new TokenBucket(1000, 5);
+        long now = System.nanoTime();
+        for (int i = 0; i < 20; i++) {
+            bucket.reserve(now);
+        }
+        long later = now + TimeUnit.SECONDS.toNanos(1);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(bucket.reserve(later) <= 0);
+        }
+        assertTrue(bucket.reserve(later) > 0);
+    }
+
+    @Test
+    public void adaptiveHalvesOnBackOffAndRecovers() {
+        TokenBucket bucket = new TokenBucket(1000, 300, 1);
+        bucket.backOff();
+        assertEquals(500, bucket.getRate());
+        bucket.backOff();
+        assertEquals(300, bucket.getRate());
+
+        long now = System.nanoTime() + TokenBucket.INCREASE_INTERVAL;
+        bucket.reserve(now);
+        assertEquals(350, bucket.getRate());
+        bucket.reserve(now);
+        assertEquals(350, bucket.getRate());
+    }
+
+    @Test
+    public void fixedRateIgnoresBackOff() {
+        TokenBucket bucket = new TokenBucket(1000, 1);
+        bucket.backOff();
+        assertEquals(1000, bucket.getRate());
+    }
+
+    @Test
+    public void copyStartsFull() {
+        TokenBucket bucket = new TokenBucket(1000, 300, 2);
+        bucket.backOff();
+        TokenBucket copy = bucket.copy();
+        assertEquals(1000, copy.getRate());
+        assertTrue(copy.isAdaptive());
+    }
+}
@@ -45,6 +45,16 @@ public class UtilitiesTest {
         Assert.assertEquals(encodedHex.toLowerCase(), encoded.toLowerCase());
     }
 
+    @Test
+    public void testBase64() {
+        Assert.assertEquals("", Utilities.encodeBase64Url(new byte[0]));
+        Assert.assertEquals("Zm8", Utilities.encodeBase64Url(Utilities.toUTF8Bytes("fo")));
+        Assert.assertEquals("Zm9vYg", Utilities.encodeBase64Url(Utilities.toUTF8Bytes("foob")));
+        Assert.assertEquals("-_8", Utilities.encodeBase64Url(new byte[] { (byte) 0xFB, (byte) 0xFF }));
+        Assert.assertEquals("foobar", new String(Utilities.decodeBase64("Zm9v\nYmFy")));
+        Assert.assertArrayEquals(new byte[] { (byte) 0xFB, (byte) 0xFF }, Utilities.decodeBase64("+/8="));
+    }
+
     @Test
     public void testParsingBytes() {
         Assert.assertEquals(0xFF00FF00, Utilities.parseBytes(0xFF, 0, 0xFF, 0));
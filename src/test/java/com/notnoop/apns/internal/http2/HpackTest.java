@@ -0,0 +1,107 @@
+/*
+ *  Copyright 2009, Mahmood Ali.
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are
+ *  met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ *      copyright notice, this list of conditions and the following disclaimer
+ *      in the documentation and/or other materials provided with the
+ *      distribution.
+ *    * Neither the name of Mahmood Ali. nor the names of its
+ *      contributors may be used to endorse or promote products derived from
+ *      this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.apns.internal.http2;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class HpackTest {
+
+    private static byte[] bytes(String hex) {
+        hex = hex.replace(" ", "");
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+
+    private static void assertHeader(String name, String value, String[] header) {
+        assertEquals(name, header[0]);
+        assertEquals(value, header[1]);
+    }
+
+    @Test
+    public void decodesLiteralsWithIndexing() throws IOException {
+        // RFC 7541, C.3.1
+        List<String[]> headers = new Hpack.Decoder(4096).decode(
+                bytes("8286 8441 0f77 7777 2e65 7861 6d70 6c65 2e63 6f6d"));
+        assertEquals(4, headers.size());
+        assertHeader(":method", "GET", headers.get(0));
+        assertHeader(":scheme", "http", headers.get(1));
+        assertHeader(":path", "/", headers.get(2));
+        assertHeader(":authority", "www.example.com", headers.get(3));
+    }
+
+    @Test
+    public void decodesHuffmanStrings() throws IOException {
+        // RFC 7541, C.4.1
+        List<String[]> headers = new Hpack.Decoder(4096).decode(
+                bytes("8286 8441 8cf1 e3c2 e5f2 3a6b a0ab 90f4 ff"));
+        assertHeader(":authority", "www.example.com", headers.get(3));
+    }
+
+    @Test
+    public void usesDynamicTableAcrossBlocks() throws IOException {
+        // RFC 7541, C.3.1 then C.3.2
+        Hpack.Decoder decoder = new Hpack.Decoder(4096);
+        decoder.decode(bytes("8286 8441 0f77 7777 2e65 7861 6d70 6c65 2e63 6f6d"));
+        List<String[]> headers = decoder.decode(bytes("8286 84be 5808 6e6f 2d63 6163 6865"));
+        assertEquals(5, headers.size());
+        assertHeader(":authority", "www.example.com", headers.get(3));
+        assertHeader("cache-control", "no-cache", headers.get(4));
+    }
+
+    @Test
+    public void decodesWhatItEncodes() throws IOException {
+        List<String[]> headers = new ArrayList<String[]>();
+        headers.add(new String[] { ":method", "POST" });
+        headers.add(new String[] { ":path", "/3/device/00ff" });
+        headers.add(new String[] { "apns-topic", "com.example.app" });
+        headers.add(new String[] { "content-length", "18" });
+
+        List<String[]> decoded = new Hpack.Decoder(4096).decode(Hpack.encode(headers));
+        assertEquals(headers.size(), decoded.size());
+        for (int i = 0; i < headers.size(); i++) {
+            assertArrayEquals(headers.get(i), decoded.get(i));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsIndexOutOfTheTables() throws IOException {
+        new Hpack.Decoder(4096).decode(bytes("ff00"));
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ *  Copyright 2009, Mahmood Ali.
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are
+ *  met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ *      copyright notice, this list of conditions and the following disclaimer
+ *      in the documentation and/or other materials provided with the
+ *      distribution.
+ *    * Neither the name of Mahmood Ali. nor the names of its
+ *      contributors may be used to endorse or promote products derived from
+ *      this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.apns.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ApnsMetricsTest {
+
+    @Test
+    public void countersAreSharedByName() {
+        ApnsMetrics metrics = new ApnsMetrics();
+        metrics.counter("a").increment();
+        metrics.counter("a").add(4);
+        assertEquals(5, metrics.snapshot().getCounter("a"));
+    }
+
+    @Test
+    public void countsFromManyThreads() throws InterruptedException {
+        final Counter counter = new ApnsMetrics().counter("c");
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 8; i++) {
+            Thread t = new Thread() {
+                public void run() {
+                    for (int j = 0; j < 10000; j++) {
+                        counter.increment();
+                    }
+                }
+            };
+            threads.add(t);
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(80000, counter.get());
+    }
+
+    @Test
+    public void disabledRegistryRecordsNothing() {
+        ApnsMetrics metrics = ApnsMetrics.DISABLED;
+        metrics.counter("a").increment();
+        metrics.histogram("h").record(10);
+        metrics.registerGauge("g", new Gauge() {
+            public long value() {
+                return 1;
+            }
+        });
+        MetricsSnapshot snapshot = metrics.snapshot();
+        assertTrue(snapshot.getCounters().isEmpty());
+        assertTrue(snapshot.getHistograms().isEmpty());
+        assertTrue(snapshot.getGauges().isEmpty());
+    }
+
+    @Test
+    public void gaugesAreSampledOnSnapshot() {
+        ApnsMetrics metrics = new ApnsMetrics();
+        final long[] value = { 3 };
+        metrics.registerGauge("g", new Gauge() {
+            public long value() {
+                return value[0];
+            }
+        });
+        assertEquals(3, metrics.snapshot().getGauge("g"));
+        value[0] = 7;
+        assertEquals(7, metrics.snapshot().getGauge("g"));
+        metrics.removeGauge("g");
+        assertFalse(metrics.snapshot().getGauges().containsKey("g"));
+    }
+
+    @Test
+    public void bucketsAreContiguous() {
+        for (int bucket = 0; bucket < Histogram.BUCKETS - 1; bucket++) {
+            assertEquals(Histogram.highestValueOf(bucket) + 1, Histogram.lowestValueOf(bucket + 1));
+            assertEquals(bucket, Histogram.bucketOf(Histogram.lowestValueOf(bucket)));
+            assertEquals(bucket, Histogram.bucketOf(Histogram.highestValueOf(bucket)));
+        }
+        assertEquals(Histogram.BUCKETS - 1, Histogram.bucketOf(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void percentilesWithinPrecision() {
+        Histogram histogram = new ApnsMetrics().histogram("h");
+        for (int i = 1; i <= 100000; i++) {
+            histogram.record(i * 1000L);
+        }
+        HistogramSnapshot snapshot = histogram.snapshot();
+        assertEquals(100000, snapshot.getCount());
+        assertEquals(100000000L, snapshot.getMax());
+        assertEquals(1000L, snapshot.getMin(), 1000 * 0.04);
+        assertEquals(50000000L, snapshot.getPercentile(50), 50000000L * 0.04);
+        assertEquals(99000000L, snapshot.getPercentile(99), 99000000L * 0.04);
+        assertEquals(99900000L, snapshot.getPercentile(99.9), 99900000L * 0.04);
+        assertEquals(50000500L, snapshot.getMean(), 1);
+    }
+
+    @Test
+    public void mergesValuesRecordedFromManyThreads() throws InterruptedException {
+        final Histogram histogram = new ApnsMetrics().histogram("h");
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 8; i++) {
+            final long value = (i + 1) * 10L;
+            Thread t = new Thread() {
+                public void run() {
+                    for (int j = 0; j < 10000; j++) {
+                        histogram.record(value);
+                    }
+                }
+            };
+            threads.add(t);
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        HistogramSnapshot snapshot = histogram.snapshot();
+        assertEquals(80000, histogram.getCount());
+        assertEquals(80000, snapshot.getCount());
+        assertEquals(80L, snapshot.getMax());
+        assertEquals(10L, snapshot.getMin());
+        assertEquals(45.0, snapshot.getMean(), 0.001);
+        assertEquals(40L, snapshot.getPercentile(50), 40 * 0.04);
+    }
+
+    @Test
+    public void emptyHistogram() {
+        HistogramSnapshot snapshot = new ApnsMetrics().histogram("h").snapshot();
+        assertEquals(0, snapshot.getCount());
+        assertEquals(0, snapshot.getPercentile(99));
+        assertEquals(0, snapshot.getMin());
+    }
+
+    @Test
+    public void sendPhaseTimingsPerConnection() {
+        ApnsMetrics metrics = new ApnsMetrics();
+        SendPhaseTimings timings = metrics.sendPhaseTimings(3);
+        assertSame(timings, metrics.sendPhaseTimings(3));
+        timings.record(SendPhase.WRITE, 1000);
+        timings.record(SendPhase.WRITE, 2000);
+        timings.record(SendPhase.LOCK_WAIT, 10);
+
+        Map<SendPhase, HistogramSnapshot> snapshot = metrics.sendPhaseSnapshots().get(3);
+        assertEquals(2, snapshot.get(SendPhase.WRITE).getCount());
+        assertEquals(1, snapshot.get(SendPhase.LOCK_WAIT).getCount());
+        assertEquals(0, snapshot.get(SendPhase.DELEGATE).getCount());
+        assertNotNull(metrics.snapshot().getHistogram("gateway.connection.3.phase.write"));
+
+        metrics.removeConnection(3);
+        assertTrue(metrics.sendPhaseSnapshots().isEmpty());
+        assertNull(metrics.snapshot().getHistogram("gateway.connection.3.phase.write"));
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ *  Copyright 2009, Mahmood Ali.
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are
+ *  met:
+ *
+ *    * Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ *      copyright notice, this list of conditions and the following disclaimer
+ *      in the documentation and/or other materials provided with the
+ *      distribution.
+ *    * Neither the name of Mahmood Ali. nor the names of its
+ *      contributors may be used to endorse or promote products derived from
+ *      this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.apns.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.notnoop.apns.internal.http2.Hpack;
+
+/**
+ * A minimal HTTP/2 provider API server for tests.
+ *
+ * It answers every request after a delay, with 200 or, for device tokens
+ * starting with {@code ff}, 400 and the {@code BadDeviceToken} reason.
+ * It records the paths requested and the peak number of concurrently
+ * open streams, and can send a {@code GOAWAY} after a number of requests.
+ */
+public class Http2ServerStub {
+    private static final Logger LOGGER = LoggerFactory.getLogger(Http2ServerStub.class);
+
+    private final int maxConcurrentStreams;
+    private final long responseDelayMillis;
+    private final ServerSocket serverSocket;
+    private final ScheduledExecutorService responder = Executors.newScheduledThreadPool(2);
+    private final List<String> paths = new CopyOnWriteArrayList<String>();
+    private final List<Socket> sockets = new CopyOnWriteArrayList<Socket>();
+    private final AtomicInteger openStreams = new AtomicInteger();
+    private final AtomicInteger peakStreams = new AtomicInteger();
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicInteger toRefuse = new AtomicInteger();
+    private volatile int goAwayAfter = -1;
+
+    public Http2ServerStub(int maxConcurrentStreams, long responseDelayMillis) throws IOException {
+        this.maxConcurrentStreams = maxConcurrentStreams;
+        this.responseDelayMillis = responseDelayMillis;
+        this.serverSocket = FixedCertificates.serverContext().getServerSocketFactory().createServerSocket(0);
+        Thread acceptor = new Thread(new Runnable() {
+            public void run() {
+                accept();
+            }
+        }, "Http2ServerStub");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Makes the server send a {@code GOAWAY} on the first connection once
+     * it received the given number of requests, refusing the later ones.
+     */
+    public void goAwayAfter(int requests) {
+        this.goAwayAfter = requests;
+    }
+
+    /**
+     * Makes the server reset the next requests with {@code REFUSED_STREAM}.
+     */
+    public void refuse(int requests) {
+        toRefuse.set(requests);
+    }
+
+    public List<String> getPaths() {
+        return paths;
+    }
+
+    public int getPeakStreams() {
+        return peakStreams.get();
+    }
+
+    public int getConnections() {
+        return connections.get();
+    }
+
+    public void stop() {
+        responder.shutdownNow();
+        try {
+            serverSocket.close();
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+        } catch (IOException e) {
+            LOGGER.debug("Failed closing the server", e);
+        }
+    }
+
+    private void accept() {
+        try {
+            while (true) {
+                final Socket socket = serverSocket.accept();
+                sockets.add(socket);
+                connections.incrementAndGet();
+                Thread handler = new Thread(new Runnable() {
+                    public void run() {
+                        try {
+                            new Connection(socket).serve();
+                        } catch (IOException e) {
+                            LOGGER.debug("Connection ended", e);
+                        }
+                    }
+                }, "Http2ServerStub-connection");
+                handler.setDaemon(true);
+                handler.start();
+            }
+        } catch (IOException e) {
+            LOGGER.debug("Server socket closed", e);
+        }
+    }
+
+    private class Connection {
+        private final Socket socket;
+        private final DataInputStream in;
+        private final DataOutputStream out;
+        private final Hpack.Decoder decoder = new Hpack.Decoder(4096);
+        private final Map<Integer, String> requests = new ConcurrentHashMap<Integer, String>();
+        private final AtomicInteger unanswered = new AtomicInteger();
+        private int received;
+        private volatile boolean goingAway;
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new DataInputStream(socket.getInputStream());
+            this.out = new DataOutputStream(socket.getOutputStream());
+        }
+
+        void serve() throws IOException {
+            in.readFully(new byte[24]);
+            ByteArrayOutputStream settings = new ByteArrayOutputStream();
+            settings.write(0);
+            settings.write(3);
+            new DataOutputStream(settings).writeInt(maxConcurrentStreams);
+            write(4, 0, 0, settings.toByteArray());
+
+            while (true) {
+                int length = (in.readUnsignedByte() << 16) | in.readUnsignedShort();
+                int type = in.readUnsignedByte();
+                int flags = in.readUnsignedByte();
+                int streamId = in.readInt() & 0x7fffffff;
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+
+                if (type == 4 && (flags & 1) == 0) {
+                    write(4, 1, 0, new byte[0]);
+                } else if (type == 1) {
+                    // the client never pads, sets priorities or needs CONTINUATION here
+                    String path = null;
+                    for (String[] header : decoder.decode(payload)) {
+                        if (":path".equals(header[0])) {
+                            path = header[1];
+                        }
+                    }
+                    requests.put(streamId, path);
+                    int open = openStreams.incrementAndGet();
+                    int peak = peakStreams.get();
+                    while (open > peak && !peakStreams.compareAndSet(peak, open)) {
+                        peak = peakStreams.get();
+                    }
+                    if ((flags & 1) != 0) {
+                        requestReceived(streamId);
+                    }
+                } else if (type == 0 && (flags & 1) != 0) {
+                    requestReceived(streamId);
+                }
+            }
+        }
+
+        private void requestReceived(final int streamId) throws IOException {
+            received++;
+            if (toRefuse.getAndDecrement() > 0) {
+                requests.remove(streamId);
+                openStreams.decrementAndGet();
+                ByteArrayOutputStream reset = new ByteArrayOutputStream();
+                new DataOutputStream(reset).writeInt(7);
+                write(3, 0, streamId, reset.toByteArray());
+                return;
+            }
+            if (goingAway) {
+                // refused: the client retries it elsewhere
+                requests.remove(streamId);
+                openStreams.decrementAndGet();
+                return;
+            }
+            if (received == goAwayAfter) {
+                goingAway = true;
+                goAwayAfter = -1;
+                ByteArrayOutputStream goAway = new ByteArrayOutputStream();
+                DataOutputStream data = new DataOutputStream(goAway);
+                data.writeInt(streamId);
+                data.writeInt(0);
+                write(7, 0, 0, goAway.toByteArray());
+            }
+            unanswered.incrementAndGet();
+            responder.schedule(new Runnable() {
+                public void run() {
+                    respond(streamId);
+                }
+            }, responseDelayMillis, TimeUnit.MILLISECONDS);
+        }
+
+        private void respond(int streamId) {
+            String path = requests.remove(streamId);
+            paths.add(path);
+            openStreams.decrementAndGet();
+            try {
+                List<String[]> headers = new ArrayList<String[]>();
+                if (path.startsWith("/3/device/ff")) {
+                    headers.add(new String[] { ":status", "400" });
+                    write(1, 4, streamId, Hpack.encode(headers));
+                    write(0, 1, streamId, "{\"reason\":\"BadDeviceToken\"}".getBytes("UTF-8"));
+                } else {
+                    headers.add(new String[] { ":status", "200" });
+                    write(1, 5, streamId, Hpack.encode(headers));
+                }
+                if (unanswered.decrementAndGet() == 0 && goingAway) {
+                    socket.close();
+                }
+            } catch (IOException e) {
+                LOGGER.debug("Failed responding", e);
+            }
+        }
+
+        private synchronized void write(int type, int flags, int streamId, byte[] payload) throws IOException {
+            out.write(payload.length >>> 16);
+            out.writeShort(payload.length);
+            out.write(type);
+            out.write(flags);
+            out.writeInt(streamId);
+            out.write(payload);
+            out.flush();
+        }
+    }
+}